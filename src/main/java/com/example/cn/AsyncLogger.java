@@ -0,0 +1,253 @@
+package com.example.cn;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Lock-free, bounded logger. Producers (selector loops, transfer threads) claim a slot in a ring
+// buffer and never block; when the ring is full the entry is dropped and counted. A single
+// consumer thread drains the ring at a fixed frame rate and hands each batch to the sinks
+// (UI list, stdout, rolling file), so the cost of a log call does not depend on the sinks.
+//
+// Configuration: -Dcn.log.level (TRACE..ERROR, default INFO), -Dcn.log.capacity (ring slots,
+// default 8192), -Dcn.log.frameRate (batches per second, default 10).
+public final class AsyncLogger implements AutoCloseable {
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR }
+
+    public interface Sink {
+        void write(List<Entry> batch);
+
+        default void close() {}
+    }
+
+    public static final class Entry {
+        private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT =
+                ThreadLocal.withInitial(() -> new SimpleDateFormat("HH:mm:ss.SSS"));
+
+        private final long time;
+        private final Level level;
+        private final String message;
+
+        Entry(long time, Level level, String message) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+        }
+
+        public long getTime() { return time; }
+        public Level getLevel() { return level; }
+        public String getMessage() { return message; }
+
+        public String format() {
+            return TIME_FORMAT.get().format(new Date(time)) + " - " + message;
+        }
+
+        public String formatWithLevel() {
+            return TIME_FORMAT.get().format(new Date(time)) + " " + level + " - " + message;
+        }
+    }
+
+    // Lets one in every N occurrences of a high-volume event through
+    public static final class Sampler {
+        private final int every;
+        private final AtomicLong count = new AtomicLong();
+
+        private Sampler(int every) {
+            this.every = Math.max(1, every);
+        }
+
+        public boolean sample() {
+            return count.getAndIncrement() % every == 0;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    private final Entry[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final long frameNanos;
+    private final List<Sink> sinks = new CopyOnWriteArrayList<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private volatile Level minLevel;
+    private volatile boolean running = true;
+    private final Thread consumer;
+
+    public AsyncLogger() {
+        this(Integer.getInteger("cn.log.capacity", 8192), Integer.getInteger("cn.log.frameRate", 10),
+                Level.valueOf(System.getProperty("cn.log.level", "INFO").toUpperCase()));
+    }
+
+    public AsyncLogger(int capacity, int frameRate, Level minLevel) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Entry[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.frameNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, frameRate);
+        this.minLevel = minLevel;
+
+        consumer = new Thread(this::drainLoop, "log-writer");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    public void addSink(Sink sink) {
+        sinks.add(sink);
+    }
+
+    public void removeSink(Sink sink) {
+        sinks.remove(sink);
+    }
+
+    public void setLevel(Level level) { this.minLevel = level; }
+    public Level getLevel() { return minLevel; }
+    public long getDropped() { return dropped.get(); }
+    public long getWritten() { return written.get(); }
+    public int getCapacity() { return slots.length; }
+
+    public static Sampler sampler(int every) {
+        return new Sampler(every);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(minLevel) >= 0;
+    }
+
+    public void trace(String message) { log(Level.TRACE, message); }
+    public void debug(String message) { log(Level.DEBUG, message); }
+    public void info(String message) { log(Level.INFO, message); }
+    public void warn(String message) { log(Level.WARN, message); }
+    public void error(String message) { log(Level.ERROR, message); }
+
+    // The exception and where it was thrown, on the entry's line
+    public void error(String message, Throwable e) {
+        StackTraceElement[] trace = e.getStackTrace();
+        log(Level.ERROR, message + ": " + e + (trace.length > 0 ? " at " + trace[0] : ""));
+    }
+
+    // Logs only the sampled occurrences; the message should say it is sampled
+    public void log(Level level, Sampler sampler, String message) {
+        if (isEnabled(level) && sampler.sample()) {
+            log(level, message);
+        }
+    }
+
+    // Never blocks: returns false when the entry was filtered out or the ring was full
+    public boolean log(Level level, String message) {
+        if (!isEnabled(level) || !running) return false;
+
+        Entry entry = new Entry(System.currentTimeMillis(), level, message);
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.getAcquire(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = entry;
+                    sequences.setRelease(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The consumer has not freed this slot yet: the ring is full
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // Consumer side; only called from the log-writer thread
+    private Entry poll() {
+        int index = (int) (head & mask);
+        if (sequences.getAcquire(index) != head + 1) {
+            return null;
+        }
+        Entry entry = slots[index];
+        slots[index] = null;
+        sequences.setRelease(index, head + slots.length);
+        head++;
+        return entry;
+    }
+
+    private void drainLoop() {
+        long reportedDrops = 0;
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            boolean stopping = !running;
+            long frameStart = System.nanoTime();
+
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                batch.add(new Entry(System.currentTimeMillis(), Level.WARN,
+                        (drops - reportedDrops) + " log entries dropped (log ring full)"));
+                reportedDrops = drops;
+            }
+            // At most one ring's worth per frame so a burst cannot stall the sinks indefinitely
+            int polled = 0;
+            Entry entry = null;
+            while (polled < slots.length && (entry = poll()) != null) {
+                batch.add(entry);
+                polled++;
+            }
+            if (!batch.isEmpty()) {
+                List<Entry> next = new ArrayList<>();
+                publish(batch, next);
+                written.addAndGet(batch.size());
+                batch = next;
+            }
+
+            if (stopping) {
+                if (entry == null) break;
+                continue;
+            }
+            long remaining = frameNanos - (System.nanoTime() - frameStart);
+            if (remaining > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+        for (Sink sink : sinks) {
+            sink.close();
+        }
+    }
+
+    // A failing sink is reported in the next batch, which the other sinks still get
+    private void publish(List<Entry> batch, List<Entry> next) {
+        for (Sink sink : sinks) {
+            try {
+                sink.write(batch);
+            } catch (RuntimeException e) {
+                next.add(new Entry(System.currentTimeMillis(), Level.WARN, "Log sink failed: " + e));
+            }
+        }
+    }
+
+    // Drains what is left, closes the sinks and stops the consumer
+    @Override
+    public void close() {
+        if (!running) return;
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
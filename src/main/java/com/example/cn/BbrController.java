@@ -0,0 +1,334 @@
+package com.example.cn;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+// Model-based congestion control after BBR (v1). Instead of reacting to loss it estimates the
+// path: the bottleneck bandwidth (windowed max of delivery-rate samples over 10 rounds) and the
+// propagation delay (windowed min RTT over 10 s). The sender is paced at pacing_gain * btlbw and
+// cwnd is capped at cwnd_gain * BDP. Phases:
+//   STARTUP   - gain 2/ln2 until the bandwidth stops growing 25% per round for 3 rounds
+//   DRAIN     - inverse gain until the queue built in STARTUP is gone (inflight <= BDP)
+//   PROBE_BW  - steady state, cycles pacing gain 1.25, 0.75, 1 x 6 one min RTT each
+//   PROBE_RTT - every 10 s without a new min RTT, 4 segments for 200 ms to re-measure it
+// Loss is not a congestion signal here; a retransmission timeout drops cwnd to the minimum window
+// and the window from before it comes back once a segment sent after the timeout is acknowledged.
+// The sender is assumed not to be application-limited, which holds for file transfers.
+public class BbrController implements CongestionController {
+    public static final String ID = "BBR";
+
+    public enum Phase { STARTUP, DRAIN, PROBE_BW, PROBE_RTT }
+
+    private static final double HIGH_GAIN = 2 / Math.log(2);
+    private static final double[] PROBE_BW_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+    private static final int BTLBW_FILTER_ROUNDS = 10;
+    private static final long MIN_RTT_WINDOW_NANOS = 10_000_000_000L;
+    private static final long PROBE_RTT_DURATION_NANOS = 200_000_000L;
+    private static final double MIN_WINDOW = 4.0;
+    private static final double INITIAL_WINDOW = 4.0;
+
+    // Delivery state captured when a segment was sent, for rate samples (draft-cheng-iccrg-delivery-rate-estimation)
+    private static final class SentSegment {
+        final int bytes;
+        final long sendTime;
+        final long delivered;
+        final long deliveredTime;
+        final long firstSentTime;
+
+        SentSegment(int bytes, long sendTime, long delivered, long deliveredTime, long firstSentTime) {
+            this.bytes = bytes;
+            this.sendTime = sendTime;
+            this.delivered = delivered;
+            this.deliveredTime = deliveredTime;
+            this.firstSentTime = firstSentTime;
+        }
+    }
+
+    private final ArrayDeque<SentSegment> inFlight = new ArrayDeque<>();
+    private final Random random = new Random();
+    private long bytesInFlight;
+    private long delivered;
+    private long deliveredTime;
+    private long firstSentTime;
+    private int segmentSize = 1024;
+
+    // Rounds: one round trip ends when a segment sent after it started is acknowledged
+    private long roundCount;
+    private long nextRoundDelivered;
+    private final double[] bandwidthByRound = new double[BTLBW_FILTER_ROUNDS];
+    private double bottleneckBandwidth;
+
+    private double minRttMillis = -1;
+    private long minRttStamp;
+    private long probeRttDoneStamp;
+    private boolean probeRttRoundDone;
+
+    private Phase phase = Phase.STARTUP;
+    private double pacingGain = HIGH_GAIN;
+    private double cwndGain = HIGH_GAIN;
+    private boolean filledPipe;
+    private double fullBandwidth;
+    private int fullBandwidthCount;
+    private int cycleIndex;
+    private long cycleStamp;
+
+    private double congestionWindow = INITIAL_WINDOW;
+    private double pacingRate;
+
+    // Window saved on a retransmission timeout, restored when the recovery round ends
+    private double priorCongestionWindow;
+    private boolean inRecovery;
+    private long recoveryDelivered;
+
+    @Override
+    public String id() {
+        return ID;
+    }
+
+    @Override
+    public void onSend(int bytes, long nowNanos) {
+        if (inFlight.isEmpty()) {
+            firstSentTime = nowNanos;
+            deliveredTime = nowNanos;
+        }
+        segmentSize = Math.max(segmentSize, bytes);
+        inFlight.addLast(new SentSegment(bytes, nowNanos, delivered, deliveredTime, firstSentTime));
+        bytesInFlight += bytes;
+    }
+
+    @Override
+    public void onAck(int ackedSegments, long ackedBytes, double rttMillis, long nowNanos) {
+        SentSegment newest = null;
+        for (int i = 0; i < ackedSegments && !inFlight.isEmpty(); i++) {
+            newest = inFlight.pollFirst();
+            bytesInFlight -= newest.bytes;
+        }
+        if (newest == null) return;
+
+        delivered += ackedBytes;
+        deliveredTime = nowNanos;
+        firstSentTime = newest.sendTime;
+
+        boolean roundStart = newest.delivered >= nextRoundDelivered;
+        if (roundStart) {
+            nextRoundDelivered = delivered;
+            roundCount++;
+            bandwidthByRound[(int) (roundCount % BTLBW_FILTER_ROUNDS)] = 0;
+        }
+        updateBandwidth(newest, nowNanos);
+        updateMinRtt(rttMillis, nowNanos);
+
+        if (roundStart) {
+            checkFullPipe();
+        }
+        updatePhase(roundStart, nowNanos);
+        updateCongestionWindow(ackedSegments);
+        if (inRecovery && newest.delivered >= recoveryDelivered) {
+            inRecovery = false;
+            restoreCongestionWindow();
+        }
+        updatePacingRate();
+    }
+
+    private void updateBandwidth(SentSegment segment, long nowNanos) {
+        long sendElapsed = segment.sendTime - segment.firstSentTime;
+        long ackElapsed = nowNanos - segment.deliveredTime;
+        long interval = Math.max(sendElapsed, ackElapsed);
+        if (interval <= 0) return;
+
+        double rate = (delivered - segment.delivered) * 1e9 / interval;
+        int slot = (int) (roundCount % BTLBW_FILTER_ROUNDS);
+        bandwidthByRound[slot] = Math.max(bandwidthByRound[slot], rate);
+        double max = 0;
+        for (double bandwidth : bandwidthByRound) {
+            max = Math.max(max, bandwidth);
+        }
+        bottleneckBandwidth = max;
+    }
+
+    private void updateMinRtt(double rttMillis, long nowNanos) {
+        boolean expired = minRttMillis >= 0 && nowNanos - minRttStamp > MIN_RTT_WINDOW_NANOS;
+        if (rttMillis >= 0 && (minRttMillis < 0 || rttMillis <= minRttMillis || expired)) {
+            minRttMillis = rttMillis;
+            minRttStamp = nowNanos;
+        }
+        if (expired && phase != Phase.PROBE_RTT) {
+            phase = Phase.PROBE_RTT;
+            pacingGain = 1;
+            cwndGain = 1;
+            probeRttDoneStamp = 0;
+        }
+    }
+
+    private void checkFullPipe() {
+        if (filledPipe) return;
+        if (bottleneckBandwidth >= fullBandwidth * 1.25) {
+            fullBandwidth = bottleneckBandwidth;
+            fullBandwidthCount = 0;
+            return;
+        }
+        if (++fullBandwidthCount >= 3) {
+            filledPipe = true;
+        }
+    }
+
+    private void updatePhase(boolean roundStart, long nowNanos) {
+        switch (phase) {
+            case STARTUP:
+                if (filledPipe) {
+                    phase = Phase.DRAIN;
+                    pacingGain = 1 / HIGH_GAIN;
+                    cwndGain = HIGH_GAIN;
+                }
+                break;
+            case DRAIN:
+                if (bytesInFlight <= bdpBytes(1.0)) {
+                    enterProbeBandwidth(nowNanos);
+                }
+                break;
+            case PROBE_BW:
+                if (shouldAdvanceCycle(nowNanos)) {
+                    cycleIndex = (cycleIndex + 1) % PROBE_BW_GAINS.length;
+                    cycleStamp = nowNanos;
+                    pacingGain = PROBE_BW_GAINS[cycleIndex];
+                }
+                break;
+            case PROBE_RTT:
+                if (probeRttDoneStamp == 0 && inFlight.size() <= MIN_WINDOW) {
+                    probeRttDoneStamp = nowNanos + PROBE_RTT_DURATION_NANOS;
+                    probeRttRoundDone = false;
+                    nextRoundDelivered = delivered;
+                } else if (probeRttDoneStamp != 0) {
+                    if (roundStart) {
+                        probeRttRoundDone = true;
+                    }
+                    if (probeRttRoundDone && nowNanos > probeRttDoneStamp) {
+                        minRttStamp = nowNanos;
+                        if (filledPipe) {
+                            enterProbeBandwidth(nowNanos);
+                        } else {
+                            phase = Phase.STARTUP;
+                            pacingGain = HIGH_GAIN;
+                            cwndGain = HIGH_GAIN;
+                        }
+                    }
+                }
+                break;
+        }
+    }
+
+    private void enterProbeBandwidth(long nowNanos) {
+        phase = Phase.PROBE_BW;
+        cwndGain = 2;
+        // Start anywhere but in the draining 0.75 phase
+        cycleIndex = random.nextInt(PROBE_BW_GAINS.length - 1);
+        if (cycleIndex >= 1) cycleIndex++;
+        cycleStamp = nowNanos;
+        pacingGain = PROBE_BW_GAINS[cycleIndex];
+    }
+
+    private boolean shouldAdvanceCycle(long nowNanos) {
+        boolean fullLength = nowNanos - cycleStamp > minRttMillis * 1_000_000;
+        if (pacingGain > 1) {
+            // Keep probing until the extra data is actually in flight
+            return fullLength && bytesInFlight >= bdpBytes(pacingGain);
+        }
+        if (pacingGain < 1) {
+            return fullLength || bytesInFlight <= bdpBytes(1.0);
+        }
+        return fullLength;
+    }
+
+    private double bdpBytes(double gain) {
+        if (minRttMillis < 0 || bottleneckBandwidth == 0) return INITIAL_WINDOW * segmentSize;
+        return gain * bottleneckBandwidth * minRttMillis / 1000;
+    }
+
+    private void updateCongestionWindow(int ackedSegments) {
+        // Segments of the estimated BDP plus allowance for ACK aggregation
+        double target = bdpBytes(cwndGain) / segmentSize + 3;
+        if (filledPipe) {
+            congestionWindow = Math.min(congestionWindow + ackedSegments, target);
+        } else if (congestionWindow < target || delivered < INITIAL_WINDOW * segmentSize) {
+            congestionWindow += ackedSegments;
+        }
+        congestionWindow = Math.max(congestionWindow, MIN_WINDOW);
+        if (phase == Phase.PROBE_RTT) {
+            congestionWindow = Math.min(congestionWindow, MIN_WINDOW);
+        }
+    }
+
+    private void restoreCongestionWindow() {
+        congestionWindow = Math.max(congestionWindow, priorCongestionWindow);
+        if (phase == Phase.PROBE_RTT) {
+            congestionWindow = Math.min(congestionWindow, MIN_WINDOW);
+        }
+    }
+
+    private void updatePacingRate() {
+        double rate;
+        if (bottleneckBandwidth > 0) {
+            rate = pacingGain * bottleneckBandwidth;
+        } else if (minRttMillis > 0) {
+            rate = HIGH_GAIN * INITIAL_WINDOW * segmentSize / (minRttMillis / 1000);
+        } else {
+            return;
+        }
+        // STARTUP never lowers the rate until the pipe is full
+        if (filledPipe || rate > pacingRate) {
+            pacingRate = rate;
+        }
+    }
+
+    // Segments of a transfer that ended early or was rewound, the newest ones in the FIFO. With
+    // several transfers on the connection these may be another transfer's, which is the same
+    // approximation the ACKs make; what counts is that bytesInFlight drains again.
+    @Override
+    public void onDiscard(int segments, long nowNanos) {
+        for (int i = 0; i < segments && !inFlight.isEmpty(); i++) {
+            bytesInFlight -= inFlight.pollLast().bytes;
+        }
+        if (phase == Phase.PROBE_RTT) {
+            updatePhase(false, nowNanos);
+        }
+    }
+
+    @Override
+    public void onLoss(long nowNanos) {
+    }
+
+    @Override
+    public void onTimeout(long nowNanos) {
+        // A second timeout within the same recovery keeps the window saved by the first
+        if (!inRecovery) {
+            priorCongestionWindow = congestionWindow;
+            inRecovery = true;
+        }
+        recoveryDelivered = delivered;
+        congestionWindow = MIN_WINDOW;
+    }
+
+    @Override
+    public double getCongestionWindow() { return congestionWindow; }
+
+    // No slow start threshold: report the model's BDP in segments instead
+    @Override
+    public double getSlowStartThreshold() { return bdpBytes(1.0) / segmentSize; }
+
+    @Override
+    public double getPacingRate() { return pacingRate; }
+
+    @Override
+    public double getBottleneckBandwidth() { return bottleneckBandwidth; }
+
+    @Override
+    public double getMinRtt() { return minRttMillis; }
+
+    @Override
+    public double getPacingGain() { return pacingGain; }
+
+    @Override
+    public String getPhase() { return phase.name(); }
+
+    public long getRoundCount() { return roundCount; }
+}
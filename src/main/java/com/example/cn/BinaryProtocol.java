@@ -0,0 +1,252 @@
+package com.example.cn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+// Binary framing shared by client and server.
+//
+// After a connection is opened the client sends "HELLO:<version>" as a text line. A server that
+// understands the binary protocol answers "HELLO_ACK:<version>"; from then on both sides may send
+// data as binary frames. Control commands stay newline terminated text, and a peer that never
+// negotiates keeps using the old Base64 FILE_DATA/UPLOAD_DATA lines.
+//
+// The HELLO version may be followed by optional features, "HELLO:1;ACK". The server answers
+// with the subset it supports, and only features named in HELLO_ACK are used:
+//   ACK  the receiver of data frames answers with cumulative ACK frames (offset = next expected
+//        byte, 4 byte payload = advertised receive window) and the sender runs a SlidingWindow
+//   DELTA  an UPLOAD of a file the server already has may be answered with DELTA_READY and block
+//        signatures instead of UPLOAD_READY; the client then sends a DeltaSync delta
+//   CRC  (with ACK) data frames carry FLAG_CRC32C; a receiver that finds a corrupted frame at the
+//        offset it expects answers "RESEND:<offset>" and the sender goes back to that offset. The
+//        sender's SHA-256 of the bytes it sent follows DOWNLOAD_COMPLETE:<name>;<sha256> or is sent
+//        as UPLOAD_DIGEST:<name>;<sha256>, and the receiver compares it with its own
+//   Z=<codec>  data frames may be compressed (FLAG_COMPRESSED, see ChunkCompressor). The client
+//        offers every codec it has, in order of preference; the server answers with the first it
+//        also has
+//   MUX  one connection carries several transfers at once. Commands that belong to a transfer
+//        name its stream, "DOWNLOAD@3:<name>", and so do the replies ("DOWNLOAD_START@3:...",
+//        "ERROR@3:...") and the streamId of its frames. The client picks the ids; untagged
+//        commands belong to stream 0, the only stream of a client without MUX
+//
+// Frame layout (big endian):
+//   magic(1) version(1) type(1) flags(1) streamId(4) offset(8) length(4) payload(length)
+// The magic byte is never the first byte of a text line, so frames and lines can be interleaved.
+// With FLAG_CRC32C the last 4 bytes of the payload are the CRC32C of the rest; ProtocolDecoder
+// checks and strips them.
+public final class BinaryProtocol {
+    public static final int VERSION = 1;
+    public static final byte MAGIC = (byte) 0xB5;
+    public static final int HEADER_SIZE = 20;
+    public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    // Frame types
+    public static final byte TYPE_FILE_DATA = 1;
+    public static final byte TYPE_UPLOAD_DATA = 2;
+    public static final byte TYPE_ACK = 3;
+    public static final int ACK_PAYLOAD_SIZE = 4;
+    // offset = index of the first block, payload = DeltaSync signatures
+    public static final byte TYPE_SIGNATURES = 4;
+    // offset = position in the new file, payload = literal bytes
+    public static final byte TYPE_DELTA_DATA = 5;
+    // offset = position in the new file, payload = first block(4) and block count(4) of the basis
+    public static final byte TYPE_DELTA_COPY = 6;
+    public static final int DELTA_COPY_PAYLOAD_SIZE = 8;
+
+    // Frame flags
+    public static final int FLAG_CRC32C = 1;
+    public static final int CHECKSUM_SIZE = 4;
+    public static final int FLAG_COMPRESSED = 2;
+
+    // Negotiation commands
+    public static final String HELLO = "HELLO";
+    public static final String HELLO_ACK = "HELLO_ACK";
+
+    // Optional features
+    public static final String FEATURE_ACK = "ACK";
+    public static final String FEATURE_DELTA = "DELTA";
+    public static final String FEATURE_CRC = "CRC";
+    public static final String FEATURE_CODEC_PREFIX = "Z=";
+    public static final String FEATURE_MUX = "MUX";
+
+    private BinaryProtocol() {
+    }
+
+    // Accepts "1" as well as "1;FEATURE,..."
+    public static boolean isSupportedVersion(String hello) {
+        String version = hello.split(";", 2)[0];
+        try {
+            return Integer.parseInt(version.trim()) == VERSION;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public static Set<String> parseFeatures(String hello) {
+        Set<String> features = new LinkedHashSet<>();
+        String[] parts = hello.split(";", 2);
+        if (parts.length > 1) {
+            for (String feature : parts[1].split(",")) {
+                if (!feature.trim().isEmpty()) {
+                    features.add(feature.trim());
+                }
+            }
+        }
+        return features;
+    }
+
+    // Codec ids offered as Z=<codec> features, in order
+    public static List<String> codecs(Collection<String> features) {
+        List<String> codecs = new ArrayList<>();
+        for (String feature : features) {
+            if (feature.startsWith(FEATURE_CODEC_PREFIX)) {
+                codecs.add(feature.substring(FEATURE_CODEC_PREFIX.length()));
+            }
+        }
+        return codecs;
+    }
+
+    // "COMMAND:data" for stream 0, "COMMAND@<id>:data" for any other stream
+    public static String tag(String message, int streamId) {
+        if (streamId == 0) return message;
+        int colon = message.indexOf(':');
+        return colon < 0 ? message + "@" + streamId
+                : message.substring(0, colon) + "@" + streamId + message.substring(colon);
+    }
+
+    // Stream named by a command, 0 if untagged and -1 if the tag is malformed
+    public static int streamOf(String command) {
+        int at = command.indexOf('@');
+        if (at < 0) return 0;
+        try {
+            int streamId = Integer.parseInt(command.substring(at + 1));
+            return streamId >= 0 ? streamId : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static String untag(String command) {
+        int at = command.indexOf('@');
+        return at < 0 ? command : command.substring(0, at);
+    }
+
+    // A file name as a field of a text message: '%', the ';' between fields and line breaks are
+    // sent as %XX
+    public static String escapeName(String name) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '%' || c == ';' || c == '\n' || c == '\r') {
+                if (escaped == null) {
+                    escaped = new StringBuilder(name.length() + 8).append(name, 0, i);
+                }
+                escaped.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped == null ? name : escaped.toString();
+    }
+
+    // Reverses escapeName; throws IllegalArgumentException for a malformed escape
+    public static String unescapeName(String field) {
+        int percent = field.indexOf('%');
+        if (percent < 0) return field;
+        StringBuilder name = new StringBuilder(field.length()).append(field, 0, percent);
+        for (int i = percent; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c != '%') {
+                name.append(c);
+                continue;
+            }
+            int high = i + 2 < field.length() ? Character.digit(field.charAt(i + 1), 16) : -1;
+            int low = high >= 0 ? Character.digit(field.charAt(i + 2), 16) : -1;
+            if (low < 0) {
+                throw new IllegalArgumentException("Malformed escape in " + field);
+            }
+            name.append((char) (high << 4 | low));
+            i += 2;
+        }
+        return name.toString();
+    }
+
+    // "<version>;<feature>,<feature>" as sent after HELLO: and HELLO_ACK:
+    public static String versionWithFeatures(Collection<String> features) {
+        return features.isEmpty() ? String.valueOf(VERSION) : VERSION + ";" + String.join(",", features);
+    }
+
+    // Writes a frame header at the buffer's current position
+    public static void putHeader(ByteBuffer buffer, byte type, int flags, int streamId, long offset, int length) {
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put(type);
+        buffer.put((byte) flags);
+        buffer.putInt(streamId);
+        buffer.putLong(offset);
+        buffer.putInt(length);
+    }
+
+    public static ByteBuffer encodeHeader(byte type, int flags, int streamId, long offset, int length) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        putHeader(header, type, flags, streamId, offset, length);
+        header.flip();
+        return header;
+    }
+
+    public static ByteBuffer encodeAck(BufferPool pool, int streamId, long ackOffset, int receiveWindow) {
+        ByteBuffer frame = pool.acquire(HEADER_SIZE + ACK_PAYLOAD_SIZE);
+        putHeader(frame, TYPE_ACK, 0, streamId, ackOffset, ACK_PAYLOAD_SIZE);
+        frame.putInt(receiveWindow);
+        frame.flip();
+        return frame;
+    }
+
+    public static ByteBuffer encodeFrame(BufferPool pool, byte type, int streamId, long offset,
+                                         byte[] data, int dataOffset, int length) {
+        ByteBuffer frame = pool.acquire(HEADER_SIZE + length);
+        putHeader(frame, type, 0, streamId, offset, length);
+        frame.put(data, dataOffset, length);
+        frame.flip();
+        return frame;
+    }
+
+    public static ByteBuffer encodeFrame(BufferPool pool, byte type, int streamId, long offset,
+                                         byte[] data, int dataOffset, int length, boolean checksum) {
+        return encodeFrame(pool, type, 0, streamId, offset, data, dataOffset, length, checksum);
+    }
+
+    public static ByteBuffer encodeFrame(BufferPool pool, byte type, int flags, int streamId, long offset,
+                                         byte[] data, int dataOffset, int length, boolean checksum) {
+        if (!checksum) {
+            ByteBuffer frame = pool.acquire(HEADER_SIZE + length);
+            putHeader(frame, type, flags, streamId, offset, length);
+            frame.put(data, dataOffset, length);
+            frame.flip();
+            return frame;
+        }
+        ByteBuffer frame = pool.acquire(HEADER_SIZE + length + CHECKSUM_SIZE);
+        putHeader(frame, type, flags | FLAG_CRC32C, streamId, offset, length + CHECKSUM_SIZE);
+        frame.put(data, dataOffset, length);
+        CRC32C crc = new CRC32C();
+        crc.update(data, dataOffset, length);
+        frame.putInt((int) crc.getValue());
+        frame.flip();
+        return frame;
+    }
+
+    // Checks the trailing CRC32C of a FLAG_CRC32C payload and drops it from the payload's limit
+    public static boolean verifyChecksum(ByteBuffer payload) {
+        int length = payload.remaining() - CHECKSUM_SIZE;
+        if (length < 0) return false;
+        int expected = payload.getInt(payload.position() + length);
+        payload.limit(payload.position() + length);
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue() == expected;
+    }
+}
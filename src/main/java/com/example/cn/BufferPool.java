@@ -0,0 +1,197 @@
+package com.example.cn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Size-class pool of direct buffers shared by the client and server event loops.
+// Requests are rounded up to the next size class (512 B to 512 KB, growing by 4x); larger
+// requests get an unpooled heap buffer. Every acquired buffer must be released exactly once.
+// With -Dcn.bufferPool.debug=true each outstanding buffer remembers where it was acquired so
+// leaks and double releases can be reported.
+public final class BufferPool {
+    private static final int MIN_CLASS_SIZE = 512;
+    private static final int CLASS_COUNT = 6;
+    private static final long RETAINED_BYTES_PER_CLASS = 4L * 1024 * 1024;
+    private static final BufferPool SHARED = new BufferPool(Boolean.getBoolean("cn.bufferPool.debug"));
+
+    private final SizeClass[] classes = new SizeClass[CLASS_COUNT];
+    private final boolean debug;
+    private final Map<ByteBuffer, Acquisition> outstandingBuffers =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong highWaterMark = new AtomicLong();
+    private final AtomicLong invalidReleases = new AtomicLong();
+    // Where double releases are reported; standard error until an engine sets its logger
+    private volatile AsyncLogger logger;
+
+    public BufferPool(boolean debug) {
+        this.debug = debug;
+        int size = MIN_CLASS_SIZE;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            classes[i] = new SizeClass(size, (int) Math.max(16, RETAINED_BYTES_PER_CLASS / size));
+            size *= 4;
+        }
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    public void setLogger(AsyncLogger logger) {
+        this.logger = logger;
+    }
+
+    // Returns a cleared buffer with at least minCapacity bytes of space
+    public ByteBuffer acquire(int minCapacity) {
+        SizeClass sizeClass = classFor(minCapacity);
+        ByteBuffer buffer;
+
+        if (sizeClass == null) {
+            unpooled.incrementAndGet();
+            buffer = ByteBuffer.allocate(minCapacity);
+        } else {
+            buffer = sizeClass.free.poll();
+            if (buffer != null) {
+                sizeClass.retained.decrementAndGet();
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                buffer = ByteBuffer.allocateDirect(sizeClass.size);
+            }
+        }
+
+        long current = outstanding.incrementAndGet();
+        highWaterMark.accumulateAndGet(current, Math::max);
+        if (debug) {
+            outstandingBuffers.put(buffer, new Acquisition(Thread.currentThread().getName()));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public ByteBuffer wrap(byte[] data) {
+        ByteBuffer buffer = acquire(data.length);
+        buffer.put(data);
+        buffer.flip();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+
+        if (debug && outstandingBuffers.remove(buffer) == null) {
+            invalidReleases.incrementAndGet();
+            String message = "Release of a buffer that is not outstanding (double release?) at "
+                    + callSite(new Throwable().getStackTrace());
+            AsyncLogger target = logger;
+            if (target != null) {
+                target.error(message);
+            } else {
+                System.err.println(message);
+            }
+            return;
+        }
+        outstanding.decrementAndGet();
+
+        if (!buffer.isDirect()) return;
+        SizeClass sizeClass = classFor(buffer.capacity());
+        if (sizeClass == null || sizeClass.size != buffer.capacity()) return;
+
+        if (sizeClass.retained.incrementAndGet() <= sizeClass.maxRetained) {
+            buffer.clear();
+            sizeClass.free.offer(buffer);
+        } else {
+            // Class is full; let the buffer be collected
+            sizeClass.retained.decrementAndGet();
+        }
+    }
+
+    // Buffers acquired more than olderThanMillis ago and never released (debug mode only)
+    public List<String> leakReport(long olderThanMillis) {
+        List<String> report = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() - olderThanMillis;
+        synchronized (outstandingBuffers) {
+            for (Map.Entry<ByteBuffer, Acquisition> entry : outstandingBuffers.entrySet()) {
+                Acquisition acquisition = entry.getValue();
+                if (acquisition.time <= cutoff) {
+                    report.add(entry.getKey().capacity() + " byte buffer held by " + acquisition.threadName
+                            + " for " + (System.currentTimeMillis() - acquisition.time) + " ms, acquired at "
+                            + acquisition.callSite());
+                }
+            }
+        }
+        return report;
+    }
+
+    public boolean isDebug() { return debug; }
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getUnpooled() { return unpooled.get(); }
+    public long getOutstanding() { return outstanding.get(); }
+    public long getHighWaterMark() { return highWaterMark.get(); }
+    public long getInvalidReleases() { return invalidReleases.get(); }
+
+    public String describe() {
+        long requests = hits.get() + misses.get();
+        double hitRate = requests == 0 ? 0 : 100.0 * hits.get() / requests;
+        return String.format("Buffers: %.1f%% hits (%d/%d), %d outstanding, high water %d, %d unpooled",
+                hitRate, hits.get(), requests, outstanding.get(), highWaterMark.get(), unpooled.get());
+    }
+
+    private SizeClass classFor(int capacity) {
+        for (SizeClass sizeClass : classes) {
+            if (capacity <= sizeClass.size) return sizeClass;
+        }
+        return null;
+    }
+
+    private static final class SizeClass {
+        private final int size;
+        private final int maxRetained;
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger retained = new AtomicInteger();
+
+        private SizeClass(int size, int maxRetained) {
+            this.size = size;
+            this.maxRetained = maxRetained;
+        }
+    }
+
+    // First frame outside the pool
+    private static String callSite(StackTraceElement[] stackTrace) {
+        for (StackTraceElement element : stackTrace) {
+            if (!element.getClassName().startsWith(BufferPool.class.getName())) {
+                return element.toString();
+            }
+        }
+        return "unknown";
+    }
+
+    private static final class Acquisition extends Throwable {
+        private static final long serialVersionUID = 1L;
+
+        private final String threadName;
+        private final long time = System.currentTimeMillis();
+
+        private Acquisition(String threadName) {
+            super(null, null, false, true);
+            this.threadName = threadName;
+        }
+
+        private String callSite() {
+            return BufferPool.callSite(getStackTrace());
+        }
+    }
+}
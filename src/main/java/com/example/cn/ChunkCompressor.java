@@ -0,0 +1,148 @@
+package com.example.cn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+// Compressed data frames of one connection, after both sides agreed on a codec in HELLO. The
+// payload of a FLAG_COMPRESSED frame is the uncompressed length(4) followed by the codec's output;
+// offsets, ACKs and windows keep counting uncompressed bytes.
+//
+// The decision is made per chunk: a chunk goes out compressed only if that saves at least
+// -Dcn.compress.minSaving of it (default 0.1). After a chunk that did not, the following chunks
+// are sent raw without a trial, for a stretch that doubles up to MAX_SKIP while the data stays
+// incompressible, so already compressed files cost one trial every MAX_SKIP chunks.
+//
+// Senders read CHUNK_SIZE (-Dcn.compress.chunkSize, default 64 KB) at a time when compressing:
+// small chunks compress poorly, and each is a segment of the ACK-clocked window.
+//
+// Sending and receiving use separate codec instances, so transfer threads and the selector loop
+// can share an instance; the transfers multiplexed on a connection take turns sending. The
+// counters cover the whole connection. close() is called once the connection is gone; a transfer
+// thread that still sends after that gets raw frames.
+public final class ChunkCompressor {
+    private static final double MIN_SAVING = Double.parseDouble(System.getProperty("cn.compress.minSaving", "0.1"));
+    public static final int CHUNK_SIZE = Integer.getInteger("cn.compress.chunkSize", 64 * 1024);
+    private static final int MAX_SKIP = 64;
+    private static final int LENGTH_SIZE = 4;
+
+    private final CompressionCodec sendCodec;
+    private final CompressionCodec receiveCodec;
+    private byte[] sendBuffer = new byte[0];
+    private byte[] receiveBuffer = new byte[0];
+    // Raw chunks left before the next trial, and the stretch after the next failed one
+    private int skip;
+    private int skipStretch = 1;
+    private boolean closed;
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder compressedChunks = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder inflatedBytes = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    public ChunkCompressor(String codecId) {
+        this.sendCodec = CompressionCodecs.create(codecId);
+        this.receiveCodec = CompressionCodecs.create(codecId);
+    }
+
+    public String getCodec() {
+        return sendCodec.id();
+    }
+
+    // Sending thread: the frame for one chunk, compressed if that pays off
+    public synchronized ByteBuffer encodeFrame(BufferPool pool, byte type, int streamId, long offset,
+                                  byte[] data, int dataOffset, int length, boolean checksum) {
+        chunks.increment();
+        bytesIn.add(length);
+        int compressed = -1;
+        if (closed) {
+            // Not sent anyway
+        } else if (skip > 0) {
+            skip--;
+        } else {
+            int limit = (int) (length * (1 - MIN_SAVING));
+            if (sendBuffer.length < LENGTH_SIZE + limit) {
+                sendBuffer = new byte[LENGTH_SIZE + limit];
+            }
+            long start = System.nanoTime();
+            compressed = sendCodec.compress(data, dataOffset, length, sendBuffer, LENGTH_SIZE, limit);
+            compressNanos.add(System.nanoTime() - start);
+            if (compressed < 0) {
+                skip = skipStretch;
+                skipStretch = Math.min(MAX_SKIP, skipStretch * 2);
+            } else {
+                skipStretch = 1;
+            }
+        }
+
+        if (compressed < 0) {
+            bytesOut.add(length);
+            return BinaryProtocol.encodeFrame(pool, type, 0, streamId, offset, data, dataOffset, length, checksum);
+        }
+        ByteBuffer.wrap(sendBuffer).putInt(0, length);
+        compressedChunks.increment();
+        bytesOut.add(LENGTH_SIZE + compressed);
+        return BinaryProtocol.encodeFrame(pool, type, BinaryProtocol.FLAG_COMPRESSED, streamId, offset,
+                sendBuffer, 0, LENGTH_SIZE + compressed, checksum);
+    }
+
+    // Receiving thread: the uncompressed payload of a FLAG_COMPRESSED frame, valid until the next call
+    public ByteBuffer decode(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < LENGTH_SIZE) {
+            throw new IOException("Truncated compressed frame");
+        }
+        int length = payload.getInt(payload.position());
+        if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Invalid uncompressed length " + length);
+        }
+        if (receiveBuffer.length < length) {
+            receiveBuffer = new byte[length];
+        }
+        long start = System.nanoTime();
+        receiveCodec.decompress(payload.duplicate().position(payload.position() + LENGTH_SIZE), receiveBuffer, length);
+        decompressNanos.add(System.nanoTime() - start);
+        receivedBytes.add(payload.remaining());
+        inflatedBytes.add(length);
+        return ByteBuffer.wrap(receiveBuffer, 0, length);
+    }
+
+    // Receiving thread, once it has stopped decoding
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        sendCodec.close();
+        receiveCodec.close();
+    }
+
+    public long getBytesIn() { return bytesIn.sum(); }
+    public long getBytesOut() { return bytesOut.sum(); }
+    public long getCompressNanos() { return compressNanos.sum(); }
+    public long getDecompressNanos() { return decompressNanos.sum(); }
+
+    // Ratio of the data sent, uncompressed over wire bytes; 1 if nothing was sent
+    public double getRatio() {
+        long out = bytesOut.sum();
+        return out > 0 ? (double) bytesIn.sum() / out : 1.0;
+    }
+
+    // e.g. "deflate: sent 12.0 MB as 2.4 MB (5.00x, 9000/12288 chunks compressed, 310 ms compressing)"
+    public String summary() {
+        StringBuilder summary = new StringBuilder(getCodec()).append(':');
+        if (chunks.sum() > 0) {
+            summary.append(String.format(" sent %s as %s (%.2fx, %d/%d chunks compressed, %d ms compressing)",
+                    FileTransferServerEngine.formatFileSize(bytesIn.sum()),
+                    FileTransferServerEngine.formatFileSize(bytesOut.sum()), getRatio(), compressedChunks.sum(),
+                    chunks.sum(), compressNanos.sum() / 1_000_000));
+        }
+        if (receivedBytes.sum() > 0) {
+            summary.append(String.format(" received %s as %s (%d ms decompressing)",
+                    FileTransferServerEngine.formatFileSize(inflatedBytes.sum()),
+                    FileTransferServerEngine.formatFileSize(receivedBytes.sum()), decompressNanos.sum() / 1_000_000));
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.cn;
+
+import java.io.File;
+import java.util.List;
+
+// Observer of a FileTransferClientEngine. Callbacks arrive on engine threads; UI observers must
+// hand them over to their own thread.
+public interface ClientEngineListener {
+    default void onConnected(String host, int port) {}
+
+    // reason is null for a disconnect requested by the caller
+    default void onDisconnected(String reason) {}
+
+    default void onFileList(List<FileTransferClientEngine.RemoteFile> files) {}
+
+    // Entries [offset, offset + files.size()) of the total files matching a paged listFiles
+    default void onFilePage(int offset, int total, List<FileTransferClientEngine.RemoteFile> files) {}
+
+    // Answer to requestFileInfo
+    default void onFileInfo(String filename, long size, String fingerprint) {}
+
+    // The server confirmed one range of a parallel transfer
+    default void onRangeComplete(String filename, long start, long end) {}
+
+    default void onTransferStarted(String filename, boolean upload) {}
+
+    // Progress over all transfers in progress
+    default void onTransferProgress(double progress) {}
+
+    // Progress of one whole-file transfer
+    default void onTransferProgress(String filename, boolean upload, double progress) {}
+
+    default void onDownloadComplete(String filename, File savedFile) {}
+
+    default void onUploadComplete(String filename) {}
+
+    // Precedes onUploadComplete when the upload went as a delta: only sentBytes of literal data
+    // crossed the network, savedBytes were copied from the server's previous version
+    default void onDeltaUploaded(String filename, long sentBytes, long savedBytes) {}
+
+    // Local failure of the running transfer
+    default void onTransferFailed(String message) {}
+
+    // ERROR message sent by the server
+    default void onError(String message) {}
+}
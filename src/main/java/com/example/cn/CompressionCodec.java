@@ -0,0 +1,24 @@
+package com.example.cn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Codec for compressed data frames. Implementations are discovered with ServiceLoader (module-info
+// "provides" or META-INF/services/com.example.cn.CompressionCodec), need a public no-argument
+// constructor and are negotiated by id in HELLO. An instance is only used by one thread at a time
+// and may keep buffers between calls, but every chunk must decompress on its own.
+public interface CompressionCodec {
+    // Stable name used on the wire, e.g. "deflate"
+    String id();
+
+    // Compresses src[offset, offset + length) into dst[dstOffset, dstOffset + dstLength); returns
+    // the compressed size, or -1 if it does not fit
+    int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int dstLength);
+
+    // Decompresses one chunk, which must expand to exactly length bytes, into dst[0, length)
+    void decompress(ByteBuffer src, byte[] dst, int length) throws IOException;
+
+    // Frees what the instance holds outside the heap; it is not used afterwards
+    default void close() {
+    }
+}
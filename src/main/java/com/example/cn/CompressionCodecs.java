@@ -0,0 +1,40 @@
+package com.example.cn;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+// Registry of the CompressionCodec implementations visible to ServiceLoader, in the order they
+// are offered in HELLO. create() makes a fresh instance per connection.
+public final class CompressionCodecs {
+    private static final Map<String, ServiceLoader.Provider<CompressionCodec>> PROVIDERS = load();
+
+    private CompressionCodecs() {
+    }
+
+    private static Map<String, ServiceLoader.Provider<CompressionCodec>> load() {
+        Map<String, ServiceLoader.Provider<CompressionCodec>> providers = new LinkedHashMap<>();
+        ServiceLoader.load(CompressionCodec.class, CompressionCodecs.class.getClassLoader())
+                .stream()
+                .forEach(provider -> providers.putIfAbsent(provider.get().id(), provider));
+        return providers;
+    }
+
+    public static List<String> ids() {
+        return new ArrayList<>(PROVIDERS.keySet());
+    }
+
+    public static boolean isAvailable(String id) {
+        return id != null && PROVIDERS.containsKey(id);
+    }
+
+    public static CompressionCodec create(String id) {
+        ServiceLoader.Provider<CompressionCodec> provider = PROVIDERS.get(id);
+        if (provider == null) {
+            throw new IllegalArgumentException("Unknown compression codec: " + id);
+        }
+        return provider.get();
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.cn;
+
+// Congestion control algorithm plugged into the sliding window of a transfer. Windows are
+// counted in segments (one data frame each). Implementations are discovered with ServiceLoader
+// (module-info "provides" or META-INF/services/com.example.cn.CongestionController), need a
+// public no-argument constructor and are selected by id with the ALGORITHM: command. An
+// instance belongs to one connection; FlowController serializes the calls into it.
+public interface CongestionController {
+    // Stable name used on the wire and in the UI, e.g. "TCP_CUBIC"
+    String id();
+
+    // A segment of the given size left the sender
+    void onSend(int bytes, long nowNanos);
+
+    // A cumulative ACK acknowledged new segments; rttMillis is the sample it produced or -1
+    void onAck(int ackedSegments, long ackedBytes, double rttMillis, long nowNanos);
+
+    // Loss inferred from duplicate ACKs (fast retransmit)
+    void onLoss(long nowNanos);
+
+    // Retransmission timer expired without ACK progress
+    void onTimeout(long nowNanos);
+
+    // The newest segments sent will never be acknowledged: they are sent again after a RESEND, or
+    // their transfer ended before the ACKs came back. Only matters to controllers that keep
+    // per-segment state.
+    default void onDiscard(int segments, long nowNanos) {
+    }
+
+    double getCongestionWindow();
+
+    double getSlowStartThreshold();
+
+    // Rate in bytes per second the sender should pace segments at; 0 means unpaced
+    default double getPacingRate() {
+        return 0;
+    }
+
+    // Path model of model-based controllers, charted next to cwnd; loss-based ones keep the defaults
+
+    // Estimated bottleneck bandwidth in bytes per second, -1 if not modelled
+    default double getBottleneckBandwidth() {
+        return -1;
+    }
+
+    // Windowed minimum RTT in milliseconds, -1 if not modelled
+    default double getMinRtt() {
+        return -1;
+    }
+
+    default double getPacingGain() {
+        return 1.0;
+    }
+
+    // Current state of the algorithm's state machine, e.g. "SLOW_START"
+    default String getPhase() {
+        return "";
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.cn;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+// Registry of the CongestionController implementations visible to ServiceLoader. Each provider
+// is instantiated once to read its id; create() then makes a fresh instance per connection.
+public final class CongestionControllers {
+    public static final String DEFAULT_ID = RenoController.ID;
+
+    private static final Map<String, ServiceLoader.Provider<CongestionController>> PROVIDERS = load();
+
+    private CongestionControllers() {
+    }
+
+    private static Map<String, ServiceLoader.Provider<CongestionController>> load() {
+        Map<String, ServiceLoader.Provider<CongestionController>> providers = new LinkedHashMap<>();
+        ServiceLoader.load(CongestionController.class, CongestionControllers.class.getClassLoader())
+                .stream()
+                .forEach(provider -> providers.putIfAbsent(provider.get().id(), provider));
+        return providers;
+    }
+
+    public static List<String> ids() {
+        return new ArrayList<>(PROVIDERS.keySet());
+    }
+
+    public static boolean isAvailable(String id) {
+        return id != null && PROVIDERS.containsKey(id);
+    }
+
+    public static CongestionController create(String id) {
+        ServiceLoader.Provider<CongestionController> provider = PROVIDERS.get(id);
+        if (provider == null) {
+            throw new IllegalArgumentException("Unknown congestion control algorithm: " + id);
+        }
+        return provider.get();
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.cn;
+
+// CUBIC (RFC 8312). After a loss the window follows W(t) = C * (t - K)^3 + W_max, a cubic of the
+// time since the last reduction that is concave up to the previous maximum and convex beyond it,
+// so growth depends on elapsed time rather than on the RTT. A Reno-equivalent estimate keeps
+// CUBIC at least as aggressive as standard TCP on short-RTT paths ("TCP-friendly region").
+public class CubicController extends WindowedController {
+    public static final String ID = "TCP_CUBIC";
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+    // Reno-friendly additive increase per RTT for a multiplicative decrease of BETA
+    private static final double ALPHA = 3 * (1 - BETA) / (1 + BETA);
+
+    private double maxWindow;
+    private double originPoint;
+    private double k;
+    private long epochStart = -1;
+    private double renoEstimate;
+    private double minRttSeconds = -1;
+
+    @Override
+    public String id() {
+        return ID;
+    }
+
+    @Override
+    public void onAck(int ackedSegments, long ackedBytes, double rttMillis, long nowNanos) {
+        if (rttMillis >= 0 && (minRttSeconds < 0 || rttMillis / 1000 < minRttSeconds)) {
+            minRttSeconds = rttMillis / 1000;
+        }
+        super.onAck(ackedSegments, ackedBytes, rttMillis, nowNanos);
+    }
+
+    @Override
+    protected void congestionAvoidance(long nowNanos) {
+        if (epochStart < 0) {
+            epochStart = nowNanos;
+            if (congestionWindow < maxWindow) {
+                k = Math.cbrt(maxWindow * (1 - BETA) / C);
+                originPoint = maxWindow;
+            } else {
+                k = 0;
+                originPoint = congestionWindow;
+            }
+            renoEstimate = congestionWindow;
+        }
+
+        // Target one RTT ahead, as in section 4.1
+        double t = (nowNanos - epochStart) / 1e9 + Math.max(0, minRttSeconds);
+        double target = originPoint + C * Math.pow(t - k, 3);
+        // Never more than 1.5x per RTT, even far out on the convex part of the curve
+        target = Math.min(target, 1.5 * congestionWindow);
+
+        if (target > congestionWindow) {
+            congestionWindow += (target - congestionWindow) / congestionWindow;
+        } else {
+            congestionWindow += 0.01 / congestionWindow;
+        }
+
+        renoEstimate += ALPHA / congestionWindow;
+        if (renoEstimate > congestionWindow) {
+            congestionWindow = renoEstimate;
+        }
+    }
+
+    @Override
+    public void onLoss(long nowNanos) {
+        reduce();
+        congestionWindow = ssthresh;
+    }
+
+    @Override
+    public void onTimeout(long nowNanos) {
+        reduce();
+        congestionWindow = 1.0;
+    }
+
+    private void reduce() {
+        epochStart = -1;
+        // Fast convergence: release bandwidth when the window stopped short of the last maximum
+        if (congestionWindow < maxWindow) {
+            maxWindow = congestionWindow * (1 + BETA) / 2;
+        } else {
+            maxWindow = congestionWindow;
+        }
+        ssthresh = Math.max(congestionWindow * BETA, MIN_SSTHRESH);
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.cn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate from the JDK, one zlib stream per chunk. Level -Dcn.compress.deflateLevel (default 1,
+// BEST_SPEED): the chunks are small and the point is to beat the network, not to archive.
+public class DeflateCodec implements CompressionCodec {
+    public static final String ID = "deflate";
+    private static final int LEVEL = Integer.getInteger("cn.compress.deflateLevel", Deflater.BEST_SPEED);
+
+    private final Deflater deflater = new Deflater(LEVEL);
+    private final Inflater inflater = new Inflater();
+
+    @Override
+    public String id() {
+        return ID;
+    }
+
+    @Override
+    public int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int dstLength) {
+        deflater.reset();
+        deflater.setInput(src, offset, length);
+        deflater.finish();
+        int compressed = deflater.deflate(dst, dstOffset, dstLength);
+        return deflater.finished() ? compressed : -1;
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, byte[] dst, int length) throws IOException {
+        inflater.reset();
+        inflater.setInput(src);
+        try {
+            int inflated = inflater.inflate(dst, 0, length);
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("Compressed chunk does not expand to " + length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed chunk: " + e.getMessage());
+        }
+    }
+
+    // The zlib streams live in native memory until end() is called
+    @Override
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+}
@@ -0,0 +1,398 @@
+package com.example.cn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+// rsync-style delta transfer of a new version of a file the receiver already has.
+//
+// The receiver cuts its copy (the basis) into fixed-size blocks and sends a signature per block:
+// a 4 byte rolling checksum and a 16 byte MD5. The sender slides a window over the new version,
+// updating the rolling checksum byte by byte; where it matches a block (confirmed by the MD5) it
+// emits a copy of that block, everything in between goes as literal bytes. The receiver rebuilds
+// the new version from copies of the basis and the literals into a part file, and accepts it
+// only if its SHA-256 equals the one the sender computed while scanning.
+public final class DeltaSync {
+    public static final int SIGNATURE_SIZE = 20;
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int IO_BUFFER_SIZE = 1024 * 1024;
+
+    private DeltaSync() {
+    }
+
+    // Block size grows with the square root of the file, as in rsync: larger files get fewer
+    // signatures, at the price of coarser matches
+    public static int blockSizeFor(long size) {
+        long root = (long) Math.sqrt((double) size);
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root & ~7L));
+    }
+
+    public static int blockCount(long size, int blockSize) {
+        return (int) ((size + blockSize - 1) / blockSize);
+    }
+
+    // The signatures of every block of the basis, SIGNATURE_SIZE bytes each
+    public static byte[] signatures(Path basis, int blockSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(basis, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int count = blockCount(size, blockSize);
+            ByteBuffer signatures = ByteBuffer.allocate(count * SIGNATURE_SIZE);
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            MessageDigest md5 = digest("MD5");
+            for (int i = 0; i < count; i++) {
+                block.clear();
+                readFully(channel, block, (long) i * blockSize);
+                block.flip();
+                signatures.putInt(Rolling.of(block.array(), 0, block.limit()));
+                md5.update(block.array(), 0, block.limit());
+                signatures.put(md5.digest());
+            }
+            return signatures.array();
+        }
+    }
+
+    // Receiving end of the signatures, indexed by rolling checksum
+    public static final class Signatures {
+        private final int blockSize;
+        private final int count;
+        private final long basisSize;
+        private final byte[] data;
+        private final Map<Integer, int[]> byRolling = new HashMap<>();
+        private int received;
+
+        public Signatures(int blockSize, int count, long basisSize) {
+            this.blockSize = blockSize;
+            this.count = count;
+            this.basisSize = basisSize;
+            this.data = new byte[count * SIGNATURE_SIZE];
+        }
+
+        // payload holds whole signatures starting at block firstBlock
+        public void add(int firstBlock, ByteBuffer payload) throws IOException {
+            int length = payload.remaining();
+            if (firstBlock < 0 || length % SIGNATURE_SIZE != 0
+                    || (long) firstBlock * SIGNATURE_SIZE + length > data.length) {
+                throw new IOException("Malformed signatures at block " + firstBlock);
+            }
+            payload.get(data, firstBlock * SIGNATURE_SIZE, length);
+            for (int block = firstBlock; block < firstBlock + length / SIGNATURE_SIZE; block++) {
+                int rolling = ByteBuffer.wrap(data, block * SIGNATURE_SIZE, 4).getInt();
+                int[] blocks = byRolling.get(rolling);
+                if (blocks == null) {
+                    byRolling.put(rolling, new int[] {block});
+                } else {
+                    int[] grown = Arrays.copyOf(blocks, blocks.length + 1);
+                    grown[blocks.length] = block;
+                    byRolling.put(rolling, grown);
+                }
+            }
+            received += length / SIGNATURE_SIZE;
+        }
+
+        public boolean isComplete() { return received >= count; }
+        public int getBlockSize() { return blockSize; }
+
+        int blockLength(int block) {
+            return (int) Math.min(blockSize, basisSize - (long) block * blockSize);
+        }
+
+        // Block with this content, preferring the one after the previous match; -1 if none
+        int find(int rolling, byte[] window, int offset, int length, int preferred, MessageDigest md5) {
+            int[] blocks = byRolling.get(rolling);
+            if (blocks == null) return -1;
+            byte[] strong = null;
+            for (int i = -1; i < blocks.length; i++) {
+                int block = i < 0 ? preferred : blocks[i];
+                if (block < 0 || block >= count || blockLength(block) != length
+                        || (i < 0 && Arrays.binarySearch(blocks, block) < 0)) continue;
+                if (strong == null) {
+                    md5.update(window, offset, length);
+                    strong = md5.digest();
+                }
+                if (Arrays.equals(data, block * SIGNATURE_SIZE + 4, (block + 1) * SIGNATURE_SIZE,
+                        strong, 0, strong.length)) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // Receives the delta in file order
+    public interface Sink {
+        // count blocks of the basis starting at block are the next bytes of the new version
+        void copy(long offset, int block, int count) throws IOException;
+
+        void literal(long offset, byte[] data, int dataOffset, int length) throws IOException;
+    }
+
+    public static final class Result {
+        public final String sha256;
+        public final long literalBytes;
+        public final long matchedBytes;
+
+        Result(String sha256, long literalBytes, long matchedBytes) {
+            this.sha256 = sha256;
+            this.literalBytes = literalBytes;
+            this.matchedBytes = matchedBytes;
+        }
+    }
+
+    // Scans the new version against the signatures. Literals are handed out in pieces of at most
+    // maxLiteral bytes and runs of consecutive blocks are merged into one copy.
+    public static Result computeDelta(Path file, Signatures signatures, int maxLiteral, Sink sink) throws IOException {
+        int blockSize = signatures.getBlockSize();
+        byte[] buffer = new byte[Math.max(IO_BUFFER_SIZE, 4 * blockSize)];
+        MessageDigest sha256 = digest("SHA-256");
+        MessageDigest md5 = digest("MD5");
+        long literalBytes = 0;
+        long matchedBytes = 0;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long base = 0;          // file offset of buffer[0]
+            int limit = 0;          // bytes in buffer
+            int pos = 0;            // start of the window
+            int literalStart = 0;   // start of the pending literal
+            long readPosition = 0;
+            // Pending run of consecutive matched blocks; it always ends at the window
+            int copyBlock = -1;
+            int copyCount = 0;
+            long copyOffset = 0;
+            Rolling rolling = null;
+
+            while (base + pos < size) {
+                // Keep a whole window plus the byte after it in the buffer, moving the unsent tail to the front
+                if (pos + blockSize >= limit && readPosition < size) {
+                    if (pos > literalStart) {
+                        literalBytes += emitLiteral(sink, base + literalStart, buffer, literalStart, pos, maxLiteral);
+                    }
+                    System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                    base += pos;
+                    limit -= pos;
+                    pos = 0;
+                    literalStart = 0;
+                    ByteBuffer target = ByteBuffer.wrap(buffer, limit, buffer.length - limit);
+                    int read;
+                    while (target.hasRemaining() && (read = channel.read(target, readPosition)) > 0) {
+                        sha256.update(buffer, limit, read);
+                        limit += read;
+                        readPosition += read;
+                    }
+                    if (pos >= limit) break;  // the file shrank while it was read
+                }
+                if (rolling == null) {
+                    rolling = new Rolling(buffer, pos, Math.min(blockSize, limit - pos));
+                }
+                int length = rolling.length();
+
+                int preferred = copyCount > 0 ? copyBlock + copyCount : -1;
+                int block = signatures.find(rolling.value(), buffer, pos, length, preferred, md5);
+                if (block >= 0) {
+                    if (pos > literalStart) {
+                        literalBytes += emitLiteral(sink, base + literalStart, buffer, literalStart, pos, maxLiteral);
+                    }
+                    if (block == preferred) {
+                        copyCount++;
+                    } else {
+                        if (copyCount > 0) {
+                            sink.copy(copyOffset, copyBlock, copyCount);
+                        }
+                        copyBlock = block;
+                        copyCount = 1;
+                        copyOffset = base + pos;
+                    }
+                    matchedBytes += length;
+                    pos += length;
+                    literalStart = pos;
+                    rolling = null;
+                    continue;
+                }
+
+                if (copyCount > 0) {
+                    sink.copy(copyOffset, copyBlock, copyCount);
+                    copyCount = 0;
+                }
+                // Slide by one byte; near the end of the file the window shrinks instead
+                if (pos + length < limit) {
+                    rolling.roll(buffer[pos], buffer[pos + length]);
+                } else {
+                    rolling.rollOut(buffer[pos]);
+                }
+                pos++;
+                if (pos - literalStart >= maxLiteral) {
+                    literalBytes += emitLiteral(sink, base + literalStart, buffer, literalStart, pos, maxLiteral);
+                    literalStart = pos;
+                }
+                if (rolling.length() == 0) {
+                    rolling = null;
+                }
+            }
+            if (copyCount > 0) {
+                sink.copy(copyOffset, copyBlock, copyCount);
+            }
+            if (pos > literalStart) {
+                literalBytes += emitLiteral(sink, base + literalStart, buffer, literalStart, pos, maxLiteral);
+            }
+        }
+        return new Result(HexFormat.of().formatHex(sha256.digest()), literalBytes, matchedBytes);
+    }
+
+    private static int emitLiteral(Sink sink, long offset, byte[] buffer, int from, int to, int maxLiteral)
+            throws IOException {
+        for (int start = from; start < to; start += maxLiteral) {
+            int length = Math.min(maxLiteral, to - start);
+            sink.literal(offset + (start - from), buffer, start, length);
+        }
+        return to - from;
+    }
+
+    // Receiving side: rebuilds the new version into the target's part file
+    public static final class Rebuilder implements Closeable {
+        private final FileChannel basis;
+        private final StreamingFileWriter writer;
+        private final int blockSize;
+        private final long size;
+        private final MessageDigest sha256 = digest("SHA-256");
+        private final ByteBuffer copyBuffer;
+        private long position;
+        private long literalBytes;
+        private boolean finished;
+
+        public Rebuilder(Path target, int blockSize, long size, int bufferSize) throws IOException {
+            this.basis = FileChannel.open(target, StandardOpenOption.READ);
+            try {
+                this.writer = new StreamingFileWriter(target, bufferSize);
+            } catch (IOException e) {
+                basis.close();
+                throw e;
+            }
+            this.blockSize = blockSize;
+            this.size = size;
+            this.copyBuffer = ByteBuffer.allocate(Math.min(IO_BUFFER_SIZE, Math.max(blockSize, 64 * 1024)));
+        }
+
+        public void literal(long offset, ByteBuffer data) throws IOException {
+            expect(offset, data.remaining());
+            literalBytes += data.remaining();
+            sha256.update(data.duplicate());
+            position += writer.write(position, data);
+        }
+
+        public void copy(long offset, int block, int count) throws IOException {
+            long start = (long) block * blockSize;
+            long end = Math.min(basis.size(), start + (long) count * blockSize);
+            if (block < 0 || count <= 0 || start >= end) {
+                throw new IOException("Invalid copy of block " + block);
+            }
+            expect(offset, end - start);
+            for (long from = start; from < end; ) {
+                copyBuffer.clear();
+                copyBuffer.limit((int) Math.min(copyBuffer.capacity(), end - from));
+                int read = basis.read(copyBuffer, from);
+                if (read <= 0) {
+                    throw new IOException("Basis file shrank during delta upload");
+                }
+                copyBuffer.flip();
+                sha256.update(copyBuffer.duplicate());
+                position += writer.write(position, copyBuffer);
+                from += read;
+            }
+        }
+
+        private void expect(long offset, long length) throws IOException {
+            if (offset != position || position + length > size) {
+                throw new IOException("Unexpected delta at offset " + offset + ", expected " + position);
+            }
+        }
+
+        // Replaces the target when the rebuilt file is complete and matches the sender's hash;
+        // otherwise discards it. Returns whether it was accepted.
+        public boolean finish(String expectedSha256) throws IOException {
+            finished = true;
+            basis.close();
+            if (position == size && HexFormat.of().formatHex(sha256.digest()).equals(expectedSha256)) {
+                writer.commit();
+                return true;
+            }
+            writer.abort();
+            return false;
+        }
+
+        public long getPosition() { return position; }
+        public long getSize() { return size; }
+        public long getLiteralBytes() { return literalBytes; }
+
+        @Override
+        public void close() throws IOException {
+            basis.close();
+            if (!finished) {
+                finished = true;
+                writer.abort();
+            }
+        }
+    }
+
+    // Adler-style weak checksum over a window, updated in O(1) per byte:
+    // a = sum of bytes, b = sum of (length - i) * byte_i, both mod 2^16
+    static final class Rolling {
+        private int a;
+        private int b;
+        private int length;
+
+        Rolling(byte[] data, int offset, int length) {
+            this.length = length;
+            for (int i = 0; i < length; i++) {
+                int x = data[offset + i] & 0xff;
+                a += x;
+                b += (length - i) * x;
+            }
+        }
+
+        static int of(byte[] data, int offset, int length) {
+            return new Rolling(data, offset, length).value();
+        }
+
+        void roll(byte out, byte in) {
+            a += (in & 0xff) - (out & 0xff);
+            b += a - length * (out & 0xff);
+        }
+
+        void rollOut(byte out) {
+            a -= out & 0xff;
+            b -= length * (out & 0xff);
+            length--;
+        }
+
+        int length() { return length; }
+
+        int value() {
+            return (a & 0xffff) | (b << 16);
+        }
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) break;
+        }
+    }
+}
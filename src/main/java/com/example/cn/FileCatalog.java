@@ -0,0 +1,262 @@
+package com.example.cn;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// In-memory catalog of the server's upload directory, so listing files never touches the disk.
+// It is built with one scan when the server starts and then kept current by a WatchService
+// thread, which only re-reads the files named in its events and rescans after an OVERFLOW. The
+// server also reports the files it commits itself, so a listing right after an upload shows them.
+//
+// Two indexes answer the queries: entries by name, where a prefix filter is a range of the map,
+// and entries by size then name, for size ranges and size order. A query collects its matches
+// into a Listing once, and a client paging through it is served every page from that array, so a
+// page costs its own length rather than a walk past all the entries before it. Queries never
+// lock out the updates; a listing taken during a change may or may not include it. Partial files
+// of interrupted transfers are left out.
+public final class FileCatalog implements AutoCloseable {
+    public enum Sort {
+        NAME, SIZE, SIZE_DESC;
+
+        // Wire form in LIST_FILES: name, size or -size
+        public static Sort parse(String value) {
+            return switch (value) {
+                case "size" -> SIZE;
+                case "-size" -> SIZE_DESC;
+                default -> NAME;
+            };
+        }
+    }
+
+    public static final class Entry {
+        private final String name;
+        private final long size;
+        private final long lastModified;
+
+        Entry(String name, long size, long lastModified) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getName() { return name; }
+        public long getSize() { return size; }
+        public long getLastModified() { return lastModified; }
+    }
+
+    // One page of a query: entries [offset, offset + entries.size()) of total matches
+    public static final class Page {
+        private final int offset;
+        private final int total;
+        private final List<Entry> entries;
+
+        Page(int offset, int total, List<Entry> entries) {
+            this.offset = offset;
+            this.total = total;
+            this.entries = entries;
+        }
+
+        public int getOffset() { return offset; }
+        public int getTotal() { return total; }
+        public List<Entry> getEntries() { return entries; }
+    }
+
+    // Matches of one query as they were when it ran, oldest changes included and later ones not, so
+    // the pages of a listing neither repeat nor skip files
+    public static final class Listing {
+        private final String prefix;
+        private final long minSize;
+        private final long maxSize;
+        private final Sort sort;
+        private final Entry[] entries;
+
+        Listing(String prefix, long minSize, long maxSize, Sort sort, Entry[] entries) {
+            this.prefix = prefix;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.sort = sort;
+            this.entries = entries;
+        }
+
+        public boolean isOf(String prefix, long minSize, long maxSize, Sort sort) {
+            return this.prefix.equals(prefix) && this.minSize == minSize && this.maxSize == maxSize
+                    && this.sort == sort;
+        }
+
+        public int size() { return entries.length; }
+
+        public Page page(int offset, int limit) {
+            int from = Math.min(Math.max(0, offset), entries.length);
+            int to = (int) Math.min(entries.length, (long) from + Math.max(0, limit));
+            return new Page(offset, entries.length, Arrays.asList(entries).subList(from, to));
+        }
+    }
+
+    private static final Comparator<Entry> BY_SIZE =
+            Comparator.comparingLong(Entry::getSize).thenComparing(Entry::getName);
+
+    private final Path directory;
+    private final AsyncLogger logger;
+    private final ConcurrentSkipListMap<String, Entry> byName = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<Entry> bySize = new ConcurrentSkipListSet<>(BY_SIZE);
+    private final WatchService watcher;
+
+    private FileCatalog(Path directory, AsyncLogger logger) throws IOException {
+        this.directory = directory;
+        this.logger = logger;
+        this.watcher = directory.getFileSystem().newWatchService();
+    }
+
+    // Watches before the first scan, so no change made during the scan is missed
+    public static FileCatalog open(Path directory, AsyncLogger logger) throws IOException {
+        FileCatalog catalog = new FileCatalog(directory, logger);
+        try {
+            directory.register(catalog.watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            long start = System.nanoTime();
+            catalog.rescan();
+            logger.info("Indexed " + catalog.size() + " files in " + directory + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            catalog.close();
+            throw e;
+        }
+        Thread watchThread = new Thread(catalog::watch, "file-catalog");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        return catalog;
+    }
+
+    public Path getDirectory() { return directory; }
+    public int size() { return byName.size(); }
+
+    public Entry get(String name) {
+        return byName.get(name);
+    }
+
+    // Files with the name prefix and a size in [minSize, maxSize], in the given order
+    public Listing list(String prefix, long minSize, long maxSize, Sort sort) {
+        Iterable<Entry> candidates;
+        if (sort == Sort.NAME) {
+            candidates = prefix.isEmpty() ? byName.values()
+                    : byName.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values();
+        } else {
+            NavigableSet<Entry> range = bySize.subSet(new Entry("", minSize, 0), true,
+                    new Entry("", maxSize == Long.MAX_VALUE ? maxSize : maxSize + 1, 0), maxSize == Long.MAX_VALUE);
+            candidates = sort == Sort.SIZE ? range : range.descendingSet();
+        }
+
+        List<Entry> matches = new ArrayList<>(prefix.isEmpty() ? byName.size() : 16);
+        for (Entry entry : candidates) {
+            if (entry.name.startsWith(prefix) && entry.size >= minSize && entry.size <= maxSize) {
+                matches.add(entry);
+            }
+        }
+        return new Listing(prefix, minSize, maxSize, sort, matches.toArray(new Entry[0]));
+    }
+
+    // Re-reads one file of the directory, after the server or the watcher saw it change
+    public void refresh(String name) {
+        if (StreamingFileWriter.isPartFile(name)) return;
+        Path file = directory.resolve(name);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attributes.isRegularFile()) {
+                put(new Entry(name, attributes.size(), attributes.lastModifiedTime().toMillis()));
+            } else {
+                remove(name);
+            }
+        } catch (NoSuchFileException e) {
+            remove(name);
+        } catch (IOException e) {
+            logger.warn("Cannot read " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Full scan, on startup and when the watcher lost events
+    private void rescan() throws IOException {
+        Set<String> seen = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                seen.add(name);
+                refresh(name);
+            }
+        }
+        // Checked again rather than dropped: the server may have added them since the scan passed
+        for (String name : byName.keySet()) {
+            if (!seen.contains(name)) {
+                refresh(name);
+            }
+        }
+    }
+
+    // The two indexes only change together
+    private synchronized void put(Entry entry) {
+        Entry previous = byName.put(entry.name, entry);
+        if (previous != null) {
+            bySize.remove(previous);
+        }
+        bySize.add(entry);
+    }
+
+    private synchronized void remove(String name) {
+        Entry previous = byName.remove(name);
+        if (previous != null) {
+            bySize.remove(previous);
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    try {
+                        rescan();
+                    } catch (IOException e) {
+                        logger.error("Cannot rescan " + directory + ": " + e.getMessage());
+                    }
+                } else {
+                    refresh(((Path) event.context()).getFileName().toString());
+                }
+            }
+            if (!key.reset()) {
+                logger.warn("Stopped watching " + directory + ", the file list is no longer updated");
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            // The watch thread ends either way
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.cn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// Identifies a version of a file for resuming: "<size>-<mtime>-<hash>", where the hash is SHA-256
+// over the first and last 64 KB. A resume is only allowed while the fingerprint of the source is
+// unchanged; sampling keeps it cheap for multi-GB files while still catching rewrites that keep
+// size and mtime.
+public final class FileFingerprint {
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private FileFingerprint() {
+    }
+
+    public static String of(Path file) throws IOException {
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+            digestRange(channel, 0, buffer, digest);
+            if (size > SAMPLE_SIZE) {
+                digestRange(channel, Math.max(SAMPLE_SIZE, size - SAMPLE_SIZE), buffer, digest);
+            }
+        }
+        String hash = HexFormat.of().formatHex(digest.digest(), 0, 8);
+        return size + "-" + modified + "-" + hash;
+    }
+
+    private static void digestRange(FileChannel channel, long position, ByteBuffer buffer, MessageDigest digest)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) break;
+        }
+        buffer.flip();
+        digest.update(buffer);
+    }
+}
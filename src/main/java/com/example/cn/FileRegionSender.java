@@ -0,0 +1,263 @@
+package com.example.cn;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32C;
+
+// Streams a file region to a socket as binary FILE_DATA frames. Frame payloads are moved with
+// FileChannel.transferTo so the kernel can send them straight from the page cache (sendfile).
+// Driven from the selector's write path: each call writes until the socket would block or the
+// frame gate (the sliding window) refuses the next frame.
+//
+// With checksums enabled every frame carries a CRC32C and the payload feeds a StreamDigest. That
+// needs the bytes in memory, so each region is read once into a direct buffer from the
+// BufferPool, released by close(), and sent from there instead of with transferTo. rewind()
+// goes back to an earlier offset at the next frame boundary, for a receiver that asked for a
+// corrupted frame again.
+//
+// A connection that carries other data besides this file writes it with a frame limit and only
+// switches to something else while isMidFrame() is false.
+//
+// A sender can also stream from content already in memory (a HotFileCache mapping): frames are
+// then written from views of it and checksummed in place, without reading the file.
+//
+// A frame sent from memory goes out with one gathering write of its header, payload and checksum;
+// with transferTo the header is written first and the payload follows with sendfile.
+public final class FileRegionSender implements Closeable {
+    public interface FrameGate {
+        // Returns false to hold the frame back; true means the frame is being sent now
+        boolean tryStartFrame(long offset, int length);
+    }
+
+    private static final FrameGate OPEN = (offset, length) -> true;
+
+    // Source: the file, or its cached content
+    private final FileChannel fileChannel;
+    private final ByteBuffer content;
+    private final byte frameType;
+    private final int streamId;
+    private final long endPosition;
+    private final int regionSize;
+    private final ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE);
+    private final ByteBuffer trailer = ByteBuffer.allocate(BinaryProtocol.CHECKSUM_SIZE);
+    private CRC32C crc;
+    private StreamDigest digest;
+    // Payload of the current frame when it is sent from memory rather than with transferTo
+    private ByteBuffer regionBuffer;
+    // Pooled buffer regions are read into, when checksumming a file
+    private BufferPool pool;
+    private ByteBuffer readBuffer;
+    private final ByteBuffer[] frameParts = new ByteBuffer[3];
+    private long writeCalls;
+
+    private long nextRegion;
+    private long regionPosition;
+    private long regionRemaining = 0;
+    private long payloadTransferred = 0;
+    private FrameGate gate = OPEN;
+    private boolean gated;
+    private volatile long rewindTo = -1;
+
+    public FileRegionSender(FileChannel fileChannel, byte frameType, int streamId,
+                            long startPosition, long endPosition, int regionSize) {
+        this(fileChannel, null, frameType, streamId, startPosition, endPosition, regionSize);
+    }
+
+    // content holds the whole file from position 0
+    public FileRegionSender(ByteBuffer content, byte frameType, int streamId,
+                            long startPosition, long endPosition, int regionSize) {
+        this(null, content, frameType, streamId, startPosition, endPosition, regionSize);
+    }
+
+    private FileRegionSender(FileChannel fileChannel, ByteBuffer content, byte frameType, int streamId,
+                             long startPosition, long endPosition, int regionSize) {
+        this.fileChannel = fileChannel;
+        this.content = content;
+        this.frameType = frameType;
+        this.streamId = streamId;
+        this.nextRegion = startPosition;
+        this.endPosition = endPosition;
+        this.regionSize = regionSize;
+        header.flip();
+        trailer.flip();
+    }
+
+    public void enableChecksums(BufferPool pool) {
+        crc = new CRC32C();
+        digest = new StreamDigest(nextRegion);
+        if (content == null) {
+            this.pool = pool;
+            readBuffer = pool.acquire(regionSize);
+            regionBuffer = readBuffer;
+        }
+    }
+
+    public void setFrameGate(FrameGate gate) {
+        this.gate = gate;
+    }
+
+    // Returns the number of bytes (headers and payload) written to the target
+    public long writeTo(WritableByteChannel target) throws IOException {
+        return writeTo(target, Integer.MAX_VALUE);
+    }
+
+    // Finishes the frame in progress and starts at most maxFrames more
+    public long writeTo(WritableByteChannel target, int maxFrames) throws IOException {
+        long written = 0;
+        int frames = 0;
+        gated = false;
+
+        while (true) {
+            if (regionBuffer != null && target instanceof GatheringByteChannel gathering && isMidFrame()) {
+                frameParts[0] = header;
+                frameParts[1] = regionBuffer;
+                frameParts[2] = trailer;
+                written += gathering.write(frameParts);
+                writeCalls++;
+                long transferred = regionRemaining - regionBuffer.remaining();
+                regionPosition += transferred;
+                regionRemaining -= transferred;
+                payloadTransferred += transferred;
+                if (isMidFrame()) return written;
+            }
+
+            if (header.hasRemaining()) {
+                written += target.write(header);
+                writeCalls++;
+                if (header.hasRemaining()) return written;
+            }
+
+            if (regionRemaining > 0) {
+                long transferred = crc != null || content != null
+                        ? target.write(regionBuffer)
+                        : fileChannel.transferTo(regionPosition, regionRemaining, target);
+                writeCalls++;
+                if (transferred == 0) {
+                    if (crc == null && content == null && regionPosition >= fileChannel.size()) {
+                        throw new EOFException("File truncated at offset " + regionPosition);
+                    }
+                    // Socket send buffer is full
+                    return written;
+                }
+                regionPosition += transferred;
+                regionRemaining -= transferred;
+                payloadTransferred += transferred;
+                written += transferred;
+                continue;
+            }
+
+            if (trailer.hasRemaining()) {
+                written += target.write(trailer);
+                writeCalls++;
+                if (trailer.hasRemaining()) return written;
+            }
+
+            long rewind = rewindTo;
+            if (rewind >= 0) {
+                nextRegion = rewind;
+                rewindTo = -1;
+            }
+            if (nextRegion >= endPosition || frames == maxFrames) return written;
+
+            int length = (int) Math.min(regionSize, endPosition - nextRegion);
+            if (!gate.tryStartFrame(nextRegion, length)) {
+                gated = true;
+                return written;
+            }
+            startFrame(length);
+            frames++;
+        }
+    }
+
+    private void startFrame(int length) throws IOException {
+        header.clear();
+        if (content != null) {
+            regionBuffer = content.slice((int) nextRegion, length);
+        } else if (crc != null) {
+            regionBuffer.clear().limit(length);
+            while (regionBuffer.hasRemaining()) {
+                if (fileChannel.read(regionBuffer, nextRegion + regionBuffer.position()) < 0) {
+                    throw new EOFException("File truncated at offset " + (nextRegion + regionBuffer.position()));
+                }
+            }
+            regionBuffer.flip();
+        }
+        if (crc != null) {
+            crc.reset();
+            crc.update(regionBuffer.duplicate());
+            digest.update(nextRegion, regionBuffer);
+            trailer.clear();
+            trailer.putInt((int) crc.getValue());
+            trailer.flip();
+            BinaryProtocol.putHeader(header, frameType, BinaryProtocol.FLAG_CRC32C, streamId, nextRegion,
+                    length + BinaryProtocol.CHECKSUM_SIZE);
+        } else {
+            BinaryProtocol.putHeader(header, frameType, 0, streamId, nextRegion, length);
+        }
+        header.flip();
+        regionPosition = nextRegion;
+        regionRemaining = length;
+        nextRegion += length;
+    }
+
+    // Sends everything from offset again once the frame in progress is out
+    public void rewind(long offset) {
+        rewindTo = offset;
+    }
+
+    // True while a frame is partly written; nothing else may go to the target until it is out
+    public boolean isMidFrame() {
+        return header.hasRemaining() || regionRemaining > 0 || trailer.hasRemaining();
+    }
+
+    public boolean isComplete() {
+        return rewindTo < 0 && nextRegion >= endPosition && regionRemaining == 0
+                && !header.hasRemaining() && !trailer.hasRemaining();
+    }
+
+    // True if the last writeTo stopped because the gate held back the next frame
+    public boolean isGated() {
+        return gated;
+    }
+
+    // Writes (and sendfile calls) made on the target so far
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    public long getPayloadTransferred() {
+        return payloadTransferred;
+    }
+
+    // Offset of the next payload byte to go out
+    public long getPosition() {
+        return regionRemaining > 0 ? regionPosition : nextRegion;
+    }
+
+    // True if the frames come from cached content rather than the file
+    public boolean isFromCache() {
+        return content != null;
+    }
+
+    // SHA-256 of the data sent, once complete; null without checksums
+    public String finishDigest() {
+        return digest != null ? digest.finish() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (readBuffer != null) {
+            regionBuffer = null;
+            pool.release(readBuffer);
+            readBuffer = null;
+        }
+        if (fileChannel != null) {
+            fileChannel.close();
+        }
+    }
+}
@@ -0,0 +1,1561 @@
+package com.example.cn;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Headless file transfer client: one selector thread per connection plus a sender thread per upload.
+// UIs observe it through ClientEngineListener; it can also be scripted from main().
+public class FileTransferClientEngine {
+    public static final int DEFAULT_PORT = FileTransferServerEngine.DEFAULT_PORT;
+    public static final String DEFAULT_HOST = "localhost";
+    public static final String DEFAULT_DOWNLOAD_DIR = "downloads";
+    private static final int PACKET_SIZE = 1024;
+    private static final int BUFFER_SIZE = 8192;
+    private static final long PING_INTERVAL_MS = 10000;
+    private static final BufferPool bufferPool = BufferPool.shared();
+    // Staging buffer per download; downloads are streamed to disk instead of being held in memory
+    private static final int DOWNLOAD_BUFFER_SIZE = Integer.getInteger("cn.client.downloadBufferSize", 64 * 1024);
+    // Receive window advertised in download ACKs, and assumed for the server until its first ACK
+    private static final int RECEIVE_WINDOW = Integer.getInteger("cn.client.receiveWindow", 4 * 1024 * 1024);
+    private static final int INITIAL_PEER_WINDOW = 64 * 1024;
+    // Codecs offered in HELLO, in order of preference: -Dcn.client.compression (comma separated ids,
+    // "none" to send raw), default every codec available
+    private static final String COMPRESSION = System.getProperty("cn.client.compression", "");
+    // How long connect waits for HELLO_ACK before it goes on with the text protocol
+    private static final long NEGOTIATION_TIMEOUT_MILLIS = 2000;
+    // Entries asked for per FILE_PAGE (-Dcn.client.listPageSize); the server may send fewer
+    public static final int LIST_PAGE_SIZE = Integer.getInteger("cn.client.listPageSize", 500);
+    // Bytes of upload data queued ahead of the socket before the upload threads park
+    // (-Dcn.client.sendQueueHigh), and the level they wait for (-Dcn.client.sendQueueLow)
+    private static final long SEND_QUEUE_HIGH = Long.getLong("cn.client.sendQueueHigh", 1024 * 1024);
+    private static final long SEND_QUEUE_LOW = Long.getLong("cn.client.sendQueueLow", 256 * 1024);
+
+    private SocketChannel clientChannel;
+    private Selector selector;
+    // Commands and ACKs, written ahead of the transfers' data
+    private final Queue<ByteBuffer> controlQueue = new ConcurrentLinkedQueue<>();
+    // Upload data; its upload threads park while it is over the high watermark
+    private final SendQueue writeQueue = new SendQueue(SEND_QUEUE_HIGH, SEND_QUEUE_LOW);
+    // Queued buffers go out in gathering writes; a batch the socket took only part of is finished
+    // before anything else goes out
+    private final GatheringWriter gatheringWriter = new GatheringWriter(bufferPool);
+    // The client-loop thread; it owns the queued buffers until it has exited
+    private volatile Thread loopThread;
+    private volatile boolean connected = false;
+    private volatile boolean running = false;
+    private final ProtocolDecoder decoder = new ProtocolDecoder();
+    private volatile boolean binaryProtocol = false;
+    // The server acknowledges UPLOAD_DATA frames and expects ACKs for FILE_DATA frames
+    private volatile boolean peerAcks = false;
+    // The server may answer an UPLOAD of a file it has with block signatures for a DeltaSync delta
+    private volatile boolean deltaSync = false;
+    // Data frames carry CRC32C checksums and transfers end with a SHA-256 comparison
+    private volatile boolean checksums = false;
+    // Codec the server agreed on, null to send raw
+    private volatile ChunkCompressor compressor;
+    // Transfers run concurrently, each on a stream of its own; without MUX only stream 0 exists
+    private volatile boolean multiplexed = false;
+    private volatile CountDownLatch negotiated = new CountDownLatch(1);
+    private final Map<Integer, Transfer> transfers = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger();
+    private volatile SlidingWindow uploadWindow;
+    private final List<ClientEngineListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile File downloadDirectory;
+    private final FlowController tcpController = new FlowController(CongestionControllers.DEFAULT_ID);
+    private AtomicLong lastActivity = new AtomicLong(System.currentTimeMillis());
+    private long lastPingTime;
+    // Transfers cut off by the last unexpected disconnect, resumed by the next connect
+    private final List<String> interruptedDownloads = new ArrayList<>();
+    private final List<File> interruptedUploads = new ArrayList<>();
+
+    public FileTransferClientEngine(File downloadDirectory) {
+        this.downloadDirectory = FileTransferServerEngine.ensureDirectory(downloadDirectory);
+    }
+
+    public void addListener(ClientEngineListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ClientEngineListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void setDownloadDirectory(File directory) {
+        this.downloadDirectory = FileTransferServerEngine.ensureDirectory(directory);
+    }
+
+    public File getDownloadDirectory() { return downloadDirectory; }
+    public boolean isConnected() { return connected; }
+    public boolean isMultiplexed() { return multiplexed; }
+    public int getActiveTransfers() { return transfers.size(); }
+    public FlowController getTcpController() { return tcpController; }
+    // Window of the latest upload
+    public SlidingWindow getUploadWindow() { return uploadWindow; }
+    public ChunkCompressor getCompressor() { return compressor; }
+    public BufferPool getBufferPool() { return bufferPool; }
+
+    // Upload data waiting for the socket, and how long the uploads were held back by it
+    public SendQueue getSendQueue() {
+        return writeQueue;
+    }
+
+    // Write syscalls per MB sent, to see how well writes are batched
+    public double getWriteCallsPerMB() {
+        long bytes = gatheringWriter.getBytesWritten();
+        return bytes == 0 ? 0 : gatheringWriter.getWriteCalls() / (bytes / (1024.0 * 1024));
+    }
+
+    // Bytes of the current ranges moved so far
+    public long getRangeTransferred() {
+        long moved = 0;
+        for (Transfer transfer : transfers.values()) {
+            moved += transfer.rangeNext - transfer.rangeStart;
+        }
+        return moved;
+    }
+
+    // Blocks until the connection is established and the protocol negotiated, or has failed
+    public synchronized void connect(String host, int port) throws IOException {
+        if (connected) return;
+
+        try {
+            selector = Selector.open();
+            clientChannel = SocketChannel.open();
+            clientChannel.configureBlocking(false);
+
+            clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            clientChannel.setOption(StandardSocketOptions.SO_RCVBUF, 65536);
+            clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, 65536);
+
+            boolean established = clientChannel.connect(new InetSocketAddress(host, port));
+
+            if (!established) {
+                clientChannel.register(selector, SelectionKey.OP_CONNECT);
+                int attempts = 0;
+                while (attempts < 10 && !clientChannel.isConnected()) {
+                    selector.select(1000);
+                    Set<SelectionKey> keys = selector.selectedKeys();
+                    for (SelectionKey key : keys) {
+                        if (key.isConnectable() && clientChannel.finishConnect()) {
+                            break;
+                        }
+                    }
+                    keys.clear();
+                    attempts++;
+                }
+            }
+
+            if (!clientChannel.isConnected()) {
+                throw new IOException("Failed to connect to server");
+            }
+        } catch (IOException e) {
+            closeChannel();
+            throw e;
+        }
+
+        clientChannel.register(selector, SelectionKey.OP_READ);
+        decoder.reset();
+        binaryProtocol = false;
+        peerAcks = false;
+        checksums = false;
+        compressor = null;
+        multiplexed = false;
+        negotiated = new CountDownLatch(1);
+        lastActivity.set(System.currentTimeMillis());
+        lastPingTime = System.currentTimeMillis();
+        connected = true;
+        running = true;
+
+        startClientLoop();
+        // Offer the binary protocol; the server falls back to text if it does not answer
+        List<String> features = new ArrayList<>(List.of(BinaryProtocol.FEATURE_ACK, BinaryProtocol.FEATURE_DELTA,
+                BinaryProtocol.FEATURE_CRC, BinaryProtocol.FEATURE_MUX));
+        for (String codec : offeredCodecs()) {
+            features.add(BinaryProtocol.FEATURE_CODEC_PREFIX + codec);
+        }
+        sendMessage(BinaryProtocol.HELLO + ":" + BinaryProtocol.versionWithFeatures(features));
+        // Transfers pick their stream by what the server agreed to
+        try {
+            negotiated.await(NEGOTIATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        fire(l -> l.onConnected(host, port));
+
+        List<String> resumeDownloads = new ArrayList<>(interruptedDownloads);
+        List<File> resumeUploads = new ArrayList<>(interruptedUploads);
+        interruptedDownloads.clear();
+        interruptedUploads.clear();
+        for (String filename : resumeDownloads) {
+            download(filename);
+        }
+        for (File file : resumeUploads) {
+            upload(file);
+        }
+    }
+
+    private static List<String> offeredCodecs() {
+        if (COMPRESSION.isBlank()) {
+            return CompressionCodecs.ids();
+        }
+        List<String> codecs = new ArrayList<>();
+        for (String codec : COMPRESSION.split(",")) {
+            if (CompressionCodecs.isAvailable(codec.trim())) {
+                codecs.add(codec.trim());
+            }
+        }
+        return codecs;
+    }
+
+    public void disconnect() {
+        disconnect(null);
+    }
+
+    private void disconnect(String reason) {
+        Thread loop = loopThread;
+        boolean wasConnected = shutDown(reason);
+        // The loop may be in the middle of a gathering write with buffers from these queues, so they
+        // are released only once it has exited. closeChannel() closed its selector, which ends it.
+        if (loop != null && loop != Thread.currentThread()) {
+            try {
+                loop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        releaseQueuedBuffers();
+        ChunkCompressor chunkCompressor = compressor;
+        if (chunkCompressor != null) {
+            chunkCompressor.close();
+        }
+
+        if (wasConnected) {
+            fire(l -> l.onDisconnected(reason));
+        }
+    }
+
+    private synchronized boolean shutDown(String reason) {
+        boolean wasConnected = connected;
+        running = false;
+        connected = false;
+        binaryProtocol = false;
+        peerAcks = false;
+        deltaSync = false;
+        multiplexed = false;
+        if (reason != null && wasConnected) {
+            interruptedDownloads.clear();
+            interruptedUploads.clear();
+            for (Transfer transfer : transfers.values()) {
+                if (transfer.state.isDownloading()) {
+                    interruptedDownloads.add(transfer.state.getDownloadFilename());
+                } else if (transfer.state.isUploading()) {
+                    interruptedUploads.add(transfer.state.getUploadFile());
+                }
+            }
+        }
+        for (Transfer transfer : transfers.values()) {
+            transfer.close();
+        }
+
+        closeChannel();
+        return wasConnected;
+    }
+
+    private synchronized void releaseQueuedBuffers() {
+        ByteBuffer queued;
+        while ((queued = controlQueue.poll()) != null) {
+            bufferPool.release(queued);
+        }
+        // Emptying the send queue also wakes its parked upload threads
+        while ((queued = writeQueue.poll()) != null) {
+            bufferPool.release(queued);
+        }
+        gatheringWriter.clear();
+        if (bufferPool.isDebug()) {
+            for (String leak : bufferPool.leakReport(0)) {
+                System.err.println("Buffer leak: " + leak);
+            }
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            if (clientChannel != null && clientChannel.isOpen()) {
+                clientChannel.close();
+            }
+            if (selector != null && selector.isOpen()) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    // The whole file list in one message, answered through onFileList
+    public void listFiles() {
+        sendMessage("LIST_FILES");
+    }
+
+    // One page of the server's files whose names start with prefix, sorted by "name", "size" or
+    // "-size", answered through onFilePage (or onFileList by servers that do not page)
+    public void listFiles(int offset, int limit, String prefix, String sort) {
+        sendMessage("LIST_FILES:" + offset + ";" + limit + ";" + prefix + ";" + sort);
+    }
+
+    // Continues a partial download journaled by an earlier attempt if the server file is unchanged.
+    // With MUX it runs alongside the transfers already in progress.
+    public void download(String filename) {
+        if (!connected) return;
+        Transfer transfer = openTransfer();
+        if (transfer == null) return;
+        Path partFile = StreamingFileWriter.partFileFor(new File(downloadDirectory, filename).toPath());
+        TransferJournal journal = TransferJournal.load(partFile);
+        if (journal != null && journal.getDurableOffset() > 0) {
+            transfer.sendMessage("DOWNLOAD:" + filename + ";" + journal.getDurableOffset() + ";" + journal.getFingerprint());
+        } else {
+            transfer.sendMessage("DOWNLOAD:" + filename);
+        }
+    }
+
+    // The fingerprint lets the server keep the partial upload and continue it after a disconnect
+    public void upload(File file) {
+        if (!connected) return;
+        String fingerprint;
+        try {
+            fingerprint = FileFingerprint.of(file.toPath());
+        } catch (IOException e) {
+            fire(l -> l.onTransferFailed("Cannot read " + file.getName() + ": " + e.getMessage()));
+            return;
+        }
+        Transfer transfer = openTransfer();
+        if (transfer == null) return;
+        transfer.state.startUpload(file);
+        fire(l -> l.onTransferStarted(file.getName(), true));
+        transfer.sendMessage("UPLOAD:" + file.getName() + ";" + file.length() + ";" + fingerprint);
+    }
+
+    // Asks for the size and fingerprint of a server file, answered through onFileInfo
+    public void requestFileInfo(String filename) {
+        sendMessage("FILE_INFO:" + filename);
+    }
+
+    // Downloads [start, end) of a server file into target, answered through onRangeComplete.
+    // Needs the binary protocol.
+    public void downloadRange(String filename, long start, long end, String fingerprint, RangeFileWriter target) {
+        if (!connected) return;
+        Transfer transfer = openTransfer();
+        if (transfer == null) return;
+        transfer.rangeStart = start;
+        transfer.rangeNext = start;
+        transfer.rangeEnd = end;
+        transfer.rangeTarget = target;
+        transfer.sendMessage("DOWNLOAD_RANGE:" + filename + ";" + start + ";" + end + ";" + fingerprint);
+    }
+
+    // Uploads [start, end) of a file, answered through onRangeComplete; the stream that delivers
+    // the last missing range also receives onUploadComplete
+    public void uploadRange(File file, long start, long end, String fingerprint) {
+        if (!connected) return;
+        Transfer transfer = openTransfer();
+        if (transfer == null) return;
+        transfer.state.startUpload(file);
+        transfer.rangeStart = start;
+        transfer.rangeNext = start;
+        transfer.rangeEnd = start;
+        transfer.sendMessage("UPLOAD_RANGE:" + file.getName() + ";" + file.length() + ";" + fingerprint + ";"
+                + start + ";" + end);
+    }
+
+    // With MUX every transfer gets a new stream; otherwise stream 0 takes one transfer at a time
+    private Transfer openTransfer() {
+        int id = multiplexed ? nextStreamId.incrementAndGet() : 0;
+        Transfer transfer = new Transfer(id);
+        if (transfers.putIfAbsent(id, transfer) != null) {
+            fire(l -> l.onTransferFailed("Another transfer is in progress"));
+            return null;
+        }
+        return transfer;
+    }
+
+    // Selects a CongestionController by id for uploads here and downloads on the server
+    public void setAlgorithm(String algorithm) {
+        if (!CongestionControllers.isAvailable(algorithm)) {
+            fire(l -> l.onError("Unknown algorithm " + algorithm + ", available: "
+                    + String.join(",", CongestionControllers.ids())));
+            return;
+        }
+        tcpController.setAlgorithm(algorithm);
+        sendMessage("ALGORITHM:" + algorithm);
+    }
+
+    private void startClientLoop() {
+        Thread clientThread = new Thread(() -> {
+            while (running) {
+                try {
+                    int readyChannels = selector.select(100);
+
+                    if (readyChannels > 0) {
+                        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                        Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+
+                        while (keyIterator.hasNext()) {
+                            SelectionKey key = keyIterator.next();
+                            keyIterator.remove();
+
+                            try {
+                                if (key.isReadable()) {
+                                    handleRead();
+                                } else if (key.isWritable()) {
+                                    handleWrite();
+                                }
+                            } catch (IOException e) {
+                                disconnect("Error in client loop: " + e.getMessage());
+                                return;
+                            }
+                        }
+                    }
+
+                    // Check connection health and measure RTT periodically
+                    checkConnectionHealth();
+                } catch (IOException | ClosedSelectorException e) {
+                    if (running) {
+                        disconnect("Client loop error: " + e.getMessage());
+                    }
+                    break;
+                }
+            }
+        }, "client-loop");
+        clientThread.setDaemon(true);
+        loopThread = clientThread;
+        clientThread.start();
+    }
+
+    private void handleRead() throws IOException {
+        ByteBuffer buffer = bufferPool.acquire(BUFFER_SIZE);
+        try {
+            int bytesRead = clientChannel.read(buffer);
+
+            if (bytesRead > 0) {
+                buffer.flip();
+                handleIncomingData(buffer);
+                lastActivity.set(System.currentTimeMillis());
+            } else if (bytesRead == -1) {
+                // Server closed connection
+                disconnect("Server closed connection");
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    // Commands and ACKs go out ahead of queued data, batched into gathering writes; a partly
+    // written batch is finished first
+    private void handleWrite() throws IOException {
+        boolean hasMoreData = false;
+
+        while (true) {
+            if (!gatheringWriter.hasPending()) {
+                gatheringWriter.fill(controlQueue);
+                gatheringWriter.fill(writeQueue);
+                if (!gatheringWriter.hasPending()) break;
+            }
+            if (!flush()) {
+                hasMoreData = true;
+                break;
+            }
+        }
+
+        // Update selector interest
+        SelectionKey key = clientChannel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            if (hasMoreData) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    // Returns false if the socket took only part of the batch
+    private boolean flush() throws IOException {
+        long bytesWritten = gatheringWriter.flush(clientChannel);
+        if (bytesWritten > 0) {
+            tcpController.onDataSent((int) bytesWritten, System.currentTimeMillis());
+        }
+        return !gatheringWriter.hasPending();
+    }
+
+    private void checkConnectionHealth() {
+        long currentTime = System.currentTimeMillis();
+
+        // Connection timeout (60 seconds)
+        if (currentTime - lastActivity.get() > 60000) {
+            disconnect("Connection timed out");
+            return;
+        }
+
+        if (currentTime - lastPingTime >= PING_INTERVAL_MS) {
+            lastPingTime = currentTime;
+            sendMessage("PING:" + currentTime);
+        }
+    }
+
+    private void handleIncomingData(ByteBuffer buffer) throws IOException {
+        // Text commands and binary data frames are parsed incrementally from the read buffer
+        decoder.decode(buffer, new ProtocolDecoder.Handler() {
+            @Override
+            public void onMessage(String message) {
+                processServerMessage(message);
+            }
+
+            @Override
+            public void onFrame(byte type, int flags, int streamId, long offset, ByteBuffer payload) {
+                processServerFrame(type, flags, streamId, offset, payload);
+            }
+
+            @Override
+            public void onCorruptFrame(byte type, int streamId, long offset, int length) {
+                // Everything from the expected offset is sent again; later frames already on their
+                // way are dropped when they arrive
+                Transfer transfer = transfers.get(streamId);
+                if (transfer != null && type == BinaryProtocol.TYPE_FILE_DATA && offset == transfer.receivedOffset()) {
+                    sendMessage(BinaryProtocol.tag("RESEND:" + offset, streamId));
+                }
+            }
+        });
+
+        // One cumulative ACK per read and stream, however many data frames it carried
+        for (Transfer transfer : transfers.values()) {
+            transfer.flushDownloadAck();
+        }
+    }
+
+    private void processServerMessage(String message) {
+        String[] parts = message.split(":", 2);
+        if (parts.length < 1) return;
+
+        String command = BinaryProtocol.untag(parts[0].trim());
+        int streamId = BinaryProtocol.streamOf(parts[0].trim());
+        String data = parts.length > 1 ? parts[1].trim() : "";
+        Transfer transfer = transfers.get(streamId);
+
+        switch (command) {
+            case BinaryProtocol.HELLO_ACK:
+                Set<String> features = BinaryProtocol.parseFeatures(data);
+                binaryProtocol = BinaryProtocol.isSupportedVersion(data);
+                peerAcks = binaryProtocol && features.contains(BinaryProtocol.FEATURE_ACK);
+                deltaSync = binaryProtocol && features.contains(BinaryProtocol.FEATURE_DELTA);
+                checksums = peerAcks && features.contains(BinaryProtocol.FEATURE_CRC);
+                multiplexed = binaryProtocol && features.contains(BinaryProtocol.FEATURE_MUX);
+                List<String> codecs = BinaryProtocol.codecs(features);
+                compressor = binaryProtocol && !codecs.isEmpty() && CompressionCodecs.isAvailable(codecs.get(0))
+                        ? new ChunkCompressor(codecs.get(0)) : null;
+                negotiated.countDown();
+                break;
+            case "FILE_LIST":
+                handleFileList(data);
+                break;
+            case "FILE_PAGE":
+                handleFilePage(data);
+                break;
+            case "FILE_INFO":
+                handleFileInfo(data);
+                break;
+            case "UPLOAD_COMPLETE":
+                // Also the answer to the last range of a parallel upload, whose stream is already done
+                if (transfer != null) {
+                    transfer.handleUploadComplete(data);
+                } else {
+                    fire(l -> l.onUploadComplete(data));
+                }
+                break;
+            case "ERROR":
+                if (transfer != null) {
+                    transfer.close();
+                }
+                fire(l -> l.onError(data));
+                break;
+            case "PONG":
+                handlePong(data);
+                break;
+            default:
+                if (transfer != null) {
+                    transfer.processMessage(command, data);
+                }
+                break;
+        }
+    }
+
+    private void processServerFrame(byte type, int flags, int streamId, long offset, ByteBuffer payload) {
+        Transfer transfer = transfers.get(streamId);
+        if (transfer == null) return;
+        if ((flags & BinaryProtocol.FLAG_COMPRESSED) != 0) {
+            ChunkCompressor chunkCompressor = compressor;
+            try {
+                if (chunkCompressor == null) {
+                    throw new IOException("compression was not negotiated");
+                }
+                payload = chunkCompressor.decode(payload);
+            } catch (IOException e) {
+                transfer.fail("Error decompressing file data: " + e.getMessage());
+                return;
+            }
+        }
+        switch (type) {
+            case BinaryProtocol.TYPE_FILE_DATA:
+                transfer.handleFileFrame(offset, payload);
+                break;
+            case BinaryProtocol.TYPE_ACK:
+                transfer.handleUploadAck(offset, payload);
+                break;
+            case BinaryProtocol.TYPE_SIGNATURES:
+                transfer.handleSignatures(offset, payload);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void handleFileList(String data) {
+        List<RemoteFile> files = new ArrayList<>();
+        if (!data.isEmpty()) {
+            for (String file : data.split(";")) {
+                if (!file.trim().isEmpty()) {
+                    String[] parts = file.trim().split(" \\(");
+                    if (parts.length >= 2) {
+                        files.add(new RemoteFile(parts[0], parts[1].replace(")", "")));
+                    }
+                }
+            }
+        }
+        List<RemoteFile> result = Collections.unmodifiableList(files);
+        fire(l -> l.onFileList(result));
+    }
+
+    // FILE_PAGE:<offset>;<total>[;<name>/<size>]..., names escaped with BinaryProtocol.escapeName.
+    // A malformed page is reported as an error rather than ending the client loop.
+    private void handleFilePage(String data) {
+        String[] parts = data.split(";");
+        if (parts.length < 2) return;
+        int offset;
+        int total;
+        List<RemoteFile> files = new ArrayList<>(parts.length - 2);
+        try {
+            offset = Integer.parseInt(parts[0]);
+            total = Integer.parseInt(parts[1]);
+            for (int i = 2; i < parts.length; i++) {
+                int separator = parts[i].lastIndexOf('/');
+                if (separator > 0) {
+                    files.add(new RemoteFile(BinaryProtocol.unescapeName(parts[i].substring(0, separator)),
+                            Long.parseLong(parts[i].substring(separator + 1))));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            fire(l -> l.onError("Invalid file page from server: " + e.getMessage()));
+            return;
+        }
+        List<RemoteFile> result = Collections.unmodifiableList(files);
+        fire(l -> l.onFilePage(offset, total, result));
+    }
+
+    // FILE_INFO:<name>;<size>;<fingerprint>, the name escaped with BinaryProtocol.escapeName
+    private void handleFileInfo(String data) {
+        String[] parts = data.split(";");
+        if (parts.length < 3) return;
+        String filename;
+        long size;
+        try {
+            filename = BinaryProtocol.unescapeName(parts[0]);
+            size = Long.parseLong(parts[1]);
+        } catch (IllegalArgumentException e) {
+            fire(l -> l.onError("Invalid file info from server: " + e.getMessage()));
+            return;
+        }
+        fire(l -> l.onFileInfo(filename, size, parts[2]));
+    }
+
+    private void handlePong(String timestamp) {
+        try {
+            long pingTime = Long.parseLong(timestamp);
+            long rtt = System.currentTimeMillis() - pingTime;
+            tcpController.onRttSample(rtt);
+        } catch (NumberFormatException e) {
+            // Ignore invalid timestamp
+        }
+    }
+
+    // Progress over every whole-file transfer in progress
+    private void reportProgress() {
+        long moved = 0;
+        long total = 0;
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.rangeEnd == 0) {
+                moved += transfer.state.getTransferred();
+                total += transfer.state.getFileSize();
+            }
+        }
+        if (total > 0) {
+            double progress = (double) moved / total;
+            fire(l -> l.onTransferProgress(progress));
+        }
+    }
+
+    // The connection's congestion window less what the other uploads have in flight
+    private double congestionWindowFor(Transfer transfer) {
+        double window = tcpController.getCongestionWindow();
+        for (Transfer other : transfers.values()) {
+            SlidingWindow otherWindow = other.uploadWindow;
+            if (other != transfer && otherWindow != null) {
+                window -= otherWindow.getSegmentsInFlight();
+            }
+        }
+        return window;
+    }
+
+    // Upload thread: waits until the pacing rate allows the next segment
+    private void pace() {
+        long delay = tcpController.getPacingDelayNanos(System.nanoTime());
+        if (delay > 0) {
+            LockSupport.parkNanos(delay);
+        }
+    }
+
+    // Commands of the session go out ahead of queued transfer data
+    private void sendMessage(String message) {
+        if (!connected) return;
+
+        byte[] data = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        enqueue(controlQueue, bufferPool.wrap(data));
+    }
+
+    private void enqueue(ByteBuffer buffer) {
+        enqueue(writeQueue, buffer);
+    }
+
+    // A text protocol line that belongs to an upload's data, queued with it
+    private void sendData(String message) {
+        if (!connected) return;
+
+        enqueue(bufferPool.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void enqueue(Queue<ByteBuffer> queue, ByteBuffer buffer) {
+        if (!connected) {
+            bufferPool.release(buffer);
+            return;
+        }
+
+        queue.offer(buffer);
+
+        // Register for write operation
+        try {
+            SelectionKey key = clientChannel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                selector.wakeup();
+            }
+        } catch (Exception e) {
+            // Ignore
+        }
+    }
+
+    // A failing listener is reported to every listener through onError; a failure there is not
+    // reported again
+    private void fire(Consumer<ClientEngineListener> event) {
+        for (ClientEngineListener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                reportListenerFailure(e);
+            }
+        }
+    }
+
+    private void reportListenerFailure(RuntimeException failure) {
+        for (ClientEngineListener listener : listeners) {
+            try {
+                listener.onError("Listener failed: " + failure);
+            } catch (RuntimeException e) {
+                // Ignore
+            }
+        }
+    }
+
+    // One transfer on its stream: state, sliding window and the handlers of its messages and
+    // frames. It is removed once the transfer has ended.
+    private final class Transfer {
+        private final int id;
+        private final FileTransferState state = new FileTransferState();
+        private volatile boolean open = true;
+        private volatile SlidingWindow uploadWindow;
+        // Offset the server asked to get again (RESEND) for the running upload, -1 if none
+        private final AtomicLong uploadResend = new AtomicLong(-1);
+        private boolean downloadAckPending;
+        // Range of a parallel transfer: [rangeStart, rangeEnd), moved up to rangeNext. Downloaded
+        // frames go straight to rangeTarget, which the streams of the transfer share.
+        private volatile RangeFileWriter rangeTarget;
+        private volatile long rangeStart;
+        private volatile long rangeNext;
+        private volatile long rangeEnd;
+        private DeltaSync.Signatures deltaSignatures;
+        // {literal bytes sent, bytes saved} of a delta upload awaiting UPLOAD_COMPLETE
+        private volatile long[] deltaStats;
+
+        Transfer(int id) {
+            this.id = id;
+        }
+
+        private void processMessage(String command, String data) {
+            switch (command) {
+                case "DOWNLOAD_START":
+                    handleDownloadStart(data);
+                    break;
+                case "FILE_DATA":
+                    handleFileData(data);
+                    break;
+                case "DOWNLOAD_COMPLETE":
+                    handleDownloadComplete(data);
+                    break;
+                case "UPLOAD_READY":
+                    handleUploadReady(data);
+                    break;
+                case "RANGE_READY":
+                    handleRangeReady(data);
+                    break;
+                case "RANGE_COMPLETE":
+                    handleRangeComplete(data);
+                    break;
+                case "DELTA_READY":
+                    handleDeltaReady(data);
+                    break;
+                case "RESEND":
+                    handleResend(data);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private long receivedOffset() {
+            return rangeTarget != null ? rangeNext : state.getTransferred();
+        }
+
+        private void flushDownloadAck() {
+            if (downloadAckPending) {
+                downloadAckPending = false;
+                enqueue(controlQueue, BinaryProtocol.encodeAck(bufferPool, id, receivedOffset(), RECEIVE_WINDOW));
+            }
+        }
+
+        // DOWNLOAD_START:<name>;<size>[;<offset>;<fingerprint>]
+        private void handleDownloadStart(String data) {
+            String[] parts = data.split(";");
+            if (parts.length >= 2) {
+                String filename = parts[0];
+                long fileSize = Long.parseLong(parts[1]);
+                long offset = parts.length >= 4 ? Long.parseLong(parts[2]) : 0;
+                String fingerprint = parts.length >= 4 ? parts[3] : null;
+                try {
+                    state.startDownload(new File(downloadDirectory, filename), fileSize, offset, fingerprint);
+                } catch (IOException e) {
+                    fail("Error preparing download: " + e.getMessage());
+                    return;
+                }
+                fire(l -> l.onTransferStarted(filename, false));
+            }
+        }
+
+        private void handleFileData(String data) {
+            try {
+                byte[] fileData = Base64.getDecoder().decode(data);
+                state.addDownloadData(ByteBuffer.wrap(fileData));
+                reportDownloadProgress();
+            } catch (Exception e) {
+                fail("Error processing file data: " + e.getMessage());
+            }
+        }
+
+        private void handleFileFrame(long offset, ByteBuffer payload) {
+            RangeFileWriter target = rangeTarget;
+            if (target != null) {
+                handleRangeFrame(target, offset, payload);
+                return;
+            }
+            if (offset != state.getTransferred()) {
+                // Frames sent before a RESEND reached the server
+                if (checksums && offset > state.getTransferred()) return;
+                fail("Error: unexpected data offset " + offset);
+                return;
+            }
+            try {
+                state.addDownloadData(payload);
+            } catch (IOException e) {
+                fail("Error writing file data: " + e.getMessage());
+                return;
+            }
+            downloadAckPending = peerAcks;
+            reportDownloadProgress();
+        }
+
+        private void handleRangeFrame(RangeFileWriter target, long offset, ByteBuffer payload) {
+            int length = payload.remaining();
+            if (offset != rangeNext || offset + length > rangeEnd) {
+                if (checksums && offset > rangeNext) return;
+                fail("Error: unexpected data offset " + offset);
+                return;
+            }
+            try {
+                target.write(offset, payload);
+            } catch (IOException e) {
+                fail("Error writing file data: " + e.getMessage());
+                return;
+            }
+            rangeNext = offset + length;
+            downloadAckPending = peerAcks;
+        }
+
+        // RANGE_READY:<name>;<start>;<end>
+        private void handleRangeReady(String data) {
+            String[] parts = data.split(";");
+            if (parts.length < 3) return;
+            long start = Long.parseLong(parts[1]);
+            rangeEnd = Long.parseLong(parts[2]);
+            state.uploadStarted(start);
+            startFileUpload(start, rangeEnd);
+        }
+
+        // RANGE_COMPLETE:<name>;<start>;<end>
+        private void handleRangeComplete(String data) {
+            String[] parts = data.split(";");
+            if (parts.length < 3) return;
+            long start = Long.parseLong(parts[1]);
+            long end = Long.parseLong(parts[2]);
+            if (rangeTarget != null) {
+                // The final ACK must reach the server before the next range request
+                rangeTarget = null;
+                if (downloadAckPending) {
+                    downloadAckPending = false;
+                    enqueue(controlQueue, BinaryProtocol.encodeAck(bufferPool, id, rangeNext, RECEIVE_WINDOW));
+                }
+            }
+            rangeNext = end;
+            close();
+            fire(l -> l.onRangeComplete(parts[0], start, end));
+        }
+
+        private void handleUploadAck(long ackOffset, ByteBuffer payload) {
+            SlidingWindow window = uploadWindow;
+            if (window == null || payload.remaining() < BinaryProtocol.ACK_PAYLOAD_SIZE) return;
+
+            int advertisedWindow = payload.getInt(payload.position());
+            long now = System.nanoTime();
+            SlidingWindow.Ack ack = window.onAck(ackOffset, advertisedWindow, now);
+            tcpController.setReceiveWindow(advertisedWindow);
+            tcpController.onAck(ack, now);
+        }
+
+        private void reportDownloadProgress() {
+            if (state.getFileSize() > 0) {
+                reportProgress(state.getDownloadFilename(), false, (double) state.getTransferred() / state.getFileSize());
+            }
+        }
+
+        private void reportProgress(String filename, boolean upload, double progress) {
+            fire(l -> l.onTransferProgress(filename, upload, progress));
+            FileTransferClientEngine.this.reportProgress();
+        }
+
+        // DOWNLOAD_COMPLETE:<name>[;<sha256>] - with checksums the server's digest of what it sent
+        private void handleDownloadComplete(String data) {
+            String[] parts = data.split(";");
+            String filename = parts[0];
+            String digest = state.finishDownloadDigest();
+            if (digest != null && parts.length >= 2 && !digest.equals(parts[1])) {
+                state.abortDownload();
+                fail("Download of " + filename + " failed verification");
+                return;
+            }
+            try {
+                File saveFile = state.commitDownload();
+                close();
+                fire(l -> l.onDownloadComplete(filename, saveFile));
+            } catch (IOException e) {
+                fail("Error saving file: " + e.getMessage());
+            }
+        }
+
+        // UPLOAD_READY:<name>[;<offset>]
+        private void handleUploadReady(String data) {
+            String[] parts = data.split(";");
+            long offset = parts.length >= 2 ? Long.parseLong(parts[1]) : 0;
+            deltaStats = null;
+            state.uploadStarted(offset);
+            // Start sending file data
+            startFileUpload(offset, -1);
+        }
+
+        // DELTA_READY:<name>;<blockSize>;<blockCount>;<basisSize> - signatures follow as frames
+        private void handleDeltaReady(String data) {
+            String[] parts = data.split(";");
+            if (parts.length < 4 || !deltaSync) return;
+            deltaSignatures = new DeltaSync.Signatures(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                    Long.parseLong(parts[3]));
+            state.uploadStarted(0);
+            if (deltaSignatures.isComplete()) {
+                startDeltaUpload(deltaSignatures);
+            }
+        }
+
+        private void handleSignatures(long firstBlock, ByteBuffer payload) {
+            DeltaSync.Signatures signatures = deltaSignatures;
+            if (signatures == null) return;
+            try {
+                signatures.add((int) firstBlock, payload);
+            } catch (IOException e) {
+                deltaSignatures = null;
+                fail("Upload failed: " + e.getMessage());
+                return;
+            }
+            if (signatures.isComplete()) {
+                deltaSignatures = null;
+                startDeltaUpload(signatures);
+            }
+        }
+
+        private void handleUploadComplete(String filename) {
+            close();
+            long[] stats = deltaStats;
+            deltaStats = null;
+            if (stats != null) {
+                fire(l -> l.onDeltaUploaded(filename, stats[0], stats[1]));
+            }
+            fire(l -> l.onUploadComplete(filename));
+        }
+
+        // RESEND:<offset> - the server got a corrupted UPLOAD_DATA frame; the upload thread goes back to offset
+        private void handleResend(String offset) {
+            try {
+                uploadResend.set(Long.parseLong(offset));
+            } catch (NumberFormatException e) {
+                // Ignore invalid offset
+            }
+        }
+
+        // Sends the upload file from offset up to end, or to its end of file when end is negative
+        private void startFileUpload(long offset, long end) {
+            File file = state.getUploadFile();
+            if (file == null) return;
+
+            Thread uploadThread = new Thread(() -> {
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    fis.getChannel().position(offset);
+                    byte[] buffer = new byte[binaryProtocol && compressor != null ? ChunkCompressor.CHUNK_SIZE : PACKET_SIZE];
+                    int bytesRead;
+                    long totalBytes = end < 0 ? file.length() : end;
+                    long transferredBytes = offset;
+                    SlidingWindow window = new SlidingWindow(offset, INITIAL_PEER_WINDOW, binaryProtocol && peerAcks);
+                    StreamDigest digest = binaryProtocol && checksums ? new StreamDigest(offset) : null;
+                    uploadResend.set(-1);
+                    uploadWindow = window;
+                    FileTransferClientEngine.this.uploadWindow = window;
+
+                    while (connected && open) {
+                        long resend = uploadResend.getAndSet(-1);
+                        if (resend >= offset && resend < transferredBytes) {
+                            tcpController.onSegmentsDiscarded(window.rewind(resend), System.nanoTime());
+                            fis.getChannel().position(resend);
+                            transferredBytes = resend;
+                        }
+                        if (transferredBytes >= totalBytes) {
+                            // With checksums a frame may be asked for again until all of them are acknowledged
+                            if (digest == null || window.awaitAcked(totalBytes, 20)) break;
+                            continue;
+                        }
+                        bytesRead = fis.read(buffer, 0, (int) Math.min(buffer.length, totalBytes - transferredBytes));
+                        if (bytesRead == -1) break;
+                        if (digest != null) {
+                            digest.update(transferredBytes, buffer, 0, bytesRead);
+                        }
+
+                        if (binaryProtocol) {
+                            // Send data as a binary frame
+                            if (!sendSegment(window, BinaryProtocol.TYPE_UPLOAD_DATA, transferredBytes, buffer, 0, bytesRead)) {
+                                break;
+                            }
+                        } else {
+                            // Encode and send data
+                            byte[] packet = Arrays.copyOf(buffer, bytesRead);
+                            String encodedData = Base64.getEncoder().encodeToString(packet);
+                            sendData("UPLOAD_DATA:" + encodedData);
+                        }
+
+                        transferredBytes += bytesRead;
+                        state.setTransferred(transferredBytes);
+                        if (end >= 0) {
+                            rangeNext = transferredBytes;
+                        } else {
+                            reportProgress(file.getName(), true, (double) transferredBytes / totalBytes);
+                        }
+
+                        // Backpressure: wait for the selector thread to catch up with the socket
+                        writeQueue.awaitSpace();
+                    }
+                    // A range is confirmed by RANGE_COMPLETE; the SHA-256 covers whole uploads
+                    if (digest != null && end < 0 && open) {
+                        sendMessage("UPLOAD_DIGEST:" + file.getName() + ";" + digest.finish());
+                    }
+                } catch (Exception e) {
+                    fail("Upload failed");
+                }
+            }, "client-upload-" + id);
+            uploadThread.setDaemon(true);
+            uploadThread.start();
+        }
+
+        // Sends the new version as a delta against the server's copy: literal frames are clocked by the
+        // sliding window like UPLOAD_DATA, copy frames only carry block numbers
+        private void startDeltaUpload(DeltaSync.Signatures signatures) {
+            File file = state.getUploadFile();
+            if (file == null) return;
+
+            Thread uploadThread = new Thread(() -> {
+                try {
+                    long totalBytes = file.length();
+                    SlidingWindow window = new SlidingWindow(0, INITIAL_PEER_WINDOW, peerAcks);
+                    uploadWindow = window;
+                    FileTransferClientEngine.this.uploadWindow = window;
+                    DeltaSync.Result result = DeltaSync.computeDelta(file.toPath(), signatures, PACKET_SIZE,
+                            new DeltaSync.Sink() {
+                                @Override
+                                public void copy(long offset, int block, int count) {
+                                    ByteBuffer payload = ByteBuffer.allocate(BinaryProtocol.DELTA_COPY_PAYLOAD_SIZE);
+                                    payload.putInt(block).putInt(count);
+                                    enqueue(BinaryProtocol.encodeFrame(bufferPool, BinaryProtocol.TYPE_DELTA_COPY, id,
+                                            offset, payload.array(), 0, payload.capacity(), checksums));
+                                    reportProgress(file.getName(), true, totalBytes > 0 ? (double) offset / totalBytes : 1.0);
+                                }
+
+                                @Override
+                                public void literal(long offset, byte[] data, int dataOffset, int length) throws IOException {
+                                    try {
+                                        if (!sendSegment(window, BinaryProtocol.TYPE_DELTA_DATA, offset, data, dataOffset, length)) {
+                                            throw new IOException("Disconnected");
+                                        }
+                                        writeQueue.awaitSpace();
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                        throw new InterruptedIOException();
+                                    }
+                                    state.setTransferred(offset + length);
+                                }
+                            });
+                    deltaStats = new long[] {result.literalBytes, totalBytes - result.literalBytes};
+                    sendMessage("DELTA_COMPLETE:" + file.getName() + ";" + result.sha256);
+                } catch (IOException e) {
+                    fail("Upload failed: " + e.getMessage());
+                }
+            }, "client-upload-" + id);
+            uploadThread.setDaemon(true);
+            uploadThread.start();
+        }
+
+        // Upload thread: waits for the sliding window and the pacing rate, then queues one data frame.
+        // Returns false if the connection or the transfer went away meanwhile.
+        private boolean sendSegment(SlidingWindow window, byte type, long offset, byte[] data, int dataOffset, int length)
+                throws InterruptedException {
+            // ACK-clocked flow control: wait for the sliding window to open
+            while (connected && open && !window.awaitSendable(congestionWindowFor(this), length, 20)) {
+                if (window.checkTimeout(System.nanoTime())) {
+                    tcpController.onTimeout();
+                }
+            }
+            if (!connected || !open) return false;
+            pace();
+
+            long now = System.nanoTime();
+            window.onSent(offset, length, now);
+            if (window.isAckClocked()) {
+                tcpController.onSegmentSent(length, now);
+            }
+            ChunkCompressor chunkCompressor = compressor;
+            enqueue(chunkCompressor != null
+                    ? chunkCompressor.encodeFrame(bufferPool, type, id, offset, data, dataOffset, length, checksums)
+                    : BinaryProtocol.encodeFrame(bufferPool, type, id, offset, data, dataOffset, length, checksums));
+            return true;
+        }
+
+        // Local failure, which ends the transfer
+        private void fail(String message) {
+            if (!open) return;
+            close();
+            fire(l -> l.onTransferFailed(message));
+        }
+
+        // Ends the transfer; a journaled download keeps its partial file for the next attempt
+        private void close() {
+            open = false;
+            transfers.remove(id, this);
+            // Frames whose ACKs no longer reach this transfer must not stay in flight for the controller
+            SlidingWindow window = uploadWindow;
+            if (window != null) {
+                tcpController.onSegmentsDiscarded(window.discard(), System.nanoTime());
+            }
+            state.suspendDownload();
+            state.finishUpload();
+            rangeTarget = null;
+        }
+
+        // Commands of the transfer carry its stream id and stay in order with its data frames
+        private void sendMessage(String message) {
+            if (!connected) return;
+
+            byte[] data = (BinaryProtocol.tag(message, id) + "\n").getBytes(StandardCharsets.UTF_8);
+            enqueue(bufferPool.wrap(data));
+        }
+    }
+
+    // Entry of the server's file list
+    public static final class RemoteFile {
+        private final String name;
+        private final String size;
+        // Exact size, -1 if the server only sent the formatted one
+        private final long bytes;
+
+        public RemoteFile(String name, String size) {
+            this.name = name;
+            this.size = size;
+            this.bytes = -1;
+        }
+
+        public RemoteFile(String name, long bytes) {
+            this.name = name;
+            this.size = FileTransferServerEngine.formatFileSize(bytes);
+            this.bytes = bytes;
+        }
+
+        public String getName() { return name; }
+        public String getSize() { return size; }
+        public long getBytes() { return bytes; }
+    }
+
+    // File transfer state management
+    private class FileTransferState {
+        private File uploadFile;
+        private String downloadFilename;
+        private long fileSize = 0;
+        private long transferred = 0;
+        private long startTime = 0;
+        private StreamingFileWriter downloadWriter;
+        private StreamDigest downloadDigest;
+        private volatile boolean uploading;
+
+        public void startUpload(File file) {
+            this.uploadFile = file;
+            this.fileSize = file.length();
+            this.transferred = 0;
+            this.startTime = System.currentTimeMillis();
+            suspendDownload();
+        }
+
+        // The server accepted the upload and expects data from offset on
+        public void uploadStarted(long offset) {
+            this.transferred = offset;
+            this.uploading = true;
+        }
+
+        public void finishUpload() {
+            uploading = false;
+        }
+
+        // With a fingerprint the download is journaled and continues a matching partial file; the
+        // server must not resume beyond what is durable here
+        public void startDownload(File target, long fileSize, long offset, String fingerprint) throws IOException {
+            suspendDownload();
+            StreamingFileWriter writer = fingerprint == null
+                    ? new StreamingFileWriter(target.toPath(), DOWNLOAD_BUFFER_SIZE)
+                    : StreamingFileWriter.openResumable(target.toPath(), DOWNLOAD_BUFFER_SIZE, fingerprint, fileSize);
+            try {
+                if (offset > writer.getResumeOffset()) {
+                    throw new IOException("server resumed at byte " + offset + " but only "
+                            + writer.getResumeOffset() + " bytes are on disk");
+                }
+                writer.preallocate(fileSize);
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            }
+            this.downloadWriter = writer;
+            this.downloadDigest = checksums ? new StreamDigest(offset) : null;
+            this.downloadFilename = target.getName();
+            this.fileSize = fileSize;
+            this.transferred = offset;
+            this.startTime = System.currentTimeMillis();
+        }
+
+        public void addDownloadData(ByteBuffer data) throws IOException {
+            if (downloadWriter == null) {
+                throw new IOException("No download in progress");
+            }
+            if (downloadDigest != null) {
+                downloadDigest.update(transferred, data);
+            }
+            transferred += downloadWriter.write(transferred, data);
+        }
+
+        // SHA-256 of the data received, null without checksums
+        public String finishDownloadDigest() {
+            StreamDigest digest = downloadDigest;
+            downloadDigest = null;
+            return digest != null ? digest.finish() : null;
+        }
+
+        public void abortDownload() {
+            StreamingFileWriter writer = downloadWriter;
+            downloadWriter = null;
+            if (writer != null) {
+                try {
+                    writer.abort();
+                } catch (IOException e) {
+                    // Nothing left to keep
+                }
+            }
+        }
+
+        public File commitDownload() throws IOException {
+            StreamingFileWriter writer = downloadWriter;
+            downloadWriter = null;
+            if (writer == null) {
+                throw new IOException("No download in progress");
+            }
+            return writer.commit().toFile();
+        }
+
+        // Interrupted download: a journaled one keeps its partial file for the next attempt
+        public void suspendDownload() {
+            StreamingFileWriter writer = downloadWriter;
+            downloadWriter = null;
+            if (writer != null) {
+                try {
+                    writer.suspend();
+                } catch (IOException e) {
+                    // The journal still describes the last checkpoint
+                }
+            }
+        }
+
+        public void setTransferred(long transferred) {
+            this.transferred = transferred;
+        }
+
+        public boolean isDownloading() { return downloadWriter != null; }
+        public boolean isUploading() { return uploading; }
+        public File getUploadFile() { return uploadFile; }
+        public String getDownloadFilename() { return downloadFilename; }
+        public long getFileSize() { return fileSize; }
+        public long getTransferred() { return transferred; }
+        public long getStartTime() { return startTime; }
+    }
+
+    // Headless entry point, operations run in order:
+    //   --host <h> --port <n> --dir <path> --algorithm <name> --list --download <file> --upload <path>
+    // --parallel moves the downloads and uploads as range transfers over several connections,
+    // --concurrent starts them all at once over the one connection. --list goes through the server's
+    // files page by page, narrowed with --filter <prefix> and ordered with --sort name|size|-size.
+    public static void main(String[] args) throws Exception {
+        String host = DEFAULT_HOST;
+        int port = DEFAULT_PORT;
+        File directory = new File(DEFAULT_DOWNLOAD_DIR);
+        String algorithm = null;
+        boolean parallel = false;
+        boolean concurrent = false;
+        String filter = "";
+        String sort = "name";
+        List<String[]> operations = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host" -> host = FileTransferServerEngine.requireValue(args, ++i);
+                case "--port" -> port = Integer.parseInt(FileTransferServerEngine.requireValue(args, ++i));
+                case "--dir" -> directory = new File(FileTransferServerEngine.requireValue(args, ++i));
+                case "--algorithm" -> algorithm = FileTransferServerEngine.requireValue(args, ++i);
+                case "--parallel" -> parallel = true;
+                case "--concurrent" -> concurrent = true;
+                case "--filter" -> filter = FileTransferServerEngine.requireValue(args, ++i);
+                case "--sort" -> sort = FileTransferServerEngine.requireValue(args, ++i);
+                case "--list" -> operations.add(new String[] {"list", null});
+                case "--download" -> operations.add(new String[] {"download", FileTransferServerEngine.requireValue(args, ++i)});
+                case "--upload" -> operations.add(new String[] {"upload", FileTransferServerEngine.requireValue(args, ++i)});
+                default -> {
+                    System.err.println("Usage: FileTransferClientEngine [--host <h>] [--port <n>] [--dir <path>]"
+                            + " [--algorithm <name>] [--parallel] [--concurrent] [--list] [--filter <prefix>] [--sort name|size|-size] [--download <file>]... [--upload <path>]...");
+                    System.exit(2);
+                }
+            }
+        }
+        if (algorithm != null && !CongestionControllers.isAvailable(algorithm)) {
+            System.err.println("Unknown algorithm " + algorithm + ", available: "
+                    + String.join(",", CongestionControllers.ids()));
+            System.exit(2);
+        }
+
+        // Each operation finishes with exactly one outcome: empty on success, an error message otherwise
+        BlockingQueue<Optional<String>> outcomes = new LinkedBlockingQueue<>();
+        FileTransferClientEngine engine = new FileTransferClientEngine(directory);
+        String listFilter = filter;
+        String listSort = sort;
+        engine.addListener(new ClientEngineListener() {
+            @Override
+            public void onFileList(List<RemoteFile> files) {
+                for (RemoteFile file : files) {
+                    System.out.println(file.getName() + "\t" + file.getSize());
+                }
+                outcomes.offer(Optional.empty());
+            }
+
+            @Override
+            public void onFilePage(int offset, int total, List<RemoteFile> files) {
+                for (RemoteFile file : files) {
+                    System.out.println(file.getName() + "\t" + file.getSize());
+                }
+                int next = offset + files.size();
+                if (next < total && !files.isEmpty()) {
+                    engine.listFiles(next, LIST_PAGE_SIZE, listFilter, listSort);
+                } else {
+                    System.out.println(total + " files");
+                    outcomes.offer(Optional.empty());
+                }
+            }
+
+            @Override
+            public void onDownloadComplete(String filename, File savedFile) {
+                System.out.println("Downloaded " + filename + " to " + savedFile.getAbsolutePath());
+                outcomes.offer(Optional.empty());
+            }
+
+            @Override
+            public void onDeltaUploaded(String filename, long sentBytes, long savedBytes) {
+                System.out.println("Delta sync sent " + sentBytes + " bytes, saved " + savedBytes + " bytes");
+            }
+
+            @Override
+            public void onUploadComplete(String filename) {
+                System.out.println("Uploaded " + filename);
+                outcomes.offer(Optional.empty());
+            }
+
+            @Override
+            public void onTransferFailed(String message) {
+                outcomes.offer(Optional.of(message));
+            }
+
+            @Override
+            public void onError(String message) {
+                outcomes.offer(Optional.of("Error: " + message));
+            }
+
+            @Override
+            public void onDisconnected(String reason) {
+                outcomes.offer(Optional.of(reason != null ? reason : "Disconnected"));
+            }
+        });
+
+        engine.connect(host, port);
+        if (algorithm != null) {
+            engine.setAlgorithm(algorithm);
+        }
+
+        int exitCode = 0;
+        int running = 0;
+        for (String[] operation : operations) {
+            if (parallel && !operation[0].equals("list")) {
+                if (!runParallel(host, port, algorithm, directory, operation)) {
+                    exitCode = 1;
+                }
+                continue;
+            }
+            switch (operation[0]) {
+                case "list" -> engine.listFiles(0, LIST_PAGE_SIZE, filter, sort);
+                case "download" -> engine.download(operation[1]);
+                default -> {
+                    File file = new File(operation[1]);
+                    if (!file.isFile()) {
+                        System.err.println("Not a file: " + file);
+                        exitCode = 1;
+                        continue;
+                    }
+                    engine.upload(file);
+                }
+            }
+            running++;
+            if (concurrent && !operation[0].equals("list")) continue;
+            for (; running > 0; running--) {
+                Optional<String> failure = outcomes.take();
+                if (failure.isPresent()) {
+                    System.err.println(failure.get());
+                    exitCode = 1;
+                    if (!engine.isConnected()) break;
+                }
+            }
+            if (!engine.isConnected()) break;
+        }
+        for (; running > 0 && engine.isConnected(); running--) {
+            Optional<String> failure = outcomes.take();
+            if (failure.isPresent()) {
+                System.err.println(failure.get());
+                exitCode = 1;
+                if (!engine.isConnected()) break;
+            }
+        }
+
+        if (engine.getWriteCallsPerMB() > 0) {
+            System.out.println(String.format("Write calls: %.1f per MB sent", engine.getWriteCallsPerMB()));
+        }
+        SendQueue sendQueue = engine.getSendQueue();
+        if (sendQueue.getStalls() > 0) {
+            System.out.println("Send queue full " + sendQueue.getStalls() + " times, uploads waited "
+                    + sendQueue.getStallMillis() + " ms");
+        }
+        ChunkCompressor compressor = engine.getCompressor();
+        if (compressor != null && (compressor.getBytesIn() > 0 || compressor.getDecompressNanos() > 0)) {
+            System.out.println("Compression " + compressor.summary());
+        }
+        engine.disconnect();
+        System.exit(exitCode);
+    }
+
+    private static boolean runParallel(String host, int port, String algorithm, File directory, String[] operation)
+            throws InterruptedException {
+        ParallelTransfer transfer = new ParallelTransfer(host, port, algorithm);
+        try {
+            if (operation[0].equals("download")) {
+                File savedFile = transfer.download(operation[1], directory);
+                System.out.println("Downloaded " + operation[1] + " to " + savedFile.getAbsolutePath()
+                        + " (" + transfer.getSteals() + " ranges stolen)");
+            } else {
+                File file = new File(operation[1]);
+                if (!file.isFile()) {
+                    System.err.println("Not a file: " + file);
+                    return false;
+                }
+                transfer.upload(file);
+                System.out.println("Uploaded " + file.getName() + " (" + transfer.getSteals() + " ranges stolen)");
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+}
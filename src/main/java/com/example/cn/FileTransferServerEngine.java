@@ -0,0 +1,2461 @@
+package com.example.cn;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Headless file transfer server: an acceptor thread hands connections to worker selector loops.
+// UIs observe it through ServerEngineListener; it can also be run on its own from main().
+public class FileTransferServerEngine {
+    public static final int DEFAULT_PORT = 8080;
+    public static final String DEFAULT_UPLOAD_DIR = "uploads";
+    private static final int PACKET_SIZE = 1024;
+    // Serve downloads with FileChannel.transferTo from the selector thread (binary protocol only)
+    private static final boolean ZERO_COPY_DOWNLOADS =
+            Boolean.parseBoolean(System.getProperty("cn.server.zeroCopy", "true"));
+    private static final int ZERO_COPY_REGION_SIZE = 256 * 1024;
+    // Agree to compress data frames with a codec the client offers (-Dcn.server.compression)
+    private static final boolean COMPRESSION =
+            Boolean.parseBoolean(System.getProperty("cn.server.compression", "true"));
+    // Staging buffer per upload; uploads are streamed to disk instead of being held in memory
+    private static final int UPLOAD_BUFFER_SIZE = Integer.getInteger("cn.server.uploadBufferSize", 64 * 1024);
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Connections the kernel may hold for the acceptor; the JDK's default of 50 drops handshakes
+    // when many clients connect at once (-Dcn.server.acceptBacklog, capped by somaxconn)
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("cn.server.acceptBacklog", 4096);
+    // A connection nothing was read from for this long is closed
+    private static final long IDLE_TIMEOUT_MILLIS = 60000;
+    // Resolution and size of a worker loop's timing wheel: 1 ms ticks, about 2 s per turn
+    private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int TIMER_SLOTS = 2048;
+    // Receive window advertised in upload ACKs, and assumed for the client until its first ACK
+    private static final int RECEIVE_WINDOW = Integer.getInteger("cn.server.receiveWindow", 4 * 1024 * 1024);
+    private static final int INITIAL_PEER_WINDOW = 64 * 1024;
+    // Existing files at least this large are updated with a delta upload if the client supports it
+    private static final long DELTA_MIN_SIZE = Long.getLong("cn.server.deltaMinSize", 64 * 1024);
+    private static final int SIGNATURES_PER_FRAME = 64 * 1024 / DeltaSync.SIGNATURE_SIZE;
+    // Most entries one FILE_PAGE may carry, whatever the client asks for
+    private static final int LIST_PAGE_LIMIT = Integer.getInteger("cn.server.listPageLimit", 1000);
+    private static final BufferPool bufferPool = BufferPool.shared();
+    // Only one in this many per-chunk events is logged
+    private static final int CHUNK_LOG_SAMPLE_RATE = Integer.getInteger("cn.log.chunkSampleRate", 1000);
+    // Outcome of a turn of a zero-copy download on the write path
+    private static final int FRAME_IDLE = 0;
+    private static final int FRAME_SENT = 1;
+    private static final int FRAME_BLOCKED = 2;
+    // Transfer engines (-Dcn.server.transferEngine): "selector" serves downloads with zero-copy
+    // from the worker loops where it can and runs the other transfers on a cached pool of platform
+    // threads; "virtual" runs every transfer on a virtual thread of its own
+    public static final String ENGINE_SELECTOR = "selector";
+    public static final String ENGINE_VIRTUAL = "virtual";
+    // Bytes of data a session may queue ahead of the socket before its transfer threads park
+    // (-Dcn.server.sendQueueHigh), and the level the worker loop has to bring it down to before
+    // they go on (-Dcn.server.sendQueueLow)
+    private static final long SEND_QUEUE_HIGH = Long.getLong("cn.server.sendQueueHigh", 1024 * 1024);
+    private static final long SEND_QUEUE_LOW = Long.getLong("cn.server.sendQueueLow", 256 * 1024);
+
+    private final int port;
+    private int workerLoopCount =
+            Integer.getInteger("cn.server.workerLoops", Runtime.getRuntime().availableProcessors());
+    private volatile String transferEngine = System.getProperty("cn.server.transferEngine", ENGINE_SELECTOR);
+    private volatile File uploadDirectory;
+    // Index of uploadDirectory while the server runs
+    private volatile FileCatalog catalog;
+    private final HotFileCache hotFiles = HotFileCache.fromSystemProperties();
+
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private volatile WorkerLoop[] workerLoops;
+    private final AtomicInteger nextLoopIndex = new AtomicInteger();
+    private ExecutorService threadPool;
+    private final Map<SocketChannel, ClientSession> activeSessions = new ConcurrentHashMap<>();
+    // Parallel uploads: the sessions carrying ranges of one file share its writer
+    private final Map<File, RangeFileWriter> rangeUploads = new HashMap<>();
+    private final Map<RangeFileWriter, Integer> rangeUploadUsers = new HashMap<>();
+    // Last task queued for each upload's part file, see onUploadFile
+    private final Map<File, CompletableFuture<?>> uploadFileTasks = new HashMap<>();
+    private final List<ServerEngineListener> listeners = new CopyOnWriteArrayList<>();
+    private final AsyncLogger logger = new AsyncLogger();
+    private final AsyncLogger.Sampler uploadChunkSampler = AsyncLogger.sampler(CHUNK_LOG_SAMPLE_RATE);
+    private volatile boolean running = false;
+    private final AtomicInteger clientCounter = new AtomicInteger(0);
+
+    public FileTransferServerEngine(int port, File uploadDirectory) {
+        this.port = port;
+        this.uploadDirectory = ensureDirectory(uploadDirectory);
+        try {
+            RollingFileSink fileSink = RollingFileSink.fromSystemProperties();
+            if (fileSink != null) {
+                logger.addSink(fileSink);
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot open log file: " + e.getMessage());
+        }
+        bufferPool.setLogger(logger);
+    }
+
+    public void addListener(ServerEngineListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ServerEngineListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void setWorkerLoopCount(int workerLoopCount) {
+        this.workerLoopCount = workerLoopCount;
+    }
+
+    // ENGINE_SELECTOR or ENGINE_VIRTUAL, taking effect when the server starts
+    public void setTransferEngine(String transferEngine) {
+        if (!ENGINE_SELECTOR.equals(transferEngine) && !ENGINE_VIRTUAL.equals(transferEngine)) {
+            throw new IllegalArgumentException("Unknown transfer engine " + transferEngine);
+        }
+        this.transferEngine = transferEngine;
+    }
+
+    public String getTransferEngine() {
+        return transferEngine;
+    }
+
+    private boolean virtualTransfers() {
+        return ENGINE_VIRTUAL.equals(transferEngine);
+    }
+
+    public synchronized void setUploadDirectory(File directory) {
+        this.uploadDirectory = ensureDirectory(directory);
+        if (running) {
+            try {
+                openCatalog();
+            } catch (IOException e) {
+                logger.error("Cannot index " + directory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void openCatalog() throws IOException {
+        FileCatalog previous = catalog;
+        catalog = FileCatalog.open(uploadDirectory.toPath(), logger);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    // Blocking work on the part file and journal of an upload runs on the transfer pool, one task
+    // at a time per target file: a new upload of a file reads the journal only after the previous
+    // upload's suspend has written it
+    private <T> CompletableFuture<T> onUploadFile(File target, Callable<T> work) {
+        synchronized (uploadFileTasks) {
+            CompletableFuture<?> previous = uploadFileTasks.get(target);
+            CompletableFuture<?> after = previous != null
+                    ? previous.handle((result, e) -> null) : CompletableFuture.completedFuture(null);
+            CompletableFuture<T> task = after.thenApplyAsync(ignored -> {
+                try {
+                    return work.call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, threadPool);
+            uploadFileTasks.put(target, task);
+            task.whenComplete((result, e) -> {
+                synchronized (uploadFileTasks) {
+                    uploadFileTasks.remove(target, task);
+                }
+            });
+            return task;
+        }
+    }
+
+    // The exception a CompletableFuture stage failed with
+    private static Exception failureOf(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+    }
+
+    // Forces and closes the writer of an interrupted upload on the pool; a resumable one keeps its
+    // partial file for the next attempt
+    private void suspendUpload(StreamingFileWriter writer, String filename, long offset) {
+        onUploadFile(writer.getTarget().toFile(), () -> {
+            writer.suspend();
+            return null;
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                logger.error("Error saving partial upload: " + failureOf(e).getMessage());
+            } else if (writer.isResumable()) {
+                logger.info("Kept partial upload of " + filename + " at byte " + offset + " for resume");
+            }
+        });
+    }
+
+    // A transfer committed a file; the catalog sees it before the directory watcher reports it
+    private void fileCommitted(String filename) {
+        FileCatalog current = catalog;
+        if (current != null) {
+            current.refresh(filename);
+        }
+    }
+
+    static File ensureDirectory(File directory) {
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    public File getUploadDirectory() { return uploadDirectory; }
+    public FileCatalog getCatalog() { return catalog; }
+    public HotFileCache getHotFileCache() { return hotFiles; }
+    public int getPort() { return port; }
+    public boolean isRunning() { return running; }
+    public int getActiveSessionCount() { return activeSessions.size(); }
+    public Collection<ClientSession> getSessions() { return Collections.unmodifiableCollection(activeSessions.values()); }
+    public BufferPool getBufferPool() { return bufferPool; }
+    public AsyncLogger getLogger() { return logger; }
+
+    public synchronized void start() throws IOException {
+        if (running) return;
+
+        openCatalog();
+        threadPool = virtualTransfers() ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+        acceptSelector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+
+        // Configure socket options for real network performance
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        try {
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        } catch (IOException e) {
+            cleanup();
+            throw e;
+        }
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        startWorkerLoops();
+
+        Thread acceptorThread = new Thread(this::runAcceptor, "server-acceptor");
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+
+        logger.info("Server started on port " + port + " with " + workerLoops.length + " worker loops, "
+                + transferEngine + " transfer engine");
+        fire(l -> l.onServerStarted(port));
+    }
+
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+
+        // The loops own their sessions' queued buffers, so they have to be gone before the
+        // sessions are closed from this thread
+        WorkerLoop[] loops = workerLoops;
+        if (loops != null) {
+            for (WorkerLoop loop : loops) {
+                loop.awaitStopped();
+            }
+        }
+
+        // Close all client sessions
+        for (ClientSession session : activeSessions.values()) {
+            session.close();
+            fire(l -> l.onSessionClosed(session));
+        }
+        activeSessions.clear();
+
+        cleanup();
+
+        if (bufferPool.isDebug()) {
+            for (String leak : bufferPool.leakReport(0)) {
+                logger.warn("Buffer leak: " + leak);
+            }
+        }
+
+        if (hotFiles.isEnabled()) {
+            logger.info(hotFiles.describe());
+        }
+        logger.info("Worker loops: " + describeWorkerLoops());
+        logger.info("Server stopped");
+        fire(ServerEngineListener::onServerStopped);
+    }
+
+    // Acceptor loop: new connections are handed to the worker loops
+    private void runAcceptor() {
+        try {
+            while (running) {
+                int readyChannels = acceptSelector.select(100);
+
+                if (readyChannels > 0) {
+                    Iterator<SelectionKey> keyIterator = acceptSelector.selectedKeys().iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+
+                        try {
+                            if (key.isAcceptable()) {
+                                handleAccept();
+                            }
+                        } catch (IOException e) {
+                            logger.error("Error accepting client: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                logger.error("Server error", e);
+            }
+        } finally {
+            cleanup();
+        }
+    }
+
+    private void startWorkerLoops() throws IOException {
+        WorkerLoop[] loops = new WorkerLoop[Math.max(1, workerLoopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new WorkerLoop(i);
+        }
+        workerLoops = loops;
+        for (WorkerLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    // Picks the loop with the fewest sessions, rotating the starting point to break ties
+    private WorkerLoop nextWorkerLoop() {
+        WorkerLoop[] loops = workerLoops;
+        int start = Math.floorMod(nextLoopIndex.getAndIncrement(), loops.length);
+        WorkerLoop selected = loops[start];
+        for (int i = 1; i < loops.length; i++) {
+            WorkerLoop candidate = loops[(start + i) % loops.length];
+            if (candidate.getSessionCount() < selected.getSessionCount()) {
+                selected = candidate;
+            }
+        }
+        return selected;
+    }
+
+    private void handleAccept() throws IOException {
+        SocketChannel clientChannel = serverChannel.accept();
+        if (clientChannel != null) {
+            clientChannel.configureBlocking(false);
+
+            // Configure socket options for optimal performance
+            clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            clientChannel.setOption(StandardSocketOptions.SO_RCVBUF, 65536);
+            clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, 65536);
+
+            String clientAddress = clientChannel.getRemoteAddress().toString();
+            int clientNumber = clientCounter.incrementAndGet();
+            String clientId = "Client-" + clientNumber + " (" + clientAddress + ")";
+
+            WorkerLoop loop = nextWorkerLoop();
+            ClientSession session = new ClientSession(clientChannel, clientId, loop);
+            activeSessions.put(clientChannel, session);
+            loop.register(session);
+
+            fire(l -> l.onSessionOpened(session));
+            logger.info("New client connected: " + clientId + " on loop " + loop.getId());
+        }
+    }
+
+    private void handleRead(SelectionKey key) {
+        ClientSession session = (ClientSession) key.attachment();
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+
+        ByteBuffer buffer = bufferPool.acquire(READ_BUFFER_SIZE);
+        try {
+            int bytesRead = clientChannel.read(buffer);
+
+            if (bytesRead > 0) {
+                session.getLoop().recordRead(bytesRead);
+                buffer.flip();
+                session.handleIncomingData(buffer);
+                session.updateLastActivity();
+            } else if (bytesRead == -1) {
+                // Client disconnected
+                handleClientDisconnect(clientChannel, session);
+            }
+        } catch (IOException e) {
+            logger.error("Error reading from client " + session.getClientId() + ": " + e.getMessage());
+            handleClientDisconnect(clientChannel, session);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void handleWrite(SelectionKey key) {
+        ClientSession session = (ClientSession) key.attachment();
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+
+        try {
+            boolean hasMoreData = session.handleOutgoingData(clientChannel);
+            if (!hasMoreData && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            logger.error("Error writing to client " + session.getClientId() + ": " + e.getMessage());
+            handleClientDisconnect(clientChannel, session);
+        }
+    }
+
+    private void handleClientDisconnect(SocketChannel clientChannel, ClientSession session) {
+        cleanupClient(clientChannel.keyFor(session.getLoop().getSelector()));
+        logger.info("Client disconnected: " + session.getClientId());
+        SendQueue sendQueue = session.getSendQueue();
+        if (sendQueue.getStalls() > 0) {
+            logger.info("Send queue of " + session.getClientId() + " was full " + sendQueue.getStalls()
+                    + " times, transfers waited " + sendQueue.getStallMillis() + " ms");
+        }
+    }
+
+    private void cleanupClient(SelectionKey key) {
+        if (key != null) {
+            ClientSession session = (ClientSession) key.attachment();
+            SocketChannel clientChannel = (SocketChannel) key.channel();
+
+            try {
+                boolean removed = activeSessions.remove(clientChannel) != null;
+                if (removed && session != null) {
+                    session.getLoop().sessionClosed();
+                }
+                key.cancel();
+                clientChannel.close();
+
+                if (session != null) {
+                    session.close();
+                    if (removed) {
+                        fire(l -> l.onSessionClosed(session));
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Error cleaning up client: " + e.getMessage());
+            }
+        }
+    }
+
+    private void cleanup() {
+        try {
+            if (acceptSelector != null && acceptSelector.isOpen()) {
+                acceptSelector.close();
+            }
+            WorkerLoop[] loops = workerLoops;
+            if (loops != null) {
+                for (WorkerLoop loop : loops) {
+                    loop.wakeup();
+                }
+            }
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+            if (threadPool != null && !threadPool.isShutdown()) {
+                threadPool.shutdown();
+            }
+            FileCatalog current = catalog;
+            if (current != null) {
+                current.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error during cleanup: " + e.getMessage());
+        }
+    }
+
+    public String describeWorkerLoops() {
+        WorkerLoop[] loops = workerLoops;
+        if (loops == null) return "-";
+        StringBuilder text = new StringBuilder();
+        for (WorkerLoop loop : loops) {
+            if (text.length() > 0) text.append(" | ");
+            text.append("Loop ").append(loop.getId()).append(": ")
+                    .append(loop.getSessionCount()).append(" clients, ")
+                    .append(formatFileSize(loop.getBytesRead())).append(" in, ")
+                    .append(formatFileSize(loop.getBytesWritten())).append(" out (")
+                    .append(String.format("%.1f", loop.getWriteCallsPerMB())).append(" writes/MB), ")
+                    .append(loop.getReadEvents()).append("/").append(loop.getWriteEvents()).append(" r/w events");
+        }
+        return text.toString();
+    }
+
+    private void fire(Consumer<ServerEngineListener> event) {
+        for (ServerEngineListener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                logger.error("Listener failed", e);
+            }
+        }
+    }
+
+    // Pool thread, queued behind the other work on the target (see onUploadFile): no other session
+    // opens it meanwhile, so the part file and journal are read outside the lock the loops take too
+    private RangeFileWriter acquireRangeUpload(File target, String fingerprint, long size) throws IOException {
+        RangeFileWriter writer;
+        synchronized (rangeUploads) {
+            writer = rangeUploads.get(target);
+            if (writer != null) {
+                if (!writer.matches(fingerprint, size)) {
+                    throw new IOException("another version of " + target.getName() + " is being uploaded");
+                }
+                rangeUploadUsers.merge(writer, 1, Integer::sum);
+                return writer;
+            }
+        }
+        writer = RangeFileWriter.open(target.toPath(), fingerprint, size);
+        synchronized (rangeUploads) {
+            rangeUploads.put(target, writer);
+            rangeUploadUsers.merge(writer, 1, Integer::sum);
+        }
+        return writer;
+    }
+
+    // The last session to leave an unfinished upload suspends it, keeping what arrived for a resume
+    private void releaseRangeUpload(RangeFileWriter writer) {
+        synchronized (rangeUploads) {
+            Integer users = rangeUploadUsers.merge(writer, -1, Integer::sum);
+            if (users == null || users > 0) return;
+            rangeUploadUsers.remove(writer);
+            if (!rangeUploads.remove(writer.getTarget().toFile(), writer)) return;
+        }
+        onUploadFile(writer.getTarget().toFile(), () -> {
+            writer.suspend();
+            return null;
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                logger.error("Error saving partial upload: " + failureOf(e).getMessage());
+            } else {
+                logger.info("Kept partial parallel upload of " + writer.getTarget().getFileName() + " for resume");
+            }
+        });
+    }
+
+    // Pool thread: commits the file once every range is durable; true for exactly one caller. The
+    // forces to disk happen outside the lock, which the loops take too.
+    private boolean finishRangeUpload(RangeFileWriter writer) throws IOException {
+        if (!writer.isComplete()) return false;
+        synchronized (rangeUploads) {
+            if (!rangeUploads.remove(writer.getTarget().toFile(), writer)) return false;
+        }
+        writer.commit();
+        fileCommitted(writer.getTarget().getFileName().toString());
+        return true;
+    }
+
+    public static String formatFileSize(long size) {
+        if (size < 1024) return size + " bytes";
+        else if (size < 1024 * 1024) return String.format("%.2f KB", size / 1024.0);
+        else if (size < 1024 * 1024 * 1024) return String.format("%.2f MB", size / (1024.0 * 1024));
+        else return String.format("%.2f GB", size / (1024.0 * 1024 * 1024));
+    }
+
+    // Worker reactor: owns a selector and performs all I/O for the sessions assigned to it
+    private class WorkerLoop implements Runnable {
+        private final int id;
+        private final Selector selector;
+        private final Queue<ClientSession> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger sessionCount = new AtomicInteger();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+        // Write syscalls on the sockets, sendfile included
+        private final AtomicLong writeCalls = new AtomicLong();
+        private final AtomicLong readEvents = new AtomicLong();
+        private final AtomicLong writeEvents = new AtomicLong();
+        // Idle, ACK and pacing timers of the loop's sessions; select sleeps until the next is due
+        private final TimingWheel timers = new TimingWheel(TIMER_TICK_NANOS, TIMER_SLOTS, System.nanoTime());
+        // Tasks handed to the loop by other threads, timers among them
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+        private Thread thread;
+
+        public WorkerLoop(int id) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        public void start() {
+            thread = new Thread(this, "server-worker-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Wakes the loop and waits for it to exit; running must already be false
+        public void awaitStopped() {
+            selector.wakeup();
+            if (thread == null || thread == Thread.currentThread()) return;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void register(ClientSession session) {
+            sessionCount.incrementAndGet();
+            pendingRegistrations.offer(session);
+            selector.wakeup();
+        }
+
+        public void sessionClosed() {
+            sessionCount.decrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long timeout = timers.nanosUntilNextTimer(System.nanoTime());
+                    int readyChannels;
+                    if (timeout == Long.MAX_VALUE) {
+                        readyChannels = selector.select();
+                    } else if (timeout == 0) {
+                        readyChannels = selector.selectNow();
+                    } else {
+                        readyChannels = selector.select(TimeUnit.NANOSECONDS.toMillis(timeout + 999_999));
+                    }
+                    registerPendingSessions();
+
+                    if (readyChannels > 0) {
+                        Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                        while (keyIterator.hasNext()) {
+                            SelectionKey key = keyIterator.next();
+                            keyIterator.remove();
+
+                            try {
+                                if (!key.isValid()) continue;
+                                if (key.isReadable()) {
+                                    readEvents.incrementAndGet();
+                                    handleRead(key);
+                                }
+                                if (key.isValid() && key.isWritable()) {
+                                    writeEvents.incrementAndGet();
+                                    handleWrite(key);
+                                }
+                            } catch (CancelledKeyException e) {
+                                cleanupClient(key);
+                            } catch (RuntimeException e) {
+                                // A bug in handling one client must not take the loop's other clients down
+                                ClientSession session = (ClientSession) key.attachment();
+                                logger.error("Error handling client "
+                                        + (session != null ? session.getClientId() : "?") + ": " + e);
+                                cleanupClient(key);
+                            }
+                        }
+                    }
+
+                    Runnable task;
+                    while ((task = pendingTasks.poll()) != null) {
+                        task.run();
+                    }
+                    timers.advance(System.nanoTime());
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    logger.error("Worker loop " + id + " error: " + e.getMessage());
+                }
+            } finally {
+                closeSelector();
+            }
+        }
+
+        private void registerPendingSessions() {
+            ClientSession session;
+            while ((session = pendingRegistrations.poll()) != null) {
+                try {
+                    session.getChannel().register(selector, SelectionKey.OP_READ, session);
+                    ClientSession registered = session;
+                    schedule(session, TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS), () -> checkIdle(registered));
+                } catch (IOException e) {
+                    logger.error("Error registering client " + session.getClientId() + ": " + e.getMessage());
+                    closeSession(session);
+                }
+            }
+        }
+
+        // Closes one of the loop's sessions, whether it got registered with the selector or not
+        private void closeSession(ClientSession session) {
+            SelectionKey key = session.getChannel().keyFor(selector);
+            if (key != null) {
+                cleanupClient(key);
+                return;
+            }
+            if (activeSessions.remove(session.getChannel()) != null) {
+                sessionClosed();
+                fire(l -> l.onSessionClosed(session));
+            }
+            session.close();
+        }
+
+        // A task or timer of a session; like its key handlers, a bug in it closes that session and
+        // leaves the loop and its other sessions running
+        private Runnable guarded(ClientSession session, Runnable task) {
+            return () -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Error handling client " + session.getClientId() + ": " + e);
+                    closeSession(session);
+                }
+            };
+        }
+
+        // Closes the session if nothing was read from it for IDLE_TIMEOUT_MILLIS, or checks again
+        // when that would be the case. Activity only updates a timestamp, the timer is not moved.
+        private void checkIdle(ClientSession session) {
+            if (!session.isActive()) return;
+            long idleMillis = System.currentTimeMillis() - session.getLastActivity();
+            if (idleMillis >= IDLE_TIMEOUT_MILLIS) {
+                logger.info("Closing idle connection: " + session.getClientId());
+                cleanupClient(session.getChannel().keyFor(selector));
+            } else {
+                schedule(session, TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS - idleMillis),
+                        () -> checkIdle(session));
+            }
+        }
+
+        // Runs the session's task on this loop's thread once delayNanos have passed; callable from
+        // any thread
+        public void schedule(ClientSession session, long delayNanos, Runnable task) {
+            Runnable timer = guarded(session, task);
+            if (Thread.currentThread() == thread) {
+                timers.schedule(delayNanos, timer, System.nanoTime());
+                return;
+            }
+            long deadline = System.nanoTime() + delayNanos;
+            pendingTasks.offer(() -> timers.schedule(deadline - System.nanoTime(), timer, System.nanoTime()));
+            selector.wakeup();
+        }
+
+        // Runs the session's task on this loop's thread as soon as it gets to it; callable from any
+        // thread
+        public void execute(ClientSession session, Runnable task) {
+            pendingTasks.offer(guarded(session, task));
+            selector.wakeup();
+        }
+
+        public void recordRead(int bytes) {
+            bytesRead.addAndGet(bytes);
+        }
+
+        public void recordWrite(long bytes) {
+            bytesWritten.addAndGet(bytes);
+        }
+
+        public void recordWriteCalls(long calls) {
+            writeCalls.addAndGet(calls);
+        }
+
+        public void wakeup() {
+            selector.wakeup();
+        }
+
+        public void closeSelector() {
+            try {
+                if (selector.isOpen()) {
+                    selector.close();
+                }
+            } catch (IOException e) {
+                logger.error("Error closing worker loop " + id + ": " + e.getMessage());
+            }
+        }
+
+        public int getId() { return id; }
+        public Selector getSelector() { return selector; }
+        public int getSessionCount() { return sessionCount.get(); }
+        public long getBytesRead() { return bytesRead.get(); }
+        public long getBytesWritten() { return bytesWritten.get(); }
+        public long getWriteCalls() { return writeCalls.get(); }
+
+        public double getWriteCallsPerMB() {
+            long bytes = bytesWritten.get();
+            return bytes == 0 ? 0 : writeCalls.get() / (bytes / (1024.0 * 1024));
+        }
+        public long getReadEvents() { return readEvents.get(); }
+        public long getWriteEvents() { return writeEvents.get(); }
+    }
+
+    // Per-connection protocol state. Every transfer runs on a Stream of its own; a client that
+    // negotiated MUX can have several of them going at once over the connection.
+    public class ClientSession {
+        private final SocketChannel channel;
+        private final String clientId;
+        private final WorkerLoop loop;
+        // Congestion control belongs to the connection; the streams only have their own windows
+        private final FlowController tcpController = new FlowController(CongestionControllers.DEFAULT_ID);
+        // Session replies and ACKs, written ahead of the transfers' data
+        private final Queue<ByteBuffer> controlQueue = new ConcurrentLinkedQueue<>();
+        // Transfer data; its transfer threads park while it is over the high watermark
+        private final SendQueue writeQueue = new SendQueue(SEND_QUEUE_HIGH, SEND_QUEUE_LOW);
+        // Queued buffers go out in gathering writes; a batch or zero-copy frame the socket took only
+        // part of is finished before anything else
+        private final GatheringWriter gatheringWriter = new GatheringWriter(bufferPool);
+        private Stream pendingStream;
+        private AtomicLong lastActivity = new AtomicLong(System.currentTimeMillis());
+        private final ProtocolDecoder decoder = new ProtocolDecoder();
+        private volatile boolean binaryProtocol = false;
+        // The client acknowledges FILE_DATA frames and expects ACKs for UPLOAD_DATA frames
+        private volatile boolean peerAcks = false;
+        // Data frames carry CRC32C checksums and transfers end with a SHA-256 comparison
+        private volatile boolean checksums = false;
+        // Codec agreed on in HELLO, null to send raw
+        private volatile ChunkCompressor compressor;
+        // The client can send DeltaSync deltas
+        private volatile boolean deltaSync = false;
+        private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+        private volatile SlidingWindow downloadWindow;
+        // Writers of the parallel uploads this session has carried ranges of, released on close
+        private final Map<File, RangeFileWriter> rangeWriters = new HashMap<>();
+        // File listing the client is paging through, dropped with its last page; loop thread only
+        private FileCatalog.Listing listing;
+        private volatile boolean active = true;
+
+        ClientSession(SocketChannel channel, String clientId, WorkerLoop loop) {
+            this.channel = channel;
+            this.clientId = clientId;
+            this.loop = loop;
+        }
+
+        public void updateLastActivity() {
+            lastActivity.set(System.currentTimeMillis());
+        }
+
+        public long getLastActivity() {
+            return lastActivity.get();
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        public String getTcpAlgorithm() {
+            return tcpController.getAlgorithm();
+        }
+
+        public FlowController getTcpController() {
+            return tcpController;
+        }
+
+        // Compression of this connection and its totals, null if none was negotiated
+        public ChunkCompressor getCompressor() {
+            return compressor;
+        }
+
+        // Window of the latest download, null before the first one
+        public SlidingWindow getDownloadWindow() {
+            return downloadWindow;
+        }
+
+        // Data waiting for the socket, and how long the transfers were held back by it
+        public SendQueue getSendQueue() {
+            return writeQueue;
+        }
+
+        public int getStreamCount() {
+            return streams.size();
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        SocketChannel getChannel() {
+            return channel;
+        }
+
+        WorkerLoop getLoop() {
+            return loop;
+        }
+
+        void handleIncomingData(ByteBuffer buffer) throws IOException {
+            if (!active) return;
+
+            // Text commands and binary data frames are parsed incrementally from the read buffer
+            decoder.decode(buffer, new ProtocolDecoder.Handler() {
+                @Override
+                public void onMessage(String message) {
+                    processClientMessage(message);
+                }
+
+                @Override
+                public void onFrame(byte type, int flags, int streamId, long offset, ByteBuffer payload) {
+                    processClientFrame(type, flags, streamId, offset, payload);
+                }
+
+                @Override
+                public void onCorruptFrame(byte type, int streamId, long offset, int length) {
+                    Stream stream = streams.get(streamId);
+                    if (stream != null) {
+                        stream.handleCorruptFrame(type, offset, length);
+                    }
+                }
+            });
+
+            // One cumulative ACK per read and stream, however many upload frames it carried
+            for (Stream stream : streams.values()) {
+                stream.flushUploadAck();
+            }
+        }
+
+        // Control messages first, then a batch of queued data, then zero-copy frames, in turns. A
+        // batch or frame is always finished before the next one starts, so nothing is interleaved
+        // into it.
+        boolean handleOutgoingData(SocketChannel channel) throws IOException {
+            if (!active) return false;
+
+            if (gatheringWriter.hasPending() && !flush(channel)) return true;
+            if (pendingStream != null) {
+                Stream stream = pendingStream;
+                pendingStream = null;
+                if (stream.zeroCopyDownload != null && stream.writeZeroCopyFrames(channel, 0) == FRAME_BLOCKED) {
+                    pendingStream = stream;
+                    return true;
+                }
+            }
+
+            boolean progress = true;
+            while (progress) {
+                // A batch may not take all queued control messages; the next turn sends the rest
+                progress = gatheringWriter.fill(controlQueue) > 0;
+                // Taking data below the low watermark wakes the parked transfer threads
+                if (gatheringWriter.fill(writeQueue) > 0) {
+                    progress = true;
+                }
+                if (gatheringWriter.hasPending() && !flush(channel)) return true;
+                for (Stream stream : streams.values()) {
+                    if (stream.zeroCopyDownload == null) continue;
+                    int result = stream.writeZeroCopyFrames(channel, 1);
+                    if (result == FRAME_BLOCKED) {
+                        pendingStream = stream;
+                        return true;
+                    }
+                    progress |= result == FRAME_SENT;
+                }
+            }
+            return false;
+        }
+
+        // Returns false if the socket took only part of the batch
+        private boolean flush(SocketChannel channel) throws IOException {
+            long bytesWritten = gatheringWriter.flush(channel);
+            loop.recordWriteCalls(1);
+            if (bytesWritten > 0) {
+                loop.recordWrite(bytesWritten);
+                tcpController.onDataSent((int) bytesWritten, System.currentTimeMillis());
+            }
+            return !gatheringWriter.hasPending();
+        }
+
+        // Progress over every transfer of the session
+        private void reportProgress() {
+            long moved = 0;
+            long total = 0;
+            double speedKBs = 0;
+            long now = System.currentTimeMillis();
+            for (Stream stream : streams.values()) {
+                FileTransferState state = stream.transferState;
+                long rangeStart = state.getRangeStart();
+                moved += state.getTransferred() - rangeStart;
+                total += state.getFileSize() - rangeStart;
+                long elapsed = now - state.getStartTime();
+                // Bytes skipped by a resume do not count towards the speed
+                long sentBytes = state.getTransferred() - state.getStartOffset();
+                speedKBs += elapsed > 0 ? (sentBytes / 1024.0) / (elapsed / 1000.0) : 0;
+            }
+            double progress = total > 0 ? (double) moved / total : 1.0;
+            double speed = speedKBs;
+            fire(l -> l.onTransferProgress(this, progress, speed));
+        }
+
+        // The connection's congestion window less what the other streams have in flight
+        private double congestionWindowFor(Stream stream) {
+            double window = tcpController.getCongestionWindow();
+            for (Stream other : streams.values()) {
+                SlidingWindow otherWindow = other.window;
+                if (other != stream && otherWindow != null) {
+                    window -= otherWindow.getSegmentsInFlight();
+                }
+            }
+            return window;
+        }
+
+        public void setTcpAlgorithm(String algorithm) {
+            if (!CongestionControllers.isAvailable(algorithm)) {
+                logger.warn("Client " + clientId + " requested unknown algorithm " + algorithm);
+                sendMessage("ERROR:Unknown algorithm " + algorithm + ", available: "
+                        + String.join(",", CongestionControllers.ids()));
+                return;
+            }
+            tcpController.setAlgorithm(algorithm);
+            fire(l -> l.onAlgorithmChanged(this, algorithm));
+            logger.info("Client " + clientId + " switched to " + algorithm);
+        }
+
+        private void releaseQueuedBuffers() {
+            ByteBuffer buffer;
+            while ((buffer = controlQueue.poll()) != null) {
+                bufferPool.release(buffer);
+            }
+            // Emptying the send queue also wakes its parked transfer threads
+            while ((buffer = writeQueue.poll()) != null) {
+                bufferPool.release(buffer);
+            }
+        }
+
+        void close() {
+            active = false;
+            for (Stream stream : streams.values()) {
+                stream.close();
+            }
+            for (RangeFileWriter writer : rangeWriters.values()) {
+                releaseRangeUpload(writer);
+            }
+            rangeWriters.clear();
+            releaseQueuedBuffers();
+            gatheringWriter.clear();
+            ChunkCompressor chunkCompressor = compressor;
+            if (chunkCompressor != null) {
+                chunkCompressor.close();
+            }
+            try {
+                if (channel != null && channel.isOpen()) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                logger.error("Error closing client channel: " + e.getMessage());
+            }
+        }
+
+        private void processClientMessage(String message) {
+            String[] parts = message.split(":", 2);
+            if (parts.length < 1) return;
+
+            String command = BinaryProtocol.untag(parts[0].trim());
+            int streamId = BinaryProtocol.streamOf(parts[0].trim());
+            String data = parts.length > 1 ? parts[1].trim() : "";
+
+            if (command.equals("UPLOAD_DATA")) {
+                // One line per chunk: sample it and leave the payload out
+                logger.log(AsyncLogger.Level.TRACE, uploadChunkSampler, "Received from " + clientId
+                        + ": UPLOAD_DATA (" + data.length() + " chars, sampled 1/" + CHUNK_LOG_SAMPLE_RATE + ")");
+            } else if (command.equals("RESEND")) {
+                logger.warn("Received from " + clientId + ": " + message);
+            } else {
+                logger.info("Received from " + clientId + ": " + message);
+            }
+            if (streamId < 0) {
+                sendMessage("ERROR:Invalid stream in " + parts[0].trim());
+                return;
+            }
+
+            Stream stream;
+            switch (command) {
+                case BinaryProtocol.HELLO:
+                    handleHello(data);
+                    break;
+                case "LIST_FILES":
+                    if (data.isEmpty()) {
+                        sendFileList();
+                    } else {
+                        sendFilePage(data);
+                    }
+                    break;
+                case "DOWNLOAD":
+                    if ((stream = openStream(streamId)) != null) {
+                        stream.handleDownloadRequest(data);
+                    }
+                    break;
+                case "UPLOAD":
+                    if ((stream = openStream(streamId)) != null) {
+                        stream.handleUploadRequest(data);
+                    }
+                    break;
+                case "UPLOAD_DATA":
+                    if ((stream = streams.get(streamId)) != null) {
+                        stream.handleUploadData(data);
+                    } else {
+                        sendMessage(BinaryProtocol.tag("ERROR:Failed to process upload data", streamId));
+                    }
+                    break;
+                case "FILE_INFO":
+                    sendFileInfo(data);
+                    break;
+                case "DOWNLOAD_RANGE":
+                    if ((stream = openStream(streamId)) != null) {
+                        stream.handleDownloadRangeRequest(data);
+                    }
+                    break;
+                case "UPLOAD_RANGE":
+                    if ((stream = openStream(streamId)) != null) {
+                        stream.handleUploadRangeRequest(data);
+                    }
+                    break;
+                case "DELTA_COMPLETE":
+                    if ((stream = streams.get(streamId)) != null) {
+                        stream.handleDeltaComplete(data);
+                    } else {
+                        sendMessage(BinaryProtocol.tag("ERROR:No delta upload in progress", streamId));
+                    }
+                    break;
+                case "UPLOAD_DIGEST":
+                    if ((stream = streams.get(streamId)) != null) {
+                        stream.handleUploadDigest(data);
+                    }
+                    break;
+                case "RESEND":
+                    if ((stream = streams.get(streamId)) != null) {
+                        stream.handleResend(data);
+                    }
+                    break;
+                case "ALGORITHM":
+                    setTcpAlgorithm(data);
+                    break;
+                case "PING":
+                    // Echo the client timestamp so it can measure the round trip
+                    sendMessage("PONG:" + data);
+                    break;
+                default:
+                    logger.warn("Unknown command from " + clientId + ": " + command);
+            }
+        }
+
+        // A transfer request opens its stream; a stream is only reused once its transfer is over
+        private Stream openStream(int streamId) {
+            Stream stream = new Stream(streamId);
+            if (streams.putIfAbsent(streamId, stream) != null) {
+                sendMessage(BinaryProtocol.tag("ERROR:Transfer already in progress", streamId));
+                return null;
+            }
+            return stream;
+        }
+
+        private void processClientFrame(byte type, int flags, int streamId, long offset, ByteBuffer payload) {
+            Stream stream = streams.get(streamId);
+            if (stream == null) {
+                // Late ACKs and frames of a transfer that has already ended
+                if (type != BinaryProtocol.TYPE_ACK) {
+                    logger.debug("Dropped frame for closed stream " + streamId + " from " + clientId);
+                }
+                return;
+            }
+            if ((flags & BinaryProtocol.FLAG_COMPRESSED) != 0) {
+                ChunkCompressor chunkCompressor = compressor;
+                try {
+                    if (chunkCompressor == null) {
+                        throw new IOException("compression was not negotiated");
+                    }
+                    // A chunk of at most CHUNK_SIZE inflates in about 100 us. On the pool it would need
+                    // a copy of the frame and a way back into order before the file write here.
+                    payload = chunkCompressor.decode(payload);
+                } catch (IOException e) {
+                    logger.error("Error decompressing frame from " + clientId + ": " + e.getMessage());
+                    stream.fail("Failed to process upload data");
+                    return;
+                }
+            }
+            stream.processFrame(type, offset, payload);
+        }
+
+        private void handleHello(String version) {
+            if (BinaryProtocol.isSupportedVersion(version)) {
+                Set<String> features = BinaryProtocol.parseFeatures(version);
+                String codec = COMPRESSION ? BinaryProtocol.codecs(features).stream()
+                        .filter(CompressionCodecs::isAvailable).findFirst().orElse(null) : null;
+                features.retainAll(Set.of(BinaryProtocol.FEATURE_ACK, BinaryProtocol.FEATURE_DELTA,
+                        BinaryProtocol.FEATURE_CRC, BinaryProtocol.FEATURE_MUX));
+                // Resending needs the ACKs to know when nothing can be asked for any more
+                if (!features.contains(BinaryProtocol.FEATURE_ACK)) {
+                    features.remove(BinaryProtocol.FEATURE_CRC);
+                }
+                if (codec != null) {
+                    features.add(BinaryProtocol.FEATURE_CODEC_PREFIX + codec);
+                }
+                ChunkCompressor previous = compressor;
+                if (previous != null) {
+                    previous.close();
+                }
+                compressor = codec != null ? new ChunkCompressor(codec) : null;
+                sendMessage(BinaryProtocol.HELLO_ACK + ":" + BinaryProtocol.versionWithFeatures(features));
+                binaryProtocol = true;
+                peerAcks = features.contains(BinaryProtocol.FEATURE_ACK);
+                deltaSync = features.contains(BinaryProtocol.FEATURE_DELTA);
+                checksums = features.contains(BinaryProtocol.FEATURE_CRC);
+                logger.info("Client " + clientId + " negotiated binary protocol v" + BinaryProtocol.VERSION
+                        + (features.isEmpty() ? "" : " with " + String.join(",", features)));
+            } else {
+                logger.warn("Client " + clientId + " requested unsupported protocol " + version + ", using text");
+            }
+        }
+
+        // Whole catalog in one line, for clients that do not page
+        private void sendFileList() {
+            StringBuilder response = new StringBuilder("FILE_LIST:");
+            FileCatalog.Listing listing = catalog.list("", 0, Long.MAX_VALUE, FileCatalog.Sort.NAME);
+            for (FileCatalog.Entry entry : listing.page(0, listing.size()).getEntries()) {
+                response.append(entry.getName())
+                        .append(" (").append(formatFileSize(entry.getSize())).append(")")
+                        .append(";");
+            }
+            sendMessage(response.toString());
+            logger.debug("Sent file list to " + clientId);
+        }
+
+        // LIST_FILES:<offset>;<limit>[;<prefix>[;<sort>[;<minSize>[;<maxSize>]]]], sort is name, size
+        // or -size. Answered with FILE_PAGE:<offset>;<total>[;<name>/<size>]..., the names escaped with
+        // BinaryProtocol.escapeName - a name cannot contain '/', so the size is what follows the last
+        // one. The pages after the first come from the listing taken for it.
+        private void sendFilePage(String data) {
+            String[] parts = data.split(";", -1);
+            FileCatalog.Page page;
+            try {
+                int offset = Math.max(0, Integer.parseInt(parts[0]));
+                int limit = parts.length > 1 ? Math.max(1, Math.min(LIST_PAGE_LIMIT, Integer.parseInt(parts[1])))
+                        : LIST_PAGE_LIMIT;
+                String prefix = parts.length > 2 ? parts[2] : "";
+                FileCatalog.Sort sort = parts.length > 3 ? FileCatalog.Sort.parse(parts[3]) : FileCatalog.Sort.NAME;
+                long minSize = parts.length > 4 && !parts[4].isEmpty() ? Long.parseLong(parts[4]) : 0;
+                long maxSize = parts.length > 5 && !parts[5].isEmpty() ? Long.parseLong(parts[5]) : Long.MAX_VALUE;
+                if (listing == null || offset == 0 || !listing.isOf(prefix, minSize, maxSize, sort)) {
+                    listing = catalog.list(prefix, minSize, maxSize, sort);
+                }
+                page = listing.page(offset, limit);
+                if (offset + page.getEntries().size() >= page.getTotal()) {
+                    listing = null;
+                }
+            } catch (NumberFormatException e) {
+                sendMessage("ERROR:Invalid file list request " + data);
+                return;
+            }
+            StringBuilder response = new StringBuilder("FILE_PAGE:")
+                    .append(page.getOffset()).append(';').append(page.getTotal());
+            for (FileCatalog.Entry entry : page.getEntries()) {
+                response.append(';').append(BinaryProtocol.escapeName(entry.getName())).append('/')
+                        .append(entry.getSize());
+            }
+            sendMessage(response.toString());
+            logger.debug("Sent " + page.getEntries().size() + " of " + page.getTotal() + " files to " + clientId);
+        }
+
+        // FILE_INFO:<name> - exact size and fingerprint, which a parallel transfer needs up front
+        private void sendFileInfo(String filename) {
+            File file = new File(uploadDirectory, filename);
+            if (!file.isFile()) {
+                sendMessage("ERROR:File not found: " + filename);
+                return;
+            }
+            prepareOffLoop(() -> FileFingerprint.of(file.toPath()),
+                    fingerprint -> sendMessage("FILE_INFO:" + BinaryProtocol.escapeName(filename) + ";"
+                            + file.length() + ";" + fingerprint),
+                    e -> {
+                        logger.error("Error reading " + filename + ": " + e.getMessage());
+                        sendMessage("ERROR:Cannot read " + filename);
+                    });
+        }
+
+        // A fingerprint reads and hashes 128 KB of the file and the hot file cache may map it, so
+        // requests prepare their file on the transfer pool and continue on the loop thread with the
+        // result, or with the error; neither runs once the session has closed
+        private <T> void prepareOffLoop(Callable<T> work, Consumer<T> then, Consumer<Exception> failed) {
+            threadPool.execute(() -> {
+                try {
+                    T result = work.call();
+                    loop.execute(this, () -> {
+                        if (active) then.accept(result);
+                    });
+                } catch (Exception e) {
+                    loop.execute(this, () -> {
+                        if (active) failed.accept(e);
+                    });
+                }
+            });
+        }
+
+        // The same for work on the part file and journal of an upload, which is queued behind the
+        // other work on that file (see onUploadFile)
+        private <T> void prepareOffLoop(File uploadTarget, Callable<T> work, Consumer<T> then,
+                                        Consumer<Exception> failed) {
+            onUploadFile(uploadTarget, work).whenComplete((result, e) -> loop.execute(this, () -> {
+                if (!active) return;
+                if (e == null) {
+                    then.accept(result);
+                } else {
+                    failed.accept(failureOf(e));
+                }
+            }));
+        }
+
+        // Pool thread: the version of the file a download sends, which counts as a request of it
+        // for the hot file cache
+        private DownloadSource downloadSource(File file) throws IOException {
+            String fingerprint = FileFingerprint.of(file.toPath());
+            return new DownloadSource(fingerprint, hotFiles.get(file.toPath(), fingerprint, file.length()));
+        }
+
+        // Transfer threads: waits until the pacing rate allows the next segment
+        private void pace() {
+            long delay = tcpController.getPacingDelayNanos(System.nanoTime());
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+        }
+
+        // Session replies go out ahead of queued transfer data
+        private void sendMessage(String message) {
+            if (!active) return;
+
+            byte[] data = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            enqueue(controlQueue, bufferPool.wrap(data));
+        }
+
+        private void enqueue(ByteBuffer buffer) {
+            enqueue(writeQueue, buffer);
+        }
+
+        // A text protocol line that belongs to a transfer's data, queued with it
+        private void sendData(String message) {
+            if (!active) return;
+
+            enqueue(bufferPool.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private void enqueue(Queue<ByteBuffer> queue, ByteBuffer buffer) {
+            if (!active) {
+                bufferPool.release(buffer);
+                return;
+            }
+
+            queue.offer(buffer);
+            if (!active) {
+                // Closed concurrently; close() may already have drained the queue
+                releaseQueuedBuffers();
+                return;
+            }
+            requestWrite();
+        }
+
+        private void requestWrite() {
+            try {
+                SelectionKey key = channel.keyFor(loop.getSelector());
+                if (key != null && key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    loop.wakeup();
+                }
+            } catch (Exception e) {
+                logger.error("Error sending message: " + e.getMessage());
+            }
+        }
+
+        // One transfer of the session: its state, sliding window and messages, which carry the
+        // stream id. The stream is removed once the transfer has ended.
+        private final class Stream {
+            private final int id;
+            private final FileTransferState transferState = new FileTransferState();
+            private volatile boolean open = true;
+            // Window of this stream's download, null for an upload
+            private volatile SlidingWindow window;
+            // Offset the client asked to get again (RESEND) for the threaded download, -1 if none
+            private final AtomicLong downloadResend = new AtomicLong(-1);
+            private FileRegionSender zeroCopyDownload;
+            private String zeroCopyCompleteMessage;
+            // A pacing timer is pending for the zero-copy download
+            private boolean pacingTimerArmed;
+            private boolean uploadAckPending;
+            // Range of a parallel upload this stream is receiving: frames go to rangeWriter at rangeNext
+            private RangeFileWriter rangeWriter;
+            private String rangeFilename;
+            private long rangeStart;
+            private long rangeNext;
+            private long rangeEnd;
+            // Rebuilds the delta upload in progress
+            private volatile DeltaSync.Rebuilder deltaUpload;
+            private volatile String deltaFingerprint;
+            // A delta frame failed its checksum: the rest is only acknowledged and the whole file requested
+            private volatile boolean deltaCorrupt;
+
+            Stream(int id) {
+                this.id = id;
+            }
+
+            private void processFrame(byte type, long offset, ByteBuffer payload) {
+                switch (type) {
+                    case BinaryProtocol.TYPE_UPLOAD_DATA:
+                        if (rangeNext < rangeEnd) {
+                            handleRangeUploadFrame(offset, payload);
+                        } else {
+                            handleUploadFrame(offset, payload);
+                        }
+                        break;
+                    case BinaryProtocol.TYPE_ACK:
+                        handleDownloadAck(offset, payload);
+                        break;
+                    case BinaryProtocol.TYPE_DELTA_DATA:
+                    case BinaryProtocol.TYPE_DELTA_COPY:
+                        handleDeltaFrame(type, offset, payload);
+                        break;
+                    default:
+                        logger.warn("Unknown frame type from " + clientId + ": " + type);
+                }
+            }
+
+            // A data frame failed its CRC32C. For an upload everything from the expected offset is
+            // asked for again; the frames already on their way behind it are dropped when they arrive.
+            private void handleCorruptFrame(byte type, long offset, int length) {
+                switch (type) {
+                    case BinaryProtocol.TYPE_UPLOAD_DATA:
+                        long expected = rangeNext < rangeEnd ? rangeNext : transferState.getTransferred();
+                        if (offset == expected) {
+                            logger.warn("Corrupted upload frame from " + clientId + " at offset " + offset
+                                    + ", requesting it again");
+                            ClientSession.this.sendMessage(BinaryProtocol.tag("RESEND:" + offset, id));
+                        }
+                        break;
+                    case BinaryProtocol.TYPE_DELTA_DATA:
+                    case BinaryProtocol.TYPE_DELTA_COPY:
+                        if (deltaUpload != null && !deltaCorrupt) {
+                            deltaCorrupt = true;
+                            logger.warn("Corrupted delta frame from " + clientId + " at offset " + offset
+                                    + ", the whole file will be requested");
+                        }
+                        if (type == BinaryProtocol.TYPE_DELTA_DATA) {
+                            acknowledgeSkippedDelta(offset + length);
+                        }
+                        break;
+                    default:
+                        logger.warn("Corrupted frame of type " + type + " from " + clientId + " dropped");
+                }
+            }
+
+            private void flushUploadAck() {
+                if (uploadAckPending) {
+                    uploadAckPending = false;
+                    enqueue(controlQueue, BinaryProtocol.encodeAck(bufferPool, id, transferState.getTransferred(),
+                            RECEIVE_WINDOW));
+                }
+            }
+
+            // DOWNLOAD:<name>[;<offset>;<fingerprint>] - a resume continues at offset if the file still
+            // has the fingerprint the client saw; DOWNLOAD_START tells the offset actually used
+            private void handleDownloadRequest(String data) {
+                String[] parts = data.split(";");
+                String filename = parts[0];
+                File file = new File(uploadDirectory, filename);
+                if (!file.exists()) {
+                    fail("File not found: " + filename);
+                    return;
+                }
+
+                prepareOffLoop(() -> downloadSource(file), source -> {
+                    if (open) startFullDownload(file, source, parts);
+                }, e -> {
+                    logger.error("Error preparing download of " + filename + ": " + e.getMessage());
+                    fail("Transfer failed");
+                });
+            }
+
+            // Loop thread, once the fingerprint is known: a resume continues at the requested offset if
+            // the client saw the same version of the file
+            private void startFullDownload(File file, DownloadSource source, String[] parts) {
+                String filename = file.getName();
+                String fingerprint = source.fingerprint;
+                long offset = 0;
+                if (parts.length >= 3) {
+                    long requested;
+                    try {
+                        requested = Long.parseLong(parts[1]);
+                    } catch (NumberFormatException e) {
+                        fail("Invalid offset " + parts[1] + " of " + filename);
+                        return;
+                    }
+                    if (parts[2].equals(fingerprint) && requested >= 0 && requested <= file.length()) {
+                        offset = requested;
+                        logger.info("Resuming download of " + filename + " for " + clientId + " at byte " + offset);
+                    } else {
+                        logger.info(filename + " changed since " + clientId + " started it, downloading from the start");
+                    }
+                }
+
+                transferState.startDownload(file, offset);
+                fire(l -> l.onTransferStarted(ClientSession.this, filename, false));
+
+                startDownload(file, source.cached, offset, file.length(),
+                        "DOWNLOAD_START:" + filename + ";" + file.length() + ";" + offset + ";" + fingerprint,
+                        "DOWNLOAD_COMPLETE:" + filename);
+            }
+
+            // DOWNLOAD_RANGE:<name>;<start>;<end>;<fingerprint> - one range of a parallel download, sent
+            // as FILE_DATA frames at their file offsets and closed by RANGE_COMPLETE:<name>;<start>;<end>
+            private void handleDownloadRangeRequest(String data) {
+                String[] parts = data.split(";");
+                if (parts.length < 4 || !binaryProtocol) {
+                    fail("Range transfers need the binary protocol");
+                    return;
+                }
+                String filename = parts[0];
+                File file = new File(uploadDirectory, filename);
+                if (!file.isFile()) {
+                    fail("File not found: " + filename);
+                    return;
+                }
+
+                long start;
+                long end;
+                try {
+                    start = Long.parseLong(parts[1]);
+                    end = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    fail("Invalid range " + parts[1] + "-" + parts[2] + " of " + filename);
+                    return;
+                }
+                prepareOffLoop(() -> downloadSource(file), source -> {
+                    if (!open) return;
+                    if (!parts[3].equals(source.fingerprint)) {
+                        fail("File changed: " + filename);
+                    } else if (start < 0 || start > end || end > file.length()) {
+                        fail("Invalid range " + start + "-" + end + " of " + filename);
+                    } else {
+                        transferState.startRange(filename, start, end, false);
+                        fire(l -> l.onTransferStarted(ClientSession.this, filename, false));
+                        startDownload(file, source.cached, start, end, null,
+                                "RANGE_COMPLETE:" + filename + ";" + start + ";" + end);
+                    }
+                }, e -> {
+                    logger.error("Error preparing range of " + filename + ": " + e.getMessage());
+                    fail("Transfer failed");
+                });
+            }
+
+            // Streams [offset, end) of the file; startMessage (may be null) precedes the data and
+            // completeMessage follows it. A popular file is sent from the hot file cache (cached, else null).
+            private void startDownload(File file, ByteBuffer cached, long offset, long end, String startMessage,
+                                       String completeMessage) {
+                // Compressed frames need the bytes in memory, so they are sent from the pool's threads
+                if (ZERO_COPY_DOWNLOADS && binaryProtocol && compressor == null && !virtualTransfers()) {
+                    startZeroCopyDownload(file, cached, offset, end, startMessage, completeMessage);
+                } else {
+                    // Start file transfer in separate thread
+                    threadPool.submit(() -> performFileDownload(file, cached, offset, end, startMessage, completeMessage));
+                }
+            }
+
+            // cached: the file's content from the hot file cache, or null to send it from the file
+            private void startZeroCopyDownload(File file, ByteBuffer cached, long startOffset, long end,
+                                               String startMessage, String completeMessage) {
+                try {
+                    FileRegionSender sender = cached != null
+                            ? new FileRegionSender(cached, BinaryProtocol.TYPE_FILE_DATA, id, startOffset, end,
+                                    ZERO_COPY_REGION_SIZE)
+                            : new FileRegionSender(FileChannel.open(file.toPath(), StandardOpenOption.READ),
+                                    BinaryProtocol.TYPE_FILE_DATA, id, startOffset, end, ZERO_COPY_REGION_SIZE);
+                    if (startMessage != null) {
+                        sendMessage(startMessage);
+                    }
+                    SlidingWindow window = new SlidingWindow(startOffset, INITIAL_PEER_WINDOW, peerAcks);
+                    if (checksums) {
+                        sender.enableChecksums(bufferPool);
+                    }
+                    sender.setFrameGate((offset, length) -> {
+                        long now = System.nanoTime();
+                        if (!window.canSend(congestionWindowFor(this), length)
+                                || tcpController.getPacingDelayNanos(now) > 0) {
+                            return false;
+                        }
+                        window.onSent(offset, length, now);
+                        if (window.isAckClocked()) {
+                            tcpController.onSegmentSent(length, now);
+                        }
+                        return true;
+                    });
+                    this.window = window;
+                    downloadWindow = window;
+                    zeroCopyCompleteMessage = completeMessage;
+                    zeroCopyDownload = sender;
+                    loop.schedule(ClientSession.this, TimeUnit.MILLISECONDS.toNanos(window.getRtoMillis()),
+                            () -> checkAckTimeout(sender));
+                    requestWrite();
+                    logger.debug("Serving " + file.getName() + " [" + startOffset + ", " + end + ") to " + clientId
+                            + (cached != null ? " from the hot file cache" : " with zero-copy transfer"));
+                } catch (IOException e) {
+                    logger.error("Error opening file for transfer: " + e.getMessage());
+                    fail("Transfer failed");
+                }
+            }
+
+            // Selector thread: writes the rest of the frame in progress and up to maxFrames more.
+            // FRAME_BLOCKED means the socket filled up in the middle of a frame.
+            private int writeZeroCopyFrames(SocketChannel channel, int maxFrames) throws IOException {
+                FileRegionSender sender = zeroCopyDownload;
+                long writeCalls = sender.getWriteCalls();
+                long bytesWritten = sender.writeTo(channel, maxFrames);
+                loop.recordWriteCalls(sender.getWriteCalls() - writeCalls);
+
+                if (bytesWritten > 0) {
+                    loop.recordWrite(bytesWritten);
+                    tcpController.onDataSent((int) Math.min(Integer.MAX_VALUE, bytesWritten), System.currentTimeMillis());
+                    transferState.transferred = sender.getPosition();
+                    reportProgress();
+                }
+
+                if (sender.isMidFrame()) return FRAME_BLOCKED;
+                if (!sender.isComplete()) {
+                    // Held back by the sliding window or the pacing rate: resumed by an ACK or a timer
+                    if (sender.isGated()) {
+                        schedulePacing(sender);
+                    }
+                    return bytesWritten > 0 && !sender.isGated() ? FRAME_SENT : FRAME_IDLE;
+                }
+                // With checksums a frame may be asked for again until all of them are acknowledged
+                SlidingWindow window = this.window;
+                if (checksums && window.getAcked() < window.getSent()) {
+                    return FRAME_IDLE;
+                }
+
+                close();
+                String digest = sender.finishDigest();
+                sendMessage(digest != null ? zeroCopyCompleteMessage + ";" + digest : zeroCopyCompleteMessage);
+                fire(l -> l.onTransferFinished(ClientSession.this, "Transfer completed"));
+                return FRAME_SENT;
+            }
+
+            private void handleDownloadAck(long ackOffset, ByteBuffer payload) {
+                SlidingWindow window = this.window;
+                if (window == null || payload.remaining() < BinaryProtocol.ACK_PAYLOAD_SIZE) return;
+
+                int advertisedWindow = payload.getInt(payload.position());
+                long now = System.nanoTime();
+                SlidingWindow.Ack ack = window.onAck(ackOffset, advertisedWindow, now);
+                tcpController.setReceiveWindow(advertisedWindow);
+                tcpController.onAck(ack, now);
+                if (zeroCopyDownload != null) {
+                    requestWrite();
+                }
+            }
+
+            // RESEND:<offset> - the client got a corrupted FILE_DATA frame; everything from offset is sent again
+            private void handleResend(String data) {
+                SlidingWindow window = this.window;
+                long offset;
+                try {
+                    offset = Long.parseLong(data);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                if (window == null || !checksums) return;
+                FileRegionSender sender = zeroCopyDownload;
+                if (sender != null) {
+                    sender.rewind(offset);
+                    tcpController.onSegmentsDiscarded(window.rewind(offset), System.nanoTime());
+                    requestWrite();
+                } else {
+                    downloadResend.set(offset);
+                }
+            }
+
+            // Loop thread: a stalled zero-copy download gets its window shrunk and is restarted. The
+            // timer follows the window's retransmission timer until the download ends.
+            private void checkAckTimeout(FileRegionSender sender) {
+                SlidingWindow window = this.window;
+                if (zeroCopyDownload != sender || window == null) return;
+                long now = System.nanoTime();
+                if (window.checkTimeout(now)) {
+                    tcpController.onTimeout();
+                    logger.debug("ACK timeout for " + clientId + ", window reduced to "
+                            + tcpController.getCongestionWindow());
+                    requestWrite();
+                }
+                long delay = window.nanosUntilTimeout(now);
+                loop.schedule(ClientSession.this,
+                        delay != Long.MAX_VALUE ? delay : TimeUnit.MILLISECONDS.toNanos(window.getRtoMillis()),
+                        () -> checkAckTimeout(sender));
+            }
+
+            // Loop thread: a download held back by the pacing rate is resumed once its next frame is
+            // due. One held back by the window needs no timer, the next ACK resumes it.
+            private void schedulePacing(FileRegionSender sender) {
+                if (pacingTimerArmed) return;
+                long delay = tcpController.getPacingDelayNanos(System.nanoTime());
+                if (delay == 0) return;
+                pacingTimerArmed = true;
+                loop.schedule(ClientSession.this, delay, () -> {
+                    pacingTimerArmed = false;
+                    if (zeroCopyDownload == sender) {
+                        requestWrite();
+                    }
+                });
+            }
+
+            private void closeZeroCopyDownload() {
+                FileRegionSender sender = zeroCopyDownload;
+                zeroCopyDownload = null;
+                if (sender != null) {
+                    if (sender.isFromCache()) {
+                        hotFiles.recordServed(sender.getPayloadTransferred());
+                    }
+                    try {
+                        sender.close();
+                    } catch (IOException e) {
+                        logger.error("Error closing download file: " + e.getMessage());
+                    }
+                }
+            }
+
+            // UPLOAD:<name>;<size>[;<fingerprint>] - with a fingerprint the partial file is kept across
+            // disconnects and UPLOAD_READY:<name>;<offset> tells the client where to continue. A new
+            // version of an existing file is answered with DELTA_READY instead if the client can do
+            // delta uploads and there is no partial upload to resume.
+            private void handleUploadRequest(String data) {
+                String[] parts = data.split(";");
+                if (parts.length < 2) {
+                    fail("Invalid upload request");
+                    return;
+                }
+
+                String filename = parts[0];
+                long fileSize;
+                try {
+                    fileSize = Long.parseLong(parts[1]);
+                } catch (NumberFormatException e) {
+                    fail("Invalid size of " + filename + ": " + parts[1]);
+                    return;
+                }
+                if (fileSize < 0) {
+                    fail("Invalid size of " + filename + ": " + fileSize);
+                    return;
+                }
+                String fingerprint = parts.length >= 3 ? parts[2] : null;
+
+                File target = new File(uploadDirectory, filename);
+                boolean deltaCandidate = deltaSync && fingerprint != null && fileSize > 0 && target.isFile()
+                        && target.length() >= DELTA_MIN_SIZE;
+                openUpload(target, fileSize, fingerprint, deltaCandidate);
+            }
+
+            // The journal is read and the part file opened on the pool; no writer means a delta upload.
+            // The continuation runs even if the stream closed meanwhile, to suspend the writer again.
+            private void openUpload(File target, long fileSize, String fingerprint, boolean deltaCandidate) {
+                String filename = target.getName();
+                onUploadFile(target, () -> deltaCandidate && !hasResumableUpload(target, fileSize, fingerprint)
+                        ? null : openUploadWriter(target, fileSize, fingerprint))
+                        .whenComplete((writer, e) -> loop.execute(ClientSession.this, () -> {
+                            if (e != null) {
+                                logger.error("Error preparing upload of " + filename + ": "
+                                        + failureOf(e).getMessage());
+                                if (open) fail("Failed to prepare upload");
+                            } else if (!open) {
+                                if (writer != null) suspendUpload(writer, filename, writer.getResumeOffset());
+                            } else if (writer == null) {
+                                startDeltaUpload(target, fileSize, fingerprint);
+                            } else {
+                                startFullUpload(filename, fileSize, writer);
+                            }
+                        }));
+            }
+
+            // Pool thread
+            private boolean hasResumableUpload(File target, long fileSize, String fingerprint) {
+                TransferJournal journal = TransferJournal.load(StreamingFileWriter.partFileFor(target.toPath()));
+                return journal != null && journal.matches(fingerprint, fileSize) && journal.getDurableOffset() > 0;
+            }
+
+            // Pool thread: with a fingerprint the writer continues a matching partial upload
+            private StreamingFileWriter openUploadWriter(File target, long fileSize, String fingerprint)
+                    throws IOException {
+                return fingerprint == null
+                        ? new StreamingFileWriter(target.toPath(), UPLOAD_BUFFER_SIZE)
+                        : StreamingFileWriter.openResumable(target.toPath(), UPLOAD_BUFFER_SIZE, fingerprint, fileSize);
+            }
+
+            private void startFullUpload(String filename, long fileSize, StreamingFileWriter writer) {
+                long offset = transferState.startUpload(writer, fileSize, checksums);
+                if (offset > 0) {
+                    logger.info("Resuming upload of " + filename + " from " + clientId + " at byte " + offset);
+                }
+                fire(l -> l.onTransferStarted(ClientSession.this, filename, true));
+
+                sendMessage("UPLOAD_READY:" + filename + ";" + offset);
+                if (transferState.isUploadComplete()) {
+                    saveUploadedFile();
+                }
+            }
+
+            // DELTA_READY:<name>;<blockSize>;<blockCount>;<basisSize> followed by SIGNATURES frames for
+            // the current version; the client answers with DELTA_DATA/DELTA_COPY frames and DELTA_COMPLETE
+            private void startDeltaUpload(File target, long fileSize, String fingerprint) {
+                String filename = target.getName();
+                prepareOffLoop(() -> DeltaBasis.of(target), basis -> {
+                    if (open) startDeltaRebuild(target, fileSize, fingerprint, basis);
+                }, e -> {
+                    logger.error("Error preparing delta upload of " + filename + ": " + e.getMessage());
+                    fail("Failed to prepare upload");
+                });
+            }
+
+            // Loop thread, once the signatures are computed: the rebuilder belongs to the stream from
+            // here on, so close() cleans it up. Only the signature frames are queued from the pool,
+            // where they may wait for space in the write queue.
+            private void startDeltaRebuild(File target, long fileSize, String fingerprint, DeltaBasis basis) {
+                String filename = target.getName();
+                try {
+                    deltaUpload = new DeltaSync.Rebuilder(target.toPath(), basis.blockSize, fileSize, UPLOAD_BUFFER_SIZE);
+                } catch (IOException e) {
+                    logger.error("Error preparing delta upload of " + filename + ": " + e.getMessage());
+                    fail("Failed to prepare upload");
+                    return;
+                }
+                deltaFingerprint = fingerprint;
+                deltaCorrupt = false;
+                transferState.startRange(filename, 0, fileSize, true);
+                fire(l -> l.onTransferStarted(ClientSession.this, filename, true));
+
+                int count = basis.signatures.length / DeltaSync.SIGNATURE_SIZE;
+                sendMessage("DELTA_READY:" + filename + ";" + basis.blockSize + ";" + count + ";" + basis.size);
+                threadPool.execute(() -> {
+                    for (int block = 0; block < count && open; block += SIGNATURES_PER_FRAME) {
+                        int blocks = Math.min(SIGNATURES_PER_FRAME, count - block);
+                        enqueue(BinaryProtocol.encodeFrame(bufferPool, BinaryProtocol.TYPE_SIGNATURES, id, block,
+                                basis.signatures, block * DeltaSync.SIGNATURE_SIZE, blocks * DeltaSync.SIGNATURE_SIZE));
+                        writeQueue.awaitSpace();
+                    }
+                });
+                logger.info("Delta upload of " + filename + " from " + clientId + ": sending " + count
+                        + " block signatures of " + formatFileSize(basis.blockSize));
+            }
+
+            private void handleDeltaFrame(byte type, long offset, ByteBuffer payload) {
+                DeltaSync.Rebuilder rebuilder = deltaUpload;
+                if (rebuilder == null) {
+                    fail("No delta upload in progress");
+                    return;
+                }
+                if (deltaCorrupt) {
+                    if (type == BinaryProtocol.TYPE_DELTA_DATA) {
+                        acknowledgeSkippedDelta(offset + payload.remaining());
+                    }
+                    return;
+                }
+                try {
+                    if (type == BinaryProtocol.TYPE_DELTA_DATA) {
+                        rebuilder.literal(offset, payload);
+                    } else if (payload.remaining() >= BinaryProtocol.DELTA_COPY_PAYLOAD_SIZE) {
+                        rebuilder.copy(offset, payload.getInt(), payload.getInt());
+                    } else {
+                        throw new IOException("Malformed copy at offset " + offset);
+                    }
+                } catch (IOException e) {
+                    logger.error("Error applying delta from " + clientId + ": " + e.getMessage());
+                    fail("Failed to process upload data");
+                    return;
+                }
+                transferState.transferred = rebuilder.getPosition();
+                uploadAckPending = peerAcks;
+                reportProgress();
+            }
+
+            // Keeps the client's literal frames acknowledged while the rest of a corrupted delta is ignored
+            private void acknowledgeSkippedDelta(long end) {
+                if (end > transferState.getTransferred()) {
+                    transferState.transferred = end;
+                    uploadAckPending = peerAcks;
+                }
+            }
+
+            // DELTA_COMPLETE:<name>;<sha256> - a rebuilt file that does not match is replaced by a full upload
+            private void handleDeltaComplete(String data) {
+                String[] parts = data.split(";");
+                DeltaSync.Rebuilder rebuilder = deltaUpload;
+                deltaUpload = null;
+                if (rebuilder == null || parts.length < 2) {
+                    fail("No delta upload in progress");
+                    return;
+                }
+                String filename = parts[0];
+                String expectedSha256 = parts[1];
+                boolean corrupt = deltaCorrupt;
+                // The rebuilt file is verified, forced and moved into place on the pool
+                prepareOffLoop(new File(uploadDirectory, filename), () -> {
+                    if (corrupt) {
+                        rebuilder.close();
+                        return false;
+                    }
+                    boolean accepted = rebuilder.finish(expectedSha256);
+                    if (accepted) {
+                        fileCommitted(filename);
+                    }
+                    return accepted;
+                }, accepted -> {
+                    if (!open) return;
+                    if (accepted) {
+                        long saved = rebuilder.getSize() - rebuilder.getLiteralBytes();
+                        close();
+                        fire(l -> l.onTransferFinished(ClientSession.this, "Delta upload completed, "
+                                + formatFileSize(saved) + " saved"));
+                        sendMessage("UPLOAD_COMPLETE:" + filename);
+                        logger.info("File updated by " + clientId + " with a delta: " + filename + " ("
+                                + formatFileSize(rebuilder.getLiteralBytes()) + " of " + formatFileSize(rebuilder.getSize())
+                                + " sent)");
+                        return;
+                    }
+                    logger.warn("Delta upload of " + filename + " from " + clientId + " did not verify, requesting the whole file");
+                    openUpload(new File(uploadDirectory, filename), rebuilder.getSize(), deltaFingerprint, false);
+                }, e -> {
+                    logger.error("Error saving uploaded file: " + e.getMessage());
+                    fail("Failed to save file");
+                });
+            }
+
+            private void closeDeltaUpload() {
+                DeltaSync.Rebuilder rebuilder = deltaUpload;
+                deltaUpload = null;
+                if (rebuilder != null) {
+                    try {
+                        rebuilder.close();
+                    } catch (IOException e) {
+                        logger.error("Error discarding delta upload: " + e.getMessage());
+                    }
+                }
+            }
+
+            // UPLOAD_RANGE:<name>;<size>;<fingerprint>;<start>;<end> - one range of a parallel upload.
+            // Ranges already durable from an earlier attempt are confirmed right away; otherwise
+            // RANGE_READY asks for the data and RANGE_COMPLETE confirms it. The stream that completes
+            // the last range commits the file and sends UPLOAD_COMPLETE.
+            private void handleUploadRangeRequest(String data) {
+                String[] parts = data.split(";");
+                if (parts.length < 5 || !binaryProtocol) {
+                    fail("Range transfers need the binary protocol");
+                    return;
+                }
+                String filename = parts[0];
+                String fingerprint = parts[2];
+                File target = new File(uploadDirectory, filename);
+                long fileSize;
+                long start;
+                long end;
+                try {
+                    fileSize = Long.parseLong(parts[1]);
+                    start = Long.parseLong(parts[3]);
+                    end = Long.parseLong(parts[4]);
+                } catch (NumberFormatException e) {
+                    logger.error("Error preparing upload of " + filename + ": " + e.getMessage());
+                    fail("Failed to prepare upload");
+                    return;
+                }
+                if (start < 0 || start > end || end > fileSize) {
+                    fail("Invalid range " + start + "-" + end + " of " + filename);
+                    return;
+                }
+                RangeFileWriter writer = rangeWriters.get(target);
+                if (writer != null) {
+                    startUploadRange(filename, writer, start, end);
+                    return;
+                }
+                // The first range of the file in this session opens its part file and journal on the pool
+                onUploadFile(target, () -> acquireRangeUpload(target, fingerprint, fileSize))
+                        .whenComplete((acquired, e) -> loop.execute(ClientSession.this, () -> {
+                            if (e != null) {
+                                logger.error("Error preparing upload of " + filename + ": "
+                                        + failureOf(e).getMessage());
+                                if (open) fail("Failed to prepare upload");
+                                return;
+                            }
+                            if (!active) {
+                                releaseRangeUpload(acquired);
+                                return;
+                            }
+                            // Another stream of the session may have acquired it meanwhile; the
+                            // session holds one use of it
+                            RangeFileWriter held = rangeWriters.putIfAbsent(target, acquired);
+                            if (held != null) {
+                                releaseRangeUpload(acquired);
+                            }
+                            if (open) startUploadRange(filename, held != null ? held : acquired, start, end);
+                        }));
+            }
+
+            private void startUploadRange(String filename, RangeFileWriter writer, long start, long end) {
+                rangeWriter = writer;
+                rangeFilename = filename;
+                rangeStart = start;
+                rangeNext = start;
+                rangeEnd = end;
+                if (start == end || rangeWriter.isConfirmed(start, end)) {
+                    completeUploadRange();
+                    return;
+                }
+                transferState.startRange(filename, start, end, true);
+                fire(l -> l.onTransferStarted(ClientSession.this, filename, true));
+                sendMessage("RANGE_READY:" + filename + ";" + start + ";" + end);
+            }
+
+            private void handleRangeUploadFrame(long offset, ByteBuffer payload) {
+                int length = payload.remaining();
+                if (offset != rangeNext || offset + length > rangeEnd) {
+                    // Frames sent before a RESEND reached the client
+                    if (checksums && offset > rangeNext) return;
+                    logger.warn("Out of order range data from " + clientId + " at offset " + offset);
+                    fail("Unexpected upload offset " + offset);
+                    return;
+                }
+                try {
+                    rangeWriter.write(offset, payload);
+                } catch (IOException e) {
+                    logger.error("Error processing upload data: " + e.getMessage());
+                    fail("Failed to process upload data");
+                    return;
+                }
+                rangeNext += length;
+                transferState.transferred = rangeNext;
+                reportProgress();
+                if (rangeNext < rangeEnd) {
+                    uploadAckPending = peerAcks;
+                    return;
+                }
+                // Final ACK first, so it cannot be mistaken for one of the client's next range
+                if (peerAcks) {
+                    uploadAckPending = false;
+                    enqueue(controlQueue, BinaryProtocol.encodeAck(bufferPool, id, rangeNext, RECEIVE_WINDOW));
+                }
+                completeUploadRange();
+            }
+
+            private void completeUploadRange() {
+                String filename = rangeFilename;
+                long start = rangeStart;
+                long end = rangeEnd;
+                rangeNext = 0;
+                rangeEnd = 0;
+                close();
+                sendMessage("RANGE_COMPLETE:" + filename + ";" + start + ";" + end);
+                RangeFileWriter writer = rangeWriter;
+                prepareOffLoop(writer.getTarget().toFile(), () -> finishRangeUpload(writer), finished -> {
+                    if (!finished) return;
+                    fire(l -> l.onTransferFinished(ClientSession.this, "Upload completed"));
+                    sendMessage("UPLOAD_COMPLETE:" + filename);
+                    logger.info("File uploaded in parallel ranges, last by " + clientId + ": " + filename);
+                }, e -> {
+                    logger.error("Error saving uploaded file: " + e.getMessage());
+                    sendMessage("ERROR:Failed to save file");
+                });
+            }
+
+            private void handleUploadData(String data) {
+                try {
+                    byte[] fileData = Base64.getDecoder().decode(data);
+                    acceptUploadData(ByteBuffer.wrap(fileData));
+                } catch (Exception e) {
+                    logger.error("Error processing upload data: " + e.getMessage());
+                    fail("Failed to process upload data");
+                }
+            }
+
+            private void handleUploadFrame(long offset, ByteBuffer payload) {
+                logger.log(AsyncLogger.Level.TRACE, uploadChunkSampler, "Upload frame from " + clientId + " at offset "
+                        + offset + " (" + payload.remaining() + " bytes, sampled 1/" + CHUNK_LOG_SAMPLE_RATE + ")");
+                if (offset != transferState.getTransferred()) {
+                    // Frames sent before a RESEND reached the client
+                    if (checksums && offset > transferState.getTransferred()) return;
+                    logger.warn("Out of order upload data from " + clientId + " at offset " + offset);
+                    fail("Unexpected upload offset " + offset);
+                    return;
+                }
+                try {
+                    acceptUploadData(payload);
+                    uploadAckPending = peerAcks;
+                } catch (IOException e) {
+                    logger.error("Error processing upload data: " + e.getMessage());
+                    fail("Failed to process upload data");
+                }
+            }
+
+            private void acceptUploadData(ByteBuffer data) throws IOException {
+                transferState.addUploadData(data);
+                reportProgress();
+
+                // With checksums the file is committed once the client's digest matches
+                if (transferState.isUploadComplete() && !transferState.hasUploadDigest()) {
+                    saveUploadedFile();
+                }
+            }
+
+            // UPLOAD_DIGEST:<name>;<sha256> - the client's SHA-256 of the data it sent
+            private void handleUploadDigest(String data) {
+                String[] parts = data.split(";");
+                if (parts.length < 2 || !transferState.isUploadComplete() || !transferState.hasUploadDigest()) return;
+
+                String digest = transferState.finishUploadDigest();
+                if (digest.equals(parts[1])) {
+                    saveUploadedFile();
+                    return;
+                }
+                logger.error("Upload of " + parts[0] + " from " + clientId + " failed verification: SHA-256 "
+                        + digest + ", client sent " + parts[1]);
+                transferState.abortUpload();
+                fire(l -> l.onTransferFinished(ClientSession.this, "Upload failed verification"));
+                fail("Upload of " + parts[0] + " failed verification");
+            }
+
+            // The file is forced to disk and moved into place on the pool; the stream is closed once
+            // that is done
+            private void saveUploadedFile() {
+                String filename = transferState.getFilename();
+                StreamingFileWriter writer = transferState.takeUploadWriter();
+                if (writer == null) {
+                    fail("Failed to save file");
+                    return;
+                }
+                prepareOffLoop(writer.getTarget().toFile(), () -> {
+                    writer.commit();
+                    fileCommitted(filename);
+                    return null;
+                }, committed -> {
+                    close();
+                    fire(l -> l.onTransferFinished(ClientSession.this, "Upload completed"));
+                    sendMessage("UPLOAD_COMPLETE:" + filename);
+                    logger.info("File uploaded by " + clientId + ": " + filename);
+                    ChunkCompressor chunkCompressor = compressor;
+                    if (chunkCompressor != null) {
+                        logger.info("Compression for " + clientId + " " + chunkCompressor.summary());
+                    }
+                }, e -> {
+                    logger.error("Error saving uploaded file: " + e.getMessage());
+                    fail("Failed to save file");
+                });
+            }
+
+            // cached: the file's content from the hot file cache, which replaces reading the file
+            private void performFileDownload(File file, ByteBuffer cached, long offset, long end, String startMessage,
+                                             String completeMessage) {
+                try (FileInputStream fis = cached == null ? new FileInputStream(file) : null) {
+                    if (startMessage != null) {
+                        sendMessage(startMessage);
+                    }
+                    if (fis != null) {
+                        fis.getChannel().position(offset);
+                    }
+
+                    ChunkCompressor chunkCompressor = binaryProtocol ? compressor : null;
+                    byte[] buffer = new byte[chunkCompressor != null ? ChunkCompressor.CHUNK_SIZE : PACKET_SIZE];
+                    int bytesRead;
+                    long transferredBytes = offset;
+                    SlidingWindow window = new SlidingWindow(offset, INITIAL_PEER_WINDOW, binaryProtocol && peerAcks);
+                    StreamDigest digest = binaryProtocol && checksums ? new StreamDigest(offset) : null;
+                    downloadResend.set(-1);
+                    this.window = window;
+                    downloadWindow = window;
+
+                    while (active && open) {
+                        long resend = downloadResend.getAndSet(-1);
+                        if (resend >= offset && resend < transferredBytes) {
+                            tcpController.onSegmentsDiscarded(window.rewind(resend), System.nanoTime());
+                            if (fis != null) {
+                                fis.getChannel().position(resend);
+                            }
+                            transferredBytes = resend;
+                        }
+                        if (transferredBytes >= end) {
+                            // With checksums a frame may be asked for again until all of them are acknowledged
+                            if (digest == null || window.awaitAcked(end, 20)) break;
+                            continue;
+                        }
+                        bytesRead = (int) Math.min(buffer.length, end - transferredBytes);
+                        if (cached != null) {
+                            cached.get((int) transferredBytes, buffer, 0, bytesRead);
+                            hotFiles.recordServed(bytesRead);
+                        } else {
+                            bytesRead = fis.read(buffer, 0, bytesRead);
+                        }
+                        if (bytesRead == -1) break;
+                        if (digest != null) {
+                            digest.update(transferredBytes, buffer, 0, bytesRead);
+                        }
+
+                        // ACK-clocked flow control: wait for the sliding window to open
+                        while (active && !window.awaitSendable(congestionWindowFor(this), bytesRead, 20)) {
+                            if (window.checkTimeout(System.nanoTime())) {
+                                tcpController.onTimeout();
+                            }
+                        }
+
+                        if (!active) break;
+                        pace();
+
+                        if (binaryProtocol) {
+                            // Send file data as a binary frame
+                            long now = System.nanoTime();
+                            window.onSent(transferredBytes, bytesRead, now);
+                            if (window.isAckClocked()) {
+                                tcpController.onSegmentSent(bytesRead, now);
+                            }
+                            enqueue(chunkCompressor != null
+                                    ? chunkCompressor.encodeFrame(bufferPool, BinaryProtocol.TYPE_FILE_DATA, id,
+                                            transferredBytes, buffer, 0, bytesRead, digest != null)
+                                    : BinaryProtocol.encodeFrame(bufferPool, BinaryProtocol.TYPE_FILE_DATA, id,
+                                            transferredBytes, buffer, 0, bytesRead, digest != null));
+                        } else {
+                            // Send file data as base64 encoded message, bounded like the frames
+                            byte[] packet = Arrays.copyOf(buffer, bytesRead);
+                            String encodedData = Base64.getEncoder().encodeToString(packet);
+                            sendData("FILE_DATA:" + encodedData);
+                        }
+
+                        transferredBytes += bytesRead;
+                        transferState.transferred = transferredBytes;
+                        reportProgress();
+
+                        // Backpressure: wait for the worker loop to catch up with the socket
+                        writeQueue.awaitSpace();
+                    }
+                    if (!open) return;
+
+                    close();
+                    if (binaryProtocol) {
+                        sendMessage(digest != null ? completeMessage + ";" + digest.finish() : completeMessage);
+                    } else {
+                        // Behind the FILE_DATA lines, which it must not overtake
+                        sendData(completeMessage);
+                    }
+                    fire(l -> l.onTransferFinished(ClientSession.this, "Transfer completed"));
+                    if (chunkCompressor != null) {
+                        logger.info("Compression for " + clientId + " " + chunkCompressor.summary());
+                    }
+
+                } catch (Exception e) {
+                    logger.error("Error during file transfer: " + e.getMessage());
+                    fire(l -> l.onTransferFinished(ClientSession.this, "Transfer failed"));
+                    fail("Transfer failed");
+                }
+            }
+
+            // ERROR for this transfer, which ends it
+            private void fail(String message) {
+                close();
+                sendMessage("ERROR:" + message);
+            }
+
+            // Ends the transfer; an unfinished upload keeps its partial file for a resume
+            private void close() {
+                open = false;
+                streams.remove(id, this);
+                // Frames whose ACKs no longer reach this stream must not stay in flight for the controller
+                SlidingWindow window = this.window;
+                if (window != null) {
+                    tcpController.onSegmentsDiscarded(window.discard(), System.nanoTime());
+                }
+                closeZeroCopyDownload();
+                closeDeltaUpload();
+                transferState.suspendUpload();
+            }
+
+            // Replies of the transfer carry its stream id and stay in order with its data frames
+            private void sendMessage(String message) {
+                if (!active) return;
+
+                byte[] data = (BinaryProtocol.tag(message, id) + "\n").getBytes(StandardCharsets.UTF_8);
+                enqueue(bufferPool.wrap(data));
+            }
+        }
+    }
+
+    // Current version of a file a delta upload is rebuilt from: its size and block signatures
+    private static final class DeltaBasis {
+        final long size;
+        final int blockSize;
+        final byte[] signatures;
+
+        DeltaBasis(long size, int blockSize, byte[] signatures) {
+            this.size = size;
+            this.blockSize = blockSize;
+            this.signatures = signatures;
+        }
+
+        // Reads the whole file, so it runs on the transfer pool
+        static DeltaBasis of(File file) throws IOException {
+            long size = file.length();
+            int blockSize = DeltaSync.blockSizeFor(size);
+            return new DeltaBasis(size, blockSize, DeltaSync.signatures(file.toPath(), blockSize));
+        }
+    }
+
+    // Version of a file a download sends: its fingerprint and, if the hot file cache holds it, its content
+    private static final class DownloadSource {
+        final String fingerprint;
+        final ByteBuffer cached;
+
+        DownloadSource(String fingerprint, ByteBuffer cached) {
+            this.fingerprint = fingerprint;
+            this.cached = cached;
+        }
+    }
+
+    // File transfer state management
+    private class FileTransferState {
+        private long fileSize = 0;
+        private long transferred = 0;
+        private long startTime = 0;
+        private long startOffset = 0;
+        // Start of the range being moved; progress is measured from here
+        private long rangeStart = 0;
+        private String filename = "";
+        private boolean uploading = false;
+        private boolean downloading = false;
+        private StreamingFileWriter uploadWriter;
+        private StreamDigest uploadDigest;
+
+        public void startDownload(File file, long offset) {
+            this.fileSize = file.length();
+            this.transferred = offset;
+            this.startOffset = offset;
+            this.rangeStart = 0;
+            this.startTime = System.currentTimeMillis();
+            this.filename = file.getName();
+            this.downloading = true;
+            this.uploading = false;
+            suspendUpload();
+        }
+
+        // One range of a parallel transfer; its data does not go through uploadWriter
+        public void startRange(String filename, long start, long end, boolean upload) {
+            suspendUpload();
+            this.fileSize = end;
+            this.transferred = start;
+            this.startOffset = start;
+            this.rangeStart = start;
+            this.startTime = System.currentTimeMillis();
+            this.filename = filename;
+            this.downloading = !upload;
+        }
+
+        // Returns the offset the upload continues at: the durable offset of a matching partial
+        // upload the writer was opened for, 0 otherwise
+        public long startUpload(StreamingFileWriter writer, long fileSize, boolean digest) {
+            suspendUpload();
+            this.uploadWriter = writer;
+            // Upload data is written on the loop thread; the periodic forces to disk are not
+            uploadWriter.setCheckpointExecutor(threadPool);
+            this.fileSize = fileSize;
+            this.transferred = uploadWriter.getResumeOffset();
+            this.startOffset = transferred;
+            this.rangeStart = 0;
+            this.uploadDigest = digest ? new StreamDigest(transferred) : null;
+            this.startTime = System.currentTimeMillis();
+            this.filename = writer.getTarget().getFileName().toString();
+            this.uploading = true;
+            this.downloading = false;
+            return transferred;
+        }
+
+        public void addUploadData(ByteBuffer data) throws IOException {
+            if (uploadWriter == null) {
+                throw new IOException("No upload in progress");
+            }
+            if (uploadDigest != null) {
+                uploadDigest.update(transferred, data);
+            }
+            transferred += uploadWriter.write(transferred, data);
+        }
+
+        public boolean hasUploadDigest() {
+            return uploadDigest != null;
+        }
+
+        public String finishUploadDigest() {
+            String digest = uploadDigest.finish();
+            uploadDigest = null;
+            return digest;
+        }
+
+        // The finished upload's writer, for the caller to commit; null if there is none
+        public StreamingFileWriter takeUploadWriter() {
+            StreamingFileWriter writer = uploadWriter;
+            uploadWriter = null;
+            uploading = false;
+            return writer;
+        }
+
+        public void abortUpload() {
+            StreamingFileWriter writer = takeUploadWriter();
+            if (writer != null) {
+                onUploadFile(writer.getTarget().toFile(), () -> {
+                    writer.abort();
+                    return null;
+                }).whenComplete((result, e) -> {
+                    if (e != null) {
+                        logger.error("Error discarding partial upload: " + failureOf(e).getMessage());
+                    }
+                });
+            }
+        }
+
+        // Interrupted upload: a resumable one keeps its partial file for the next attempt
+        public void suspendUpload() {
+            StreamingFileWriter writer = takeUploadWriter();
+            if (writer != null) {
+                FileTransferServerEngine.this.suspendUpload(writer, filename, transferred);
+            }
+        }
+
+        public long getTransferred() { return transferred; }
+        public long getFileSize() { return fileSize; }
+        public long getStartTime() { return startTime; }
+        public long getStartOffset() { return startOffset; }
+        public long getRangeStart() { return rangeStart; }
+        public boolean isUploadComplete() { return uploading && transferred >= fileSize; }
+        public String getFilename() { return filename; }
+    }
+
+    // Headless entry point: --port <n> --dir <path> --workers <n> --engine selector|virtual
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        File directory = new File(DEFAULT_UPLOAD_DIR);
+        Integer workers = null;
+        String transferEngine = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(requireValue(args, ++i));
+                case "--dir" -> directory = new File(requireValue(args, ++i));
+                case "--workers" -> workers = Integer.parseInt(requireValue(args, ++i));
+                case "--engine" -> transferEngine = requireValue(args, ++i);
+                default -> {
+                    System.err.println("Usage: FileTransferServerEngine [--port <n>] [--dir <path>] [--workers <n>]"
+                            + " [--engine selector|virtual]");
+                    System.exit(2);
+                }
+            }
+        }
+
+        FileTransferServerEngine engine = new FileTransferServerEngine(port, directory);
+        if (workers != null) {
+            engine.setWorkerLoopCount(workers);
+        }
+        if (transferEngine != null) {
+            engine.setTransferEngine(transferEngine);
+        }
+        engine.getLogger().addSink(batch -> {
+            for (AsyncLogger.Entry entry : batch) {
+                System.out.println(entry.formatWithLevel());
+            }
+        });
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            engine.stop();
+            engine.getLogger().close();
+            stopped.countDown();
+        }));
+        engine.start();
+        stopped.await();
+    }
+
+    static String requireValue(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+}
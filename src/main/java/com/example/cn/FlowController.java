@@ -0,0 +1,156 @@
+package com.example.cn;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+// Per-connection congestion state shared by server sessions and the client: the selected
+// CongestionController plus the RTT, throughput, loss and receive window figures the UIs chart.
+// Driven by the ACKs of the connection's SlidingWindow. The figures are sampled into a
+// MetricsHistory at most every -Dcn.metrics.sampleMillis (default 100) as ACKs, timeouts and
+// writes come in.
+public class FlowController {
+    private static final long SAMPLE_MILLIS = Long.getLong("cn.metrics.sampleMillis", 100);
+
+    private CongestionController controller;
+    private double currentRTT = 100.0;
+    private int receiveWindow = 65535;
+    private long startTime;
+    private long totalBytesSent = 0;
+    private int packetsLost = 0;
+    // Data segments that entered the sliding window, what the loss rate is a fraction of
+    private int segmentsSent = 0;
+    private long lastThroughputUpdate = 0;
+    private double currentThroughput = 0;
+    private Queue<Double> rttSamples = new LinkedList<>();
+    private long nextSendNanos;
+    private final MetricsHistory history = new MetricsHistory();
+    // Reused for every sample
+    private final double[] sample = new double[MetricsHistory.SERIES];
+    private long lastSampleMillis = Long.MIN_VALUE;
+
+    public FlowController(String algorithm) {
+        this.controller = CongestionControllers.create(algorithm);
+        this.startTime = System.currentTimeMillis();
+        this.lastThroughputUpdate = startTime;
+    }
+
+    // Starts the new algorithm from its initial window; throws IllegalArgumentException for unknown ids
+    public synchronized void setAlgorithm(String algorithm) {
+        this.controller = CongestionControllers.create(algorithm);
+    }
+
+    public synchronized String getAlgorithm() {
+        return controller.id();
+    }
+
+    // Bytes written to the socket, for the throughput figure
+    public synchronized void onDataSent(int bytes, long timestamp) {
+        totalBytesSent += bytes;
+        updateThroughput();
+        recordSample();
+    }
+
+    // A data segment entered the sliding window
+    public synchronized void onSegmentSent(int length, long nowNanos) {
+        segmentsSent++;
+        controller.onSend(length, nowNanos);
+        double rate = controller.getPacingRate();
+        if (rate > 0) {
+            // No credit for idle time: pacing never allows a burst after a pause
+            nextSendNanos = Math.max(nextSendNanos, nowNanos) + (long) (length * 1e9 / rate);
+        }
+    }
+
+    // Segments the sliding window forgot without an ACK (SlidingWindow.rewind/discard)
+    public synchronized void onSegmentsDiscarded(int segments, long nowNanos) {
+        if (segments > 0) {
+            controller.onDiscard(segments, nowNanos);
+        }
+    }
+
+    // Nanoseconds until the pacing rate allows the next segment; 0 when due or unpaced
+    public synchronized long getPacingDelayNanos(long nowNanos) {
+        if (controller.getPacingRate() <= 0) return 0;
+        return Math.max(0, nextSendNanos - nowNanos);
+    }
+
+    // Called for every ACK frame the sliding window processed
+    public synchronized void onAck(SlidingWindow.Ack ack, long nowNanos) {
+        if (ack.lossDetected) {
+            packetsLost++;
+            controller.onLoss(nowNanos);
+        }
+        if (ack.segments == 0) return;
+        if (ack.rttMillis >= 0) {
+            onRttSample(ack.rttMillis);
+        }
+        controller.onAck(ack.segments, ack.bytes, ack.rttMillis, nowNanos);
+        recordSample();
+    }
+
+    public synchronized void onRttSample(double rttMillis) {
+        rttSamples.offer(rttMillis);
+
+        while (rttSamples.size() > 10) {
+            rttSamples.poll();
+        }
+
+        currentRTT = rttSamples.stream().mapToDouble(Double::doubleValue).average().orElse(currentRTT);
+    }
+
+    // Retransmission timer expired without ACK progress
+    public synchronized void onTimeout() {
+        packetsLost++;
+        controller.onTimeout(System.nanoTime());
+        recordSample();
+    }
+
+    public synchronized void setReceiveWindow(int receiveWindow) {
+        this.receiveWindow = receiveWindow;
+    }
+
+    private void updateThroughput() {
+        long now = System.currentTimeMillis();
+        long interval = now - lastThroughputUpdate;
+
+        if (interval > 1000) {
+            currentThroughput = (totalBytesSent * 8.0) / (interval / 1000.0);
+            lastThroughputUpdate = now;
+            totalBytesSent = 0;
+        }
+    }
+
+    private void recordSample() {
+        long now = System.currentTimeMillis();
+        if (now - lastSampleMillis < SAMPLE_MILLIS) return;
+        lastSampleMillis = now;
+
+        sample[MetricsHistory.RTT] = currentRTT;
+        sample[MetricsHistory.CWND] = controller.getCongestionWindow();
+        sample[MetricsHistory.SSTHRESH] = controller.getSlowStartThreshold();
+        sample[MetricsHistory.THROUGHPUT] = currentThroughput;
+        sample[MetricsHistory.LOSS] = getPacketLossRate();
+        boolean modelBased = controller.getBottleneckBandwidth() >= 0;
+        sample[MetricsHistory.MIN_RTT] = modelBased ? controller.getMinRtt() : Double.NaN;
+        sample[MetricsHistory.PACING_GAIN] = modelBased ? controller.getPacingGain() : Double.NaN;
+        sample[MetricsHistory.BOTTLENECK_BANDWIDTH] = modelBased ? controller.getBottleneckBandwidth() : Double.NaN;
+        history.record(now - startTime, sample);
+    }
+
+    // Getters
+    public synchronized double getCongestionWindow() { return controller.getCongestionWindow(); }
+    public synchronized double getSSThresh() { return controller.getSlowStartThreshold(); }
+    public synchronized double getPacingRate() { return controller.getPacingRate(); }
+    public synchronized double getBottleneckBandwidth() { return controller.getBottleneckBandwidth(); }
+    public synchronized double getMinRtt() { return controller.getMinRtt(); }
+    public synchronized double getPacingGain() { return controller.getPacingGain(); }
+    public synchronized String getPhase() { return controller.getPhase(); }
+    public synchronized double getCurrentRTT() { return currentRTT; }
+    public synchronized int getReceiveWindow() { return receiveWindow; }
+    public synchronized double getCurrentThroughput() { return currentThroughput; }
+    public synchronized double getPacketLossRate() {
+        return segmentsSent == 0 ? 0 : Math.min(1.0, (double) packetsLost / segmentsSent);
+    }
+    public long getStartTime() { return startTime; }
+    public MetricsHistory getHistory() { return history; }
+}
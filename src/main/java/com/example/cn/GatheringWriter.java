@@ -0,0 +1,120 @@
+package com.example.cn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+
+// Write side of a connection: takes queued buffers in batches and hands each batch to the socket
+// with one gathering write instead of one write per buffer. A batch holds at most
+// -Dcn.write.maxBuffers buffers (default 64) and about -Dcn.write.maxBytes (default 256 KB).
+// Adjacent buffers of up to -Dcn.write.coalesceBytes (default 2 KB) - commands, ACKs, Base64
+// data lines - are copied into one pooled buffer, so a run of them costs a single iovec.
+//
+// A batch the socket took only part of is finished by the next flush() before anything new is
+// batched, so buffers are never reordered or interleaved. Buffers are released to the pool once
+// written. Used by one thread at a time, the connection's selector thread.
+public final class GatheringWriter {
+    private static final int MAX_BUFFERS = Math.max(1, Integer.getInteger("cn.write.maxBuffers", 64));
+    private static final long MAX_BYTES = Math.max(1, Long.getLong("cn.write.maxBytes", 256 * 1024));
+    private static final int COALESCE_BYTES = Integer.getInteger("cn.write.coalesceBytes", 2048);
+    private static final int COALESCE_BUFFER_SIZE = Math.max(16 * 1024, COALESCE_BYTES);
+
+    private final BufferPool pool;
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BUFFERS];
+    // batch[start, end) is still to be written
+    private int start;
+    private int end;
+    private long batchBytes;
+    // Coalescing buffer at batch[end - 1] that is still being filled, null if none
+    private ByteBuffer coalescing;
+    // Written by the selector thread, read for statistics
+    private volatile long writeCalls;
+    private volatile long bytesWritten;
+
+    public GatheringWriter(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    // True while the last batch is not completely written
+    public boolean hasPending() {
+        return start < end;
+    }
+
+    // Whether the batch can take more buffers
+    public boolean hasRoom() {
+        return end < batch.length && batchBytes < MAX_BYTES;
+    }
+
+    // Moves buffers from the queue into the batch while it has room; returns how many it took
+    public int fill(Queue<ByteBuffer> queue) {
+        int taken = 0;
+        ByteBuffer buffer;
+        while (hasRoom() && (buffer = queue.poll()) != null) {
+            add(buffer);
+            taken++;
+        }
+        closeCoalescing();
+        return taken;
+    }
+
+    // Only called while hasRoom(), so there is always a free slot
+    private void add(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        batchBytes += length;
+        if (length <= COALESCE_BYTES) {
+            if (coalescing == null || coalescing.remaining() < length) {
+                closeCoalescing();
+                coalescing = pool.acquire(COALESCE_BUFFER_SIZE);
+                batch[end++] = coalescing;
+            }
+            coalescing.put(buffer);
+            pool.release(buffer);
+            return;
+        }
+        closeCoalescing();
+        batch[end++] = buffer;
+    }
+
+    private void closeCoalescing() {
+        if (coalescing != null) {
+            coalescing.flip();
+            coalescing = null;
+        }
+    }
+
+    // One gathering write of the batch; returns the bytes the socket took
+    public long flush(GatheringByteChannel channel) throws IOException {
+        closeCoalescing();
+        if (start == end) return 0;
+        long written = channel.write(batch, start, end - start);
+        writeCalls++;
+        bytesWritten += written;
+        batchBytes -= written;
+        while (start < end && !batch[start].hasRemaining()) {
+            pool.release(batch[start]);
+            batch[start++] = null;
+        }
+        if (start == end) {
+            start = 0;
+            end = 0;
+            batchBytes = 0;
+        }
+        return written;
+    }
+
+    // Releases everything not written yet, when the connection closes
+    public void clear() {
+        coalescing = null;
+        for (int i = start; i < end; i++) {
+            pool.release(batch[i]);
+            batch[i] = null;
+        }
+        start = 0;
+        end = 0;
+        batchBytes = 0;
+    }
+
+    public long getWriteCalls() { return writeCalls; }
+    public long getBytesWritten() { return bytesWritten; }
+}
@@ -0,0 +1,176 @@
+package com.example.cn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Memory-mapped copies of the files downloaded most, shared by every download of them: a file
+// pulled by many clients at once is mapped once and each transfer sends read-only views of the
+// mapping instead of opening and reading the file again.
+//
+// Admission is by request frequency: a file is mapped once it was asked for -Dcn.server.cacheAdmit
+// times (default 2), so a file downloaded once never displaces anything. When the byte budget
+// (-Dcn.server.cacheBytes, default 256 MB, 0 to disable) is full, the least recently used files
+// make room, but only if none of them was requested more often than the newcomer. Request counts
+// are halved every AGING_PERIOD requests so popularity fades. Files above
+// -Dcn.server.cacheMaxFileBytes (default a quarter of the budget) are never cached.
+//
+// Entries are keyed by path and hold the fingerprint they were mapped with; a changed file is a
+// miss and its stale mapping is dropped. The server replaces files by renaming a new one over
+// them, so a mapping never sees its file change. An evicted mapping stays valid for the transfers
+// still sending from it: nothing unmaps it explicitly, the JVM does once the garbage collector
+// finds it unreachable, so the address space of evicted files is only given back then.
+//
+// A miss that admits a file maps it while holding the cache's lock; the server calls get() from
+// its transfer pool, never from a selector thread.
+public final class HotFileCache {
+    private static final int AGING_PERIOD = 1024;
+
+    private static final class Entry {
+        final String fingerprint;
+        final ByteBuffer content;
+
+        Entry(String fingerprint, ByteBuffer content) {
+            this.fingerprint = fingerprint;
+            this.content = content;
+        }
+    }
+
+    private final long budget;
+    private final long maxFileBytes;
+    private final int admitRequests;
+    // Access order: least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> frequency = new HashMap<>();
+    private int requestsSinceAging;
+    private long cachedBytes;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+
+    public HotFileCache(long budget, long maxFileBytes, int admitRequests) {
+        this.budget = budget;
+        // A mapping is limited to 2 GB
+        this.maxFileBytes = Math.min(Integer.MAX_VALUE, Math.min(budget, maxFileBytes));
+        this.admitRequests = Math.max(1, admitRequests);
+    }
+
+    public static HotFileCache fromSystemProperties() {
+        long budget = Long.getLong("cn.server.cacheBytes", 256L * 1024 * 1024);
+        return new HotFileCache(budget, Long.getLong("cn.server.cacheMaxFileBytes", budget / 4),
+                Integer.getInteger("cn.server.cacheAdmit", 2));
+    }
+
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    // Counts a download request of the file and returns a read-only view of its whole content,
+    // positioned at 0, if it is cached or has just been admitted; null to read it from disk
+    public synchronized ByteBuffer get(Path file, String fingerprint, long size) {
+        if (!isEnabled()) return null;
+        String key = file.toAbsolutePath().normalize().toString();
+        requests.increment();
+        int count = frequency.merge(key, 1, Integer::sum);
+        if (++requestsSinceAging >= AGING_PERIOD) {
+            age();
+        }
+
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (entry.fingerprint.equals(fingerprint)) {
+                hits.increment();
+                return entry.content.duplicate();
+            }
+            remove(key);
+        }
+        if (count < admitRequests || size <= 0 || size > maxFileBytes || !makeRoom(size, count)) {
+            return null;
+        }
+
+        ByteBuffer content;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != size) return null;
+            content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asReadOnlyBuffer();
+        } catch (IOException e) {
+            return null;
+        }
+        entries.put(key, new Entry(fingerprint, content));
+        cachedBytes += size;
+        return content.duplicate();
+    }
+
+    // Bytes sent to clients from cached content
+    public void recordServed(long bytes) {
+        bytesServed.add(bytes);
+    }
+
+    // Evicts least recently used entries until size fits; false, evicting nothing, if that would
+    // take an entry requested more often than the newcomer
+    private boolean makeRoom(long size, int count) {
+        long needed = cachedBytes + size - budget;
+        if (needed <= 0) return true;
+        List<String> victims = new ArrayList<>();
+        for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+            if (needed <= 0) break;
+            if (frequency.getOrDefault(candidate.getKey(), 0) > count) return false;
+            victims.add(candidate.getKey());
+            needed -= candidate.getValue().content.capacity();
+        }
+        if (needed > 0) return false;
+        for (String victim : victims) {
+            remove(victim);
+            evictions.increment();
+        }
+        return true;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            cachedBytes -= entry.content.capacity();
+        }
+    }
+
+    private void age() {
+        requestsSinceAging = 0;
+        Iterator<Map.Entry<String, Integer>> counts = frequency.entrySet().iterator();
+        while (counts.hasNext()) {
+            Map.Entry<String, Integer> count = counts.next();
+            if (count.getValue() <= 1 && !entries.containsKey(count.getKey())) {
+                counts.remove();
+            } else {
+                count.setValue(Math.max(1, count.getValue() / 2));
+            }
+        }
+    }
+
+    public long getRequests() { return requests.sum(); }
+    public long getHits() { return hits.sum(); }
+    public long getBytesServed() { return bytesServed.sum(); }
+
+    public synchronized long getCachedBytes() { return cachedBytes; }
+    public synchronized int getCachedFiles() { return entries.size(); }
+
+    // e.g. "Hot files: 92.0% hits (46/50), 3 files, 120.00 MB of 256.00 MB, 5.10 GB served, 1 evicted"
+    public String describe() {
+        long requestCount = requests.sum();
+        double hitRate = requestCount == 0 ? 0 : 100.0 * hits.sum() / requestCount;
+        return String.format("Hot files: %.1f%% hits (%d/%d), %d files, %s of %s, %s served, %d evicted",
+                hitRate, hits.sum(), requestCount, getCachedFiles(),
+                FileTransferServerEngine.formatFileSize(getCachedBytes()),
+                FileTransferServerEngine.formatFileSize(budget),
+                FileTransferServerEngine.formatFileSize(bytesServed.sum()), evictions.sum());
+    }
+}
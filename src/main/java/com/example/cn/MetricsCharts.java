@@ -0,0 +1,83 @@
+package com.example.cn;
+
+import javafx.collections.ObservableList;
+import javafx.scene.chart.LineChart;
+import javafx.scene.chart.XYChart;
+import javafx.scene.control.ComboBox;
+
+// Draws a connection's MetricsHistory into the metric charts of the server and client windows.
+// Each refresh shows the selected time window of the history, downsampled to MAX_POINTS points,
+// so a chart costs the same whether it covers the last minute or a whole session of several
+// hours. The chart's Data objects are reused from one refresh to the next. Used on the FX thread.
+public final class MetricsCharts {
+    private static final int MAX_POINTS = 300;
+    private static final String[] WINDOW_NAMES = {"Last minute", "Last 10 minutes", "Last hour", "Whole session"};
+    private static final long[] WINDOW_MILLIS = {60_000, 600_000, 3_600_000, Long.MAX_VALUE};
+
+    private final ComboBox<String> windowSelector = new ComboBox<>();
+    private final double[] times = new double[MAX_POINTS];
+    private final double[] values = new double[MAX_POINTS];
+
+    public MetricsCharts() {
+        windowSelector.getItems().addAll(WINDOW_NAMES);
+        windowSelector.setValue(WINDOW_NAMES[0]);
+    }
+
+    // Chooses the time window the charts show
+    public ComboBox<String> getWindowSelector() {
+        return windowSelector;
+    }
+
+    // Shows the series of the history in the chart's first data series, multiplied by scale
+    public void render(LineChart<Number, Number> chart, MetricsHistory history, int series, double scale) {
+        if (chart == null || chart.getData().isEmpty()) return;
+        render(chart.getData().get(0), history, series, scale);
+    }
+
+    // Shows the series in the named data series of the chart, creating it on first use
+    public void render(LineChart<Number, Number> chart, String seriesName, MetricsHistory history, int series,
+                       double scale) {
+        if (chart == null) return;
+        XYChart.Series<Number, Number> chartSeries = chart.getData().stream()
+                .filter(s -> seriesName.equals(s.getName())).findFirst().orElse(null);
+        if (chartSeries == null) {
+            chartSeries = new XYChart.Series<>();
+            chartSeries.setName(seriesName);
+            chart.getData().add(chartSeries);
+        }
+        render(chartSeries, history, series, scale);
+    }
+
+    private long selectedWindowMillis() {
+        for (int i = 0; i < WINDOW_NAMES.length; i++) {
+            if (WINDOW_NAMES[i].equals(windowSelector.getValue())) return WINDOW_MILLIS[i];
+        }
+        return WINDOW_MILLIS[0];
+    }
+
+    private void render(XYChart.Series<Number, Number> chartSeries, MetricsHistory history, int series, double scale) {
+        long window = selectedWindowMillis();
+        long from = window == Long.MAX_VALUE ? 0 : Math.max(0, history.getLastTime() - window);
+        int count = history.downsample(series, from, Long.MAX_VALUE, MAX_POINTS, times, values);
+
+        ObservableList<XYChart.Data<Number, Number>> data = chartSeries.getData();
+        int points = 0;
+        for (int i = 0; i < count; i++) {
+            // Samples taken before a model-based controller was chosen have no path model
+            if (Double.isNaN(values[i])) continue;
+            double time = times[i] / 1000;
+            double value = values[i] * scale;
+            if (points < data.size()) {
+                XYChart.Data<Number, Number> point = data.get(points);
+                point.setXValue(time);
+                point.setYValue(value);
+            } else {
+                data.add(new XYChart.Data<>(time, value));
+            }
+            points++;
+        }
+        if (points < data.size()) {
+            data.remove(points, data.size());
+        }
+    }
+}
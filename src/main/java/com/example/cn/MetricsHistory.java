@@ -0,0 +1,185 @@
+package com.example.cn;
+
+// Time series of a connection's congestion figures, kept in primitive ring buffers: one long[]
+// of sample times and one double[] per figure, so recording a sample allocates nothing. The
+// buffers start small and double as samples come in, up to -Dcn.metrics.historySize samples
+// (default 65536, almost two hours at the default 100 ms sampling interval); after that the
+// oldest samples are overwritten.
+//
+// Charts read a window of the history through downsample(), which picks a fixed number of points
+// with Largest-Triangle-Three-Buckets, so drawing the last minute and drawing the whole session
+// put the same number of points on screen and keep peaks and dips. Thread-safe.
+public final class MetricsHistory {
+    public static final int RTT = 0;
+    public static final int CWND = 1;
+    public static final int SSTHRESH = 2;
+    // Bits per second
+    public static final int THROUGHPUT = 3;
+    // Fraction of segments lost
+    public static final int LOSS = 4;
+    // Path model of model-based controllers, NaN for the others
+    public static final int MIN_RTT = 5;
+    public static final int PACING_GAIN = 6;
+    // Bytes per second
+    public static final int BOTTLENECK_BANDWIDTH = 7;
+    public static final int SERIES = 8;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = Math.max(INITIAL_CAPACITY, Integer.getInteger("cn.metrics.historySize", 65536));
+
+    // Milliseconds since the connection started
+    private long[] times = new long[INITIAL_CAPACITY];
+    private final double[][] values = new double[SERIES][INITIAL_CAPACITY];
+    // Next slot to write and the number of samples held
+    private int head;
+    private int count;
+
+    // sample holds one value per series; it is copied
+    public synchronized void record(long timeMillis, double[] sample) {
+        if (count > 0) {
+            // Never goes back in time, so the times stay sorted for the binary searches
+            timeMillis = Math.max(timeMillis, times[index(count - 1)]);
+        }
+        if (count == times.length && times.length < MAX_CAPACITY) {
+            grow();
+        }
+        times[head] = timeMillis;
+        for (int series = 0; series < SERIES; series++) {
+            values[series][head] = sample[series];
+        }
+        head = (head + 1) % times.length;
+        count = Math.min(count + 1, times.length);
+    }
+
+    // Unwraps the ring into arrays twice the size
+    private void grow() {
+        int capacity = Math.min(MAX_CAPACITY, times.length * 2);
+        int start = index(0);
+        times = unwrap(times, start, capacity);
+        for (int series = 0; series < SERIES; series++) {
+            values[series] = unwrap(values[series], start, capacity);
+        }
+        head = count;
+    }
+
+    private static long[] unwrap(long[] old, int start, int capacity) {
+        long[] grown = new long[capacity];
+        System.arraycopy(old, start, grown, 0, old.length - start);
+        System.arraycopy(old, 0, grown, old.length - start, start);
+        return grown;
+    }
+
+    private static double[] unwrap(double[] old, int start, int capacity) {
+        double[] grown = new double[capacity];
+        System.arraycopy(old, start, grown, 0, old.length - start);
+        System.arraycopy(old, 0, grown, old.length - start, start);
+        return grown;
+    }
+
+    // Ring slot of the i-th oldest sample
+    private int index(int i) {
+        return (head - count + i + times.length) % times.length;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // Time of the newest sample, -1 if there is none
+    public synchronized long getLastTime() {
+        return count == 0 ? -1 : times[index(count - 1)];
+    }
+
+    // Newest value of a series, NaN if there is none
+    public synchronized double getLast(int series) {
+        return count == 0 ? Double.NaN : values[series][index(count - 1)];
+    }
+
+    // Writes at most maxPoints samples of the series taken between fromMillis and toMillis into
+    // outTimes/outValues (at least maxPoints long), oldest first, and returns how many. Windows
+    // with more samples are reduced with LTTB: the first and last samples are kept and every
+    // bucket in between contributes the sample that spans the largest triangle with the point
+    // chosen before it and the average of the next bucket.
+    public synchronized int downsample(int series, long fromMillis, long toMillis, int maxPoints,
+                                       double[] outTimes, double[] outValues) {
+        int first = lowerBound(fromMillis);
+        int end = lowerBound(toMillis == Long.MAX_VALUE ? toMillis : toMillis + 1);
+        int n = end - first;
+        double[] v = values[series];
+        if (n <= maxPoints || maxPoints < 3) {
+            int points = Math.min(n, maxPoints);
+            for (int i = 0; i < points; i++) {
+                int slot = index(first + i);
+                outTimes[i] = times[slot];
+                outValues[i] = v[slot];
+            }
+            return points;
+        }
+
+        double bucketSize = (double) (n - 2) / (maxPoints - 2);
+        int chosen = first;
+        int slot = index(first);
+        outTimes[0] = times[slot];
+        outValues[0] = v[slot];
+        int points = 1;
+        for (int bucket = 0; bucket < maxPoints - 2; bucket++) {
+            int bucketStart = first + 1 + (int) (bucket * bucketSize);
+            int bucketEnd = first + 1 + (int) ((bucket + 1) * bucketSize);
+            int nextEnd = Math.min(end, first + 1 + (int) ((bucket + 2) * bucketSize));
+
+            // Average of the next bucket; the last bucket looks at the final sample
+            double averageTime = 0;
+            double averageValue = 0;
+            int nextStart = bucketEnd < end - 1 ? bucketEnd : end - 1;
+            if (nextEnd <= nextStart) {
+                nextEnd = nextStart + 1;
+            }
+            for (int i = nextStart; i < nextEnd; i++) {
+                int s = index(i);
+                averageTime += times[s];
+                averageValue += v[s];
+            }
+            averageTime /= nextEnd - nextStart;
+            averageValue /= nextEnd - nextStart;
+
+            int chosenSlot = index(chosen);
+            double chosenTime = times[chosenSlot];
+            double chosenValue = v[chosenSlot];
+            double maxArea = -1;
+            int best = bucketStart;
+            for (int i = bucketStart; i < bucketEnd; i++) {
+                int s = index(i);
+                double area = Math.abs((chosenTime - averageTime) * (v[s] - chosenValue)
+                        - (chosenTime - times[s]) * (averageValue - chosenValue));
+                if (area > maxArea) {
+                    maxArea = area;
+                    best = i;
+                }
+            }
+            chosen = best;
+            slot = index(best);
+            outTimes[points] = times[slot];
+            outValues[points] = v[slot];
+            points++;
+        }
+        slot = index(end - 1);
+        outTimes[points] = times[slot];
+        outValues[points] = v[slot];
+        return points + 1;
+    }
+
+    // Position of the oldest sample taken at or after timeMillis, count if there is none
+    private int lowerBound(long timeMillis) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[index(mid)] < timeMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,337 @@
+package com.example.cn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// Moves one large file over several connections at once. Every stream is its own
+// FileTransferClientEngine with its own FlowController, so a loss or a slow path only shrinks
+// that stream's window. A RangeScheduler hands out the chunks (with work stealing at the tail) and
+// the pieces are assembled in place, on this side by a RangeFileWriter and on the server by the
+// one all sessions of the upload share.
+//
+// The number of streams is tuned by hill climbing on the aggregate throughput: another stream is
+// tried, and kept only if it raised the throughput by at least MIN_GAIN. Both rates are averages
+// over several intervals, and the one with the new stream is taken from its first completed range
+// on, so neither its connection setup nor its slow start counts against it. A stream that was
+// not kept is disconnected once it has finished the range it was moving.
+//
+// One transfer per instance. Configuration: -Dcn.client.parallelStreams (initial streams, default 2),
+// -Dcn.client.maxParallelStreams (default 8), -Dcn.client.rangeChunkSize (default 8 MB).
+public final class ParallelTransfer {
+    private static final int INITIAL_STREAMS = Integer.getInteger("cn.client.parallelStreams", 2);
+    private static final int MAX_STREAMS = Integer.getInteger("cn.client.maxParallelStreams", 8);
+    private static final long CHUNK_SIZE = Long.getLong("cn.client.rangeChunkSize", 8L * 1024 * 1024);
+    private static final long TUNE_INTERVAL_MILLIS = 1000;
+    // A stream that adds less than this share of throughput is dropped again
+    private static final double MIN_GAIN = 0.10;
+    // Intervals to wait after a rejected stream before probing again
+    private static final int PROBE_BACKOFF_INTERVALS = 5;
+    // Intervals a throughput is averaged over, before a probe and with it
+    private static final int MEASURE_INTERVALS = 3;
+    private static final long RESPONSE_TIMEOUT_MILLIS = 60000;
+
+    private final String host;
+    private final int port;
+    private final String algorithm;
+    private final List<Stream> streams = new CopyOnWriteArrayList<>();
+    private volatile String failure;
+    private final CountDownLatch uploadComplete = new CountDownLatch(1);
+    private volatile RangeScheduler scheduler;
+    private volatile BiConsumer<FileTransferClientEngine, long[]> request;
+
+    private final class Stream {
+        final FileTransferClientEngine engine;
+        // Outcome of the request in progress: empty on RANGE_COMPLETE or FILE_INFO, an error otherwise
+        final BlockingQueue<Optional<String>> outcomes = new LinkedBlockingQueue<>();
+        volatile long[] fileInfo;
+        volatile String fingerprint;
+        volatile long[] activeChunk;
+        volatile boolean retired;
+        volatile int rangesCompleted;
+        int index;
+
+        Stream(File directory) throws IOException {
+            engine = new FileTransferClientEngine(directory);
+            engine.addListener(new ClientEngineListener() {
+                @Override
+                public void onFileInfo(String filename, long size, String fp) {
+                    fileInfo = new long[] {size};
+                    fingerprint = fp;
+                    outcomes.offer(Optional.empty());
+                }
+
+                @Override
+                public void onRangeComplete(String filename, long start, long end) {
+                    outcomes.offer(Optional.empty());
+                }
+
+                @Override
+                public void onUploadComplete(String filename) {
+                    uploadComplete.countDown();
+                }
+
+                @Override
+                public void onTransferFailed(String message) {
+                    outcomes.offer(Optional.of(message));
+                }
+
+                @Override
+                public void onError(String message) {
+                    outcomes.offer(Optional.of("Error: " + message));
+                }
+
+                @Override
+                public void onDisconnected(String reason) {
+                    outcomes.offer(Optional.of(reason != null ? reason : "Disconnected"));
+                }
+            });
+            engine.connect(host, port);
+            if (algorithm != null) {
+                engine.setAlgorithm(algorithm);
+            }
+        }
+
+        // Bytes of the active chunk moved so far, for the throughput estimate
+        long inFlightBytes() {
+            return activeChunk != null ? engine.getRangeTransferred() : 0;
+        }
+    }
+
+    // algorithm may be null for the engines' default
+    public ParallelTransfer(String host, int port, String algorithm) {
+        this.host = host;
+        this.port = port;
+        this.algorithm = algorithm;
+    }
+
+    public int getStreams() {
+        int live = 0;
+        for (Stream stream : streams) {
+            if (!stream.retired) live++;
+        }
+        return live;
+    }
+
+    public long getSteals() {
+        return scheduler != null ? scheduler.getSteals() : 0;
+    }
+
+    // Downloads into directory, continuing the ranges a previous attempt left in its journal
+    public File download(String filename, File directory) throws IOException, InterruptedException {
+        try {
+            Stream first = new Stream(directory);
+            streams.add(first);
+            first.engine.requestFileInfo(filename);
+            await(first);
+            long size = first.fileInfo[0];
+            String fingerprint = first.fingerprint;
+
+            RangeFileWriter target = RangeFileWriter.open(new File(directory, filename).toPath(), fingerprint, size);
+            try {
+                run(directory, target.getMissingRanges(),
+                        (engine, chunk) -> engine.downloadRange(filename, chunk[0], chunk[1], fingerprint, target));
+                if (!target.isComplete()) {
+                    throw new IOException("Download of " + filename + " is incomplete");
+                }
+                return target.commit().toFile();
+            } catch (IOException | InterruptedException e) {
+                target.suspend();
+                throw e;
+            }
+        } finally {
+            close();
+        }
+    }
+
+    // Uploads in ranges; the server keeps the ranges it received if the transfer is interrupted
+    public void upload(File file) throws IOException, InterruptedException {
+        try {
+            String fingerprint = FileFingerprint.of(file.toPath());
+            long size = file.length();
+            List<long[]> ranges = new ArrayList<>();
+            ranges.add(new long[] {0, size});
+            if (size == 0) {
+                Stream stream = new Stream(file.getAbsoluteFile().getParentFile());
+                streams.add(stream);
+                stream.engine.uploadRange(file, 0, 0, fingerprint);
+                await(stream);
+            } else {
+                run(file.getAbsoluteFile().getParentFile(), ranges,
+                        (engine, chunk) -> engine.uploadRange(file, chunk[0], chunk[1], fingerprint));
+            }
+            if (!awaitUploadConfirmed(file.getName(), fingerprint)) {
+                throw new IOException("Server did not confirm the upload of " + file.getName());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void run(File directory, List<long[]> ranges, BiConsumer<FileTransferClientEngine, long[]> request)
+            throws IOException, InterruptedException {
+        this.request = request;
+        scheduler = new RangeScheduler(ranges, CHUNK_SIZE, 0);
+        for (Stream stream : streams) {
+            start(stream);
+        }
+        while (getStreams() < Math.min(INITIAL_STREAMS, MAX_STREAMS)) {
+            start(new Stream(directory));
+        }
+
+        long total = scheduler.getRemainingBytes();
+        long measureWindow = TimeUnit.MILLISECONDS.toNanos(MEASURE_INTERVALS * TUNE_INTERVAL_MILLIS);
+        // Throughput is measured from a starting point: the last change of the streams, or the
+        // probe's first completed range
+        long measureStart = System.nanoTime();
+        long measureMoved = 0;
+        double rateBeforeProbe = 0;
+        Stream probe = null;
+        boolean probeMeasuring = false;
+        int backoff = 0;
+        while (!scheduler.awaitDone(TUNE_INTERVAL_MILLIS)) {
+            if (getStreams() == 0) {
+                throw new IOException(failure != null ? failure : "All transfer streams failed");
+            }
+            long moved = total - scheduler.getRemainingBytes();
+            for (Stream stream : streams) {
+                moved += stream.inFlightBytes();
+            }
+            long now = System.nanoTime();
+            double rate = now > measureStart ? (moved - measureMoved) * 1e9 / (now - measureStart) : 0;
+
+            if (probe != null) {
+                if (probe.retired) {
+                    // The probe failed
+                    probe = null;
+                    backoff = PROBE_BACKOFF_INTERVALS;
+                    measureStart = now;
+                    measureMoved = moved;
+                } else if (!probeMeasuring) {
+                    if (probe.rangesCompleted > 0) {
+                        probeMeasuring = true;
+                        measureStart = now;
+                        measureMoved = moved;
+                    }
+                } else if (now - measureStart >= measureWindow) {
+                    if (rate < rateBeforeProbe * (1 + MIN_GAIN)) {
+                        retire(probe);
+                        backoff = PROBE_BACKOFF_INTERVALS;
+                    }
+                    probe = null;
+                    measureStart = now;
+                    measureMoved = moved;
+                }
+            } else if (backoff > 0) {
+                backoff--;
+            } else if (now - measureStart >= measureWindow && getStreams() < MAX_STREAMS
+                    && scheduler.getRemainingBytes() > CHUNK_SIZE * (getStreams() + 1)) {
+                rateBeforeProbe = rate;
+                probe = new Stream(directory);
+                probeMeasuring = false;
+                start(probe);
+            }
+        }
+    }
+
+    private void start(Stream stream) {
+        if (!streams.contains(stream)) {
+            streams.add(stream);
+        }
+        stream.index = scheduler.addStream();
+        Thread worker = new Thread(() -> work(stream), "parallel-stream-" + stream.index);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // One range at a time per stream; a failed range goes back to the scheduler and the stream is closed
+    private void work(Stream stream) {
+        try {
+            while (!stream.retired) {
+                long[] chunk = scheduler.next(stream.index);
+                if (chunk == null) {
+                    // Nothing left to take, but a failing stream may still hand chunks back
+                    if (scheduler.awaitDone(100)) return;
+                    continue;
+                }
+                stream.outcomes.clear();
+                stream.activeChunk = chunk;
+                request.accept(stream.engine, chunk);
+                Optional<String> outcome = stream.outcomes.poll(RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                stream.activeChunk = null;
+                if (outcome == null || outcome.isPresent()) {
+                    scheduler.failed(chunk);
+                    fail(stream, outcome == null ? "Range " + chunk[0] + "-" + chunk[1] + " timed out" : outcome.get());
+                    return;
+                }
+                scheduler.completed(chunk);
+                stream.rangesCompleted++;
+            }
+            // Retired by the tuning, and its last range is done
+            stream.engine.disconnect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fail(Stream stream, String reason) {
+        failure = reason;
+        stream.retired = true;
+        scheduler.release(stream.index);
+        stream.engine.disconnect();
+    }
+
+    // UPLOAD_COMPLETE comes on the session that committed the file. If that was a stream which has
+    // been disconnected since, the file's fingerprint on the server confirms the upload instead.
+    private boolean awaitUploadConfirmed(String filename, String fingerprint) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT_MILLIS;
+        while (!uploadComplete.await(TUNE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (System.currentTimeMillis() >= deadline) return false;
+            Stream stream = streams.stream().filter(s -> !s.retired).findFirst().orElse(null);
+            if (stream == null) continue;
+            stream.outcomes.clear();
+            stream.engine.requestFileInfo(filename);
+            try {
+                await(stream);
+                if (fingerprint.equals(stream.fingerprint)) return true;
+            } catch (IOException e) {
+                // Not committed yet
+            }
+        }
+        return true;
+    }
+
+    // The stream takes no further ranges; its worker disconnects it once the one in progress is done
+    private void retire(Stream stream) {
+        if (stream.retired) return;
+        stream.retired = true;
+        scheduler.release(stream.index);
+    }
+
+    // The streams that were not retired stay connected until the end: the last range of an upload
+    // is followed by UPLOAD_COMPLETE
+    private void close() {
+        for (Stream stream : streams) {
+            stream.engine.disconnect();
+        }
+        streams.clear();
+    }
+
+    private static void await(Stream stream) throws IOException, InterruptedException {
+        Optional<String> outcome = stream.outcomes.poll(RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (outcome == null) {
+            throw new IOException("No response from server");
+        }
+        if (outcome.isPresent()) {
+            throw new IOException(outcome.get());
+        }
+    }
+}
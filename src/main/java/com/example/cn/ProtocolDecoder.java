@@ -0,0 +1,124 @@
+package com.example.cn;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Incremental decoder for the mixed text/binary stream described in BinaryProtocol.
+// Complete lines and frames are parsed straight out of the read buffer; only a trailing partial
+// message is copied into the pending buffer until the rest of it arrives.
+public final class ProtocolDecoder {
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 32 * 1024 * 1024;
+
+    public interface Handler {
+        void onMessage(String message);
+
+        // The payload is only valid for the duration of the call
+        void onFrame(byte type, int flags, int streamId, long offset, ByteBuffer payload);
+
+        // A FLAG_CRC32C frame whose checksum did not match; it is not passed to onFrame. length is
+        // that of its payload without the checksum.
+        default void onCorruptFrame(byte type, int streamId, long offset, int length) {}
+    }
+
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    public void decode(ByteBuffer in, Handler handler) throws ProtocolException {
+        if (pending.position() == 0) {
+            decodeAvailable(in, handler);
+            if (in.hasRemaining()) {
+                stash(in);
+            }
+        } else {
+            stash(in);
+            pending.flip();
+            try {
+                decodeAvailable(pending, handler);
+            } finally {
+                pending.compact();
+            }
+            if (pending.position() == 0 && pending.capacity() > INITIAL_BUFFER_SIZE * 8) {
+                pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            }
+        }
+    }
+
+    public void reset() {
+        pending.clear();
+    }
+
+    private void decodeAvailable(ByteBuffer buffer, Handler handler) throws ProtocolException {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+
+            if (buffer.get(start) == BinaryProtocol.MAGIC) {
+                if (buffer.remaining() < BinaryProtocol.HEADER_SIZE) return;
+
+                int version = buffer.get(start + 1) & 0xFF;
+                if (version != BinaryProtocol.VERSION) {
+                    throw new ProtocolException("Unsupported frame version: " + version);
+                }
+                byte type = buffer.get(start + 2);
+                int flags = buffer.get(start + 3) & 0xFF;
+                int streamId = buffer.getInt(start + 4);
+                long offset = buffer.getLong(start + 8);
+                int length = buffer.getInt(start + 16);
+                if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD_SIZE) {
+                    throw new ProtocolException("Invalid frame length: " + length);
+                }
+                if (buffer.remaining() < BinaryProtocol.HEADER_SIZE + length) return;
+
+                int payloadStart = start + BinaryProtocol.HEADER_SIZE;
+                ByteBuffer payload = buffer.slice(payloadStart, length);
+                buffer.position(payloadStart + length);
+                // Checked before the read-only view, which would hide the array from CRC32C
+                if ((flags & BinaryProtocol.FLAG_CRC32C) != 0 && !BinaryProtocol.verifyChecksum(payload)) {
+                    handler.onCorruptFrame(type, streamId, offset, payload.remaining());
+                    continue;
+                }
+                handler.onFrame(type, flags, streamId, offset, payload.asReadOnlyBuffer());
+            } else {
+                int newline = indexOfNewline(buffer);
+                if (newline < 0) {
+                    if (buffer.remaining() > MAX_LINE_LENGTH) {
+                        throw new ProtocolException("Message exceeds " + MAX_LINE_LENGTH + " bytes");
+                    }
+                    return;
+                }
+                String message = readString(buffer, start, newline - start).trim();
+                buffer.position(newline + 1);
+                if (!message.isEmpty()) {
+                    handler.onMessage(message);
+                }
+            }
+        }
+    }
+
+    private void stash(ByteBuffer in) {
+        if (pending.remaining() < in.remaining()) {
+            int required = pending.position() + in.remaining();
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(required, pending.capacity() * 2));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.put(in);
+    }
+
+    private static int indexOfNewline(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    private static String readString(ByteBuffer buffer, int start, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.cn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Assembles one file from byte ranges that arrive concurrently over several connections. Every
+// connection writes its frames in place with positional FileChannel writes (no staging, no
+// reordering), and the shared TransferJournal tracks which ranges are durable, so an interrupted
+// parallel transfer resumes with only the missing ranges. Thread-safe.
+public final class RangeFileWriter implements Closeable {
+    private static final long CHECKPOINT_BYTES = Long.getLong("cn.transfer.checkpointBytes", 8L * 1024 * 1024);
+
+    private final Path target;
+    private final Path partFile;
+    private final FileChannel channel;
+    private final TransferJournal journal;
+    private final long size;
+    private long uncheckpointedBytes;
+    private boolean open = true;
+
+    private RangeFileWriter(Path target, FileChannel channel, TransferJournal journal, long size) {
+        this.target = target;
+        this.partFile = StreamingFileWriter.partFileFor(target);
+        this.channel = channel;
+        this.journal = journal;
+        this.size = size;
+    }
+
+    // Continues the part file of a previous attempt if its journal matches the source
+    public static RangeFileWriter open(Path target, String fingerprint, long size) throws IOException {
+        Path partFile = StreamingFileWriter.partFileFor(target);
+        TransferJournal journal = TransferJournal.load(partFile);
+        FileChannel channel;
+        if (journal != null && journal.matches(fingerprint, size) && Files.exists(partFile)) {
+            channel = FileChannel.open(partFile, StandardOpenOption.WRITE);
+        } else {
+            channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            journal = TransferJournal.create(partFile, fingerprint, size);
+            journal.save();
+        }
+        if (size > 0 && channel.size() < size) {
+            channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+        return new RangeFileWriter(target, channel, journal, size);
+    }
+
+    // Writes the whole buffer at position; may be called from any number of threads at once
+    public void write(long position, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (position < 0 || position + length > size) {
+            throw new IOException("Range write at " + position + " exceeds file size " + size);
+        }
+        long offset = position;
+        while (data.hasRemaining()) {
+            offset += channel.write(data, offset);
+        }
+        boolean checkpointDue;
+        synchronized (this) {
+            journal.markWritten(position, position + length);
+            uncheckpointedBytes += length;
+            checkpointDue = uncheckpointedBytes >= CHECKPOINT_BYTES;
+        }
+        if (checkpointDue) {
+            checkpoint();
+        }
+    }
+
+    public synchronized void checkpoint() throws IOException {
+        if (!open || uncheckpointedBytes == 0) return;
+        channel.force(false);
+        journal.confirmWritten();
+        uncheckpointedBytes = 0;
+    }
+
+    public synchronized boolean isConfirmed(long start, long end) {
+        return journal.isConfirmed(start, end);
+    }
+
+    public synchronized List<long[]> getMissingRanges() {
+        return journal.getMissingRanges();
+    }
+
+    // Makes everything durable and reports whether the whole file has arrived
+    public synchronized boolean isComplete() throws IOException {
+        checkpoint();
+        return journal.isConfirmed(0, size) || size == 0;
+    }
+
+    public boolean matches(String fingerprint, long size) {
+        return journal.matches(fingerprint, size);
+    }
+
+    public long getSize() { return size; }
+    public Path getTarget() { return target; }
+
+    public synchronized Path commit() throws IOException {
+        checkpoint();
+        close();
+        StreamingFileWriter.moveIntoPlace(partFile, target);
+        journal.delete();
+        return target;
+    }
+
+    // Keeps the part file and journal for a later attempt
+    public synchronized void suspend() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (open) {
+            open = false;
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.cn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Hands out the byte ranges of a parallel transfer. The work is cut into chunks and dealt to the
+// streams as contiguous runs, so each connection reads or writes sequentially. A stream that runs
+// out steals from the tail of the stream with the most bytes left: fast streams end up carrying
+// more of the file and nobody waits on one slow connection for a long tail. Chunks of a stream
+// that fails are returned and picked up by the others. Thread-safe.
+public final class RangeScheduler {
+    private final long chunkSize;
+    private final List<Deque<long[]>> queues = new ArrayList<>();
+    private final List<long[]> pending = new ArrayList<>();
+    private final Set<Integer> retired = new HashSet<>();
+    private long remainingBytes;
+    private long steals;
+
+    // ranges: {start, end} pairs that still have to be transferred
+    public RangeScheduler(List<long[]> ranges, long chunkSize, int streams) {
+        this.chunkSize = Math.max(1, chunkSize);
+        for (long[] range : ranges) {
+            for (long start = range[0]; start < range[1]; start += this.chunkSize) {
+                pending.add(new long[] {start, Math.min(range[1], start + this.chunkSize)});
+                remainingBytes += Math.min(range[1], start + this.chunkSize) - start;
+            }
+        }
+        for (int i = 0; i < streams; i++) {
+            addStream();
+        }
+    }
+
+    // Registers a stream and gives it an even share of the work nobody has started yet
+    public synchronized int addStream() {
+        queues.add(new ArrayDeque<>());
+        rebalance();
+        return queues.size() - 1;
+    }
+
+    // Next chunk for the stream, stolen from the busiest stream if its own queue is empty; null when done
+    public synchronized long[] next(int stream) {
+        long[] chunk = queues.get(stream).pollFirst();
+        if (chunk != null) return chunk;
+
+        Deque<long[]> victim = null;
+        long victimBytes = 0;
+        for (Deque<long[]> queue : queues) {
+            long bytes = queuedBytes(queue);
+            if (bytes > victimBytes) {
+                victim = queue;
+                victimBytes = bytes;
+            }
+        }
+        if (victim == null) return null;
+        steals++;
+        return victim.pollLast();
+    }
+
+    public synchronized void completed(long[] chunk) {
+        remainingBytes -= chunk[1] - chunk[0];
+        notifyAll();
+    }
+
+    // The stream could not finish the chunk; another one will transfer it
+    public synchronized void failed(long[] chunk) {
+        pending.add(chunk);
+        rebalance();
+        notifyAll();
+    }
+
+    // Retires the stream and deals its queued chunks to the others
+    public synchronized void release(int stream) {
+        retired.add(stream);
+        if (retired.size() < queues.size()) {
+            rebalance();
+        }
+    }
+
+    public synchronized boolean isDone() {
+        return remainingBytes == 0;
+    }
+
+    public synchronized long getRemainingBytes() { return remainingBytes; }
+    public synchronized long getSteals() { return steals; }
+
+    // Waits until every chunk has completed or the timeout passed
+    public synchronized boolean awaitDone(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (remainingBytes > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    // Deals the unassigned chunks out as contiguous runs, one per stream
+    private void rebalance() {
+        for (Deque<long[]> queue : queues) {
+            pending.addAll(queue);
+            queue.clear();
+        }
+        List<Deque<long[]>> targets = new ArrayList<>();
+        for (int i = 0; i < queues.size(); i++) {
+            if (!retired.contains(i)) targets.add(queues.get(i));
+        }
+        if (targets.isEmpty()) return;
+
+        pending.sort((a, b) -> Long.compare(a[0], b[0]));
+        int perStream = Math.max(1, (pending.size() + targets.size() - 1) / targets.size());
+        for (int i = 0; i < pending.size(); i++) {
+            targets.get(Math.min(targets.size() - 1, i / perStream)).addLast(pending.get(i));
+        }
+        pending.clear();
+    }
+
+    private static long queuedBytes(Deque<long[]> queue) {
+        long bytes = 0;
+        for (long[] chunk : queue) {
+            bytes += chunk[1] - chunk[0];
+        }
+        return bytes;
+    }
+}
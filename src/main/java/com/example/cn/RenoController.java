@@ -0,0 +1,46 @@
+package com.example.cn;
+
+// TCP Reno (RFC 5681): fast retransmit halves the window and enters fast recovery instead of
+// slow start; the window deflates to ssthresh on the next ACK of new data. Timeouts still
+// restart slow start.
+public class RenoController extends WindowedController {
+    public static final String ID = "TCP_RENO";
+    private static final int DUPLICATE_ACK_THRESHOLD = 3;
+
+    private boolean fastRecovery;
+
+    @Override
+    public String id() {
+        return ID;
+    }
+
+    @Override
+    public void onAck(int ackedSegments, long ackedBytes, double rttMillis, long nowNanos) {
+        if (fastRecovery && ackedSegments > 0) {
+            fastRecovery = false;
+            congestionWindow = ssthresh;
+            return;
+        }
+        super.onAck(ackedSegments, ackedBytes, rttMillis, nowNanos);
+    }
+
+    @Override
+    public void onLoss(long nowNanos) {
+        if (fastRecovery) return;
+        ssthresh = Math.max(congestionWindow / 2, MIN_SSTHRESH);
+        // Inflate by the segments that left the network to trigger the duplicate ACKs
+        congestionWindow = ssthresh + DUPLICATE_ACK_THRESHOLD;
+        fastRecovery = true;
+    }
+
+    @Override
+    public void onTimeout(long nowNanos) {
+        fastRecovery = false;
+        super.onTimeout(nowNanos);
+    }
+
+    @Override
+    public String getPhase() {
+        return fastRecovery ? "FAST_RECOVERY" : super.getPhase();
+    }
+}
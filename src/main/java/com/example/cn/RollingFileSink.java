@@ -0,0 +1,90 @@
+package com.example.cn;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Log sink that appends to a file and rolls it over at a size limit:
+// server.log -> server.log.1 -> ... -> server.log.<maxFiles>, the oldest file is deleted.
+// Only called from the logger's consumer thread, so it needs no locking.
+public final class RollingFileSink implements AsyncLogger.Sink {
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private BufferedWriter writer;
+    private long size;
+
+    public RollingFileSink(Path file, long maxFileSize, int maxFiles) throws IOException {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = Math.max(1, maxFiles);
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        open();
+    }
+
+    // -Dcn.log.file=<path> enables file logging; -Dcn.log.maxFileSize and -Dcn.log.maxFiles tune it
+    public static RollingFileSink fromSystemProperties() throws IOException {
+        String path = System.getProperty("cn.log.file");
+        if (path == null || path.isEmpty()) return null;
+        return new RollingFileSink(Path.of(path), Long.getLong("cn.log.maxFileSize", 10L * 1024 * 1024),
+                Integer.getInteger("cn.log.maxFiles", 5));
+    }
+
+    private void open() throws IOException {
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        size = Files.size(file);
+    }
+
+    @Override
+    public void write(List<AsyncLogger.Entry> batch) {
+        try {
+            for (AsyncLogger.Entry entry : batch) {
+                String line = entry.formatWithLevel();
+                writer.write(line);
+                writer.newLine();
+                size += line.length() + 1;
+                if (size >= maxFileSize) {
+                    rollOver();
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Log file write failed: " + e.getMessage());
+        }
+    }
+
+    private void rollOver() throws IOException {
+        writer.close();
+        Files.deleteIfExists(rolled(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path source = rolled(i);
+            if (Files.exists(source)) {
+                Files.move(source, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+
+    private Path rolled(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.err.println("Log file close failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.cn;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Data queue of a connection, bounded by the bytes it holds. Producers (transfer threads) add
+// buffers without blocking and call awaitSpace() after each one: once the queue holds more than
+// the high watermark they park until the connection's selector thread has taken it down to the
+// low watermark. The selector thread takes buffers on write readiness, and the poll() that crosses
+// the low watermark wakes the parked producers; draining the queue when the connection closes
+// wakes them too. There are no sleeps and no polling on either side.
+//
+// Depth, bytes and the time producers spent parked are kept for statistics.
+public final class SendQueue extends AbstractQueue<ByteBuffer> {
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Queue<Thread> parked = new ConcurrentLinkedQueue<>();
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong();
+
+    public SendQueue(long highWatermark, long lowWatermark) {
+        this.highWatermark = Math.max(1, highWatermark);
+        this.lowWatermark = Math.max(0, Math.min(lowWatermark, this.highWatermark));
+    }
+
+    // Never blocks; the bound is applied by awaitSpace()
+    @Override
+    public boolean offer(ByteBuffer buffer) {
+        queuedBytes.addAndGet(buffer.remaining());
+        depth.incrementAndGet();
+        buffers.offer(buffer);
+        return true;
+    }
+
+    @Override
+    public ByteBuffer poll() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) return null;
+        depth.decrementAndGet();
+        if (queuedBytes.addAndGet(-buffer.remaining()) <= lowWatermark && !parked.isEmpty()) {
+            for (Thread producer : parked) {
+                LockSupport.unpark(producer);
+            }
+        }
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer peek() {
+        return buffers.peek();
+    }
+
+    @Override
+    public int size() {
+        return depth.get();
+    }
+
+    @Override
+    public Iterator<ByteBuffer> iterator() {
+        return buffers.iterator();
+    }
+
+    // Producers: parks while the queue holds more than the high watermark, until it is back at the
+    // low watermark or the thread is interrupted
+    public void awaitSpace() {
+        if (queuedBytes.get() <= highWatermark) return;
+        Thread current = Thread.currentThread();
+        long start = System.nanoTime();
+        parked.offer(current);
+        // Checked after registering, so an unpark between the check and park() is not lost
+        while (queuedBytes.get() > lowWatermark && !current.isInterrupted()) {
+            LockSupport.park(this);
+        }
+        parked.remove(current);
+        stalls.incrementAndGet();
+        stallNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    public long getQueuedBytes() { return queuedBytes.get(); }
+    public long getHighWatermark() { return highWatermark; }
+    public long getLowWatermark() { return lowWatermark; }
+    public long getStalls() { return stalls.get(); }
+    public long getStallMillis() { return stallNanos.get() / 1_000_000; }
+}
@@ -0,0 +1,22 @@
+package com.example.cn;
+
+// Observer of a FileTransferServerEngine. Callbacks arrive on engine threads; UI observers must
+// hand them over to their own thread. Log output is delivered separately, in batches, through
+// the engine's AsyncLogger sinks.
+public interface ServerEngineListener {
+    default void onServerStarted(int port) {}
+
+    default void onServerStopped() {}
+
+    default void onSessionOpened(FileTransferServerEngine.ClientSession session) {}
+
+    default void onSessionClosed(FileTransferServerEngine.ClientSession session) {}
+
+    default void onAlgorithmChanged(FileTransferServerEngine.ClientSession session, String algorithm) {}
+
+    default void onTransferStarted(FileTransferServerEngine.ClientSession session, String filename, boolean upload) {}
+
+    default void onTransferProgress(FileTransferServerEngine.ClientSession session, double progress, double speedKBs) {}
+
+    default void onTransferFinished(FileTransferServerEngine.ClientSession session, String status) {}
+}
@@ -0,0 +1,315 @@
+package com.example.cn;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Sender half of the application-level sliding window.
+//
+// Every data frame is a segment whose sequence number is its byte offset in the file. The
+// receiver answers with cumulative ACK frames ("every byte below this offset has been written")
+// that also carry its advertised receive window. A segment may only be sent while fewer than
+// cwnd segments are unacknowledged and the unacknowledged bytes fit in the receive window, so
+// the sending rate is clocked by returning ACKs. RTT samples and the retransmission timeout
+// follow RFC 6298. The connection underneath is TCP and never loses data, so a timeout is only
+// a congestion signal: nothing is resent, the window is shrunk and the timer restarted. Data is
+// only sent again when the receiver asks for it (a frame that failed its checksum): rewind()
+// then forgets everything in flight from that offset on. Segments forgotten by rewind() or by
+// discard() when a transfer ends early are never acknowledged; the caller hands their count to
+// FlowController.onSegmentsDiscarded so the congestion controller stops counting them as well.
+//
+// Thread-safe: transfer threads send while the selector thread delivers ACKs. Senders wait on a
+// lock condition rather than the monitor, which would pin a virtual thread to its carrier.
+public final class SlidingWindow {
+    private static final long MIN_RTO_MILLIS = 200;
+    private static final long MAX_RTO_MILLIS = 60000;
+    private static final long INITIAL_RTO_MILLIS = 1000;
+    private static final int DUPLICATE_ACK_THRESHOLD = 3;
+
+    // Unacknowledged segments: {end offset, send time in nanos}
+    private final ArrayDeque<long[]> inFlight = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled on every ACK, rewind and timeout
+    private final Condition changed = lock.newCondition();
+    private final boolean ackClocked;
+    private long acked;
+    private long sent;
+    private long peerWindow;
+
+    private double smoothedRtt = -1;
+    private double rttVariance;
+    private long rtoMillis = INITIAL_RTO_MILLIS;
+    private long timerStart;
+    private long timeouts;
+    private int duplicateAcks;
+
+    // Result of an ACK: how much it acknowledged, the RTT sample it produced (-1 if none) and
+    // whether it was the third duplicate ACK, which signals a loss (fast retransmit)
+    public static final class Ack {
+        public final int segments;
+        public final long bytes;
+        public final double rttMillis;
+        public final boolean lossDetected;
+
+        Ack(int segments, long bytes, double rttMillis, boolean lossDetected) {
+            this.segments = segments;
+            this.bytes = bytes;
+            this.rttMillis = rttMillis;
+            this.lossDetected = lossDetected;
+        }
+    }
+
+    private static final Ack NO_PROGRESS = new Ack(0, 0, -1, false);
+    private static final Ack DUPLICATE_LOSS = new Ack(0, 0, -1, true);
+
+    // An unclocked window never blocks; it is used when the peer does not send ACKs
+    public SlidingWindow(long startOffset, long initialPeerWindow, boolean ackClocked) {
+        this.acked = startOffset;
+        this.sent = startOffset;
+        this.peerWindow = initialPeerWindow;
+        this.ackClocked = ackClocked;
+    }
+
+    public boolean canSend(double congestionWindow, int length) {
+        lock.lock();
+        try {
+            if (!ackClocked || inFlight.isEmpty()) return true;
+            int maxSegments = Math.max(1, (int) congestionWindow);
+            return inFlight.size() < maxSegments && (sent - acked) + length <= peerWindow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits up to maxWaitMillis for the window to open; returns whether a segment may be sent
+    public boolean awaitSendable(double congestionWindow, int length, long maxWaitMillis)
+            throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            while (!canSend(congestionWindow, length)) {
+                if (remaining <= 0) return false;
+                remaining = changed.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onSent(long offset, int length, long nowNanos) {
+        lock.lock();
+        try {
+            if (!ackClocked) {
+                sent = offset + length;
+                return;
+            }
+            if (inFlight.isEmpty()) {
+                timerStart = nowNanos;
+            }
+            inFlight.addLast(new long[] {offset + length, nowNanos});
+            sent = offset + length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits up to maxWaitMillis for everything below offset to be acknowledged
+    public boolean awaitAcked(long offset, long maxWaitMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            while (acked < offset) {
+                if (remaining <= 0) return false;
+                remaining = changed.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the number of segments forgotten
+    public int rewind(long offset) {
+        lock.lock();
+        try {
+            if (offset < acked || offset >= sent) return 0;
+            int forgotten = 0;
+            while (!inFlight.isEmpty() && inFlight.peekLast()[0] > offset) {
+                inFlight.pollLast();
+                forgotten++;
+            }
+            sent = offset;
+            duplicateAcks = 0;
+            changed.signalAll();
+            return forgotten;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The transfer ended: forgets every unacknowledged segment, so ACKs still on their way for
+    // them acknowledge none. Returns the number of segments forgotten.
+    public int discard() {
+        lock.lock();
+        try {
+            int forgotten = inFlight.size();
+            inFlight.clear();
+            duplicateAcks = 0;
+            changed.signalAll();
+            return forgotten;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Ack onAck(long ackOffset, long advertisedWindow, long nowNanos) {
+        lock.lock();
+        try {
+            peerWindow = advertisedWindow;
+            if (ackOffset <= acked) {
+                changed.signalAll();
+                if (ackOffset == acked && !inFlight.isEmpty() && ++duplicateAcks == DUPLICATE_ACK_THRESHOLD) {
+                    return DUPLICATE_LOSS;
+                }
+                return NO_PROGRESS;
+            }
+            duplicateAcks = 0;
+
+            int segments = 0;
+            long newestSendTime = -1;
+            while (!inFlight.isEmpty() && inFlight.peekFirst()[0] <= ackOffset) {
+                newestSendTime = inFlight.pollFirst()[1];
+                segments++;
+            }
+            long bytes = ackOffset - acked;
+            acked = ackOffset;
+            timerStart = nowNanos;
+
+            double rttMillis = -1;
+            if (newestSendTime >= 0) {
+                rttMillis = (nowNanos - newestSendTime) / 1_000_000.0;
+                updateRto(rttMillis);
+            }
+            changed.signalAll();
+            return new Ack(segments, bytes, rttMillis, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateRto(double rttMillis) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rttMillis;
+            rttVariance = rttMillis / 2;
+        } else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - rttMillis);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rttMillis;
+        }
+        long rto = (long) Math.ceil(smoothedRtt + Math.max(1, 4 * rttVariance));
+        rtoMillis = Math.min(MAX_RTO_MILLIS, Math.max(MIN_RTO_MILLIS, rto));
+    }
+
+    // Returns true once per expired timer; the timeout is backed off exponentially until an ACK arrives
+    public boolean checkTimeout(long nowNanos) {
+        lock.lock();
+        try {
+            if (!ackClocked || inFlight.isEmpty()) return false;
+            if (nowNanos - timerStart < rtoMillis * 1_000_000L) return false;
+
+            timeouts++;
+            rtoMillis = Math.min(MAX_RTO_MILLIS, rtoMillis * 2);
+            timerStart = nowNanos;
+            changed.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Time left until checkTimeout() fires, Long.MAX_VALUE while the timer is not running
+    public long nanosUntilTimeout(long nowNanos) {
+        lock.lock();
+        try {
+            if (!ackClocked || inFlight.isEmpty()) return Long.MAX_VALUE;
+            return Math.max(0, timerStart + rtoMillis * 1_000_000L - nowNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isAckClocked() { return ackClocked; }
+
+    public long getAcked() {
+        lock.lock();
+        try {
+            return acked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSent() {
+        lock.lock();
+        try {
+            return sent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSegmentsInFlight() {
+        lock.lock();
+        try {
+            return inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytesInFlight() {
+        lock.lock();
+        try {
+            return sent - acked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getPeerWindow() {
+        lock.lock();
+        try {
+            return peerWindow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getSmoothedRtt() {
+        lock.lock();
+        try {
+            return smoothedRtt;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRtoMillis() {
+        lock.lock();
+        try {
+            return rtoMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTimeouts() {
+        lock.lock();
+        try {
+            return timeouts;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
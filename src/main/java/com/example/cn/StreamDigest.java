@@ -0,0 +1,59 @@
+package com.example.cn;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// SHA-256 of the bytes of a transfer, fed with the chunks as they pass through the data path so
+// the file is never read a second time. Chunks are addressed by file offset: bytes sent again
+// after a RESEND are skipped, so every byte is digested once and in order.
+//
+// A resumed transfer only digests what it moves, from its start offset on; both ends agree on
+// that because both start from the same offset.
+public final class StreamDigest {
+    private final MessageDigest sha256;
+    private long position;
+
+    public StreamDigest(long startOffset) {
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        position = startOffset;
+    }
+
+    public void update(long offset, byte[] data, int dataOffset, int length) {
+        int skip = skip(offset, length);
+        if (skip < length) {
+            sha256.update(data, dataOffset + skip, length - skip);
+            position = offset + length;
+        }
+    }
+
+    // Does not consume the buffer
+    public void update(long offset, ByteBuffer data) {
+        int length = data.remaining();
+        int skip = skip(offset, length);
+        if (skip < length) {
+            sha256.update(data.duplicate().position(data.position() + skip));
+            position = offset + length;
+        }
+    }
+
+    private int skip(long offset, int length) {
+        if (offset > position) {
+            throw new IllegalStateException("Digest gap: expected offset " + position + ", got " + offset);
+        }
+        return (int) Math.min(length, position - offset);
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public String finish() {
+        return HexFormat.of().formatHex(sha256.digest());
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.cn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// Writes an incoming transfer to "<name>.part" next to its target with positional FileChannel
+// writes, and renames it over the target on commit. Contiguous chunks are staged in a fixed-size
+// direct buffer, so memory per transfer is bounded by the buffer size regardless of file size.
+//
+// A resumable writer also keeps a TransferJournal: every -Dcn.transfer.checkpointBytes (default
+// 8 MB) or second the part file is forced to disk and the written ranges are confirmed in the
+// journal. Suspending keeps both files so a later transfer of the same source continues at the
+// durable offset instead of byte 0. With a checkpoint executor those periodic checkpoints force
+// the file on the executor, so a writer fed from a selector thread does not wait for the disk;
+// the ranges written until then are confirmed once the force is done.
+public final class StreamingFileWriter implements Closeable {
+    public static final String PART_SUFFIX = ".part";
+    private static final long CHECKPOINT_BYTES = Long.getLong("cn.transfer.checkpointBytes", 8L * 1024 * 1024);
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+    private final Path target;
+    private final Path partFile;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final TransferJournal journal;
+    private final long resumeOffset;
+    private long bufferStart = 0;
+    private long bytesReceived = 0;
+    private long endPosition = 0;
+    private long uncheckpointedBytes = 0;
+    private long lastCheckpoint = System.currentTimeMillis();
+    private boolean open = true;
+    private Executor checkpointExecutor;
+    // Checkpoint running on the executor, and the error of the last one
+    private CompletableFuture<Void> pendingCheckpoint;
+    private volatile IOException checkpointFailure;
+
+    public StreamingFileWriter(Path target, int bufferSize) throws IOException {
+        this(target, bufferSize, null, 0);
+    }
+
+    private StreamingFileWriter(Path target, int bufferSize, TransferJournal journal, long resumeOffset)
+            throws IOException {
+        this.target = target;
+        this.partFile = partFileFor(target);
+        this.channel = resumeOffset > 0
+                ? FileChannel.open(partFile, StandardOpenOption.WRITE)
+                : FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.journal = journal;
+        this.resumeOffset = resumeOffset;
+        this.bufferStart = resumeOffset;
+        this.endPosition = resumeOffset;
+    }
+
+    // Opens a resumable writer. An existing part file is continued only if its journal was written
+    // for the same source fingerprint and size; otherwise the transfer starts over.
+    public static StreamingFileWriter openResumable(Path target, int bufferSize, String fingerprint, long size)
+            throws IOException {
+        Path partFile = partFileFor(target);
+        TransferJournal journal = TransferJournal.load(partFile);
+        long resumeOffset = 0;
+        if (journal != null && journal.matches(fingerprint, size) && Files.exists(partFile)) {
+            resumeOffset = Math.min(journal.getDurableOffset(), Files.size(partFile));
+        }
+        if (resumeOffset == 0) {
+            journal = TransferJournal.create(partFile, fingerprint, size);
+            journal.save();
+        }
+        return new StreamingFileWriter(target, bufferSize, journal, resumeOffset);
+    }
+
+    // Periodic checkpoints of a resumable writer are forced on the executor from now on
+    public void setCheckpointExecutor(Executor executor) {
+        this.checkpointExecutor = executor;
+    }
+
+    // Reserves the full length up front so the file is not extended chunk by chunk
+    public void preallocate(long size) throws IOException {
+        if (size > channel.size()) {
+            channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+    }
+
+    public static Path partFileFor(Path target) {
+        return target.resolveSibling(target.getFileName() + PART_SUFFIX);
+    }
+
+    // Part files and their journals are hidden from file listings
+    public static boolean isPartFile(String name) {
+        return name.endsWith(PART_SUFFIX) || name.endsWith(PART_SUFFIX + TransferJournal.SUFFIX);
+    }
+
+    // Writes data at the given file position; returns the number of bytes consumed
+    public int write(long position, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (position != bufferStart + buffer.position()) {
+            flush();
+            bufferStart = position;
+        }
+
+        if (length >= buffer.capacity()) {
+            // Large chunks bypass the staging buffer
+            flush();
+            writeFully(data, position);
+            bufferStart = position + length;
+        } else {
+            if (buffer.remaining() < length) {
+                flush();
+                bufferStart = position;
+            }
+            buffer.put(data);
+        }
+
+        bytesReceived += length;
+        endPosition = Math.max(endPosition, position + length);
+        if (journal != null) {
+            journal.markWritten(position, position + length);
+            uncheckpointedBytes += length;
+            if (uncheckpointedBytes >= CHECKPOINT_BYTES
+                    || System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL_MILLIS) {
+                if (checkpointExecutor != null) {
+                    startCheckpoint();
+                } else {
+                    checkpoint();
+                }
+            }
+        }
+        return length;
+    }
+
+    // Checkpoint on the executor; if the previous one is still running, a later write starts it
+    private void startCheckpoint() throws IOException {
+        throwCheckpointFailure();
+        if (pendingCheckpoint != null && !pendingCheckpoint.isDone()) return;
+        flush();
+        List<long[]> ranges = journal.takeWritten();
+        uncheckpointedBytes = 0;
+        lastCheckpoint = System.currentTimeMillis();
+        pendingCheckpoint = CompletableFuture.runAsync(() -> {
+            try {
+                channel.force(false);
+                journal.confirm(ranges);
+            } catch (IOException e) {
+                checkpointFailure = e;
+            }
+        }, checkpointExecutor);
+    }
+
+    private void awaitCheckpoint() {
+        CompletableFuture<Void> pending = pendingCheckpoint;
+        pendingCheckpoint = null;
+        if (pending != null) {
+            pending.join();
+        }
+    }
+
+    private void throwCheckpointFailure() throws IOException {
+        IOException failure = checkpointFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Makes everything written so far durable and records it in the journal
+    public void checkpoint() throws IOException {
+        if (journal == null) return;
+        awaitCheckpoint();
+        throwCheckpointFailure();
+        flush();
+        channel.force(false);
+        journal.confirmWritten();
+        uncheckpointedBytes = 0;
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    public void flush() throws IOException {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        writeFully(buffer, bufferStart);
+        bufferStart += buffer.limit();
+        buffer.clear();
+    }
+
+    // Makes the data durable and moves the part file over the target
+    public Path commit() throws IOException {
+        flush();
+        if (channel.size() > endPosition) {
+            // Drop preallocated space that was never written
+            channel.truncate(endPosition);
+        }
+        channel.force(false);
+        close();
+        moveIntoPlace(partFile, target);
+        if (journal != null) {
+            journal.delete();
+        }
+        return target;
+    }
+
+    static void moveIntoPlace(Path partFile, Path target) throws IOException {
+        try {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public void abort() throws IOException {
+        close();
+        Files.deleteIfExists(partFile);
+        if (journal != null) {
+            journal.delete();
+        }
+    }
+
+    // Interrupted transfer: a resumable writer keeps its part file and journal, others are discarded
+    public void suspend() throws IOException {
+        if (journal == null) {
+            abort();
+            return;
+        }
+        try {
+            checkpoint();
+        } finally {
+            close();
+        }
+    }
+
+    public boolean isResumable() {
+        return journal != null;
+    }
+
+    // Offset the transfer continues at; 0 for a fresh part file
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (open) {
+            open = false;
+            // Neither forces a closed channel nor saves the journal after it was deleted
+            awaitCheckpoint();
+            channel.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+}
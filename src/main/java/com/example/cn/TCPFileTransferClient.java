@@ -2,6 +2,8 @@ package com.example.cn;
 
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
@@ -17,37 +19,20 @@ import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.concurrent.Task;
-import javafx.animation.Timeline;
-import javafx.animation.KeyFrame;
-import javafx.util.Duration;
 
 import java.io.*;
-import java.net.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLong;
-
-public class TCPFileTransferClient extends Application {
-    private static final int DEFAULT_PORT = 8080;
-    private static final String DEFAULT_HOST = "localhost";
-    private static final int PACKET_SIZE = 1024;
-    private static final int BUFFER_SIZE = 8192;
-
-    private SocketChannel clientChannel;
-    private Selector selector;
-    private ExecutorService threadPool;
-    private Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
-    private volatile boolean connected = false;
-    private volatile boolean running = false;
-    private StringBuilder messageBuffer = new StringBuilder();
-
-    // Connection settings
-    private String serverHost = DEFAULT_HOST;
-    private int serverPort = DEFAULT_PORT;
-    private File downloadDirectory;
+import java.util.concurrent.ConcurrentHashMap;
+
+// JavaFX front end for FileTransferClientEngine. The window only observes the engine; all
+// networking happens on the engine's own threads.
+public class TCPFileTransferClient extends Application implements ClientEngineListener {
+    private static final int DEFAULT_PORT = FileTransferClientEngine.DEFAULT_PORT;
+    private static final String DEFAULT_HOST = FileTransferClientEngine.DEFAULT_HOST;
+    // How often the charts are redrawn from the connection's metrics history
+    private static final long METRICS_REFRESH_MILLIS = 500;
+
+    private FileTransferClientEngine engine;
 
     // UI Components
     private TextField hostField, portField;
@@ -56,22 +41,33 @@ public class TCPFileTransferClient extends Application {
     private ComboBox<String> algorithmSelector;
     private TableView<FileInfo> fileTable;
     private ObservableList<FileInfo> serverFiles;
+    private TextField filterField;
+    private ComboBox<String> sortSelector;
+    private Label fileCountLabel;
+    // Paged file list, only touched on the FX thread: pages are requested as the table scrolls to
+    // its last row. Replies come in order, so the ones of a superseded query are counted and dropped.
+    private int totalFiles;
+    private int pendingPages;
+    private int stalePages;
     private Label downloadDirLabel;
+    private Label bufferStatsLabel;
     private Button selectDownloadDirButton;
 
     // Transfer components
     private ProgressBar transferProgress;
     private Label transferStatus;
-    private Button uploadButton, refreshButton;
+    // Savings of a delta upload, shown with its completion; only touched on the FX thread
+    private String uploadSavings = "";
+    private Button uploadButton, refreshButton, downloadSelectedButton;
+    // Latest progress figures posted by engine threads, applied once per frame by progressUpdate
+    private final UiUpdateScheduler uiScheduler = new UiUpdateScheduler();
+    private final UiUpdateScheduler.Update progressUpdate = uiScheduler.newUpdate(this::applyProgress);
+    private volatile double progress;
+    private final Map<String, String> fileStatuses = new ConcurrentHashMap<>();
 
     // Charts
     private LineChart<Number, Number> rttChart, cwndChart, throughputChart, packetLossChart;
-
-    // TCP Controller and transfer state
-    private ClientTCPController tcpController;
-    private FileTransferState transferState;
-    private Timeline visualizationTimer;
-    private AtomicLong lastActivity = new AtomicLong(System.currentTimeMillis());
+    private final MetricsCharts metricsCharts = new MetricsCharts();
 
     @Override
     public void start(Stage primaryStage) {
@@ -105,6 +101,9 @@ public class TCPFileTransferClient extends Application {
         primaryStage.setScene(scene);
         primaryStage.show();
 
+        uiScheduler.every(METRICS_REFRESH_MILLIS, this::updateVisualization);
+        uiScheduler.start();
+
         primaryStage.setOnCloseRequest(e -> {
             disconnect();
             Platform.exit();
@@ -113,16 +112,10 @@ public class TCPFileTransferClient extends Application {
     }
 
     private void initializeClient() {
-        threadPool = Executors.newCachedThreadPool();
         serverFiles = FXCollections.observableArrayList();
-        tcpController = new ClientTCPController();
-        transferState = new FileTransferState();
-
-        // Set default download directory
-        downloadDirectory = new File("downloads");
-        if (!downloadDirectory.exists()) {
-            downloadDirectory.mkdirs();
-        }
+        engine = new FileTransferClientEngine(new File(FileTransferClientEngine.DEFAULT_DOWNLOAD_DIR));
+        engine.addListener(this);
+        uiScheduler.onError(this::onError);
     }
 
     private VBox createConnectionPanel() {
@@ -168,13 +161,11 @@ public class TCPFileTransferClient extends Application {
         algorithmLabel.setStyle("-fx-font-weight: bold;");
 
         algorithmSelector = new ComboBox<>();
-        algorithmSelector.getItems().addAll("TCP_RENO", "TCP_TAHOE", "TCP_CUBIC");
-        algorithmSelector.setValue("TCP_RENO");
+        algorithmSelector.getItems().addAll(CongestionControllers.ids());
+        algorithmSelector.setValue(CongestionControllers.DEFAULT_ID);
         algorithmSelector.setOnAction(e -> {
-            if (connected) {
-                String selected = algorithmSelector.getValue();
-                tcpController.setAlgorithm(selected);
-                sendMessage("ALGORITHM:" + selected);
+            if (engine.isConnected()) {
+                engine.setAlgorithm(algorithmSelector.getValue());
             }
         });
 
@@ -206,11 +197,36 @@ public class TCPFileTransferClient extends Application {
         uploadButton.setOnAction(e -> selectAndUploadFile());
         uploadButton.setDisable(true);
 
-        buttonRow.getChildren().addAll(refreshButton, uploadButton);
+        // Downloads of the selected files run side by side when the server multiplexes
+        downloadSelectedButton = new Button("Download Selected");
+        downloadSelectedButton.setStyle("-fx-background-color: #28a745; -fx-text-fill: white;");
+        downloadSelectedButton.setOnAction(e -> {
+            for (FileInfo fileInfo : new ArrayList<>(fileTable.getSelectionModel().getSelectedItems())) {
+                downloadFile(fileInfo.getName());
+            }
+        });
+        downloadSelectedButton.setDisable(true);
+
+        filterField = new TextField();
+        filterField.setPromptText("Filter by name prefix");
+        filterField.setPrefWidth(200);
+        filterField.setOnAction(e -> refreshServerFiles());
+
+        sortSelector = new ComboBox<>();
+        sortSelector.getItems().addAll("Name", "Size", "Largest first");
+        sortSelector.setValue("Name");
+        sortSelector.setOnAction(e -> refreshServerFiles());
+
+        fileCountLabel = new Label("");
+        fileCountLabel.setStyle("-fx-font-size: 11px; -fx-text-fill: #6c757d;");
+
+        buttonRow.getChildren().addAll(refreshButton, uploadButton, downloadSelectedButton, filterField,
+                sortSelector, fileCountLabel);
 
         // File table
         fileTable = new TableView<>();
         fileTable.setPrefHeight(150);
+        fileTable.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
 
         TableColumn<FileInfo, String> nameColumn = new TableColumn<>("File Name");
         nameColumn.setCellValueFactory(new PropertyValueFactory<>("name"));
@@ -220,6 +236,10 @@ public class TCPFileTransferClient extends Application {
         sizeColumn.setCellValueFactory(new PropertyValueFactory<>("size"));
         sizeColumn.setPrefWidth(150);
 
+        TableColumn<FileInfo, String> statusColumn = new TableColumn<>("Status");
+        statusColumn.setCellValueFactory(new PropertyValueFactory<>("status"));
+        statusColumn.setPrefWidth(120);
+
         TableColumn<FileInfo, Void> actionColumn = new TableColumn<>("Action");
         actionColumn.setPrefWidth(150);
         actionColumn.setCellFactory(param -> new TableCell<FileInfo, Void>() {
@@ -240,12 +260,16 @@ public class TCPFileTransferClient extends Application {
                     setGraphic(null);
                 } else {
                     setGraphic(downloadBtn);
-                    downloadBtn.setDisable(!connected);
+                    downloadBtn.setDisable(!engine.isConnected());
+                    // The last loaded row came into view
+                    if (getIndex() >= serverFiles.size() - 1) {
+                        requestNextPage();
+                    }
                 }
             }
         });
 
-        fileTable.getColumns().addAll(nameColumn, sizeColumn, actionColumn);
+        fileTable.getColumns().addAll(List.of(nameColumn, sizeColumn, statusColumn, actionColumn));
         fileTable.setItems(serverFiles);
 
         // Transfer progress section
@@ -260,10 +284,14 @@ public class TCPFileTransferClient extends Application {
         transferStatus = new Label("Ready");
         transferStatus.setStyle("-fx-font-size: 12px;");
 
-        downloadDirLabel = new Label("Download Dir: " + downloadDirectory.getAbsolutePath());
+        downloadDirLabel = new Label("Download Dir: " + engine.getDownloadDirectory().getAbsolutePath());
         downloadDirLabel.setStyle("-fx-font-size: 11px; -fx-text-fill: #6c757d;");
 
-        progressSection.getChildren().addAll(progressLabel, transferProgress, transferStatus, downloadDirLabel);
+        bufferStatsLabel = new Label(engine.getBufferPool().describe());
+        bufferStatsLabel.setStyle("-fx-font-size: 11px; -fx-text-fill: #6c757d;");
+
+        progressSection.getChildren().addAll(progressLabel, transferProgress, transferStatus, downloadDirLabel,
+                bufferStatsLabel);
 
         filePanel.getChildren().addAll(buttonRow, fileTable, progressSection);
         return filePanel;
@@ -279,6 +307,10 @@ public class TCPFileTransferClient extends Application {
         throughputChart = createChart("Throughput", "Time (s)", "Mbps");
         packetLossChart = createChart("Packet Loss", "Time (s)", "Loss %");
 
+        HBox windowRow = new HBox(10);
+        windowRow.setAlignment(Pos.CENTER_LEFT);
+        windowRow.getChildren().addAll(new Label("Show:"), metricsCharts.getWindowSelector());
+
         // Layout charts in 2x2 grid
         HBox chartsRow1 = new HBox(15);
         chartsRow1.getChildren().addAll(rttChart, cwndChart);
@@ -286,7 +318,7 @@ public class TCPFileTransferClient extends Application {
         HBox chartsRow2 = new HBox(15);
         chartsRow2.getChildren().addAll(throughputChart, packetLossChart);
 
-        chartsPanel.getChildren().addAll(chartsRow1, chartsRow2);
+        chartsPanel.getChildren().addAll(windowRow, chartsRow1, chartsRow2);
         return chartsPanel;
     }
 
@@ -316,11 +348,11 @@ public class TCPFileTransferClient extends Application {
     private void selectDownloadDirectory() {
         DirectoryChooser directoryChooser = new DirectoryChooser();
         directoryChooser.setTitle("Select Download Directory");
-        directoryChooser.setInitialDirectory(downloadDirectory);
+        directoryChooser.setInitialDirectory(engine.getDownloadDirectory());
         File selectedDirectory = directoryChooser.showDialog(null);
         if (selectedDirectory != null) {
-            downloadDirectory = selectedDirectory;
-            downloadDirLabel.setText("Download Dir: " + downloadDirectory.getAbsolutePath());
+            engine.setDownloadDirectory(selectedDirectory);
+            downloadDirLabel.setText("Download Dir: " + selectedDirectory.getAbsolutePath());
         }
     }
 
@@ -328,6 +360,8 @@ public class TCPFileTransferClient extends Application {
     public static class FileInfo {
         private String name;
         private String size;
+        // Transfer of this file, empty while there is none
+        private final StringProperty status = new SimpleStringProperty("");
 
         public FileInfo(String name, String size) {
             this.name = name;
@@ -336,13 +370,45 @@ public class TCPFileTransferClient extends Application {
 
         public String getName() { return name; }
         public String getSize() { return size; }
+        public StringProperty statusProperty() { return status; }
+    }
+
+    // Any thread: the status column shows the latest status of each file on the next frame
+    private void postFileStatus(String filename, String status) {
+        fileStatuses.put(filename, status);
+        progressUpdate.request();
+    }
+
+    // Any thread
+    private void postProgress(double progress) {
+        this.progress = progress;
+        progressUpdate.request();
+    }
+
+    private void applyProgress() {
+        transferProgress.setProgress(progress);
+        for (String filename : fileStatuses.keySet()) {
+            String status = fileStatuses.remove(filename);
+            if (status != null) {
+                setFileStatus(filename, status);
+            }
+        }
+    }
+
+    // Only called on the FX thread
+    private void setFileStatus(String filename, String status) {
+        for (FileInfo fileInfo : serverFiles) {
+            if (fileInfo.getName().equals(filename)) {
+                fileInfo.statusProperty().set(status);
+            }
+        }
     }
 
-    // Rest of the methods remain the same as before, but with updated UI references
     private void connect() {
-        if (connected) return;
+        if (engine.isConnected()) return;
 
-        serverHost = hostField.getText().trim();
+        String serverHost = hostField.getText().trim();
+        int serverPort;
         try {
             serverPort = Integer.parseInt(portField.getText().trim());
         } catch (NumberFormatException e) {
@@ -354,63 +420,9 @@ public class TCPFileTransferClient extends Application {
             @Override
             protected Void call() throws Exception {
                 try {
-                    selector = Selector.open();
-                    clientChannel = SocketChannel.open();
-                    clientChannel.configureBlocking(false);
-
-                    clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
-                    clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
-                    clientChannel.setOption(StandardSocketOptions.SO_RCVBUF, 65536);
-                    clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, 65536);
-
-                    boolean connected = clientChannel.connect(new InetSocketAddress(serverHost, serverPort));
-
-                    if (!connected) {
-                        clientChannel.register(selector, SelectionKey.OP_CONNECT);
-                        int attempts = 0;
-                        while (attempts < 10 && !clientChannel.isConnected()) {
-                            selector.select(1000);
-                            Set<SelectionKey> keys = selector.selectedKeys();
-                            for (SelectionKey key : keys) {
-                                if (key.isConnectable()) {
-                                    if (clientChannel.finishConnect()) {
-                                        connected = true;
-                                        break;
-                                    }
-                                }
-                            }
-                            keys.clear();
-                            attempts++;
-                        }
-                    }
-
-                    if (clientChannel.isConnected()) {
-                        clientChannel.register(selector, SelectionKey.OP_READ);
-                        TCPFileTransferClient.this.connected = true;
-                        running = true;
-
-                        Platform.runLater(() -> {
-                            showStatus("Connected", true);
-                            connectButton.setDisable(true);
-                            disconnectButton.setDisable(false);
-                            refreshButton.setDisable(false);
-                            uploadButton.setDisable(false);
-                            hostField.setDisable(true);
-                            portField.setDisable(true);
-                        });
-
-                        startClientLoop();
-                        startVisualizationUpdates();
-                        Platform.runLater(() -> refreshServerFiles());
-
-                    } else {
-                        throw new IOException("Failed to connect to server");
-                    }
-
-                } catch (Exception e) {
-                    Platform.runLater(() -> {
-                        showStatus("Connection Failed", false);
-                    });
+                    engine.connect(serverHost, serverPort);
+                } catch (IOException e) {
+                    Platform.runLater(() -> showStatus("Connection Failed", false));
                     throw e;
                 }
                 return null;
@@ -423,37 +435,7 @@ public class TCPFileTransferClient extends Application {
     }
 
     private void disconnect() {
-        running = false;
-        connected = false;
-
-        try {
-            if (clientChannel != null && clientChannel.isOpen()) {
-                clientChannel.close();
-            }
-            if (selector != null && selector.isOpen()) {
-                selector.close();
-            }
-        } catch (IOException e) {
-            // Ignore
-        }
-
-        Platform.runLater(() -> {
-            showStatus("Disconnected", false);
-            connectButton.setDisable(false);
-            disconnectButton.setDisable(true);
-            refreshButton.setDisable(true);
-            uploadButton.setDisable(true);
-            hostField.setDisable(false);
-            portField.setDisable(false);
-
-            serverFiles.clear();
-            transferProgress.setProgress(0);
-            transferStatus.setText("Ready");
-        });
-
-        if (visualizationTimer != null) {
-            visualizationTimer.stop();
-        }
+        engine.disconnect();
     }
 
     private void showStatus(String status, boolean isConnected) {
@@ -466,616 +448,198 @@ public class TCPFileTransferClient extends Application {
     }
 
     private void refreshServerFiles() {
-        if (!connected) return;
-        sendMessage("LIST_FILES");
-    }
-
-    private void downloadFile(String filename) {
-        if (!connected) return;
-
-        transferStatus.setText("Requesting download: " + filename);
-        transferProgress.setProgress(0);
-
-        sendMessage("DOWNLOAD:" + filename);
-    }
-
-    private void selectAndUploadFile() {
-        if (!connected) return;
-
-        FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Select File to Upload");
-        File selectedFile = fileChooser.showOpenDialog(null);
-
-        if (selectedFile != null) {
-            uploadFile(selectedFile);
-        }
-    }
-
-    private void uploadFile(File file) {
-        transferState.startUpload(file);
-        transferStatus.setText("Uploading: " + file.getName());
-        transferProgress.setProgress(0);
-
-        sendMessage("UPLOAD:" + file.getName() + ";" + file.length());
-    }
-
-    // Include all the networking and message handling methods from the previous version
-    // (handleIncomingData, processServerMessage, etc.) with the same implementation
-    // but update UI references to use the new components
-
-    private void handleFileList(String data) {
-        Platform.runLater(() -> {
-            serverFiles.clear();
-            if (!data.isEmpty()) {
-                String[] files = data.split(";");
-                for (String file : files) {
-                    if (!file.trim().isEmpty()) {
-                        String[] parts = file.trim().split(" \\(");
-                        if (parts.length >= 2) {
-                            String name = parts[0];
-                            String size = parts[1].replace(")", "");
-                            serverFiles.add(new FileInfo(name, size));
-                        }
-                    }
-                }
-            }
-        });
+        if (!engine.isConnected()) return;
+        stalePages = pendingPages;
+        serverFiles.clear();
+        totalFiles = 0;
+        requestPage(0);
     }
 
-    private void saveDownloadedFile(String filename) {
-        try {
-            File saveFile = new File(downloadDirectory, filename);
-            try (FileOutputStream fos = new FileOutputStream(saveFile)) {
-                fos.write(transferState.getDownloadData());
-            }
-            Platform.runLater(() -> {
-                transferStatus.setText("Downloaded: " + filename + " to " + saveFile.getAbsolutePath());
-            });
-        } catch (IOException e) {
-            Platform.runLater(() -> {
-                transferStatus.setText("Error saving file: " + e.getMessage());
-            });
+    private void requestNextPage() {
+        if (pendingPages == 0 && serverFiles.size() < totalFiles && engine.isConnected()) {
+            requestPage(serverFiles.size());
         }
     }
 
-    // Add all other necessary methods from the previous implementation
-    // (TCP controller, file transfer state, networking methods, etc.)
-    // keeping the same logic but updating UI references
-    private void startClientLoop() {
-        Task<Void> clientTask = new Task<Void>() {
-            @Override
-            protected Void call() throws Exception {
-                while (running && !isCancelled()) {
-                    try {
-                        int readyChannels = selector.select(100);
-
-                        if (readyChannels > 0) {
-                            Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                            Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-
-                            while (keyIterator.hasNext()) {
-                                SelectionKey key = keyIterator.next();
-                                keyIterator.remove();
-
-                                try {
-                                    if (key.isReadable()) {
-                                        handleRead();
-                                    } else if (key.isWritable()) {
-                                        handleWrite();
-                                    }
-                                } catch (IOException e) {
-                                    Platform.runLater(() -> showStatus("Error in client loop: " + e.getMessage(), false));
-                                    Platform.runLater(() -> disconnect());
-                                    return null;
-                                }
-                            }
-                        }
-
-                        // Check connection health
-                        checkConnectionHealth();
-
-                    } catch (IOException e) {
-                        if (running) {
-                            Platform.runLater(() -> showStatus("Client loop error: " + e.getMessage(), false));
-                            Platform.runLater(() -> disconnect());
-                        }
-                        break;
-                    }
-                }
-                return null;
-            }
+    private void requestPage(int offset) {
+        String sort = switch (sortSelector.getValue()) {
+            case "Size" -> "size";
+            case "Largest first" -> "-size";
+            default -> "name";
         };
-
-        Thread clientThread = new Thread(clientTask);
-        clientThread.setDaemon(true);
-        clientThread.start();
+        pendingPages++;
+        engine.listFiles(offset, FileTransferClientEngine.LIST_PAGE_SIZE, filterField.getText().trim(), sort);
     }
 
-    private void handleRead() throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        int bytesRead = clientChannel.read(buffer);
-
-        if (bytesRead > 0) {
-            buffer.flip();
-            handleIncomingData(buffer);
-            lastActivity.set(System.currentTimeMillis());
-        } else if (bytesRead == -1) {
-            // Server closed connection
-            Platform.runLater(() -> {
-                showStatus("Server closed connection", false);
-                disconnect();
-            });
+    // Counts a reply to requestPage; false if it belongs to a superseded query
+    private boolean pageReceived() {
+        pendingPages = Math.max(0, pendingPages - 1);
+        if (stalePages > 0) {
+            stalePages--;
+            return false;
         }
+        return true;
     }
 
-    private void handleWrite() throws IOException {
-        boolean hasMoreData = false;
-
-        while (!writeQueue.isEmpty()) {
-            ByteBuffer buffer = writeQueue.peek();
-            int bytesWritten = clientChannel.write(buffer);
-
-            if (bytesWritten > 0) {
-                tcpController.onDataSent(bytesWritten, System.currentTimeMillis());
-            }
-
-            if (buffer.hasRemaining()) {
-                hasMoreData = true;
-                break;
-            } else {
-                writeQueue.poll();
-            }
-        }
-
-        // Update selector interest
-        SelectionKey key = clientChannel.keyFor(selector);
-        if (key != null && key.isValid()) {
-            if (hasMoreData) {
-                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-            } else {
-                key.interestOps(SelectionKey.OP_READ);
-            }
-        }
+    private void updateFileCount() {
+        fileCountLabel.setText(serverFiles.size() + " of " + totalFiles + " files");
     }
 
-    private void checkConnectionHealth() {
-        long currentTime = System.currentTimeMillis();
-
-        // Connection timeout (60 seconds)
-        if (currentTime - lastActivity.get() > 60000) {
-            Platform.runLater(() -> {
-                showStatus("Connection timed out", false);
-                disconnect();
-            });
-        }
-    }
-
-    private void handleIncomingData(ByteBuffer buffer) {
-        byte[] data = new byte[buffer.remaining()];
-        buffer.get(data);
-        String incomingData = new String(data);
-        messageBuffer.append(incomingData);
-
-        // Process complete messages (ending with newline)
-        String bufferContent = messageBuffer.toString();
-        String[] lines = bufferContent.split("\\r?\\n");
-
-        // Process all complete lines except the last one (which might be incomplete)
-        for (int i = 0; i < lines.length; i++) {
-            String message = lines[i].trim();
-            if (!message.isEmpty()) {
-                // Check if this is the last line and buffer doesn't end with newline
-                if (i == lines.length - 1 && !bufferContent.endsWith("\n") && !bufferContent.endsWith("\r\n")) {
-                    // This is an incomplete message, keep it in buffer
-                    messageBuffer.setLength(0);
-                    messageBuffer.append(message);
-                    break;
-                } else {
-                    // Complete message, process it
-                    processServerMessage(message);
-                }
-            }
-        }
-
-        // If buffer ended with newline, clear the buffer completely
-        if (bufferContent.endsWith("\n") || bufferContent.endsWith("\r\n")) {
-            messageBuffer.setLength(0);
-        }
-    }
+    private void downloadFile(String filename) {
+        if (!engine.isConnected()) return;
 
-    private void processServerMessage(String message) {
-        String[] parts = message.split(":", 2);
-        if (parts.length < 1) return;
-
-        String command = parts[0].trim();
-        String data = parts.length > 1 ? parts[1].trim() : "";
-
-        switch (command) {
-            case "FILE_LIST":
-                handleFileList(data);
-                break;
-            case "DOWNLOAD_START":
-                handleDownloadStart(data);
-                break;
-            case "FILE_DATA":
-                handleFileData(data);
-                break;
-            case "DOWNLOAD_COMPLETE":
-                handleDownloadComplete(data);
-                break;
-            case "UPLOAD_READY":
-                handleUploadReady(data);
-                break;
-            case "UPLOAD_COMPLETE":
-                handleUploadComplete(data);
-                break;
-            case "ERROR":
-                handleError(data);
-                break;
-            case "PONG":
-                handlePong(data);
-                break;
-            default:
-                break;
-        }
-    }
+        transferStatus.setText("Requesting download: " + filename);
+        postFileStatus(filename, "Queued");
 
-    private void handleDownloadStart(String data) {
-        String[] parts = data.split(";");
-        if (parts.length >= 2) {
-            String filename = parts[0];
-            long fileSize = Long.parseLong(parts[1]);
-            transferState.startDownload(filename, fileSize);
-
-            Platform.runLater(() -> {
-                transferStatus.setText("Downloading: " + filename);
-                transferProgress.setProgress(0);
-            });
-        }
+        engine.download(filename);
     }
 
-    private void handleFileData(String data) {
-        try {
-            byte[] fileData = Base64.getDecoder().decode(data);
-            transferState.addDownloadData(fileData);
+    private void selectAndUploadFile() {
+        if (!engine.isConnected()) return;
 
-            Platform.runLater(() -> {
-                if (transferState.getFileSize() > 0) {
-                    double progress = (double) transferState.getTransferred() / transferState.getFileSize();
-                    transferProgress.setProgress(progress);
-                }
-            });
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Select File to Upload");
+        File selectedFile = fileChooser.showOpenDialog(null);
 
-        } catch (Exception e) {
-            Platform.runLater(() -> transferStatus.setText("Error processing file data: " + e.getMessage()));
+        if (selectedFile != null) {
+            engine.upload(selectedFile);
         }
     }
 
-    private void handleDownloadComplete(String filename) {
+    // Engine callbacks arrive on engine threads and are handed to the FX thread
+
+    @Override
+    public void onConnected(String host, int port) {
         Platform.runLater(() -> {
-            transferStatus.setText("Download completed");
-            transferProgress.setProgress(1.0);
+            showStatus("Connected", true);
+            connectButton.setDisable(true);
+            disconnectButton.setDisable(false);
+            refreshButton.setDisable(false);
+            uploadButton.setDisable(false);
+            downloadSelectedButton.setDisable(false);
+            hostField.setDisable(true);
+            portField.setDisable(true);
+            refreshServerFiles();
         });
-
-        // Save downloaded file
-        saveDownloadedFile(filename);
     }
 
-    private void handleUploadReady(String filename) {
-        // Start sending file data
-        startFileUpload();
+    @Override
+    public void onDisconnected(String reason) {
+        Platform.runLater(() -> {
+            showStatus(reason != null ? reason : "Disconnected", false);
+            connectButton.setDisable(false);
+            disconnectButton.setDisable(true);
+            refreshButton.setDisable(true);
+            uploadButton.setDisable(true);
+            downloadSelectedButton.setDisable(true);
+            hostField.setDisable(false);
+            portField.setDisable(false);
+
+            serverFiles.clear();
+            totalFiles = 0;
+            pendingPages = 0;
+            stalePages = 0;
+            fileCountLabel.setText("");
+            postProgress(0);
+            transferStatus.setText("Ready");
+        });
     }
 
-    private void handleUploadComplete(String filename) {
+    @Override
+    public void onFileList(List<FileTransferClientEngine.RemoteFile> files) {
+        // Servers that do not page answer every request with the whole list
         Platform.runLater(() -> {
-            transferStatus.setText("Upload completed");
-            transferProgress.setProgress(1.0);
+            if (!pageReceived()) return;
+            serverFiles.clear();
+            for (FileTransferClientEngine.RemoteFile file : files) {
+                serverFiles.add(new FileInfo(file.getName(), file.getSize()));
+            }
+            totalFiles = serverFiles.size();
+            updateFileCount();
         });
     }
 
-    private void handleError(String error) {
+    @Override
+    public void onFilePage(int offset, int total, List<FileTransferClientEngine.RemoteFile> files) {
         Platform.runLater(() -> {
-            transferStatus.setText("Error: " + error);
+            if (!pageReceived() || offset != serverFiles.size()) return;
+            for (FileTransferClientEngine.RemoteFile file : files) {
+                serverFiles.add(new FileInfo(file.getName(), file.getSize()));
+            }
+            totalFiles = files.isEmpty() ? serverFiles.size() : total;
+            updateFileCount();
         });
     }
 
-    private void handlePong(String timestamp) {
-        try {
-            long pingTime = Long.parseLong(timestamp);
-            long rtt = System.currentTimeMillis() - pingTime;
-            tcpController.onAckReceived(System.currentTimeMillis(), rtt);
-        } catch (NumberFormatException e) {
-            // Ignore invalid timestamp
-        }
+    @Override
+    public void onTransferStarted(String filename, boolean upload) {
+        postFileStatus(filename, "0%");
+        Platform.runLater(() -> transferStatus.setText((upload ? "Uploading: " : "Downloading: ") + filename));
     }
 
-    private void startFileUpload() {
-        if (transferState.getUploadFile() == null) return;
-
-        Task<Void> uploadTask = new Task<Void>() {
-            @Override
-            protected Void call() throws Exception {
-                File file = transferState.getUploadFile();
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    byte[] buffer = new byte[PACKET_SIZE];
-                    int bytesRead;
-                    long totalBytes = file.length();
-                    long transferredBytes = 0;
-
-                    while ((bytesRead = fis.read(buffer)) != -1 && connected) {
-                        // Apply TCP flow control
-                        while (tcpController.getCongestionWindow() <= 0 && connected) {
-                            Thread.sleep(1);
-                        }
-
-                        if (!connected) break;
-
-                        // Encode and send data
-                        byte[] packet = Arrays.copyOf(buffer, bytesRead);
-                        String encodedData = Base64.getEncoder().encodeToString(packet);
-                        sendMessage("UPLOAD_DATA:" + encodedData);
-
-                        transferredBytes += bytesRead;
-                        transferState.setTransferred(transferredBytes);
-
-                        // Update progress
-                        double progress = (double) transferredBytes / totalBytes;
-
-                        Platform.runLater(() -> {
-                            transferProgress.setProgress(progress);
-                        });
-
-                        // Real network backpressure handling
-                        if (writeQueue.size() > 50) {
-                            Thread.sleep(10);
-                        }
-                    }
-
-                } catch (Exception e) {
-                    Platform.runLater(() -> {
-                        transferStatus.setText("Upload failed");
-                    });
-                }
-                return null;
-            }
-        };
-
-        Thread uploadThread = new Thread(uploadTask);
-        uploadThread.setDaemon(true);
-        uploadThread.start();
+    // Fired for every chunk; only the latest figures reach the window, on the next frame
+    @Override
+    public void onTransferProgress(double progress) {
+        postProgress(progress);
     }
 
-    private void sendMessage(String message) {
-        if (!connected) return;
-
-        byte[] data = (message + "\n").getBytes();
-        ByteBuffer buffer = ByteBuffer.allocate(data.length);
-        buffer.put(data);
-        buffer.flip();
-
-        writeQueue.offer(buffer);
-
-        // Register for write operation
-        try {
-            SelectionKey key = clientChannel.keyFor(selector);
-            if (key != null && key.isValid()) {
-                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                selector.wakeup();
-            }
-        } catch (Exception e) {
-            // Ignore
-        }
+    @Override
+    public void onTransferProgress(String filename, boolean upload, double progress) {
+        postFileStatus(filename, (int) (progress * 100) + "%");
     }
 
-    private void startVisualizationUpdates() {
-        visualizationTimer = new Timeline(new KeyFrame(Duration.millis(500), e -> updateVisualization()));
-        visualizationTimer.setCycleCount(Timeline.INDEFINITE);
-        visualizationTimer.play();
+    @Override
+    public void onDownloadComplete(String filename, File savedFile) {
+        postProgress(1.0);
+        postFileStatus(filename, "Done");
+        String status = "Downloaded: " + filename + " to " + savedFile.getAbsolutePath();
+        Platform.runLater(() -> transferStatus.setText(status));
     }
 
-    private void updateVisualization() {
-        if (!connected) return;
-
+    @Override
+    public void onUploadComplete(String filename) {
+        postProgress(1.0);
+        postFileStatus(filename, "Done");
         Platform.runLater(() -> {
-            // Update charts
-            long currentTime = (System.currentTimeMillis() - tcpController.getStartTime()) / 1000;
-            updateChart(rttChart, currentTime, tcpController.getCurrentRTT());
-            updateChart(cwndChart, currentTime, tcpController.getCongestionWindow());
-            updateChart(throughputChart, currentTime, tcpController.getCurrentThroughput() / 1_000_000);
-            updateChart(packetLossChart, currentTime, tcpController.getPacketLossRate() * 100);
+            transferStatus.setText("Upload completed" + uploadSavings);
+            uploadSavings = "";
         });
-
-        // Send periodic ping to measure RTT every 10 seconds instead of 5
-        if (System.currentTimeMillis() % 10000 < 500) { // Every 10 seconds
-            sendMessage("PING:" + System.currentTimeMillis());
-        }
     }
 
-    private void updateChart(LineChart<Number, Number> chart, long time, double value) {
-        if (chart == null || chart.getData().isEmpty()) return;
-
-        XYChart.Series<Number, Number> series = chart.getData().get(0);
-        series.getData().add(new XYChart.Data<>(time, value));
-
-        // Keep only last 100 points
-        if (series.getData().size() > 100) {
-            series.getData().remove(0);
-        }
+    @Override
+    public void onDeltaUploaded(String filename, long sentBytes, long savedBytes) {
+        String savings = " (delta sync: " + FileTransferServerEngine.formatFileSize(sentBytes) + " sent, "
+                + FileTransferServerEngine.formatFileSize(savedBytes) + " saved)";
+        Platform.runLater(() -> uploadSavings = savings);
     }
 
-    // File transfer state management
-    private class FileTransferState {
-        private File uploadFile;
-        private String downloadFilename;
-        private long fileSize = 0;
-        private long transferred = 0;
-        private long startTime = 0;
-        private ByteArrayOutputStream downloadBuffer = new ByteArrayOutputStream();
-
-        public void startUpload(File file) {
-            this.uploadFile = file;
-            this.fileSize = file.length();
-            this.transferred = 0;
-            this.startTime = System.currentTimeMillis();
-            this.downloadBuffer.reset();
-        }
-
-        public void startDownload(String filename, long fileSize) {
-            this.downloadFilename = filename;
-            this.fileSize = fileSize;
-            this.transferred = 0;
-            this.startTime = System.currentTimeMillis();
-            this.downloadBuffer.reset();
-        }
-
-        public void addDownloadData(byte[] data) {
-            try {
-                downloadBuffer.write(data);
-                transferred += data.length;
-            } catch (IOException e) {
-                // Should not happen with ByteArrayOutputStream
-            }
-        }
-
-        public void setTransferred(long transferred) {
-            this.transferred = transferred;
-        }
-
-        public File getUploadFile() { return uploadFile; }
-        public String getDownloadFilename() { return downloadFilename; }
-        public long getFileSize() { return fileSize; }
-        public long getTransferred() { return transferred; }
-        public long getStartTime() { return startTime; }
-        public byte[] getDownloadData() { return downloadBuffer.toByteArray(); }
+    @Override
+    public void onTransferFailed(String message) {
+        Platform.runLater(() -> transferStatus.setText(message));
     }
 
-    // Client TCP Controller implementation
-    private class ClientTCPController {
-        private String algorithm = "TCP_RENO";
-        private double congestionWindow = 1.0;
-        private double ssthresh = 64.0;
-        private double currentRTT = 100.0;
-        private int receiveWindow = 65535;
-        private boolean slowStart = true;
-        private int duplicateAcks = 0;
-        private long startTime;
-        private long lastAckTime;
-        private long totalBytesSent = 0;
-        private int packetsLost = 0;
-        private int totalPackets = 0;
-        private long lastThroughputUpdate = 0;
-        private double currentThroughput = 0;
-        private Queue<Long> rttSamples = new LinkedList<>();
-
-        public ClientTCPController() {
-            this.startTime = System.currentTimeMillis();
-            this.lastAckTime = startTime;
-            this.lastThroughputUpdate = startTime;
-        }
-
-        public void setAlgorithm(String algorithm) {
-            this.algorithm = algorithm;
-            congestionWindow = 1.0;
-            ssthresh = 64.0;
-            slowStart = true;
-            duplicateAcks = 0;
-        }
-
-        public void onDataSent(int bytes, long timestamp) {
-            totalBytesSent += bytes;
-            totalPackets++;
-
-            if (congestionWindow > 0) {
-                congestionWindow = Math.max(0, congestionWindow - 1.0);
-            }
-
-            updateThroughput();
-        }
-
-        public void onAckReceived(long timestamp, long rtt) {
-            rttSamples.offer(rtt);
-
-            while (rttSamples.size() > 10) {
-                rttSamples.poll();
-            }
-
-            currentRTT = rttSamples.stream().mapToLong(Long::longValue).average().orElse(currentRTT);
-            lastAckTime = timestamp;
-            duplicateAcks = 0;
-
-            switch (algorithm) {
-                case "TCP_RENO":
-                    handleRenoAck();
-                    break;
-                case "TCP_TAHOE":
-                    handleTahoeAck();
-                    break;
-                case "TCP_CUBIC":
-                    handleCubicAck();
-                    break;
-            }
-        }
-
-        private void handleRenoAck() {
-            if (slowStart) {
-                congestionWindow += 1.0;
-                if (congestionWindow >= ssthresh) {
-                    slowStart = false;
-                }
-            } else {
-                congestionWindow += 1.0 / congestionWindow;
-            }
-
-            if (congestionWindow > receiveWindow) {
-                congestionWindow = receiveWindow;
-            }
-        }
-
-        private void handleTahoeAck() {
-            if (slowStart) {
-                congestionWindow += 1.0;
-                if (congestionWindow >= ssthresh) {
-                    slowStart = false;
-                }
-            } else {
-                congestionWindow += 1.0 / congestionWindow;
-            }
-
-            if (congestionWindow > receiveWindow) {
-                congestionWindow = receiveWindow;
-            }
-        }
-
-        private void handleCubicAck() {
-            congestionWindow += Math.cbrt(1.0);
-            if (congestionWindow > receiveWindow) {
-                congestionWindow = receiveWindow;
-            }
-        }
-
-        private void updateThroughput() {
-            long now = System.currentTimeMillis();
-            long interval = now - lastThroughputUpdate;
-
-            if (interval > 1000) {
-                if (interval > 0) {
-                    currentThroughput = (totalBytesSent * 8.0) / (interval / 1000.0);
-                    lastThroughputUpdate = now;
-                    totalBytesSent = 0;
-                }
-            }
-        }
+    @Override
+    public void onError(String message) {
+        Platform.runLater(() -> transferStatus.setText("Error: " + message));
+    }
 
-        // Getters
-        public double getCongestionWindow() { return Math.max(1.0, congestionWindow); }
-        public double getSSThresh() { return ssthresh; }
-        public double getCurrentRTT() { return currentRTT; }
-        public int getReceiveWindow() { return receiveWindow; }
-        public double getCurrentThroughput() { return currentThroughput; }
-        public double getPacketLossRate() {
-            return totalPackets == 0 ? 0 : (double) packetsLost / totalPackets;
-        }
-        public long getStartTime() { return startTime; }
+    private void updateVisualization() {
+        if (!engine.isConnected()) return;
+
+        // Charts are drawn from the connection's metrics history
+        FlowController tcpController = engine.getTcpController();
+        MetricsHistory history = tcpController.getHistory();
+        metricsCharts.render(rttChart, history, MetricsHistory.RTT, 1);
+        metricsCharts.render(cwndChart, history, MetricsHistory.CWND, 1);
+        metricsCharts.render(throughputChart, history, MetricsHistory.THROUGHPUT, 1e-6);
+        metricsCharts.render(packetLossChart, history, MetricsHistory.LOSS, 100);
+        // Path model of model-based controllers, next to the measured values
+        if (tcpController.getBottleneckBandwidth() >= 0) {
+            metricsCharts.render(rttChart, "Min RTT", history, MetricsHistory.MIN_RTT, 1);
+            metricsCharts.render(cwndChart, "Pacing gain", history, MetricsHistory.PACING_GAIN, 1);
+            metricsCharts.render(throughputChart, "BtlBw", history, MetricsHistory.BOTTLENECK_BANDWIDTH, 8e-6);
+        }
+        bufferStatsLabel.setText(engine.getBufferPool().describe());
     }
 
     public static void main(String[] args) {
@@ -13,39 +13,30 @@ import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
-import javafx.concurrent.Task;
-import javafx.animation.Timeline;
-import javafx.animation.KeyFrame;
-import javafx.util.Duration;
 
 import java.io.*;
-import java.net.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
-
-public class TCPFileTransferServer extends Application {
-    private static int SERVER_PORT = 8080;
-    private static final String UPLOAD_DIR = "uploads";
-    private static final int PACKET_SIZE = 1024;
-    private static final int MAX_WINDOW_SIZE = 65535;
-
-    private ServerSocketChannel serverChannel;
-    private Selector selector;
-    private ExecutorService threadPool;
-    private Map<SocketChannel, ClientSession> activeSessions;
+import java.util.concurrent.ConcurrentHashMap;
+
+// JavaFX front end for FileTransferServerEngine. The window only observes the engine; all
+// networking happens on the engine's own threads.
+public class TCPFileTransferServer extends Application implements ServerEngineListener {
+    private static int SERVER_PORT = FileTransferServerEngine.DEFAULT_PORT;
+    // Hard cap on log lines kept in the list view
+    private static final int MAX_LOG_ENTRIES = Integer.getInteger("cn.log.maxEntries", 500);
+    // How often the metrics of every client tab are refreshed
+    private static final long METRICS_REFRESH_MILLIS = 500;
+
+    private FileTransferServerEngine engine;
+    // Added and removed on the FX thread, looked up by engine threads to post progress
+    private final Map<FileTransferServerEngine.ClientSession, SessionView> sessionViews = new ConcurrentHashMap<>();
+    // Every periodic refresh and progress update of the window goes through it, one batch per frame
+    private final UiUpdateScheduler uiScheduler = new UiUpdateScheduler();
     private ObservableList<String> logMessages;
     private ListView<String> logListView;
     private TabPane clientVisualizationTabs;
-    private File uploadDirectory;
-    private volatile boolean running = false;
     private Label statusIndicator;
     private Label uploadDirLabel;
-    private AtomicInteger clientCounter = new AtomicInteger(0);
 
     @Override
     public void start(Stage primaryStage) {
@@ -70,23 +61,25 @@ public class TCPFileTransferServer extends Application {
         primaryStage.setScene(scene);
         primaryStage.show();
 
+        uiScheduler.every(METRICS_REFRESH_MILLIS, this::refreshSessionViews);
+        uiScheduler.start();
+
         startServer();
 
         primaryStage.setOnCloseRequest(e -> {
             stopServer();
+            engine.getLogger().close();
             Platform.exit();
             System.exit(0);
         });
     }
 
     private void initializeServer() {
-        threadPool = Executors.newCachedThreadPool();
-        activeSessions = new ConcurrentHashMap<>();
         logMessages = FXCollections.observableArrayList();
-        uploadDirectory = new File(UPLOAD_DIR);
-        if (!uploadDirectory.exists()) {
-            uploadDirectory.mkdirs();
-        }
+        engine = new FileTransferServerEngine(SERVER_PORT, new File(FileTransferServerEngine.DEFAULT_UPLOAD_DIR));
+        engine.addListener(this);
+        engine.getLogger().addSink(this::appendLogBatch);
+        uiScheduler.onError(engine.getLogger()::error);
     }
 
     private VBox createControlPanel() {
@@ -110,7 +103,7 @@ public class TCPFileTransferServer extends Application {
         dirRow.setAlignment(javafx.geometry.Pos.CENTER_LEFT);
         Button selectUploadDir = new Button("Select Upload Directory");
         selectUploadDir.setOnAction(e -> selectUploadDirectory());
-        uploadDirLabel = new Label("Upload Dir: " + uploadDirectory.getAbsolutePath());
+        uploadDirLabel = new Label("Upload Dir: " + engine.getUploadDirectory().getAbsolutePath());
         uploadDirLabel.setStyle("-fx-font-size: 11px;");
         dirRow.getChildren().addAll(selectUploadDir, uploadDirLabel);
 
@@ -121,16 +114,24 @@ public class TCPFileTransferServer extends Application {
         activeClientsLabel.setStyle("-fx-font-weight: bold;");
         Label clientCountLabel = new Label("0");
         clientCountLabel.setStyle("-fx-font-weight: bold; -fx-text-fill: blue;");
-        clientsRow.getChildren().addAll(activeClientsLabel, clientCountLabel);
-
-        // Update client count periodically
-        Timeline timeline = new Timeline(new KeyFrame(Duration.seconds(1), e -> {
-            clientCountLabel.setText(String.valueOf(activeSessions.size()));
-        }));
-        timeline.setCycleCount(Timeline.INDEFINITE);
-        timeline.play();
+        Label loopStatsLabel = new Label("Loops: -");
+        loopStatsLabel.setStyle("-fx-font-size: 11px;");
+        clientsRow.getChildren().addAll(activeClientsLabel, clientCountLabel, new Separator(), loopStatsLabel);
+
+        Label bufferStatsLabel = new Label(engine.getBufferPool().describe());
+        bufferStatsLabel.setStyle("-fx-font-size: 11px;");
+        Label cacheStatsLabel = new Label(engine.getHotFileCache().describe());
+        cacheStatsLabel.setStyle("-fx-font-size: 11px;");
+
+        // Update client count, per-loop load, buffer pool and hot file cache usage periodically
+        uiScheduler.every(1000, () -> {
+            clientCountLabel.setText(String.valueOf(engine.getActiveSessionCount()));
+            loopStatsLabel.setText(engine.describeWorkerLoops());
+            bufferStatsLabel.setText(engine.getBufferPool().describe());
+            cacheStatsLabel.setText(engine.getHotFileCache().describe());
+        });
 
-        controlPanel.getChildren().addAll(statusRow, dirRow, clientsRow);
+        controlPanel.getChildren().addAll(statusRow, dirRow, clientsRow, bufferStatsLabel, cacheStatsLabel);
         return controlPanel;
     }
 
@@ -149,193 +150,110 @@ public class TCPFileTransferServer extends Application {
     private void selectUploadDirectory() {
         DirectoryChooser directoryChooser = new DirectoryChooser();
         directoryChooser.setTitle("Select Upload Directory");
-        directoryChooser.setInitialDirectory(uploadDirectory);
+        directoryChooser.setInitialDirectory(engine.getUploadDirectory());
         File selectedDirectory = directoryChooser.showDialog(null);
         if (selectedDirectory != null) {
-            uploadDirectory = selectedDirectory;
-            uploadDirLabel.setText("Upload Dir: " + uploadDirectory.getAbsolutePath());
-            addLogMessage("Upload directory changed to: " + uploadDirectory.getAbsolutePath());
+            engine.setUploadDirectory(selectedDirectory);
+            uploadDirLabel.setText("Upload Dir: " + selectedDirectory.getAbsolutePath());
+            engine.getLogger().info("Upload directory changed to: " + selectedDirectory.getAbsolutePath());
         }
     }
 
     private void startServer() {
-        Task<Void> serverTask = new Task<Void>() {
-            @Override
-            protected Void call() throws Exception {
-                try {
-                    selector = Selector.open();
-                    serverChannel = ServerSocketChannel.open();
-                    serverChannel.configureBlocking(false);
-
-                    // Configure socket options for real network performance
-                    serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-                    serverChannel.bind(new InetSocketAddress(SERVER_PORT));
-                    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-
-                    running = true;
-                    addLogMessage("Server started on port " + SERVER_PORT);
-                    Platform.runLater(() -> {
-                        statusIndicator.setText("RUNNING");
-                        statusIndicator.setStyle("-fx-text-fill: green; -fx-font-weight: bold;");
-                    });
-
-                    while (running && !isCancelled()) {
-                        int readyChannels = selector.select(100);
-
-                        if (readyChannels > 0) {
-                            Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                            Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-
-                            while (keyIterator.hasNext()) {
-                                SelectionKey key = keyIterator.next();
-                                keyIterator.remove();
-
-                                try {
-                                    if (key.isAcceptable()) {
-                                        handleAccept();
-                                    } else if (key.isReadable()) {
-                                        handleRead(key);
-                                    } else if (key.isWritable()) {
-                                        handleWrite(key);
-                                    }
-                                } catch (IOException e) {
-                                    addLogMessage("Error handling client operation: " + e.getMessage());
-                                    cleanupClient(key);
-                                }
-                            }
-                        }
-
-                        // Check for dead connections
-                        checkDeadConnections();
-                    }
-                } catch (IOException e) {
-                    if (running) {
-                        addLogMessage("Server error: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                } finally {
-                    cleanup();
-                }
-                return null;
-            }
-        };
-
-        Thread serverThread = new Thread(serverTask);
-        serverThread.setDaemon(true);
-        serverThread.start();
+        try {
+            engine.start();
+        } catch (IOException e) {
+            engine.getLogger().error("Server error: " + e.getMessage());
+            statusIndicator.setText("FAILED");
+            statusIndicator.setStyle("-fx-text-fill: red; -fx-font-weight: bold;");
+        }
     }
 
-    private void handleAccept() throws IOException {
-        SocketChannel clientChannel = serverChannel.accept();
-        if (clientChannel != null) {
-            clientChannel.configureBlocking(false);
-
-            // Configure socket options for optimal performance
-            clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
-            clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
-            clientChannel.setOption(StandardSocketOptions.SO_RCVBUF, 65536);
-            clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, 65536);
-
-            String clientAddress = clientChannel.getRemoteAddress().toString();
-            int clientNumber = clientCounter.incrementAndGet();
-            String clientId = "Client-" + clientNumber + " (" + clientAddress + ")";
-
-            ClientSession session = new ClientSession(clientChannel, clientId);
-            SelectionKey clientKey = clientChannel.register(selector, SelectionKey.OP_READ);
-            clientKey.attach(session);
-
-            activeSessions.put(clientChannel, session);
-            Platform.runLater(() -> createClientVisualizationTab(clientId, session));
-            addLogMessage("New client connected: " + clientId);
+    private void stopServer() {
+        if (engine != null) {
+            engine.stop();
         }
     }
 
-    private void handleRead(SelectionKey key) {
-        ClientSession session = (ClientSession) key.attachment();
-        SocketChannel clientChannel = (SocketChannel) key.channel();
+    // Engine callbacks arrive on engine threads and are handed to the FX thread
 
-        try {
-            ByteBuffer buffer = ByteBuffer.allocate(8192);
-            int bytesRead = clientChannel.read(buffer);
-
-            if (bytesRead > 0) {
-                buffer.flip();
-                session.handleIncomingData(buffer);
-                session.updateLastActivity();
-            } else if (bytesRead == -1) {
-                // Client disconnected
-                handleClientDisconnect(clientChannel, session);
-            }
-        } catch (IOException e) {
-            addLogMessage("Error reading from client " + session.getClientId() + ": " + e.getMessage());
-            handleClientDisconnect(clientChannel, session);
-        }
+    @Override
+    public void onServerStarted(int port) {
+        Platform.runLater(() -> {
+            statusIndicator.setText("RUNNING");
+            statusIndicator.setStyle("-fx-text-fill: green; -fx-font-weight: bold;");
+        });
     }
 
-    private void handleWrite(SelectionKey key) {
-        ClientSession session = (ClientSession) key.attachment();
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-
-        try {
-            boolean hasMoreData = session.handleOutgoingData(clientChannel);
-            if (!hasMoreData) {
-                key.interestOps(SelectionKey.OP_READ);
-            }
-        } catch (IOException e) {
-            addLogMessage("Error writing to client " + session.getClientId() + ": " + e.getMessage());
-            handleClientDisconnect(clientChannel, session);
-        }
+    @Override
+    public void onServerStopped() {
+        Platform.runLater(() -> {
+            statusIndicator.setText("STOPPED");
+            statusIndicator.setStyle("-fx-text-fill: red; -fx-font-weight: bold;");
+        });
     }
 
-    private void checkDeadConnections() {
-        long currentTime = System.currentTimeMillis();
-        List<SocketChannel> deadConnections = new ArrayList<>();
+    @Override
+    public void onSessionOpened(FileTransferServerEngine.ClientSession session) {
+        Platform.runLater(() -> createClientVisualizationTab(session));
+    }
 
-        for (Map.Entry<SocketChannel, ClientSession> entry : activeSessions.entrySet()) {
-            ClientSession session = entry.getValue();
-            if (currentTime - session.getLastActivity() > 60000) { // 60 seconds timeout
-                deadConnections.add(entry.getKey());
+    @Override
+    public void onSessionClosed(FileTransferServerEngine.ClientSession session) {
+        Platform.runLater(() -> {
+            SessionView view = sessionViews.remove(session);
+            if (view != null) {
+                clientVisualizationTabs.getTabs().remove(view.tab);
             }
-        }
+        });
+    }
 
-        for (SocketChannel channel : deadConnections) {
-            SelectionKey key = channel.keyFor(selector);
-            if (key != null) {
-                cleanupClient(key);
+    @Override
+    public void onAlgorithmChanged(FileTransferServerEngine.ClientSession session, String algorithm) {
+        Platform.runLater(() -> {
+            SessionView view = sessionViews.get(session);
+            if (view != null && view.algorithmLabel != null) {
+                view.algorithmLabel.setText(algorithm);
             }
+        });
+    }
+
+    @Override
+    public void onTransferStarted(FileTransferServerEngine.ClientSession session, String filename, boolean upload) {
+        SessionView current = sessionViews.get(session);
+        if (current != null) {
+            current.postProgress(0, 0);
         }
+        Platform.runLater(() -> {
+            SessionView view = sessionViews.get(session);
+            if (view == null || view.transferStatus == null) return;
+            view.transferStatus.setText((upload ? "Uploading: " : "Downloading: ") + filename);
+            view.transferFile.setText("File: " + filename);
+        });
     }
 
-    private void handleClientDisconnect(SocketChannel clientChannel, ClientSession session) {
-        cleanupClient(clientChannel.keyFor(selector));
-        addLogMessage("Client disconnected: " + session.getClientId());
+    // Fired for every chunk; only the latest figures reach the tab, on the next frame
+    @Override
+    public void onTransferProgress(FileTransferServerEngine.ClientSession session, double progress, double speedKBs) {
+        SessionView view = sessionViews.get(session);
+        if (view != null) {
+            view.postProgress(progress, speedKBs);
+        }
     }
 
-    private void cleanupClient(SelectionKey key) {
-        if (key != null) {
-            ClientSession session = (ClientSession) key.attachment();
-            SocketChannel clientChannel = (SocketChannel) key.channel();
-
-            try {
-                activeSessions.remove(clientChannel);
-                key.cancel();
-                clientChannel.close();
-
-                if (session != null) {
-                    session.close();
-                    Platform.runLater(() -> {
-                        clientVisualizationTabs.getTabs().removeIf(tab ->
-                                tab.getText().equals(session.getClientId()));
-                    });
-                }
-            } catch (IOException e) {
-                addLogMessage("Error cleaning up client: " + e.getMessage());
+    @Override
+    public void onTransferFinished(FileTransferServerEngine.ClientSession session, String status) {
+        Platform.runLater(() -> {
+            SessionView view = sessionViews.get(session);
+            if (view != null && view.transferStatus != null) {
+                view.transferStatus.setText(status);
             }
-        }
+        });
     }
 
-    private void createClientVisualizationTab(String clientId, ClientSession session) {
-        Tab clientTab = new Tab(clientId);
+    private void createClientVisualizationTab(FileTransferServerEngine.ClientSession session) {
+        SessionView view = new SessionView(session, uiScheduler);
+        Tab clientTab = new Tab(session.getClientId());
         clientTab.setClosable(false);
 
         ScrollPane scrollPane = new ScrollPane();
@@ -346,24 +264,30 @@ public class TCPFileTransferServer extends Application {
         tabContent.setPadding(new Insets(10));
 
         // TCP Algorithm selection
-        HBox algorithmSection = createAlgorithmSection(session);
+        HBox algorithmSection = createAlgorithmSection(view);
 
         // Network metrics and transfer status
-        HBox topSection = createTopSection(session);
+        HBox topSection = createTopSection(view);
 
         // Charts section
-        VBox chartsSection = createChartsSection(session);
+        VBox chartsSection = createChartsSection(view);
 
         tabContent.getChildren().addAll(algorithmSection, topSection, chartsSection);
         scrollPane.setContent(tabContent);
         clientTab.setContent(scrollPane);
         clientVisualizationTabs.getTabs().add(clientTab);
+        view.tab = clientTab;
+        sessionViews.put(session, view);
+    }
 
-        // Start visualization updates
-        session.startVisualizationUpdates();
+    // One pass over all client tabs, pulling the latest metrics of their sessions
+    private void refreshSessionViews() {
+        for (SessionView view : sessionViews.values()) {
+            view.updateVisualization();
+        }
     }
 
-    private HBox createAlgorithmSection(ClientSession session) {
+    private HBox createAlgorithmSection(SessionView view) {
         HBox algorithmSection = new HBox(10);
         algorithmSection.setAlignment(javafx.geometry.Pos.CENTER_LEFT);
         algorithmSection.setStyle(
@@ -373,29 +297,29 @@ public class TCPFileTransferServer extends Application {
         algorithmLabel.setStyle("-fx-font-weight: bold;");
 
 
-        Label currentAlgorithm = new Label("TCP_RENO");
+        Label currentAlgorithm = new Label(view.session.getTcpAlgorithm());
         currentAlgorithm.setStyle("-fx-font-weight: bold; -fx-text-fill: #1e88e5;");
-        session.setAlgorithmLabel(currentAlgorithm);
+        view.setAlgorithmLabel(currentAlgorithm);
 
         algorithmSection.getChildren().addAll(algorithmLabel,
                 new Separator(), new Label("Current:"), currentAlgorithm);
         return algorithmSection;
     }
 
-    private HBox createTopSection(ClientSession session) {
+    private HBox createTopSection(SessionView view) {
         HBox topSection = new HBox(20);
 
         // Network metrics
-        VBox metricsSection = createMetricsSection(session);
+        VBox metricsSection = createMetricsSection(view);
 
         // File transfer status
-        VBox transferSection = createTransferSection(session);
+        VBox transferSection = createTransferSection(view);
 
         topSection.getChildren().addAll(metricsSection, transferSection);
         return topSection;
     }
 
-    private VBox createMetricsSection(ClientSession session) {
+    private VBox createMetricsSection(SessionView view) {
         VBox metricsSection = new VBox(5);
         metricsSection.setStyle(
                 "-fx-background-color: #f5f5f5; -fx-padding: 10; -fx-border-color: #cccccc; -fx-border-width: 1;");
@@ -414,6 +338,10 @@ public class TCPFileTransferServer extends Application {
         Label throughputLabel = new Label("Throughput: 0 Mbps");
         Label packetLossLabel = new Label("Packet Loss: 0%");
         Label rwndLabel = new Label("RWND: 65535");
+        Label phaseLabel = new Label("Phase: -");
+        Label modelLabel = new Label("BtlBw: -");
+        Label queueLabel = new Label("Send Queue: 0 B");
+        Label stallLabel = new Label("Stalled: 0 ms");
 
         metricsGrid.add(rttLabel, 0, 0);
         metricsGrid.add(cwndLabel, 1, 0);
@@ -421,14 +349,20 @@ public class TCPFileTransferServer extends Application {
         metricsGrid.add(throughputLabel, 1, 1);
         metricsGrid.add(packetLossLabel, 0, 2);
         metricsGrid.add(rwndLabel, 1, 2);
+        metricsGrid.add(phaseLabel, 0, 3);
+        metricsGrid.add(modelLabel, 1, 3);
+        metricsGrid.add(queueLabel, 0, 4);
+        metricsGrid.add(stallLabel, 1, 4);
 
-        session.setMetricsLabels(rttLabel, cwndLabel, ssthreshLabel, throughputLabel, packetLossLabel, rwndLabel);
+        view.setMetricsLabels(rttLabel, cwndLabel, ssthreshLabel, throughputLabel, packetLossLabel, rwndLabel);
+        view.setModelLabels(phaseLabel, modelLabel);
+        view.setQueueLabels(queueLabel, stallLabel);
 
         metricsSection.getChildren().addAll(metricsTitle, metricsGrid);
         return metricsSection;
     }
 
-    private VBox createTransferSection(ClientSession session) {
+    private VBox createTransferSection(SessionView view) {
         VBox transferSection = new VBox(5);
         transferSection.setStyle(
                 "-fx-background-color: #e8f5e8; -fx-padding: 10; -fx-border-color: #4caf50; -fx-border-width: 1;");
@@ -444,14 +378,14 @@ public class TCPFileTransferServer extends Application {
         Label transferSpeed = new Label("Speed: 0 KB/s");
         Label transferFile = new Label("File: None");
 
-        session.setTransferComponents(transferProgress, transferStatus, transferSpeed, transferFile);
+        view.setTransferComponents(transferProgress, transferStatus, transferSpeed, transferFile);
 
         transferSection.getChildren().addAll(transferTitle, transferProgress, transferStatus, transferSpeed,
                 transferFile);
         return transferSection;
     }
 
-    private VBox createChartsSection(ClientSession session) {
+    private VBox createChartsSection(SessionView view) {
         VBox chartsSection = new VBox(10);
 
         // Charts
@@ -466,9 +400,13 @@ public class TCPFileTransferServer extends Application {
         HBox chartsRow2 = new HBox(10);
         chartsRow2.getChildren().addAll(throughputChart, packetLossChart);
 
-        session.setCharts(rttChart, cwndChart, throughputChart, packetLossChart);
+        view.setCharts(rttChart, cwndChart, throughputChart, packetLossChart);
+
+        HBox windowRow = new HBox(10);
+        windowRow.setAlignment(javafx.geometry.Pos.CENTER_LEFT);
+        windowRow.getChildren().addAll(new Label("Show:"), view.metricsCharts.getWindowSelector());
 
-        chartsSection.getChildren().addAll(chartsRow1, chartsRow2);
+        chartsSection.getChildren().addAll(windowRow, chartsRow1, chartsRow2);
         return chartsSection;
     }
 
@@ -491,48 +429,18 @@ public class TCPFileTransferServer extends Application {
 
         return chart;
     }
-
-    private void cleanup() {
-        try {
-            if (selector != null && selector.isOpen()) {
-                selector.close();
-            }
-            if (serverChannel != null && serverChannel.isOpen()) {
-                serverChannel.close();
-            }
-            if (threadPool != null && !threadPool.isShutdown()) {
-                threadPool.shutdown();
-            }
-        } catch (IOException e) {
-            addLogMessage("Error during cleanup: " + e.getMessage());
-        }
-    }
-
-    private void stopServer() {
-        running = false;
-
-        // Close all client sessions
-        for (ClientSession session : activeSessions.values()) {
-            session.close();
+    // Called on the logger thread once per frame: lines are formatted here and posted to the
+    // FX thread as a single update, keeping at most MAX_LOG_ENTRIES of them
+    private void appendLogBatch(List<AsyncLogger.Entry> batch) {
+        List<String> lines = new ArrayList<>();
+        for (int i = Math.max(0, batch.size() - MAX_LOG_ENTRIES); i < batch.size(); i++) {
+            lines.add(batch.get(i).format());
         }
-        activeSessions.clear();
-
-        cleanup();
-
         Platform.runLater(() -> {
-            statusIndicator.setText("STOPPED");
-            statusIndicator.setStyle("-fx-text-fill: red; -fx-font-weight: bold;");
-        });
-
-        addLogMessage("Server stopped");
-    }
-
-    private void addLogMessage(String message) {
-        Platform.runLater(() -> {
-            String timestamp = new SimpleDateFormat("HH:mm:ss.SSS").format(new Date());
-            logMessages.add(timestamp + " - " + message);
-            if (logMessages.size() > 500) {
-                logMessages.remove(0);
+            logMessages.addAll(lines);
+            int excess = logMessages.size() - MAX_LOG_ENTRIES;
+            if (excess > 0) {
+                logMessages.remove(0, excess);
             }
             if (logListView != null) {
                 logListView.scrollTo(logMessages.size() - 1);
@@ -540,46 +448,38 @@ public class TCPFileTransferServer extends Application {
         });
     }
 
-    private String formatFileSize(long size) {
-        if (size < 1024) return size + " bytes";
-        else if (size < 1024 * 1024) return String.format("%.2f KB", size / 1024.0);
-        else if (size < 1024 * 1024 * 1024) return String.format("%.2f MB", size / (1024.0 * 1024));
-        else return String.format("%.2f GB", size / (1024.0 * 1024 * 1024));
-    }
-
-    // Inner class for client session management
-    private class ClientSession {
-        private SocketChannel channel;
-        private String clientId;
-        private String tcpAlgorithm = "TCP_RENO";
-        private RealTCPController tcpController;
-        private Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
-        private Timeline visualizationTimer;
-        private AtomicLong lastActivity = new AtomicLong(System.currentTimeMillis());
-        private StringBuilder messageBuffer = new StringBuilder();
-
-        // Visualization components
+    // Widgets of one client tab; only touched on the FX thread, except for the progress figures
+    // engine threads post
+    private static class SessionView {
+        private final FileTransferServerEngine.ClientSession session;
+        private final UiUpdateScheduler.Update progressUpdate;
+        private volatile double progress;
+        private volatile double speedKBs;
+        private Tab tab;
         private Label rttLabel, cwndLabel, ssthreshLabel, throughputLabel, packetLossLabel, rwndLabel;
+        private Label phaseLabel, modelLabel;
+        private Label queueLabel, stallLabel;
         private ProgressBar transferProgress;
         private Label transferStatus, transferSpeed, transferFile, algorithmLabel;
         private LineChart<Number, Number> rttChart, cwndChart, throughputChart, packetLossChart;
+        private final MetricsCharts metricsCharts = new MetricsCharts();
 
-        // File transfer state
-        private FileTransferState transferState = new FileTransferState();
-        private volatile boolean active = true;
-
-        public ClientSession(SocketChannel channel, String clientId) {
-            this.channel = channel;
-            this.clientId = clientId;
-            this.tcpController = new RealTCPController(tcpAlgorithm);
+        SessionView(FileTransferServerEngine.ClientSession session, UiUpdateScheduler scheduler) {
+            this.session = session;
+            this.progressUpdate = scheduler.newUpdate(this::applyProgress);
         }
 
-        public void updateLastActivity() {
-            lastActivity.set(System.currentTimeMillis());
+        // Any thread
+        void postProgress(double progress, double speedKBs) {
+            this.progress = progress;
+            this.speedKBs = speedKBs;
+            progressUpdate.request();
         }
 
-        public long getLastActivity() {
-            return lastActivity.get();
+        private void applyProgress() {
+            if (transferProgress == null) return;
+            transferProgress.setProgress(progress);
+            transferSpeed.setText(String.format("Speed: %.2f KB/s", speedKBs));
         }
 
         public void setMetricsLabels(Label rtt, Label cwnd, Label ssthresh, Label throughput, Label packetLoss, Label rwnd) {
@@ -591,6 +491,16 @@ public class TCPFileTransferServer extends Application {
             this.rwndLabel = rwnd;
         }
 
+        public void setModelLabels(Label phase, Label model) {
+            this.phaseLabel = phase;
+            this.modelLabel = model;
+        }
+
+        public void setQueueLabels(Label queue, Label stall) {
+            this.queueLabel = queue;
+            this.stallLabel = stall;
+        }
+
         public void setTransferComponents(ProgressBar progress, Label status, Label speed, Label file) {
             this.transferProgress = progress;
             this.transferStatus = status;
@@ -610,452 +520,43 @@ public class TCPFileTransferServer extends Application {
             this.algorithmLabel = label;
         }
 
-        public void startVisualizationUpdates() {
-            visualizationTimer = new Timeline(new KeyFrame(Duration.millis(500), e -> updateVisualization()));
-            visualizationTimer.setCycleCount(Timeline.INDEFINITE);
-            visualizationTimer.play();
-        }
-
-        public void handleIncomingData(ByteBuffer buffer) {
-            if (!active) return;
-
-            // Process incoming messages with proper buffering
-            byte[] data = new byte[buffer.remaining()];
-            buffer.get(data);
-            String incomingData = new String(data);
-            messageBuffer.append(incomingData);
-
-            // Process complete messages (ending with newline)
-            String bufferContent = messageBuffer.toString();
-            String[] lines = bufferContent.split("\\r?\\n");
-
-            // Process all complete lines except the last one (which might be incomplete)
-            for (int i = 0; i < lines.length; i++) {
-                String message = lines[i].trim();
-                if (!message.isEmpty()) {
-                    // Check if this is the last line and buffer doesn't end with newline
-                    if (i == lines.length - 1 && !bufferContent.endsWith("\n") && !bufferContent.endsWith("\r\n")) {
-                        // This is an incomplete message, keep it in buffer
-                        messageBuffer.setLength(0);
-                        messageBuffer.append(message);
-                        break;
-                    } else {
-                        // Complete message, process it
-                        processClientMessage(message);
-                    }
-                }
-            }
-
-            // If buffer ended with newline, clear the buffer completely
-            if (bufferContent.endsWith("\n") || bufferContent.endsWith("\r\n")) {
-                messageBuffer.setLength(0);
-            }
-        }
-
-        public boolean handleOutgoingData(SocketChannel channel) throws IOException {
-            if (!active) return false;
-
-            boolean hasMoreData = false;
-
-            while (!writeQueue.isEmpty()) {
-                ByteBuffer buffer = writeQueue.peek();
-                int bytesWritten = channel.write(buffer);
-
-                if (bytesWritten > 0) {
-                    tcpController.onDataSent(bytesWritten, System.currentTimeMillis());
-                }
-
-                if (buffer.hasRemaining()) {
-                    hasMoreData = true;
-                    break;
-                } else {
-                    writeQueue.poll();
-                }
-            }
-
-            return hasMoreData;
-        }
-
-        public void setTcpAlgorithm(String algorithm) {
-            this.tcpAlgorithm = algorithm;
-            this.tcpController.setAlgorithm(algorithm);
-            Platform.runLater(() -> {
-                if (algorithmLabel != null) {
-                    algorithmLabel.setText(algorithm);
-                }
-            });
-            addLogMessage("Client " + clientId + " switched to " + algorithm);
-        }
-
-        public String getClientId() {
-            return clientId;
-        }
-
-        public void close() {
-            active = false;
-            if (visualizationTimer != null) {
-                visualizationTimer.stop();
-            }
-            try {
-                if (channel != null && channel.isOpen()) {
-                    channel.close();
-                }
-            } catch (IOException e) {
-                addLogMessage("Error closing client channel: " + e.getMessage());
-            }
-        }
-
-        private void processClientMessage(String message) {
-            addLogMessage("Received from " + clientId + ": " + message);
-
-            String[] parts = message.split(":", 2);
-            if (parts.length < 1) return;
-
-            String command = parts[0].trim();
-            String data = parts.length > 1 ? parts[1].trim() : "";
-
-            switch (command) {
-                case "LIST_FILES":
-                    sendFileList();
-                    break;
-                case "DOWNLOAD":
-                    handleDownloadRequest(data);
-                    break;
-                case "UPLOAD":
-                    handleUploadRequest(data);
-                    break;
-                case "UPLOAD_DATA":
-                    handleUploadData(data);
-                    break;
-                case "ALGORITHM":
-                    setTcpAlgorithm(data);
-                    break;
-                case "PING":
-                    sendMessage("PONG:" + System.currentTimeMillis());
-                    break;
-                default:
-                    addLogMessage("Unknown command from " + clientId + ": " + command);
-            }
-        }
-
-        private void sendFileList() {
-            StringBuilder response = new StringBuilder("FILE_LIST:");
-            File[] files = uploadDirectory.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isFile()) {
-                        response.append(file.getName())
-                                .append(" (").append(formatFileSize(file.length())).append(")")
-                                .append(";");
-                    }
-                }
-            }
-            sendMessage(response.toString());
-            addLogMessage("Sent file list to " + clientId);
-        }
-
-        private void handleDownloadRequest(String filename) {
-            File file = new File(uploadDirectory, filename);
-            if (!file.exists()) {
-                sendMessage("ERROR:File not found: " + filename);
-                return;
-            }
-
-            transferState.startDownload(file);
-            Platform.runLater(() -> {
-                if (transferStatus != null) transferStatus.setText("Downloading: " + filename);
-                if (transferFile != null) transferFile.setText("File: " + filename);
-                if (transferProgress != null) transferProgress.setProgress(0);
-            });
-
-            // Start file transfer in separate thread
-            threadPool.submit(() -> performFileDownload(file));
-        }
-
-        private void handleUploadRequest(String data) {
-            String[] parts = data.split(";");
-            if (parts.length < 2) return;
-
-            String filename = parts[0];
-            long fileSize = Long.parseLong(parts[1]);
-
-            transferState.startUpload(filename, fileSize);
-            Platform.runLater(() -> {
-                if (transferStatus != null) transferStatus.setText("Uploading: " + filename);
-                if (transferFile != null) transferFile.setText("File: " + filename);
-                if (transferProgress != null) transferProgress.setProgress(0);
-            });
-
-            sendMessage("UPLOAD_READY:" + filename);
-        }
-
-        private void handleUploadData(String data) {
-            try {
-                byte[] fileData = Base64.getDecoder().decode(data);
-                transferState.addUploadData(fileData);
-
-                // Update progress
-                Platform.runLater(() -> {
-                    if (transferProgress != null) {
-                        double progress = (double) transferState.getTransferred() / transferState.getFileSize();
-                        transferProgress.setProgress(progress);
-                    }
-                });
-
-                if (transferState.isUploadComplete()) {
-                    saveUploadedFile();
-                }
-            } catch (Exception e) {
-                addLogMessage("Error processing upload data: " + e.getMessage());
-                sendMessage("ERROR:Failed to process upload data");
-            }
-        }
-
-        private void saveUploadedFile() {
-            try {
-                File outputFile = new File(uploadDirectory, transferState.getFilename());
-                try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                    fos.write(transferState.getUploadData());
-                }
-                Platform.runLater(() -> {
-                    if (transferStatus != null) transferStatus.setText("Upload completed");
-                });
-                sendMessage("UPLOAD_COMPLETE:" + transferState.getFilename());
-                addLogMessage("File uploaded by " + clientId + ": " + transferState.getFilename());
-            } catch (IOException e) {
-                addLogMessage("Error saving uploaded file: " + e.getMessage());
-                sendMessage("ERROR:Failed to save file");
-            }
-        }
-
-        private void performFileDownload(File file) {
-            try (FileInputStream fis = new FileInputStream(file)) {
-                sendMessage("DOWNLOAD_START:" + file.getName() + ";" + file.length());
-
-                byte[] buffer = new byte[PACKET_SIZE];
-                int bytesRead;
-                long totalBytes = file.length();
-                long transferredBytes = 0;
-                long startTime = System.currentTimeMillis();
-
-                while ((bytesRead = fis.read(buffer)) != -1 && active) {
-                    // Real TCP flow control
-                    while (tcpController.getCongestionWindow() <= 0 && active) {
-                        Thread.sleep(1);
-                    }
-
-                    if (!active) break;
-
-                    // Send file data as base64 encoded message
-                    byte[] packet = Arrays.copyOf(buffer, bytesRead);
-                    String encodedData = Base64.getEncoder().encodeToString(packet);
-                    sendMessage("FILE_DATA:" + encodedData);
-
-                    transferredBytes += bytesRead;
-                    transferState.transferred = transferredBytes;
-
-                    // Update progress
-                    double progress = (double) transferredBytes / totalBytes;
-                    long elapsed = System.currentTimeMillis() - startTime;
-                    double speedKBs = elapsed > 0 ? (transferredBytes / 1024.0) / (elapsed / 1000.0) : 0;
-
-                    Platform.runLater(() -> {
-                        if (transferProgress != null) transferProgress.setProgress(progress);
-                        if (transferSpeed != null) transferSpeed.setText(String.format("Speed: %.2f KB/s", speedKBs));
-                    });
-
-                    // Real network backpressure handling
-                    if (writeQueue.size() > 50) {
-                        Thread.sleep(10);
-                    }
-                }
-
-                sendMessage("DOWNLOAD_COMPLETE:" + file.getName());
-                Platform.runLater(() -> {
-                    if (transferStatus != null) transferStatus.setText("Transfer completed");
-                });
-
-            } catch (Exception e) {
-                addLogMessage("Error during file transfer: " + e.getMessage());
-                Platform.runLater(() -> {
-                    if (transferStatus != null) transferStatus.setText("Transfer failed");
-                });
-                sendMessage("ERROR:Transfer failed");
-            }
-        }
-
-        private void sendMessage(String message) {
-            if (!active) return;
-
-            byte[] data = (message + "\n").getBytes();
-            ByteBuffer buffer = ByteBuffer.allocate(data.length);
-            buffer.put(data);
-            buffer.flip();
-
-            writeQueue.offer(buffer);
-
-            try {
-                SelectionKey key = channel.keyFor(selector);
-                if (key != null && key.isValid()) {
-                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                    selector.wakeup();
-                }
-            } catch (Exception e) {
-                addLogMessage("Error sending message: " + e.getMessage());
-            }
-        }
-
         private void updateVisualization() {
             if (rttLabel == null) return;
-
-            Platform.runLater(() -> {
-                // Update labels with real metrics
-                rttLabel.setText(String.format("RTT: %.2f ms", tcpController.getCurrentRTT()));
-                cwndLabel.setText(String.format("CWND: %.2f", tcpController.getCongestionWindow()));
-                ssthreshLabel.setText(String.format("SSThresh: %.2f", tcpController.getSSThresh()));
-                throughputLabel.setText(String.format("Throughput: %.2f Mbps",
-                        tcpController.getCurrentThroughput() / 1_000_000));
-                packetLossLabel.setText(String.format("Packet Loss: %.2f%%",
-                        tcpController.getPacketLossRate() * 100));
-                rwndLabel.setText(String.format("RWND: %d", tcpController.getReceiveWindow()));
-
-                // Update charts
-                long currentTime = (System.currentTimeMillis() - tcpController.getStartTime()) / 1000;
-                updateChart(rttChart, currentTime, tcpController.getCurrentRTT());
-                updateChart(cwndChart, currentTime, tcpController.getCongestionWindow());
-                updateChart(throughputChart, currentTime, tcpController.getCurrentThroughput() / 1_000_000);
-                updateChart(packetLossChart, currentTime, tcpController.getPacketLossRate() * 100);
-            });
-        }
-
-        private void updateChart(LineChart<Number, Number> chart, long time, double value) {
-            if (chart == null || chart.getData().isEmpty()) return;
-
-            XYChart.Series<Number, Number> series = chart.getData().get(0);
-            series.getData().add(new XYChart.Data<>(time, value));
-
-            // Keep only last 100 points
-            if (series.getData().size() > 100) {
-                series.getData().remove(0);
+            FlowController tcpController = session.getTcpController();
+
+            // Update labels with real metrics
+            rttLabel.setText(String.format("RTT: %.2f ms", tcpController.getCurrentRTT()));
+            cwndLabel.setText(String.format("CWND: %.2f", tcpController.getCongestionWindow()));
+            ssthreshLabel.setText(String.format("SSThresh: %.2f", tcpController.getSSThresh()));
+            throughputLabel.setText(String.format("Throughput: %.2f Mbps",
+                    tcpController.getCurrentThroughput() / 1_000_000));
+            packetLossLabel.setText(String.format("Packet Loss: %.2f%%",
+                    tcpController.getPacketLossRate() * 100));
+            rwndLabel.setText(String.format("RWND: %d", tcpController.getReceiveWindow()));
+            double bottleneckBandwidth = tcpController.getBottleneckBandwidth();
+            phaseLabel.setText("Phase: " + tcpController.getPhase());
+            modelLabel.setText(bottleneckBandwidth < 0 ? "BtlBw: -" : String.format("BtlBw: %.2f Mbps, gain %.2f",
+                    bottleneckBandwidth * 8 / 1_000_000, tcpController.getPacingGain()));
+            SendQueue sendQueue = session.getSendQueue();
+            queueLabel.setText("Send Queue: " + sendQueue.size() + " buffers, "
+                    + FileTransferServerEngine.formatFileSize(sendQueue.getQueuedBytes()));
+            stallLabel.setText("Stalled: " + sendQueue.getStalls() + "x, " + sendQueue.getStallMillis() + " ms");
+
+            // Update charts from the session's metrics history
+            MetricsHistory history = tcpController.getHistory();
+            metricsCharts.render(rttChart, history, MetricsHistory.RTT, 1);
+            metricsCharts.render(cwndChart, history, MetricsHistory.CWND, 1);
+            metricsCharts.render(throughputChart, history, MetricsHistory.THROUGHPUT, 1e-6);
+            metricsCharts.render(packetLossChart, history, MetricsHistory.LOSS, 100);
+            // Path model of model-based controllers, next to the measured values
+            if (bottleneckBandwidth >= 0) {
+                metricsCharts.render(rttChart, "Min RTT", history, MetricsHistory.MIN_RTT, 1);
+                metricsCharts.render(cwndChart, "Pacing gain", history, MetricsHistory.PACING_GAIN, 1);
+                metricsCharts.render(throughputChart, "BtlBw", history, MetricsHistory.BOTTLENECK_BANDWIDTH, 8e-6);
             }
         }
     }
 
-    // File transfer state management
-    private class FileTransferState {
-        private int sequenceNumber = 0;
-        private long fileSize = 0;
-        private long transferred = 0;
-        private String filename = "";
-        private boolean uploading = false;
-        private boolean downloading = false;
-        private ByteArrayOutputStream uploadBuffer = new ByteArrayOutputStream();
-
-        public void startDownload(File file) {
-            this.fileSize = file.length();
-            this.transferred = 0;
-            this.sequenceNumber = 0;
-            this.filename = file.getName();
-            this.downloading = true;
-            this.uploading = false;
-            this.uploadBuffer.reset();
-        }
-
-        public void startUpload(String filename, long fileSize) {
-            this.fileSize = fileSize;
-            this.transferred = 0;
-            this.sequenceNumber = 0;
-            this.filename = filename;
-            this.uploading = true;
-            this.downloading = false;
-            this.uploadBuffer.reset();
-        }
-
-        public void addUploadData(byte[] data) {
-            try {
-                uploadBuffer.write(data);
-                transferred += data.length;
-            } catch (IOException e) {
-                // Should not happen with ByteArrayOutputStream
-            }
-        }
-
-        public long getTransferred() { return transferred; }
-        public long getFileSize() { return fileSize; }
-        public boolean isUploadComplete() { return uploading && transferred >= fileSize; }
-        public byte[] getUploadData() { return uploadBuffer.toByteArray(); }
-        public String getFilename() { return filename; }
-        public int getNextSequenceNumber() { return sequenceNumber++; }
-    }
-
-    // Real TCP Controller implementation
-    private class RealTCPController {
-        private String algorithm;
-        private double congestionWindow = 1.0;
-        private double ssthresh = 64.0;
-        private double currentRTT = 100.0;
-        private int receiveWindow = 65535;
-        private boolean slowStart = true;
-        private int duplicateAcks = 0;
-        private long startTime;
-        private long lastAckTime;
-        private long totalBytesSent = 0;
-        private int packetsLost = 0;
-        private int totalPackets = 0;
-        private long lastThroughputUpdate = 0;
-        private double currentThroughput = 0;
-
-        public RealTCPController(String algorithm) {
-            this.algorithm = algorithm;
-            this.startTime = System.currentTimeMillis();
-            this.lastAckTime = startTime;
-            this.lastThroughputUpdate = startTime;
-        }
-
-        public void setAlgorithm(String algorithm) {
-            this.algorithm = algorithm;
-            congestionWindow = 1.0;
-            ssthresh = 64.0;
-            slowStart = true;
-            duplicateAcks = 0;
-        }
-
-        public void onDataSent(int bytes, long timestamp) {
-            totalBytesSent += bytes;
-            totalPackets++;
-
-            if (congestionWindow > 0) {
-                congestionWindow = Math.max(0, congestionWindow - 1.0);
-            }
-
-            updateThroughput();
-        }
-
-        private void updateThroughput() {
-            long now = System.currentTimeMillis();
-            long interval = now - lastThroughputUpdate;
-
-            if (interval > 1000) {
-                if (interval > 0) {
-                    currentThroughput = (totalBytesSent * 8.0) / (interval / 1000.0);
-                    lastThroughputUpdate = now;
-                    totalBytesSent = 0;
-                }
-            }
-        }
-
-        // Getters
-        public double getCongestionWindow() { return Math.max(1.0, congestionWindow); }
-        public double getSSThresh() { return ssthresh; }
-        public double getCurrentRTT() { return currentRTT; }
-        public int getReceiveWindow() { return receiveWindow; }
-        public double getCurrentThroughput() { return currentThroughput; }
-        public double getPacketLossRate() {
-            return totalPackets == 0 ? 0 : (double) packetsLost / totalPackets;
-        }
-        public long getStartTime() { return startTime; }
-    }
-
     // Main entry point
     public static void main(String[] args) {
         launch(args);
@@ -1063,7 +564,7 @@ public class TCPFileTransferServer extends Application {
 
     // Controller integration methods
     public void startServerInstance(int port) {
-        if (running) return;
+        if (engine != null && engine.isRunning()) return;
         SERVER_PORT = port;
         Platform.runLater(() -> {
             Stage stage = new Stage();
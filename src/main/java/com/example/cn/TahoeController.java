@@ -0,0 +1,16 @@
+package com.example.cn;
+
+// TCP Tahoe: every loss, fast retransmit or timeout, restarts slow start from one segment
+public class TahoeController extends WindowedController {
+    public static final String ID = "TCP_TAHOE";
+
+    @Override
+    public String id() {
+        return ID;
+    }
+
+    @Override
+    public void onLoss(long nowNanos) {
+        onTimeout(nowNanos);
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.cn;
+
+// Hashed timing wheel for the timers of a worker loop: idle timeouts, ACK timeouts and pacing
+// deadlines. Scheduling a timer and firing it are O(1); a timer lands in the slot of its deadline
+// tick and carries the number of whole turns of the wheel it has to wait. The loop sleeps in
+// select until nanosUntilNextTimer() and then calls advance(), which fires what is due. The
+// earliest due tick is cached; once it has fired, it is found again in a bitmap of the slots that
+// have due timers, a word of 64 slots at a time, instead of looking at every slot.
+//
+// Timers cannot be cancelled: each task checks whether it is still wanted when it runs, which
+// is what the loop's timers did anyway. Not thread-safe, the owning loop's thread uses it alone.
+public final class TimingWheel {
+    private static final class Timer {
+        final Runnable task;
+        long rounds;
+        Timer next;
+
+        Timer(Runnable task, long rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Timer[] slots;
+    // Timers of each slot that fire the next time the wheel reaches it, and a bit per slot with any
+    private final int[] due;
+    private final long[] dueBits;
+    // Earliest tick with due timers, Long.MAX_VALUE if none is due within a turn; only valid while
+    // nextDueKnown
+    private long nextDueTick = Long.MAX_VALUE;
+    private boolean nextDueKnown = true;
+    private final long startNanos;
+    // Next tick to be processed; tick t is processed once startNanos + t * tickNanos has passed
+    private long tick;
+    private int size;
+
+    // slotCount is rounded up to a power of two
+    public TimingWheel(long tickNanos, int slotCount, long nowNanos) {
+        int slotsPow2 = Integer.highestOneBit(Math.max(2, slotCount) * 2 - 1);
+        this.tickNanos = Math.max(1, tickNanos);
+        this.mask = slotsPow2 - 1;
+        this.slots = new Timer[slotsPow2];
+        this.due = new int[slotsPow2];
+        this.dueBits = new long[Math.max(1, slotsPow2 / 64)];
+        this.startNanos = nowNanos;
+    }
+
+    public void schedule(long delayNanos, Runnable task, long nowNanos) {
+        long elapsed = nowNanos - startNanos + Math.max(0, delayNanos);
+        long deadlineTick = Math.max(tick, (elapsed + tickNanos - 1) / tickNanos);
+        long rounds = (deadlineTick - tick) / slots.length;
+        int slot = (int) (deadlineTick & mask);
+        Timer timer = new Timer(task, rounds);
+        timer.next = slots[slot];
+        slots[slot] = timer;
+        if (rounds == 0) {
+            setDue(slot, due[slot] + 1);
+            nextDueTick = Math.min(nextDueTick, deadlineTick);
+        }
+        size++;
+    }
+
+    private void setDue(int slot, int count) {
+        due[slot] = count;
+        if (count > 0) {
+            dueBits[slot >>> 6] |= 1L << (slot & 63);
+        } else {
+            dueBits[slot >>> 6] &= ~(1L << (slot & 63));
+        }
+    }
+
+    // Fires every timer whose deadline has passed
+    public void advance(long nowNanos) {
+        long currentTick = (nowNanos - startNanos) / tickNanos;
+        if (size == 0) {
+            tick = Math.max(tick, currentTick + 1);
+            return;
+        }
+        while (tick <= currentTick) {
+            int slot = (int) (tick & mask);
+            long slotTick = tick++;
+            if (due[slot] == 0) {
+                int nowDue = 0;
+                for (Timer timer = slots[slot]; timer != null; timer = timer.next) {
+                    if (--timer.rounds == 0) nowDue++;
+                }
+                if (nowDue > 0) {
+                    setDue(slot, nowDue);
+                    nextDueTick = Math.min(nextDueTick, slotTick + slots.length);
+                }
+                continue;
+            }
+
+            // Detach the due timers first: their tasks may schedule new ones
+            Timer expired = null;
+            Timer kept = null;
+            int nowDue = 0;
+            for (Timer timer = slots[slot]; timer != null; ) {
+                Timer next = timer.next;
+                if (timer.rounds == 0) {
+                    timer.next = expired;
+                    expired = timer;
+                    size--;
+                } else {
+                    if (--timer.rounds == 0) nowDue++;
+                    timer.next = kept;
+                    kept = timer;
+                }
+                timer = next;
+            }
+            slots[slot] = kept;
+            setDue(slot, nowDue);
+            // The cached tick has fired; it is looked up again when it is next needed
+            nextDueKnown = false;
+            for (Timer timer = expired; timer != null; timer = timer.next) {
+                timer.task.run();
+            }
+        }
+    }
+
+    // Time until advance() has a timer to fire: 0 if one is overdue, a full turn of the wheel if
+    // none is due within it, Long.MAX_VALUE if there are no timers at all
+    public long nanosUntilNextTimer(long nowNanos) {
+        if (size == 0) return Long.MAX_VALUE;
+        if (!nextDueKnown) {
+            nextDueTick = findNextDue();
+            nextDueKnown = true;
+        }
+        long deadlineTick = nextDueTick == Long.MAX_VALUE ? tick + slots.length : Math.max(tick, nextDueTick);
+        long deadline = startNanos + deadlineTick * tickNanos;
+        return Math.max(0, deadline - nowNanos);
+    }
+
+    // First tick from the current one whose slot has due timers, Long.MAX_VALUE if there is none
+    private long findNextDue() {
+        int start = (int) (tick & mask);
+        int word = start >>> 6;
+        long bits = dueBits[word] & (-1L << (start & 63));
+        // One more word than there are, to see the bits of the first one below start
+        for (int i = 0; i <= dueBits.length; i++) {
+            if (bits != 0) {
+                int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return tick + ((slot - start) & mask);
+            }
+            word = (word + 1) % dueBits.length;
+            bits = dueBits[word];
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public int size() {
+        return size;
+    }
+}
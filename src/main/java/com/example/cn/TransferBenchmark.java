@@ -0,0 +1,322 @@
+package com.example.cn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Side-by-side load test of the server's transfer engines. For every engine and client count a
+// server is started in a process of its own, and that many clients download the same file from it
+// at once. Each client is a virtual thread with a blocking socket speaking the binary protocol
+// with ACKs, like FileTransferClientEngine but without its selector thread, so 10,000 of them fit
+// in one JVM. Reported per run: throughput, the median and p99 time to receive each 64 KB chunk
+// of the file, and the peak thread count and resident memory of the server process (read from
+// /proc, so only on Linux). Clients that have not finished when a run times out count as failed.
+//
+// java com.example.cn.TransferBenchmark [--clients 10,1000,10000] [--size <bytes>]
+//     [--engines selector,virtual] [--port <n>] [--timeout <seconds>]
+public final class TransferBenchmark {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int RECEIVE_WINDOW = 4 * 1024 * 1024;
+    private static final String FILE_NAME = "benchmark.bin";
+    private static final long STARTUP_TIMEOUT_MILLIS = 30000;
+    private static final BufferPool bufferPool = BufferPool.shared();
+
+    private static final class Result {
+        final String engine;
+        final int clients;
+        int failed;
+        long bytes;
+        long nanos;
+        long[] chunkNanos = new long[0];
+        long peakThreads = -1;
+        long peakRssKb = -1;
+
+        Result(String engine, int clients) {
+            this.engine = engine;
+            this.clients = clients;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] clientCounts = {10, 1000, 10000};
+        long size = 1024 * 1024;
+        String[] engines = {FileTransferServerEngine.ENGINE_SELECTOR, FileTransferServerEngine.ENGINE_VIRTUAL};
+        int port = 9190;
+        long timeoutSeconds = 600;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clients" -> clientCounts = Arrays.stream(FileTransferServerEngine.requireValue(args, ++i)
+                        .split(",")).mapToInt(Integer::parseInt).toArray();
+                case "--size" -> size = Long.parseLong(FileTransferServerEngine.requireValue(args, ++i));
+                case "--engines" -> engines = FileTransferServerEngine.requireValue(args, ++i).split(",");
+                case "--port" -> port = Integer.parseInt(FileTransferServerEngine.requireValue(args, ++i));
+                case "--timeout" -> timeoutSeconds = Long.parseLong(FileTransferServerEngine.requireValue(args, ++i));
+                default -> {
+                    System.err.println("Usage: TransferBenchmark [--clients <n,...>] [--size <bytes>]"
+                            + " [--engines selector,virtual] [--port <n>] [--timeout <seconds>]");
+                    System.exit(2);
+                }
+            }
+        }
+
+        Path directory = Files.createTempDirectory("cn-benchmark");
+        File file = directory.resolve(FILE_NAME).toFile();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            byte[] block = new byte[CHUNK_SIZE];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31 + 7);
+            }
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+
+        System.out.println("Downloading " + FileTransferServerEngine.formatFileSize(size) + " per client");
+        System.out.printf("%-9s %8s %7s %12s %10s %10s %8s %10s%n",
+                "engine", "clients", "failed", "throughput", "p50 chunk", "p99 chunk", "threads", "server RSS");
+        try {
+            for (int clients : clientCounts) {
+                for (String engine : engines) {
+                    Result result = run(engine, clients, directory, size, port, timeoutSeconds);
+                    print(result);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static Result run(String engine, int clients, Path directory, long size, int port, long timeoutSeconds)
+            throws Exception {
+        Result result = new Result(engine, clients);
+        Process server = startServer(engine, directory, port);
+        try {
+            awaitServer(port);
+            AtomicLong peakThreads = new AtomicLong(-1);
+            AtomicLong peakRss = new AtomicLong(-1);
+            Thread sampler = Thread.ofPlatform().daemon().start(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    sampleProcess(server.pid(), peakThreads, peakRss);
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+
+            Queue<long[]> chunkTimes = new ConcurrentLinkedQueue<>();
+            AtomicInteger failed = new AtomicInteger();
+            AtomicLong bytes = new AtomicLong();
+            CountDownLatch startGate = new CountDownLatch(1);
+            ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor();
+            for (int i = 0; i < clients; i++) {
+                clientThreads.submit(() -> {
+                    try {
+                        startGate.await();
+                        long[] chunks = download(port, size);
+                        chunkTimes.add(chunks);
+                        bytes.addAndGet(size);
+                    } catch (IOException | InterruptedException e) {
+                        failed.incrementAndGet();
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            startGate.countDown();
+            // Clients still waiting at the deadline are interrupted, which closes their sockets
+            clientThreads.shutdown();
+            if (!clientThreads.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+                clientThreads.shutdownNow();
+                clientThreads.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            result.nanos = System.nanoTime() - start;
+            sampler.interrupt();
+            sampler.join();
+            sampleProcess(server.pid(), peakThreads, peakRss);
+
+            result.failed = failed.get();
+            result.bytes = bytes.get();
+            result.chunkNanos = chunkTimes.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            result.peakThreads = peakThreads.get();
+            result.peakRssKb = peakRss.get();
+        } finally {
+            server.destroy();
+            if (!server.waitFor(10, TimeUnit.SECONDS)) {
+                server.destroyForcibly().waitFor();
+            }
+        }
+        return result;
+    }
+
+    // The server gets this JVM's class path; its log goes nowhere
+    private static Process startServer(String engine, Path directory, int port) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> command = List.of(java, "-cp", System.getProperty("java.class.path"),
+                "-Dcn.log.level=WARN", FileTransferServerEngine.class.getName(),
+                "--port", String.valueOf(port), "--dir", directory.toString(), "--engine", engine);
+        return new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    private static void awaitServer(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                SocketChannel.open(new InetSocketAddress("localhost", port)).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void sampleProcess(long pid, AtomicLong peakThreads, AtomicLong peakRssKb) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith("Threads:")) {
+                    peakThreads.accumulateAndGet(Long.parseLong(line.substring(8).trim()), Math::max);
+                } else if (line.startsWith("VmRSS:")) {
+                    peakRssKb.accumulateAndGet(Long.parseLong(line.substring(6).replace("kB", "").trim()), Math::max);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux, or the process has ended
+        }
+    }
+
+    // One client's download: counts the data as it arrives and notes when each chunk is complete
+    private static final class Download implements ProtocolDecoder.Handler {
+        final long size;
+        final long[] chunkNanos;
+        long received;
+        // Offset the next ACK acknowledges up to
+        long receivedOffset;
+        int chunks;
+        long lastChunkTime;
+        boolean negotiated;
+        String outcome;
+
+        Download(long size) {
+            this.size = size;
+            this.chunkNanos = new long[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+        }
+
+        @Override
+        public void onMessage(String message) {
+            if (message.startsWith(BinaryProtocol.HELLO_ACK)) {
+                negotiated = true;
+            } else if (message.startsWith("DOWNLOAD_COMPLETE") || message.startsWith("ERROR")) {
+                outcome = message;
+            }
+        }
+
+        @Override
+        public void onFrame(byte type, int flags, int streamId, long offset, ByteBuffer payload) {
+            if (type != BinaryProtocol.TYPE_FILE_DATA) return;
+            received += payload.remaining();
+            receivedOffset = offset + payload.remaining();
+            while (chunks < chunkNanos.length && received >= Math.min(size, (chunks + 1L) * CHUNK_SIZE)) {
+                long now = System.nanoTime();
+                chunkNanos[chunks++] = now - lastChunkTime;
+                lastChunkTime = now;
+            }
+        }
+    }
+
+    // One client: downloads the file and returns how long each CHUNK_SIZE of it took to arrive,
+    // the first one counted from the request
+    private static long[] download(int port, long size) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            write(channel, BinaryProtocol.HELLO + ":" + BinaryProtocol.VERSION + ";" + BinaryProtocol.FEATURE_ACK);
+
+            Download download = new Download(size);
+            ProtocolDecoder decoder = new ProtocolDecoder();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            boolean requested = false;
+            long acked = 0;
+            while (true) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) throw new IOException("connection closed");
+                buffer.flip();
+                try {
+                    decoder.decode(buffer, download);
+                } catch (ProtocolException e) {
+                    throw new IOException(e);
+                }
+                if (download.negotiated && !requested) {
+                    requested = true;
+                    download.lastChunkTime = System.nanoTime();
+                    write(channel, "DOWNLOAD:" + FILE_NAME);
+                }
+                // One cumulative ACK per read, as the client engine does
+                if (download.receivedOffset > acked) {
+                    acked = download.receivedOffset;
+                    ByteBuffer ack = BinaryProtocol.encodeAck(bufferPool, 0, acked, RECEIVE_WINDOW);
+                    try {
+                        while (ack.hasRemaining()) {
+                            channel.write(ack);
+                        }
+                    } finally {
+                        bufferPool.release(ack);
+                    }
+                }
+                if (download.outcome != null) {
+                    if (!download.outcome.startsWith("DOWNLOAD_COMPLETE") || download.received != size) {
+                        throw new IOException(download.outcome);
+                    }
+                    return download.chunkNanos;
+                }
+            }
+        }
+    }
+
+    private static void write(SocketChannel channel, String line) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private static void print(Result result) {
+        double seconds = result.nanos / 1e9;
+        System.out.printf("%-9s %8d %7d %10s/s %10s %10s %8s %10s%n",
+                result.engine, result.clients, result.failed,
+                FileTransferServerEngine.formatFileSize((long) (result.bytes / seconds)),
+                formatMillis(percentile(result.chunkNanos, 0.50)), formatMillis(percentile(result.chunkNanos, 0.99)),
+                result.peakThreads < 0 ? "-" : String.valueOf(result.peakThreads),
+                result.peakRssKb < 0 ? "-" : FileTransferServerEngine.formatFileSize(result.peakRssKb * 1024));
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return -1;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    private static String formatMillis(long nanos) {
+        return nanos < 0 ? "-" : String.format("%.1f ms", nanos / 1e6);
+    }
+}
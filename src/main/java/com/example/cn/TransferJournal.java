@@ -0,0 +1,202 @@
+package com.example.cn;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Sidecar of a partial file ("<name>.part.journal") recording which byte ranges are durable on
+// disk, plus the fingerprint and size of the source they came from:
+//
+//   fingerprint=1048576-1700000000000-0123456789abcdef
+//   size=1048576
+//   range=0-524288
+//
+// Ranges are only confirmed after the part file has been forced to disk, and the journal is
+// replaced atomically, so after a crash it never claims more than the part file holds.
+// Thread-safe, so a checkpoint can confirm ranges on another thread while more are written.
+public final class TransferJournal {
+    public static final String SUFFIX = ".journal";
+
+    private final Path file;
+    private final String fingerprint;
+    private final long size;
+    // start -> end of disjoint, non-adjacent ranges
+    private final TreeMap<Long, Long> confirmed = new TreeMap<>();
+    private final TreeMap<Long, Long> written = new TreeMap<>();
+
+    private TransferJournal(Path file, String fingerprint, long size) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        this.size = size;
+    }
+
+    public static Path journalFor(Path partFile) {
+        return partFile.resolveSibling(partFile.getFileName() + SUFFIX);
+    }
+
+    public static TransferJournal create(Path partFile, String fingerprint, long size) {
+        return new TransferJournal(journalFor(partFile), fingerprint, size);
+    }
+
+    // Returns null if there is no journal or it cannot be parsed
+    public static TransferJournal load(Path partFile) {
+        Path file = journalFor(partFile);
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+
+        String fingerprint = null;
+        long size = -1;
+        List<long[]> ranges = new ArrayList<>();
+        try {
+            for (String line : lines) {
+                int separator = line.indexOf('=');
+                if (separator < 0) continue;
+                String key = line.substring(0, separator);
+                String value = line.substring(separator + 1);
+                switch (key) {
+                    case "fingerprint" -> fingerprint = value;
+                    case "size" -> size = Long.parseLong(value);
+                    case "range" -> {
+                        int dash = value.indexOf('-');
+                        ranges.add(new long[] {Long.parseLong(value.substring(0, dash)),
+                                Long.parseLong(value.substring(dash + 1))});
+                    }
+                    default -> { }
+                }
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (fingerprint == null || size < 0) return null;
+
+        TransferJournal journal = new TransferJournal(file, fingerprint, size);
+        for (long[] range : ranges) {
+            add(journal.confirmed, range[0], range[1]);
+        }
+        return journal;
+    }
+
+    public boolean matches(String fingerprint, long size) {
+        return this.fingerprint.equals(fingerprint) && this.size == size;
+    }
+
+    // Data for the range has been handed to the part file but may not be durable yet
+    public synchronized void markWritten(long start, long end) {
+        add(written, start, end);
+    }
+
+    // Caller has forced the part file: everything written so far becomes confirmed
+    public synchronized void confirmWritten() throws IOException {
+        confirm(takeWritten());
+    }
+
+    // Ranges written since the last call, for a checkpoint that confirms them once it has forced
+    // the part file
+    public synchronized List<long[]> takeWritten() {
+        List<long[]> ranges = new ArrayList<>();
+        for (Map.Entry<Long, Long> range : written.entrySet()) {
+            ranges.add(new long[] {range.getKey(), range.getValue()});
+        }
+        written.clear();
+        return ranges;
+    }
+
+    // Caller has forced the part file since it took the ranges with takeWritten()
+    public synchronized void confirm(List<long[]> ranges) throws IOException {
+        if (ranges.isEmpty()) return;
+        for (long[] range : ranges) {
+            add(confirmed, range[0], range[1]);
+        }
+        save();
+    }
+
+    // End of the confirmed range starting at byte 0, i.e. where a sequential transfer resumes
+    public synchronized long getDurableOffset() {
+        Long end = confirmed.get(0L);
+        return end == null ? 0 : end;
+    }
+
+    // Whether [start, end) lies within one confirmed range
+    public synchronized boolean isConfirmed(long start, long end) {
+        Map.Entry<Long, Long> range = confirmed.floorEntry(start);
+        return range != null && range.getValue() >= end;
+    }
+
+    // Gaps of [0, size) that are not confirmed yet
+    public synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (Map.Entry<Long, Long> range : confirmed.entrySet()) {
+            if (range.getKey() > position) {
+                missing.add(new long[] {position, Math.min(range.getKey(), size)});
+            }
+            position = Math.max(position, range.getValue());
+        }
+        if (position < size) {
+            missing.add(new long[] {position, size});
+        }
+        return missing;
+    }
+
+    public synchronized List<long[]> getConfirmedRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        for (Map.Entry<Long, Long> range : confirmed.entrySet()) {
+            ranges.add(new long[] {range.getKey(), range.getValue()});
+        }
+        return ranges;
+    }
+
+    public String getFingerprint() { return fingerprint; }
+    public long getSize() { return size; }
+
+    public synchronized void save() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("fingerprint=" + fingerprint);
+            writer.newLine();
+            writer.write("size=" + size);
+            writer.newLine();
+            for (Map.Entry<Long, Long> range : confirmed.entrySet()) {
+                writer.write("range=" + range.getKey() + "-" + range.getValue());
+                writer.newLine();
+            }
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    // Inserts [start, end) and merges it with overlapping or adjacent ranges
+    private static void add(TreeMap<Long, Long> ranges, long start, long end) {
+        if (end <= start) return;
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+        }
+        ranges.put(start, end);
+    }
+}
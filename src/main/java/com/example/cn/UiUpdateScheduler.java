@@ -0,0 +1,113 @@
+package com.example.cn;
+
+import javafx.animation.AnimationTimer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Applies the UI updates of a window once per frame, at most -Dcn.ui.maxFps frames a second
+// (default 30), instead of one Platform.runLater per event.
+//
+// Engine threads write the latest figures into fields of their own and request() an Update; the
+// Update is queued only if it is not queued already, so a thousand progress events between two
+// frames cost one run of it, which reads the latest figures. Refreshes registered with every()
+// pull their figures themselves - from all sessions at once - on the frame their interval is due.
+// Runs on the FX thread; request() may be called from any thread.
+public final class UiUpdateScheduler {
+    private static final long FRAME_NANOS = 1_000_000_000L / Math.max(1, Integer.getInteger("cn.ui.maxFps", 30));
+
+    private final Queue<Update> dirty = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+    private final List<Refresh> refreshes = new ArrayList<>();
+    private long lastFrame = System.nanoTime() - FRAME_NANOS;
+    private Consumer<String> errors = message -> { };
+
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            if (now - lastFrame < FRAME_NANOS) return;
+            lastFrame = now;
+            frame(now);
+        }
+    };
+
+    // UI work that runs on the next frame after request(), once however often it was requested
+    public final class Update {
+        private final Runnable apply;
+        private final AtomicBoolean queued = new AtomicBoolean();
+
+        private Update(Runnable apply) {
+            this.apply = apply;
+        }
+
+        public void request() {
+            if (queued.compareAndSet(false, true)) {
+                dirtyCount.incrementAndGet();
+                dirty.offer(this);
+            }
+        }
+    }
+
+    private static final class Refresh {
+        final long intervalNanos;
+        final Runnable refresh;
+        long due = System.nanoTime();
+
+        Refresh(long intervalNanos, Runnable refresh) {
+            this.intervalNanos = intervalNanos;
+            this.refresh = refresh;
+        }
+    }
+
+    public Update newUpdate(Runnable apply) {
+        return new Update(apply);
+    }
+
+    // FX thread: runs refresh on a frame every intervalMillis
+    public void every(long intervalMillis, Runnable refresh) {
+        refreshes.add(new Refresh(intervalMillis * 1_000_000L, refresh));
+    }
+
+    // FX thread: where failures of updates and refreshes are reported, e.g. the engine's log
+    public void onError(Consumer<String> errors) {
+        this.errors = errors;
+    }
+
+    public void start() {
+        timer.start();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    private void frame(long now) {
+        // Only what was requested before this frame; requests made while applying wait for the next
+        for (int i = dirtyCount.get(); i > 0; i--) {
+            Update update = dirty.poll();
+            if (update == null) break;
+            dirtyCount.decrementAndGet();
+            // Cleared first, so a request racing with apply is not lost
+            update.queued.set(false);
+            run(update.apply);
+        }
+        for (Refresh refresh : refreshes) {
+            if (now - refresh.due < 0) continue;
+            refresh.due = now + refresh.intervalNanos;
+            run(refresh.refresh);
+        }
+    }
+
+    private void run(Runnable work) {
+        try {
+            work.run();
+        } catch (RuntimeException e) {
+            errors.accept("UI update failed: " + e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.cn;
+
+// Shared slow start / congestion avoidance of the loss-based controllers (RFC 5681 section 3.1).
+// Subclasses decide how a loss shrinks the window and may replace the avoidance growth.
+abstract class WindowedController implements CongestionController {
+    // RFC 3390 initial window: min(4 * SMSS, max(2 * SMSS, 4380 bytes)) with 1 KB segments
+    static final double INITIAL_WINDOW = 4.0;
+    static final double INITIAL_SSTHRESH = 64.0;
+    static final double MIN_SSTHRESH = 2.0;
+
+    protected double congestionWindow = INITIAL_WINDOW;
+    protected double ssthresh = INITIAL_SSTHRESH;
+
+    @Override
+    public void onSend(int bytes, long nowNanos) {
+    }
+
+    @Override
+    public void onAck(int ackedSegments, long ackedBytes, double rttMillis, long nowNanos) {
+        for (int i = 0; i < ackedSegments; i++) {
+            if (congestionWindow < ssthresh) {
+                congestionWindow += 1.0;
+            } else {
+                congestionAvoidance(nowNanos);
+            }
+        }
+    }
+
+    // Called once per acknowledged segment once cwnd has reached ssthresh
+    protected void congestionAvoidance(long nowNanos) {
+        congestionWindow += 1.0 / congestionWindow;
+    }
+
+    @Override
+    public void onTimeout(long nowNanos) {
+        ssthresh = Math.max(congestionWindow / 2, MIN_SSTHRESH);
+        congestionWindow = 1.0;
+    }
+
+    @Override
+    public String getPhase() {
+        return congestionWindow < ssthresh ? "SLOW_START" : "CONGESTION_AVOIDANCE";
+    }
+
+    @Override
+    public double getCongestionWindow() { return congestionWindow; }
+
+    @Override
+    public double getSlowStartThreshold() { return ssthresh; }
+}
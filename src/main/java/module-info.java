@@ -13,4 +13,11 @@ module com.example.cn {
 
     opens com.example.cn to javafx.fxml;
     exports com.example.cn;
+
+    uses com.example.cn.CongestionController;
+    provides com.example.cn.CongestionController
+            with com.example.cn.RenoController, com.example.cn.TahoeController, com.example.cn.CubicController,
+                    com.example.cn.BbrController;
+    uses com.example.cn.CompressionCodec;
+    provides com.example.cn.CompressionCodec with com.example.cn.DeflateCodec;
 }
\ No newline at end of file
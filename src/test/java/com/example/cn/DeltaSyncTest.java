@@ -0,0 +1,143 @@
+package com.example.cn;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeltaSyncTest {
+    private static final int BLOCK_SIZE = 2048;
+    // Not a multiple of BLOCK_SIZE, so the basis ends in a short block
+    private static final int BASIS_SIZE = 20 * BLOCK_SIZE + 700;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void unchangedFileIsAllCopies() throws IOException {
+        byte[] basis = random(BASIS_SIZE, 1);
+        DeltaSync.Result result = roundTrip(basis, basis.clone());
+        assertEquals(0, result.literalBytes);
+        assertEquals(basis.length, result.matchedBytes);
+    }
+
+    @Test
+    void insertedBytesGoAsLiterals() throws IOException {
+        byte[] basis = random(BASIS_SIZE, 2);
+        byte[] inserted = random(37, 3);
+        int at = 5 * BLOCK_SIZE + 100;
+        byte[] updated = concat(slice(basis, 0, at), inserted, slice(basis, at, basis.length));
+        DeltaSync.Result result = roundTrip(basis, updated);
+        // The block the bytes landed in is sent whole, the others are found again at their new offsets
+        assertTrue(result.literalBytes <= inserted.length + BLOCK_SIZE, "literal bytes " + result.literalBytes);
+    }
+
+    @Test
+    void deletedBytesAreSkipped() throws IOException {
+        byte[] basis = random(BASIS_SIZE, 4);
+        byte[] updated = concat(slice(basis, 0, 3 * BLOCK_SIZE + 10), slice(basis, 4 * BLOCK_SIZE + 500, basis.length));
+        DeltaSync.Result result = roundTrip(basis, updated);
+        assertTrue(result.literalBytes <= 2L * BLOCK_SIZE, "literal bytes " + result.literalBytes);
+    }
+
+    @Test
+    void changedShortLastBlock() throws IOException {
+        byte[] basis = random(BASIS_SIZE, 5);
+        byte[] updated = concat(slice(basis, 0, basis.length - 300), random(1000, 6));
+        DeltaSync.Result result = roundTrip(basis, updated);
+        assertEquals(1000 + 400, result.literalBytes);
+    }
+
+    @Test
+    void unrelatedFileIsAllLiterals() throws IOException {
+        byte[] basis = random(BASIS_SIZE, 7);
+        byte[] updated = random(BASIS_SIZE / 2, 8);
+        DeltaSync.Result result = roundTrip(basis, updated);
+        assertEquals(updated.length, result.literalBytes);
+    }
+
+    @Test
+    void rollMatchesChecksumOfShiftedWindow() {
+        byte[] data = random(4096, 9);
+        int length = 512;
+        DeltaSync.Rolling rolling = new DeltaSync.Rolling(data, 0, length);
+        for (int i = 0; i + length < data.length; i++) {
+            rolling.roll(data[i], data[i + length]);
+            assertEquals(DeltaSync.Rolling.of(data, i + 1, length), rolling.value(), "window at " + (i + 1));
+        }
+    }
+
+    @Test
+    void rollOutMatchesChecksumOfShorterWindow() {
+        byte[] data = random(1024, 10);
+        DeltaSync.Rolling rolling = new DeltaSync.Rolling(data, 0, data.length);
+        for (int i = 0; i < data.length - 1; i++) {
+            rolling.rollOut(data[i]);
+            assertEquals(data.length - i - 1, rolling.length());
+            assertEquals(DeltaSync.Rolling.of(data, i + 1, data.length - i - 1), rolling.value(),
+                    "tail from " + (i + 1));
+        }
+    }
+
+    // Signatures of basis, the delta of updated against them and the rebuild on the basis file,
+    // which must come out equal to updated
+    private DeltaSync.Result roundTrip(byte[] basis, byte[] updated) throws IOException {
+        Path target = directory.resolve("file.bin");
+        Path source = directory.resolve("updated.bin");
+        Files.write(target, basis);
+        Files.write(source, updated);
+
+        DeltaSync.Signatures signatures = new DeltaSync.Signatures(BLOCK_SIZE,
+                DeltaSync.blockCount(basis.length, BLOCK_SIZE), basis.length);
+        signatures.add(0, ByteBuffer.wrap(DeltaSync.signatures(target, BLOCK_SIZE)));
+        assertTrue(signatures.isComplete());
+
+        DeltaSync.Result result;
+        try (DeltaSync.Rebuilder rebuilder = new DeltaSync.Rebuilder(target, BLOCK_SIZE, updated.length, 4096)) {
+            result = DeltaSync.computeDelta(source, signatures, 1000, new DeltaSync.Sink() {
+                @Override
+                public void copy(long offset, int block, int count) throws IOException {
+                    rebuilder.copy(offset, block, count);
+                }
+
+                @Override
+                public void literal(long offset, byte[] data, int dataOffset, int length) throws IOException {
+                    assertTrue(length <= 1000);
+                    rebuilder.literal(offset, ByteBuffer.wrap(data, dataOffset, length));
+                }
+            });
+            assertEquals(updated.length, result.literalBytes + result.matchedBytes);
+            assertTrue(rebuilder.finish(result.sha256));
+        }
+        assertArrayEquals(updated, Files.readAllBytes(target));
+        return result;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] slice(byte[] data, int from, int to) {
+        byte[] slice = new byte[to - from];
+        System.arraycopy(data, from, slice, 0, slice.length);
+        return slice;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer joined = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(p -> p.length).sum());
+        for (byte[] part : parts) {
+            joined.put(part);
+        }
+        return joined.array();
+    }
+}
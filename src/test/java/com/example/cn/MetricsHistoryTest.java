@@ -0,0 +1,83 @@
+package com.example.cn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.function.LongToDoubleFunction;
+import org.junit.jupiter.api.Test;
+
+class MetricsHistoryTest {
+    @Test
+    void smallWindowIsReturnedAsIs() {
+        MetricsHistory history = history(10, time -> time * 2.0);
+        double[] times = new double[20];
+        double[] values = new double[20];
+        int points = history.downsample(MetricsHistory.RTT, 0, Long.MAX_VALUE, 20, times, values);
+        assertEquals(10, points);
+        for (int i = 0; i < points; i++) {
+            assertEquals(i * 100.0, times[i]);
+            assertEquals(i * 200.0, values[i]);
+        }
+    }
+
+    @Test
+    void windowBoundsAreInclusive() {
+        MetricsHistory history = history(10, time -> time);
+        double[] times = new double[10];
+        double[] values = new double[10];
+        int points = history.downsample(MetricsHistory.RTT, 200, 500, 10, times, values);
+        assertEquals(4, points);
+        assertEquals(200.0, times[0]);
+        assertEquals(500.0, times[3]);
+    }
+
+    @Test
+    void largeWindowKeepsEndsAndPeaks() {
+        // Flat except for one spike and one dip
+        MetricsHistory history = history(5000, time -> time == 123_400 ? 1000 : time == 345_600 ? -1000 : 10);
+        double[] times = new double[100];
+        double[] values = new double[100];
+        int points = history.downsample(MetricsHistory.RTT, 0, Long.MAX_VALUE, 100, times, values);
+        assertEquals(100, points);
+        assertEquals(0.0, times[0]);
+        assertEquals(499_900.0, times[points - 1]);
+        boolean spike = false;
+        boolean dip = false;
+        for (int i = 0; i < points; i++) {
+            if (i > 0) {
+                assertTrue(times[i] > times[i - 1], "times out of order at " + i);
+            }
+            spike |= values[i] == 1000;
+            dip |= values[i] == -1000;
+        }
+        assertTrue(spike, "spike lost");
+        assertTrue(dip, "dip lost");
+    }
+
+    @Test
+    void samplesSurviveGrowingTheRing() {
+        MetricsHistory history = history(3000, time -> time / 100.0);
+        assertEquals(3000, history.size());
+        assertEquals(299_900, history.getLastTime());
+        assertEquals(2999.0, history.getLast(MetricsHistory.RTT));
+        double[] times = new double[5];
+        double[] values = new double[5];
+        int points = history.downsample(MetricsHistory.RTT, 100_000, 100_400, 5, times, values);
+        assertEquals(5, points);
+        for (int i = 0; i < points; i++) {
+            assertEquals(1000.0 + i, values[i]);
+        }
+    }
+
+    // count samples 100 ms apart, the RTT series taken from rtt and the others zero
+    private static MetricsHistory history(int count, LongToDoubleFunction rtt) {
+        MetricsHistory history = new MetricsHistory();
+        double[] sample = new double[MetricsHistory.SERIES];
+        for (int i = 0; i < count; i++) {
+            long time = i * 100L;
+            sample[MetricsHistory.RTT] = rtt.applyAsDouble(time);
+            history.record(time, sample);
+        }
+        return history;
+    }
+}
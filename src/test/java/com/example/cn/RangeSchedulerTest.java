@@ -0,0 +1,91 @@
+package com.example.cn;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class RangeSchedulerTest {
+    @Test
+    void chunksCoverTheRangesInOrder() {
+        RangeScheduler scheduler = new RangeScheduler(List.of(new long[] {0, 25}, new long[] {40, 50}), 10, 1);
+        assertEquals(35, scheduler.getRemainingBytes());
+        List<long[]> chunks = drain(scheduler, 0);
+        assertEquals(4, chunks.size());
+        assertArrayEquals(new long[] {0, 10}, chunks.get(0));
+        assertArrayEquals(new long[] {10, 20}, chunks.get(1));
+        assertArrayEquals(new long[] {20, 25}, chunks.get(2));
+        assertArrayEquals(new long[] {40, 50}, chunks.get(3));
+    }
+
+    @Test
+    void streamsGetContiguousRuns() {
+        RangeScheduler scheduler = new RangeScheduler(List.of(new long[] {0, 100}), 10, 2);
+        assertArrayEquals(new long[] {0, 10}, scheduler.next(0));
+        assertArrayEquals(new long[] {50, 60}, scheduler.next(1));
+        assertEquals(0, scheduler.getSteals());
+    }
+
+    @Test
+    void idleStreamStealsFromTheTailOfTheBusiest() {
+        RangeScheduler scheduler = new RangeScheduler(List.of(new long[] {0, 100}), 10, 2);
+        for (int i = 0; i < 5; i++) {
+            scheduler.next(0);
+        }
+        // Stream 0 is through its own run and continues stream 1's from the far end
+        assertArrayEquals(new long[] {90, 100}, scheduler.next(0));
+        assertEquals(1, scheduler.getSteals());
+        assertArrayEquals(new long[] {50, 60}, scheduler.next(1));
+
+        List<long[]> stolen = drain(scheduler, 0);
+        assertEquals(3, stolen.size());
+        assertArrayEquals(new long[] {60, 70}, stolen.get(2));
+        assertEquals(4, scheduler.getSteals());
+        assertNull(scheduler.next(1));
+    }
+
+    @Test
+    void failedChunkGoesToAnotherStream() {
+        RangeScheduler scheduler = new RangeScheduler(List.of(new long[] {0, 40}), 10, 2);
+        long[] lost = scheduler.next(1);
+        assertArrayEquals(new long[] {20, 30}, lost);
+        scheduler.failed(lost);
+        scheduler.release(1);
+
+        List<long[]> chunks = drain(scheduler, 0);
+        assertEquals(4, chunks.size());
+        assertTrue(chunks.stream().anyMatch(chunk -> chunk[0] == 20 && chunk[1] == 30));
+        assertNull(scheduler.next(1));
+    }
+
+    @Test
+    void doneOnlyOnceEveryChunkCompleted() throws InterruptedException {
+        RangeScheduler scheduler = new RangeScheduler(List.of(new long[] {0, 30}), 10, 1);
+        List<long[]> chunks = new ArrayList<>();
+        for (long[] chunk; (chunk = scheduler.next(0)) != null; ) {
+            chunks.add(chunk);
+        }
+        assertFalse(scheduler.isDone());
+        scheduler.completed(chunks.get(0));
+        scheduler.completed(chunks.get(2));
+        assertFalse(scheduler.awaitDone(10));
+        assertEquals(10, scheduler.getRemainingBytes());
+        scheduler.completed(chunks.get(1));
+        assertTrue(scheduler.awaitDone(0));
+    }
+
+    // Takes and completes chunks for the stream until there are none left
+    private static List<long[]> drain(RangeScheduler scheduler, int stream) {
+        List<long[]> chunks = new ArrayList<>();
+        for (long[] chunk; (chunk = scheduler.next(stream)) != null; ) {
+            chunks.add(chunk);
+            scheduler.completed(chunk);
+        }
+        return chunks;
+    }
+}
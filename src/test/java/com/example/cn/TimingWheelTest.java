@@ -0,0 +1,88 @@
+package com.example.cn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+    private static final long TICK = 1000;
+
+    @Test
+    void firesOnceItsTickHasPassed() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(5 * TICK, () -> fired.add("a"), 0);
+        assertEquals(1, wheel.size());
+
+        wheel.advance(5 * TICK - 1);
+        assertEquals(List.of(), fired);
+        wheel.advance(5 * TICK);
+        assertEquals(List.of("a"), fired);
+        assertEquals(0, wheel.size());
+        wheel.advance(20 * TICK);
+        assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    void waitsWholeTurnsForDelaysLongerThanTheWheel() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<Long> fired = new ArrayList<>();
+        wheel.schedule(20 * TICK, () -> fired.add(20L), 0);
+        wheel.schedule(4 * TICK, () -> fired.add(4L), 0);
+
+        wheel.advance(8 * TICK);
+        assertEquals(List.of(4L), fired);
+        wheel.advance(19 * TICK);
+        assertEquals(List.of(4L), fired);
+        wheel.advance(20 * TICK);
+        assertEquals(List.of(4L, 20L), fired);
+    }
+
+    @Test
+    void overdueTimersFireInOneAdvance() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<Integer> fired = new ArrayList<>();
+        for (int i = 1; i <= 30; i++) {
+            int delay = i;
+            wheel.schedule(delay * TICK, () -> fired.add(delay), 0);
+        }
+        wheel.advance(100 * TICK);
+        assertEquals(30, fired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void nanosUntilNextTimer() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        assertEquals(Long.MAX_VALUE, wheel.nanosUntilNextTimer(0));
+
+        wheel.schedule(3 * TICK, () -> { }, 0);
+        assertEquals(3 * TICK, wheel.nanosUntilNextTimer(0));
+        assertEquals(TICK, wheel.nanosUntilNextTimer(2 * TICK));
+        assertEquals(0, wheel.nanosUntilNextTimer(4 * TICK));
+
+        // Beyond one turn the loop is woken once per turn
+        TimingWheel later = new TimingWheel(TICK, 8, 0);
+        later.schedule(50 * TICK, () -> { }, 0);
+        assertEquals(8 * TICK, later.nanosUntilNextTimer(0));
+    }
+
+    @Test
+    void taskMayScheduleAnotherTimer() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<Long> fired = new ArrayList<>();
+        wheel.schedule(2 * TICK, () -> {
+            fired.add(2L);
+            wheel.schedule(3 * TICK, () -> fired.add(5L), 2 * TICK);
+        }, 0);
+
+        wheel.advance(2 * TICK);
+        assertEquals(List.of(2L), fired);
+        assertEquals(1, wheel.size());
+        assertEquals(3 * TICK, wheel.nanosUntilNextTimer(2 * TICK));
+        wheel.advance(5 * TICK);
+        assertEquals(List.of(2L, 5L), fired);
+    }
+}